@@ -23,6 +23,7 @@ public class ChadoCV
 {
     private final String cvName;
     private final Map<Integer, ChadoCVTerm> termMap = new HashMap<Integer, ChadoCVTerm>();
+    private ChadoCVIndex index = null;
 
     /**
      * Create a new ChadoCV.
@@ -46,9 +47,55 @@ public class ChadoCV
      * @param chadoCvTerm the ChadoCVTerm object
      */
     public void addByChadoId(Integer cvtermId, ChadoCVTerm chadoCvTerm) {
+        if (index != null) {
+            throw new IllegalStateException("can't add " + chadoCvTerm.getName() + " to " + cvName
+                                            + " after it has been indexed");
+        }
         termMap.put(cvtermId, chadoCvTerm);
     }
 
+    /**
+     * Build the transitive closure index of the is_a relationships, once all the terms and their direct parents
+     * and children have been added.  After this, getAllParents() and getAllChildren() of the terms read the index
+     * and isA() works, and the CV can't be changed.  ChadoCVFactory calls this when it loads a CV.
+     */
+    public synchronized void buildIndex() {
+        if (index == null) {
+            index = new ChadoCVIndex(termMap.values());
+        }
+    }
+
+    /**
+     * Return true if a term is the same as another or one of its descendants.  The CV must have been indexed.
+     * @param term the term
+     * @param ancestor the possible ancestor
+     * @return true if term is_a ancestor
+     */
+    public boolean isA(ChadoCVTerm term, ChadoCVTerm ancestor) {
+        if (index == null) {
+            throw new IllegalStateException("isA() called before the index of " + cvName + " was built");
+        }
+        if (term.getIndex() != index || ancestor.getIndex() != index) {
+            throw new IllegalArgumentException("isA() called with a term from another cv than " + cvName);
+        }
+        return index.isA(term.getIndexId(), ancestor.getIndexId());
+    }
+
+    /**
+     * Return true if the term with one cvterm_id is the same as, or a descendant of, the term with another.
+     * @param cvtermId the chado id of the term
+     * @param ancestorCvtermId the chado id of the possible ancestor
+     * @return true if the term is_a the ancestor, false if either isn't in this CV
+     */
+    public boolean isA(Integer cvtermId, Integer ancestorCvtermId) {
+        ChadoCVTerm term = termMap.get(cvtermId);
+        ChadoCVTerm ancestor = termMap.get(ancestorCvtermId);
+        if (term == null || ancestor == null) {
+            return false;
+        }
+        return isA(term, ancestor);
+    }
+
     /**
      * Return the ChadoCVTerm object for a given cvterm_id.
      * @param cvtermId the chado id = cvterm.cvterm_id
@@ -14,6 +14,8 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 
@@ -24,6 +26,11 @@ import org.apache.log4j.Logger;
 public class ChadoCVFactory
 {
     private static final Logger LOG = Logger.getLogger(ChadoCVFactory.class);
+
+    // the indexed CVs already read, keyed by database URL and cv name, shared by the factories of every processor
+    // until ChadoDBConverter.close() clears them
+    private static final Map<String, ChadoCV> CACHE = new HashMap<String, ChadoCV>();
+
     private final Connection connection;
 
     /**
@@ -35,13 +42,48 @@ public class ChadoCVFactory
     }
 
     /**
-     * Get a new ChadoCV containing only cv terms from the cv with the given name.
+     * Get a ChadoCV containing only cv terms from the cv with the given name.  The CV is read from chado and its
+     * closure index built the first time it's asked for, then the same, indexed ChadoCV is returned for the
+     * database by every factory, so it must not be changed.
      * @param cvName name of controlled vocabulary, eg. sequence ontology
-     * @return the new ChadoCV object
+     * @return the ChadoCV object
      * @throws SQLException if there is problem while querying
      */
     public ChadoCV getChadoCV(String cvName)
         throws SQLException {
+        String key = getCacheKey(cvName);
+        synchronized (CACHE) {
+            ChadoCV cv = CACHE.get(key);
+            if (cv == null) {
+                long start = System.currentTimeMillis();
+                cv = readChadoCV(cvName);
+                cv.buildIndex();
+                CACHE.put(key, cv);
+                LOG.info("read and indexed " + cv.getAllCVTerms().size() + " terms of " + cvName + " in "
+                         + (System.currentTimeMillis() - start) + " ms");
+            }
+            return cv;
+        }
+    }
+
+    /**
+     * Forget the CVs read so far, so they are read again from chado.
+     */
+    public static void clearCache() {
+        synchronized (CACHE) {
+            CACHE.clear();
+        }
+    }
+
+    private String getCacheKey(String cvName) throws SQLException {
+        String url = (connection == null) ? null : connection.getMetaData().getURL();
+        return url + "|" + cvName;
+    }
+
+    /**
+     * Read a ChadoCV from chado, without its index.
+     */
+    private ChadoCV readChadoCV(String cvName) throws SQLException {
         ChadoCV cv = new ChadoCV(cvName);
 
         ResultSet cvtermRes = getCVTermResultSet(connection, cvName);
@@ -51,6 +93,7 @@ public class ChadoCVFactory
             ChadoCVTerm cvTerm = new ChadoCVTerm(cvtermName);
             cv.addByChadoId(cvtermId, cvTerm);
         }
+        cvtermRes.close();
 
         ResultSet cvrelRes = getCVTermRelationshipResultSet(connection, cvName);
         while (cvrelRes.next()) {
@@ -62,6 +105,7 @@ public class ChadoCVFactory
             subject.getDirectParents().add(object);
             object.getDirectChildren().add(subject);
         }
+        cvrelRes.close();
 
         return cv;
     }
@@ -93,6 +137,7 @@ public class ChadoCVFactory
         PreparedStatement stmt = connection.prepareStatement(query);
         stmt.setString(1, cvName);
         ResultSet res = stmt.executeQuery();
+        stmt.closeOnCompletion();
         return res;
     }
 
@@ -114,6 +159,7 @@ public class ChadoCVFactory
         PreparedStatement stmt = connection.prepareStatement(query);
         stmt.setString(1, cvName);
         ResultSet res = stmt.executeQuery();
+        stmt.closeOnCompletion();
         return res;
     }
 
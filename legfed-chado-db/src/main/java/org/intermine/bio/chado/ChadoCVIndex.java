@@ -0,0 +1,247 @@
+package org.intermine.bio.chado;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The transitive closure of the is_a relationships of a ChadoCV, built once when the CV is loaded.  Each term is
+ * given a dense id, in an order where parents come before their children, and its ancestors and descendants are
+ * held as sorted arrays of ids.  Ontology terms have few ancestors, so this is much smaller than a bitset per term
+ * for large CVs like GO, and an is_a test is a binary search of the ancestors.
+ *
+ * The index is immutable: changes to the terms' direct parents and children after it is built are not seen.
+ *
+ * @author Sam Hokin
+ */
+class ChadoCVIndex
+{
+    private static final int[] NONE = new int[0];
+
+    private final ChadoCVTerm[] terms;
+    private final int[][] ancestors;
+    private final int[][] descendants;
+
+    /**
+     * Build the index of the given terms and attach it to them.
+     * @param cvTerms the terms of a CV, with their direct parents and children set
+     */
+    ChadoCVIndex(Collection<ChadoCVTerm> cvTerms) {
+        int count = cvTerms.size();
+        Map<ChadoCVTerm, Integer> positions = new IdentityHashMap<ChadoCVTerm, Integer>();
+        ChadoCVTerm[] unordered = cvTerms.toArray(new ChadoCVTerm[count]);
+        for (int i = 0; i < count; i++) {
+            positions.put(unordered[i], Integer.valueOf(i));
+        }
+
+        // order the terms so parents come first, with Kahn's algorithm; terms in a cycle are left to the end
+        int[] parentCounts = new int[count];
+        for (int i = 0; i < count; i++) {
+            for (ChadoCVTerm parent : unordered[i].getDirectParents()) {
+                if (positions.containsKey(parent)) {
+                    parentCounts[i]++;
+                }
+            }
+        }
+        terms = new ChadoCVTerm[count];
+        boolean[] placed = new boolean[count];
+        int ordered = 0;
+        for (int i = 0; i < count; i++) {
+            if (parentCounts[i] == 0) {
+                terms[ordered++] = unordered[i];
+                placed[i] = true;
+            }
+        }
+        for (int next = 0; next < ordered; next++) {
+            for (ChadoCVTerm child : terms[next].getDirectChildren()) {
+                Integer position = positions.get(child);
+                if (position != null && --parentCounts[position.intValue()] == 0) {
+                    terms[ordered++] = child;
+                    placed[position.intValue()] = true;
+                }
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            if (!placed[i]) {
+                terms[ordered++] = unordered[i];
+            }
+        }
+        int acyclic = count;
+        for (int i = 0; i < count; i++) {
+            if (!placed[i]) {
+                acyclic--;
+            }
+        }
+        Map<ChadoCVTerm, Integer> ids = new IdentityHashMap<ChadoCVTerm, Integer>();
+        for (int id = 0; id < count; id++) {
+            ids.put(terms[id], Integer.valueOf(id));
+        }
+
+        // a term's ancestors are its parents and their ancestors, which are already known in topological order
+        ancestors = new int[count][];
+        int[] marks = new int[count];
+        int[] scratch = new int[count];
+        for (int id = 0; id < count; id++) {
+            int size = 0;
+            if (id < acyclic) {
+                for (ChadoCVTerm parent : terms[id].getDirectParents()) {
+                    Integer parentId = ids.get(parent);
+                    if (parentId == null) {
+                        continue;
+                    }
+                    int p = parentId.intValue();
+                    if (marks[p] != id + 1) {
+                        marks[p] = id + 1;
+                        scratch[size++] = p;
+                    }
+                    for (int a : ancestors[p]) {
+                        if (marks[a] != id + 1) {
+                            marks[a] = id + 1;
+                            scratch[size++] = a;
+                        }
+                    }
+                }
+            } else {
+                // in or below a cycle: walk the parents breadth first, which only finds the term itself if it's
+                // in the cycle
+                for (int head = -1; head < size; head++) {
+                    ChadoCVTerm term = (head < 0) ? terms[id] : terms[scratch[head]];
+                    for (ChadoCVTerm parent : term.getDirectParents()) {
+                        Integer parentId = ids.get(parent);
+                        if (parentId != null && marks[parentId.intValue()] != id + 1) {
+                            marks[parentId.intValue()] = id + 1;
+                            scratch[size++] = parentId.intValue();
+                        }
+                    }
+                }
+            }
+            ancestors[id] = (size == 0) ? NONE : Arrays.copyOf(scratch, size);
+            Arrays.sort(ancestors[id]);
+        }
+
+        // the descendants are the inverse of the ancestors, filled in id order so they come out sorted
+        int[] descendantCounts = new int[count];
+        for (int id = 0; id < count; id++) {
+            for (int a : ancestors[id]) {
+                descendantCounts[a]++;
+            }
+        }
+        descendants = new int[count][];
+        for (int id = 0; id < count; id++) {
+            descendants[id] = (descendantCounts[id] == 0) ? NONE : new int[descendantCounts[id]];
+            descendantCounts[id] = 0;
+        }
+        for (int id = 0; id < count; id++) {
+            for (int a : ancestors[id]) {
+                descendants[a][descendantCounts[a]++] = id;
+            }
+        }
+
+        for (int id = 0; id < count; id++) {
+            terms[id].setIndex(this, id);
+        }
+    }
+
+    /**
+     * Return the number of terms in the index.
+     * @return the number of terms
+     */
+    int size() {
+        return terms.length;
+    }
+
+    /**
+     * Return true if one term is the other or one of its descendants.
+     * @param id the dense id of the term
+     * @param ancestorId the dense id of the possible ancestor
+     * @return true if the term is_a the ancestor
+     */
+    boolean isA(int id, int ancestorId) {
+        return id == ancestorId || Arrays.binarySearch(ancestors[id], ancestorId) >= 0;
+    }
+
+    /**
+     * Return the ancestors of a term as an unmodifiable Set.
+     * @param id the dense id of the term
+     * @return the ancestors
+     */
+    Set<ChadoCVTerm> getAncestors(int id) {
+        return new ClosureSet(ancestors[id]);
+    }
+
+    /**
+     * Return the descendants of a term as an unmodifiable Set.
+     * @param id the dense id of the term
+     * @return the descendants
+     */
+    Set<ChadoCVTerm> getDescendants(int id) {
+        return new ClosureSet(descendants[id]);
+    }
+
+    /**
+     * An unmodifiable Set view of a closure array.
+     */
+    private final class ClosureSet extends AbstractSet<ChadoCVTerm>
+    {
+        private final int[] ids;
+
+        ClosureSet(int[] ids) {
+            this.ids = ids;
+        }
+
+        @Override
+        public int size() {
+            return ids.length;
+        }
+
+        @Override
+        public boolean contains(Object obj) {
+            if (!(obj instanceof ChadoCVTerm)) {
+                return false;
+            }
+            ChadoCVTerm term = (ChadoCVTerm) obj;
+            if (term.getIndex() == ChadoCVIndex.this) {
+                return Arrays.binarySearch(ids, term.getIndexId()) >= 0;
+            }
+            // a term from outside the index is equal to one of ours if it has the same name
+            return super.contains(obj);
+        }
+
+        @Override
+        public Iterator<ChadoCVTerm> iterator() {
+            return new Iterator<ChadoCVTerm>() {
+                private int next = 0;
+
+                public boolean hasNext() {
+                    return next < ids.length;
+                }
+
+                public ChadoCVTerm next() {
+                    if (next >= ids.length) {
+                        throw new NoSuchElementException();
+                    }
+                    return terms[ids[next++]];
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException("closures can't be changed");
+                }
+            };
+        }
+    }
+}
@@ -26,6 +26,9 @@ public class ChadoCVTerm
     private Set<ChadoCVTerm> directChildren = new HashSet<ChadoCVTerm>();
     private WeakReference<Set<ChadoCVTerm>> allParentsRef = null;
     private WeakReference<Set<ChadoCVTerm>> allChildrenRef = null;
+    // the closure index of the term's ChadoCV and the term's id in it, once the index is built
+    private ChadoCVIndex index = null;
+    private int indexId = -1;
 
     /**
      * Create a new cv term object
@@ -104,10 +107,40 @@ public class ChadoCVTerm
     }
 
     /**
-     * Return a Set of all the parent ChadoCVTerms of this term.
+     * Attach the closure index of this term's ChadoCV.
+     * @param index the index
+     * @param indexId the dense id of this term in the index
+     */
+    final void setIndex(ChadoCVIndex index, int indexId) {
+        this.index = index;
+        this.indexId = indexId;
+    }
+
+    /**
+     * Return the closure index this term belongs to.
+     * @return the index, or null if the term's ChadoCV hasn't been indexed
+     */
+    final ChadoCVIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Return the dense id of this term in its closure index.
+     * @return the id, -1 if the term isn't indexed
+     */
+    final int getIndexId() {
+        return indexId;
+    }
+
+    /**
+     * Return a Set of all the parent ChadoCVTerms of this term.  If the term's ChadoCV has been indexed, the Set is
+     * an unmodifiable view of the index.
      * @return all the parent terms
      */
     public Set<ChadoCVTerm> getAllParents() {
+        if (index != null) {
+            return index.getAncestors(indexId);
+        }
         Set<ChadoCVTerm> allParents = null;
         if (allParentsRef != null) {
             allParents = allParentsRef.get();
@@ -124,10 +157,14 @@ public class ChadoCVTerm
     }
 
     /**
-     * Return a Set of all the child ChadoCVTerms of this term.
+     * Return a Set of all the child ChadoCVTerms of this term.  If the term's ChadoCV has been indexed, the Set is
+     * an unmodifiable view of the index.
      * @return all the child terms
      */
     public Set<ChadoCVTerm> getAllChildren() {
+        if (index != null) {
+            return index.getDescendants(indexId);
+        }
         Set<ChadoCVTerm> allChildren = null;
         if (allChildrenRef != null) {
             allChildren = allChildrenRef.get();
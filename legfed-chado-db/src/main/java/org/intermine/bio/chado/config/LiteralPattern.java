@@ -0,0 +1,147 @@
+package org.intermine.bio.chado.config;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.regex.Pattern;
+
+/**
+ * A fast path for the patterns the chado configs mostly use: a literal prefix and suffix around an optional .* or
+ * .+ wildcard, which may be a capturing group, for example "Glyma\.(.*)" or "(.*)\.1".  These are matched with
+ * startsWith() and endsWith() instead of a Matcher.  Other patterns aren't compiled into a LiteralPattern.
+ * @author Sam Hokin
+ */
+final class LiteralPattern
+{
+    private static final String METACHARACTERS = "\\^$.|?*+()[]{}";
+
+    private final String prefix;
+    private final String suffix;
+    // the wildcard's minimum length: 0 for .*, 1 for .+, -1 if there is no wildcard
+    private final int wildcard;
+    private final boolean group;
+
+    private LiteralPattern(String prefix, String suffix, int wildcard, boolean group) {
+        this.prefix = prefix;
+        this.suffix = suffix;
+        this.wildcard = wildcard;
+        this.group = group;
+    }
+
+    /**
+     * Compile the fast path for a pattern.
+     * @param pattern the pattern
+     * @return the LiteralPattern, or null if the pattern isn't a literal around a wildcard
+     */
+    static LiteralPattern compile(Pattern pattern) {
+        if (pattern.flags() != 0) {
+            return null;
+        }
+        String regex = pattern.pattern();
+        int end = regex.length();
+        int pos = 0;
+        if (regex.startsWith("^")) {
+            pos++;
+        }
+        if (end > pos && regex.charAt(end - 1) == '$' && !isEscaped(regex, end - 1)) {
+            end--;
+        }
+        StringBuilder prefix = new StringBuilder();
+        pos = readLiteral(regex, pos, end, prefix);
+        if (pos < 0) {
+            return null;
+        }
+        boolean group = false;
+        int wildcard = -1;
+        if (pos < end && regex.charAt(pos) == '(') {
+            group = true;
+            pos++;
+        }
+        if (pos + 1 < end && regex.charAt(pos) == '.'
+            && (regex.charAt(pos + 1) == '*' || regex.charAt(pos + 1) == '+')) {
+            wildcard = (regex.charAt(pos + 1) == '*') ? 0 : 1;
+            pos += 2;
+        }
+        if (group) {
+            if (wildcard < 0 || pos >= end || regex.charAt(pos) != ')') {
+                return null;
+            }
+            pos++;
+        }
+        StringBuilder suffix = new StringBuilder();
+        pos = readLiteral(regex, pos, end, suffix);
+        if (pos != end) {
+            return null;
+        }
+        if (wildcard < 0) {
+            // a plain literal, held as the prefix
+            return new LiteralPattern(prefix.toString(), "", -1, false);
+        }
+        return new LiteralPattern(prefix.toString(), suffix.toString(), wildcard, group);
+    }
+
+    /**
+     * Read literal characters, unescaping them, up to the first metacharacter.
+     * @return the position after the literal, or -1 if an escape isn't of a plain character
+     */
+    private static int readLiteral(String regex, int pos, int end, StringBuilder literal) {
+        while (pos < end) {
+            char c = regex.charAt(pos);
+            if (c == '\\') {
+                if (pos + 1 >= end || Character.isLetterOrDigit(regex.charAt(pos + 1))) {
+                    // \d, \Q, back references etc.
+                    return -1;
+                }
+                literal.append(regex.charAt(pos + 1));
+                pos += 2;
+            } else if (METACHARACTERS.indexOf(c) >= 0) {
+                return pos;
+            } else {
+                literal.append(c);
+                pos++;
+            }
+        }
+        return pos;
+    }
+
+    private static boolean isEscaped(String regex, int pos) {
+        int backslashes = 0;
+        while (pos - backslashes > 0 && regex.charAt(pos - backslashes - 1) == '\\') {
+            backslashes++;
+        }
+        return backslashes % 2 == 1;
+    }
+
+    /**
+     * Match a value.
+     * @param value the value
+     * @return the result, or null if the fast path can't tell and the Pattern must be used
+     */
+    MatchResult match(String value) {
+        if (wildcard < 0) {
+            return value.equals(prefix) ? MatchResult.valid(value) : MatchResult.NO_MATCH;
+        }
+        int middleEnd = value.length() - suffix.length();
+        if (middleEnd - prefix.length() < wildcard || !value.startsWith(prefix) || !value.endsWith(suffix)) {
+            return MatchResult.NO_MATCH;
+        }
+        for (int i = prefix.length(); i < middleEnd; i++) {
+            char c = value.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                // "." doesn't match line terminators; leave the details to the Pattern
+                return null;
+            }
+        }
+        if (group) {
+            return MatchResult.valid(value.substring(prefix.length(), middleEnd));
+        }
+        return MatchResult.valid(value);
+    }
+}
@@ -0,0 +1,96 @@
+package org.intermine.bio.chado.config;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe cache of MatchResults, bounded both in the number of entries and in their weight, an estimate of
+ * the bytes held by the values and results.  When either bound is passed, one thread evicts arbitrary entries until
+ * the cache is back down to three quarters of its bounds; the others carry on without waiting.  The bounds are
+ * approximate while threads are adding entries concurrently.
+ * @author Sam Hokin
+ */
+final class MatchCache
+{
+    // the overhead of an entry, its key and its result, in bytes
+    private static final int ENTRY_WEIGHT = 112;
+
+    private final int maxEntries;
+    private final long maxWeight;
+    private final ConcurrentHashMap<String, MatchResult> map = new ConcurrentHashMap<String, MatchResult>();
+    private final AtomicLong weight = new AtomicLong();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    /**
+     * Create an empty cache.
+     * @param maxEntries the maximum number of entries
+     * @param maxWeight the maximum total weight of the entries, in bytes
+     */
+    MatchCache(int maxEntries, long maxWeight) {
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * Return the cached result for a value.
+     * @param value the value
+     * @return the result or null if it isn't cached
+     */
+    MatchResult get(String value) {
+        return map.get(value);
+    }
+
+    /**
+     * Cache the result for a value, evicting other entries if the cache is full.
+     * @param value the value
+     * @param result the result of matching it
+     */
+    void put(String value, MatchResult result) {
+        if (map.putIfAbsent(value, result) != null) {
+            return;
+        }
+        long total = weight.addAndGet(weigh(value, result));
+        if ((map.size() > maxEntries || total > maxWeight) && evicting.compareAndSet(false, true)) {
+            try {
+                Iterator<Map.Entry<String, MatchResult>> iter = map.entrySet().iterator();
+                while (iter.hasNext() && (map.size() > maxEntries / 4 * 3 || weight.get() > maxWeight / 4 * 3)) {
+                    Map.Entry<String, MatchResult> entry = iter.next();
+                    if (map.remove(entry.getKey(), entry.getValue())) {
+                        weight.addAndGet(-weigh(entry.getKey(), entry.getValue()));
+                    }
+                }
+            } finally {
+                evicting.set(false);
+            }
+        }
+    }
+
+    /**
+     * Return the number of cached results.
+     * @return the size
+     */
+    int size() {
+        return map.size();
+    }
+
+    private static long weigh(String value, MatchResult result) {
+        long bytes = ENTRY_WEIGHT + 2L * value.length();
+        if (result.getValue() != null && result.getValue() != value) {
+            bytes += ENTRY_WEIGHT / 2 + 2L * result.getValue().length();
+        }
+        return bytes;
+    }
+}
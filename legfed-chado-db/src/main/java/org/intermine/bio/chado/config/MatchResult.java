@@ -0,0 +1,58 @@
+package org.intermine.bio.chado.config;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+/**
+ * The immutable result of matching a value against the pattern of a MatchingFieldConfigAction: whether the value
+ * is valid and, if it is, the value to use.
+ * @author Sam Hokin
+ */
+public final class MatchResult
+{
+    /**
+     * The result for a value that doesn't match.
+     */
+    public static final MatchResult NO_MATCH = new MatchResult(false, null);
+
+    private final boolean valid;
+    private final String value;
+
+    private MatchResult(boolean valid, String value) {
+        this.valid = valid;
+        this.value = value;
+    }
+
+    /**
+     * Return the result for a value that matches.
+     * @param value the value to use, the contents of the capturing group if the pattern has one
+     * @return the result
+     */
+    static MatchResult valid(String value) {
+        return new MatchResult(true, value);
+    }
+
+    /**
+     * Return true if the value matched the pattern.
+     * @return true if the value is valid
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * Return the processed value: the contents of the capturing group if the pattern has one and it matched,
+     * otherwise the whole value.
+     * @return the processed value, or null if the value isn't valid
+     */
+    public String getValue() {
+        return value;
+    }
+}
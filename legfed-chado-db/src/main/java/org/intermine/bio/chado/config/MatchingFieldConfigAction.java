@@ -13,22 +13,26 @@ package org.intermine.bio.chado.config;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import org.intermine.util.CacheMap;
-
 /**
- * A ConfigAction that succeeds only if the value matches a pattern.
+ * A ConfigAction that succeeds only if the value matches a pattern.  match() returns an immutable MatchResult, so
+ * actions can be shared by processors running organisms concurrently.  Patterns that are a literal around a .* or
+ * .+ wildcard are matched without a Matcher; for the others, results are kept in a bounded cache.
  * @author Kim Rutherford
  */
 public class MatchingFieldConfigAction extends ConfigAction
 {
+    private static final int CACHE_MAX_ENTRIES = 10000;
+    private static final long CACHE_MAX_WEIGHT = 4L << 20;
+
     private final Pattern pattern;
-    private final CacheMap<String, Matcher> cacheMap = new CacheMap<String, Matcher>();
+    private final LiteralPattern literalPattern;
+    private final MatchCache cache;
 
     /**
      * Construct a MatchingFieldConfigAction.
      */
     MatchingFieldConfigAction() {
-        pattern = null;
+        this(null);
     }
 
     /**
@@ -38,50 +42,53 @@ public class MatchingFieldConfigAction extends ConfigAction
      */
     MatchingFieldConfigAction(Pattern pattern) {
         this.pattern = pattern;
+        if (pattern == null) {
+            literalPattern = null;
+            cache = null;
+        } else {
+            literalPattern = LiteralPattern.compile(pattern);
+            cache = (literalPattern == null) ? new MatchCache(CACHE_MAX_ENTRIES, CACHE_MAX_WEIGHT) : null;
+        }
     }
 
     /**
-     * Validate a value for this field by matching with pattern set in the constructor.
+     * Match a value against the pattern set in the constructor.  If there is no pattern, every value is valid and
+     * used as it is.  If the pattern contains a capturing group that matched, the value to use is the contents of
+     * the group, otherwise it's the whole value.
      * @param value the value to check
-     * @return true if value matches the pattern
+     * @return the result
      */
-    public boolean isValidValue(String value) {
+    public MatchResult match(String value) {
         if (pattern == null) {
-            return true;
+            return MatchResult.valid(value);
         }
-        Matcher matcher;
-        if (cacheMap.containsKey(value)) {
-            matcher = (Matcher) cacheMap.get(value);
-        } else {
-            matcher = pattern.matcher(value);
-            cacheMap.put(value, matcher);
+        if (literalPattern != null) {
+            MatchResult result = literalPattern.match(value);
+            return (result == null) ? matchPattern(value) : result;
         }
-        return matcher.matches();
+        MatchResult result = cache.get(value);
+        if (result == null) {
+            result = matchPattern(value);
+            cache.put(value, result);
+        }
+        return result;
     }
 
-    /**
-     * Process the value to set and return a (possibly) altered version.  If a pattern was set
-     * in the constructor and the pattern contains a capturing group, then return the contents
-     * of the capturing group, otherwise return the whole value.  If there is no pattern, return
-     * the whole value.
-     * @param value the attribute value to process
-     * @return the processed value
-     */
-    public String processValue(String value) {
-        if (pattern == null) {
-            return value;
+    private MatchResult matchPattern(String value) {
+        Matcher matcher = pattern.matcher(value);
+        if (!matcher.matches()) {
+            return MatchResult.NO_MATCH;
         }
-        Matcher matcher = (Matcher) cacheMap.get(value);
         if (matcher.groupCount() == 0) {
-            // no capturing group in pattern so return the whole value
-            return value;
+            // no capturing group in pattern so use the whole value
+            return MatchResult.valid(value);
         } else {
             if (matcher.groupCount() == 1) {
                 if (matcher.group(1) == null) {
                     // special case - the pattern matches, but doesn't match the capturing group
-                    return value;
+                    return MatchResult.valid(value);
                 } else {
-                    return matcher.group(1);
+                    return MatchResult.valid(matcher.group(1));
                 }
             } else {
                 throw new RuntimeException("more than one capturing group in: "
@@ -89,4 +96,30 @@ public class MatchingFieldConfigAction extends ConfigAction
             }
         }
     }
+
+    /**
+     * Validate a value for this field by matching with pattern set in the constructor.
+     * @param value the value to check
+     * @return true if value matches the pattern
+     * @deprecated use match(), which also returns the processed value
+     */
+    @Deprecated
+    public boolean isValidValue(String value) {
+        return match(value).isValid();
+    }
+
+    /**
+     * Process the value to set and return a (possibly) altered version.  If a pattern was set
+     * in the constructor and the pattern contains a capturing group, then return the contents
+     * of the capturing group, otherwise return the whole value.  If there is no pattern, or the
+     * value doesn't match it, return the whole value.
+     * @param value the attribute value to process
+     * @return the processed value
+     * @deprecated use match(), which also says whether the value is valid
+     */
+    @Deprecated
+    public String processValue(String value) {
+        MatchResult result = match(value);
+        return result.isValid() ? result.getValue() : value;
+    }
 }
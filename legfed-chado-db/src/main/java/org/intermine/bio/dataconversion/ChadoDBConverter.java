@@ -10,21 +10,30 @@ package org.intermine.bio.dataconversion;
  *
  */
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
 import java.lang.reflect.Constructor;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
+import org.intermine.bio.chado.ChadoCVFactory;
 import org.intermine.bio.util.OrganismData;
 import org.intermine.bio.util.OrganismRepository;
 import org.intermine.dataconversion.ItemWriter;
@@ -32,6 +41,7 @@ import org.intermine.metadata.Model;
 import org.intermine.metadata.StringUtil;
 import org.intermine.objectstore.ObjectStoreException;
 import org.intermine.sql.Database;
+import org.intermine.xml.full.Attribute;
 import org.intermine.xml.full.Item;
 
 /**
@@ -67,6 +77,54 @@ public class ChadoDBConverter extends BioDBConverter {
 
     private String phytozomeVersion = "";
 
+    // the JDBC fetch size used to stream result sets from a server-side cursor, 0 to read them whole
+    private int fetchSize = 0;
+
+    // the number of organisms processed concurrently by processors that support it, 1 to process them serially
+    private int organismThreads = 1;
+
+    // the number of processor phases run concurrently by processors that support it, 1 to run them serially
+    private int phaseThreads = 1;
+
+    // if true, processors that support it store Items as soon as they are complete rather than holding them
+    private boolean boundedMemory = false;
+
+    // the heap SequenceProcessor's features may use before they are spilled to featureSpillDir, 0 for no limit
+    private long featureHeapBudget = 0;
+    private File featureSpillDir = new File(System.getProperty("java.io.tmpdir"));
+
+    // if set, the plans of the processors' queries are written here, see setExplainReport()
+    private QueryPlanReport queryPlanReport = null;
+
+    // the timers and counters of this run, see ConverterStats
+    private final ConverterStats stats = new ConverterStats();
+
+    // if set, the JSON summary of the stats is written here by close()
+    private String statsFile = null;
+
+    // 1 in debugSampleRate of the processors' debug lines are tallied, 0 for none
+    private int debugSampleRate = 0;
+
+    // if set, the processors completed by this run are checkpointed here, see setCheckpointDir()
+    private File checkpointDir = null;
+    private ConverterCheckpoint checkpoint = null;
+    // the ObjectStoreWriter of the items database, which a resumed run deletes the failed run's stores from
+    private String targetAlias = "osw.common-tgt-items";
+
+    // if set, the processors' item streams and snapshots are kept here for a delta run, see setDeltaDir()
+    private File deltaDir = null;
+    private DeltaState deltaState = null;
+
+    // if set, the processors' result sets are written to or read from a snapshot here, see setResultSetSnapshotDir()
+    private File resultSetSnapshotDir = null;
+    private boolean resultSetReplay = false;
+    private ResultSetSnapshot resultSetSnapshot = null;
+
+    // the number of Items created of each class, plus those created before the checkpoint this run resumed from
+    private final Map<String, int[]> itemCounts = new HashMap<>();
+    // the number of Items of each class created before the checkpoint, added to the new Items' identifier numbers
+    private final Map<String, Integer> itemNumberOffsets = new HashMap<>();
+
     private final Set<OrganismData> organismsToProcess = new HashSet<>();
     private final Set<String> strainsToProcess = new HashSet<>();
     
@@ -79,6 +137,9 @@ public class ChadoDBConverter extends BioDBConverter {
 
     private Connection connection;
 
+    // records the processors' stores in a delta run
+    private final RecordingItemWriter recorder;
+
     /**
      * Create a new ChadoDBConverter object.
      * @param database the database to read from
@@ -87,7 +148,8 @@ public class ChadoDBConverter extends BioDBConverter {
      * @throws SQLException if we fail to get a database connection
      */
     public ChadoDBConverter(Database database, Model tgtModel, ItemWriter writer) throws SQLException {
-        super(database, tgtModel, writer, null, null);
+        super(database, tgtModel, new RecordingItemWriter(writer), null, null);
+        recorder = (RecordingItemWriter) getItemWriter();
         organismRepository = OrganismRepository.getOrganismRepository();
         if (getDatabase() == null) {
             // no Database when testing and no connection needed
@@ -199,6 +261,372 @@ public class ChadoDBConverter extends BioDBConverter {
         return phytozomeVersion;
     }
     
+    /**
+     * Set the JDBC fetch size for the chado queries.  A value greater than zero switches on streaming
+     * extraction: the processors run inside a non-autocommit transaction and read their result sets
+     * through forward-only server-side cursors, fetchSize rows at a time, rather than pulling each
+     * whole result set into the heap before the first row is processed.
+     * @param fetchSize the number of rows to fetch per round trip, 0 (the default) to disable streaming
+     */
+    public void setFetchSize(String fetchSize) {
+        this.fetchSize = Integer.parseInt(fetchSize.trim());
+        if (this.fetchSize < 0) {
+            throw new IllegalArgumentException("fetchSize must not be negative: " + fetchSize);
+        }
+    }
+
+    /**
+     * Return the JDBC fetch size for the chado queries, 0 if streaming is disabled.
+     * @return the fetch size
+     */
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * Set the number of organisms to process concurrently.  Processors that support it (see
+     * ChadoProcessor.runPartitioned()) split their work by chado organism_id and run the partitions on this many
+     * threads, each with its own connection from the Database.  Organisms are disjoint in chado so the partitions
+     * don't share features; the Items are funnelled into the ItemWriter through an OrderedPartitionWriter.
+     * @param organismThreads the number of threads, 1 (the default) to process the organisms serially
+     */
+    public void setOrganismThreads(String organismThreads) {
+        this.organismThreads = Integer.parseInt(organismThreads.trim());
+        if (this.organismThreads < 1) {
+            throw new IllegalArgumentException("organismThreads must be at least 1: " + organismThreads);
+        }
+    }
+
+    /**
+     * Return the number of organisms to process concurrently, 1 if they are processed serially.
+     * @return the number of threads
+     */
+    public int getOrganismThreads() {
+        return organismThreads;
+    }
+
+    /**
+     * Set the file to write the plans of the processors' chado queries to.  Every query run through
+     * ChadoProcessor.executeQuery() is first run under EXPLAIN (ANALYZE, BUFFERS) and its plan and row count are
+     * appended to the file.  This doubles the query time, so only set it to trace slow extractions.
+     * @param explainReport the path of the report file, replaced if it exists
+     */
+    public void setExplainReport(String explainReport) {
+        try {
+            queryPlanReport = new QueryPlanReport(new File(explainReport.trim()));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("can't write explainReport: " + explainReport, e);
+        }
+    }
+
+    /**
+     * Return the report that the plans of the chado queries are written to.
+     * @return the report, null unless setExplainReport() was called
+     */
+    QueryPlanReport getQueryPlanReport() {
+        return queryPlanReport;
+    }
+
+    /**
+     * Set the file that close() writes the JSON summary of the run's ConverterStats to.  If it isn't set the
+     * summary is logged.
+     * @param statsFile the path of the file, replaced if it exists
+     */
+    public void setStatsFile(String statsFile) {
+        this.statsFile = statsFile.trim();
+    }
+
+    /**
+     * Set a directory to checkpoint the run in.  After each processor completes, the state that later processors
+     * need from it (eg. SequenceProcessor's features and publications) is written there with the organism and
+     * strain Items and the Item identifier counters.  If a run fails, a rerun with the same processors skips the
+     * processors that completed and restores their state from the checkpoint instead of querying chado again.
+     * The Items stored by the completed processors are not stored again, so the items database must be kept
+     * between the two runs; the Items stored by the processor that failed are deleted from it (see
+     * setTargetAlias()), and the new Items' identifiers continue from those of the last completed processor.
+     * Only processors that can be restored are checkpointed, see ChadoProcessor.isCheckpointable().  The
+     * checkpoint is deleted once a run completes.
+     * @param checkpointDir the path of the directory, created if needed
+     */
+    public void setCheckpointDir(String checkpointDir) {
+        this.checkpointDir = new File(checkpointDir.trim());
+    }
+
+    /**
+     * Set the alias of the ObjectStoreWriter of the items database the converter writes to, which a run resumed
+     * from a checkpoint opens to delete the Items stored by the processor that failed.
+     * @param targetAlias the alias, osw.common-tgt-items by default
+     */
+    public void setTargetAlias(String targetAlias) {
+        this.targetAlias = targetAlias.trim();
+    }
+
+    /**
+     * Set a directory to keep the results of each run in, so that the next run only queries chado for the
+     * processors whose tables changed.  Each processor's Items and other stores are recorded there as an item
+     * stream, with the snapshot of its state used by setCheckpointDir(), and the row counts and row checksums of
+     * the tables it reads are recorded for each organism (see DeltaState).  The next run with the same settings
+     * replays the streams of the processors, from the start of the list, whose tables are unchanged, and runs the
+     * rest.  Processors depend on the state of those before them, so once one has to run, so do all the later
+     * ones.  A processor whose results are independent per organism (see ChadoProcessor.isOrganismIndependent())
+     * has a stream per organism, and if it is the first to run it only runs for the organisms whose tables
+     * changed.  Unlike a checkpoint, the replayed Items are stored again, so each run
+     * can write to a new items database.  A delta directory replaces the checkpointDir.
+     * @param deltaDir the path of the directory, created if needed
+     */
+    public void setDeltaDir(String deltaDir) {
+        this.deltaDir = new File(deltaDir.trim());
+    }
+
+    /**
+     * Set a directory for a local snapshot of the result sets that SequenceProcessor reads from chado: the rows
+     * of the feature, featureloc, feature_relationship, dbxref, synonym, featureprop, feature_cvterm, pub and
+     * residues queries.  In snapshot mode (see setResultSetSnapshotMode()) the result sets are written there as
+     * they are read, in a columnar format with a dictionary of the strings.  In replay mode they are read from
+     * there instead of chado, so model and config changes can be tried against the same data without querying
+     * chado again.  A snapshot can only be replayed for the organisms it was made for, and the organisms are
+     * processed serially in both modes.
+     * @param resultSetSnapshotDir the path of the directory, created if needed
+     */
+    public void setResultSetSnapshotDir(String resultSetSnapshotDir) {
+        this.resultSetSnapshotDir = new File(resultSetSnapshotDir.trim());
+    }
+
+    /**
+     * Set whether the resultSetSnapshotDir is written or read.
+     * @param resultSetSnapshotMode "snapshot" (the default) to query chado and write the snapshot, "replay" to
+     * read it
+     */
+    public void setResultSetSnapshotMode(String resultSetSnapshotMode) {
+        String mode = resultSetSnapshotMode.trim();
+        if (mode.equals("replay")) {
+            resultSetReplay = true;
+        } else if (mode.equals("snapshot")) {
+            resultSetReplay = false;
+        } else {
+            throw new IllegalArgumentException("resultSetSnapshotMode must be snapshot or replay: "
+                                               + resultSetSnapshotMode);
+        }
+    }
+
+    /**
+     * Return the snapshot of the processors' result sets.
+     * @return the snapshot, null if result sets are read from chado
+     */
+    ResultSetSnapshot getResultSetSnapshot() {
+        return resultSetSnapshot;
+    }
+
+    /**
+     * Return the timers and counters of this run.
+     * @return the stats
+     */
+    public ConverterStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Set how many of the processors' debug lines are tallied and logged: 1 in debugSampleRate of them, with the
+     * logged counts scaled up to match.  Building the debug lines costs time on every row, so this is off unless
+     * set.
+     * @param debugSampleRate the sampling rate, 0 (the default) for no debug lines, 1 for all of them
+     */
+    public void setDebugSampleRate(String debugSampleRate) {
+        this.debugSampleRate = Integer.parseInt(debugSampleRate.trim());
+        if (this.debugSampleRate < 0) {
+            throw new IllegalArgumentException("debugSampleRate must not be negative: " + debugSampleRate);
+        }
+    }
+
+    /**
+     * Return the debug line sampling rate.
+     * @return 1 in this many debug lines are tallied, 0 for none
+     */
+    public int getDebugSampleRate() {
+        return debugSampleRate;
+    }
+
+    /**
+     * Set the number of phases a processor may run concurrently.  Processors that declare their phases to a
+     * PhaseScheduler run the phases whose dependencies have finished at the same time, each on its own
+     * connection from the Database.
+     * @param phaseThreads the number of threads, 1 (the default) to run the phases serially
+     */
+    public void setPhaseThreads(String phaseThreads) {
+        this.phaseThreads = Integer.parseInt(phaseThreads.trim());
+        if (this.phaseThreads < 1) {
+            throw new IllegalArgumentException("phaseThreads must be at least 1: " + phaseThreads);
+        }
+    }
+
+    /**
+     * Return the number of phases a processor may run concurrently, 1 if they run serially.
+     * @return the number of threads
+     */
+    public int getPhaseThreads() {
+        return phaseThreads;
+    }
+
+    /**
+     * Set whether processors that support it store their Items as soon as each one is complete, rather than
+     * collecting them in maps and storing them when the processor ends.  This bounds the memory they use, but the
+     * Items are stored in a different order.
+     * @param boundedMemory "true" to store Items early, "false" (the default) to hold them
+     */
+    public void setBoundedMemory(String boundedMemory) {
+        this.boundedMemory = Boolean.parseBoolean(boundedMemory.trim());
+    }
+
+    /**
+     * Return true if processors that support it should store their Items as soon as each one is complete.
+     * @return true for bounded memory
+     */
+    public boolean isBoundedMemory() {
+        return boundedMemory;
+    }
+
+    /**
+     * Set the heap, in megabytes, that SequenceProcessor may use for its features.  Once there are more features
+     * than fit, those that haven't been read recently are spilled to files in the featureSpillDir and read back
+     * when needed.  SequenceProcessor runs its phases serially while spilling, whatever the phaseThreads and
+     * organismThreads.
+     * @param featureHeapBudget the budget in MB, 0 (the default) to keep every feature on the heap
+     */
+    public void setFeatureHeapBudget(String featureHeapBudget) {
+        this.featureHeapBudget = Long.parseLong(featureHeapBudget.trim()) << 20;
+        if (this.featureHeapBudget < 0) {
+            throw new IllegalArgumentException("featureHeapBudget must not be negative: " + featureHeapBudget);
+        }
+    }
+
+    /**
+     * Return the heap SequenceProcessor may use for its features.
+     * @return the budget in bytes, 0 if the features are never spilled
+     */
+    public long getFeatureHeapBudget() {
+        return featureHeapBudget;
+    }
+
+    /**
+     * Set the directory that features over the featureHeapBudget are spilled to, and that the stores of organism
+     * partitions waiting for an earlier partition are spilled to.  The files are deleted when the build exits.
+     * @param featureSpillDir the path of the directory, created if needed; the default is java.io.tmpdir
+     */
+    public void setFeatureSpillDir(String featureSpillDir) {
+        this.featureSpillDir = new File(featureSpillDir.trim());
+    }
+
+    /**
+     * Return the directory that features over the featureHeapBudget are spilled to.
+     * @return the directory
+     */
+    public File getFeatureSpillDir() {
+        return featureSpillDir;
+    }
+
+    /**
+     * Create an Item.  Synchronized because the id counters aren't thread-safe and partitioned processors create
+     * Items from several threads.
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized Item createItem(String className) {
+        Item item = super.createItem(className);
+        int[] count = itemCounts.get(className);
+        if (count == null) {
+            count = new int[1];
+            itemCounts.put(className, count);
+        }
+        count[0]++;
+        Integer offset = itemNumberOffsets.get(className);
+        if (offset != null) {
+            // continue the numbering of the run this one resumed from, whose Items are already stored
+            String identifier = item.getIdentifier();
+            int split = identifier.lastIndexOf('_');
+            int number = Integer.parseInt(identifier.substring(split + 1));
+            item.setIdentifier(identifier.substring(0, split + 1) + (number + offset.intValue()));
+        }
+        return item;
+    }
+
+    /**
+     * Return the largest object id the items database has given a stored Item, for the checkpoint.
+     * @return the object id, or -1 if no Item has been stored
+     */
+    int getLastObjectId() {
+        return recorder.getLastObjectId();
+    }
+
+    /**
+     * Write the converter's state to a checkpoint: the Item counts of each class and the organism and strain
+     * Items with the strains' attributes, which are stored by close() so are still needed after a restart.
+     * @param out the checkpoint snapshot
+     * @throws IOException if the snapshot can't be written
+     */
+    synchronized void writeCheckpoint(DataOutputStream out) throws IOException {
+        out.writeInt(itemCounts.size());
+        for (Map.Entry<String, int[]> entry : itemCounts.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue()[0]);
+        }
+        out.writeInt(organismItems.size());
+        for (Map.Entry<String, Item> entry : organismItems.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue().getIdentifier());
+        }
+        out.writeInt(strainItems.size());
+        for (Map.Entry<String, Item> entry : strainItems.entrySet()) {
+            Item strain = entry.getValue();
+            out.writeUTF(entry.getKey());
+            out.writeUTF(strain.getIdentifier());
+            out.writeUTF(strain.getReference("organism").getRefId());
+            // the attributes set by the processors, eg. FeaturePropProcessor's description
+            out.writeInt(strain.getAttributes().size());
+            for (Attribute attribute : strain.getAttributes()) {
+                out.writeUTF(attribute.getName());
+                ConverterCheckpoint.writeString(out, attribute.getValue());
+            }
+        }
+    }
+
+    /**
+     * Restore the converter's state from a checkpoint written by writeCheckpoint().
+     * @param in the checkpoint snapshot
+     * @throws IOException if the snapshot can't be read
+     */
+    synchronized void readCheckpoint(DataInputStream in) throws IOException {
+        int classCount = in.readInt();
+        for (int i = 0; i < classCount; i++) {
+            String className = in.readUTF();
+            int count = in.readInt();
+            itemNumberOffsets.put(className, Integer.valueOf(count));
+            itemCounts.put(className, new int[] {count});
+        }
+        Map<String, Item> organismsByIdentifier = new HashMap<>();
+        int organismCount = in.readInt();
+        for (int i = 0; i < organismCount; i++) {
+            String taxonId = in.readUTF();
+            Item organism = getOrganismItem(taxonId);
+            organism.setIdentifier(in.readUTF());
+            organismsByIdentifier.put(organism.getIdentifier(), organism);
+        }
+        int strainCount = in.readInt();
+        for (int i = 0; i < strainCount; i++) {
+            String identifier = in.readUTF();
+            String itemIdentifier = in.readUTF();
+            Item organism = organismsByIdentifier.get(in.readUTF());
+            if (organism == null) {
+                throw new IOException("checkpoint has strain " + identifier + " without its organism");
+            }
+            Item strain = getStrainItem(identifier, organism);
+            strain.setIdentifier(itemIdentifier);
+            int attributeCount = in.readInt();
+            for (int j = 0; j < attributeCount; j++) {
+                strain.setAttribute(in.readUTF(), ConverterCheckpoint.readString(in));
+            }
+        }
+    }
+
     /**
      * Return a map from chado organism_id to OrganismData object for all the organisms that we are processing.
      * @return the Map
@@ -289,17 +717,259 @@ public class ChadoDBConverter extends BioDBConverter {
             }
         }
 
-        String[] bits = processors.trim().split("[ \\t]+");
-        for (int i = 0; i < bits.length; i++) {
-            String className = bits[i];
+        stats.register(getDataSourceName());
+
+        List<ChadoProcessor> processorList = new ArrayList<>();
+        for (String className : processors.trim().split("[ \\t]+")) {
             if (!StringUtils.isEmpty(className)) {
                 Class<?> cls = Class.forName(className);
                 Constructor<?> constructor = cls.getDeclaredConstructor(ChadoDBConverter.class);
-                ChadoProcessor currentProcessor = (ChadoProcessor) constructor.newInstance(this);
-                currentProcessor.process(getConnection());
+                processorList.add((ChadoProcessor) constructor.newInstance(this));
+            }
+        }
+
+        if (resultSetSnapshotDir != null) {
+            String snapshotConfig = new TreeSet<Integer>(chadoToOrgData.keySet())
+                + "|" + new TreeSet<Integer>(chadoToHomologueOrgData.keySet());
+            resultSetSnapshot = new ResultSetSnapshot(resultSetSnapshotDir, resultSetReplay, snapshotConfig);
+        }
+
+        // the delta marks are read before any transaction is started, so a missing table doesn't abort one
+        int replayCount = 0;
+        // the organisms to run the first processor that has to run for, if it's recorded per organism
+        Set<Integer> changedOrganisms = null;
+        if (deltaDir != null) {
+            if (checkpointDir != null) {
+                LOG.warn("ignoring checkpointDir " + checkpointDir + " in favour of deltaDir " + deltaDir);
+            }
+            Set<Integer> organismIds = new HashSet<>(getDesiredChadoOrganismIds());
+            organismIds.addAll(chadoToHomologueOrgData.keySet());
+            deltaState = new DeltaState(deltaDir, getDeltaConfig());
+            deltaState.readMarks(getConnection(), organismIds, processorList);
+            checkpoint = new ConverterCheckpoint(deltaDir, processors);
+            while (replayCount < processorList.size() && replayCount < checkpoint.getCompletedCount()
+                   && hasItemStreams(replayCount, processorList.get(replayCount))
+                   && deltaState.isUnchanged(replayCount, processorList.get(replayCount))) {
+                replayCount++;
+            }
+            if (replayCount < processorList.size() && replayCount < checkpoint.getCompletedCount()
+                && processorList.get(replayCount).isOrganismIndependent()
+                && hasItemStreams(replayCount, processorList.get(replayCount))) {
+                changedOrganisms = deltaState.getChangedOrganisms(replayCount, processorList.get(replayCount));
+            }
+            LOG.info("Delta run: replaying " + replayCount + " of " + processorList.size()
+                     + " processors, organisms with changed tables: " + deltaState.getChangedOrganisms()
+                     + (changedOrganisms == null ? "" : ", running " + processorList.get(replayCount).getClass().getName()
+                        + " for organisms " + changedOrganisms + " only"));
+            // the streams are rewritten as the run goes, so until it completes the next run must start over
+            deltaState.invalidate();
+            checkpoint.rollBack(0);
+        } else if (checkpointDir != null) {
+            checkpoint = new ConverterCheckpoint(checkpointDir, processors);
+            checkpoint.resume(targetAlias);
+        }
+
+        // cursor-based fetching needs a transaction, so turn off autocommit while the processors run
+        boolean streaming = fetchSize > 0 && getConnection() != null;
+        if (streaming) {
+            LOG.info("Streaming result sets with fetchSize=" + fetchSize);
+            getConnection().setAutoCommit(false);
+        }
+
+        // the ObjectStore ids of the replayed Items in the run that recorded them, mapped to their new ones
+        IntIntHashMap objectIds = new IntIntHashMap(1 << 16);
+        try {
+            for (int i = 0; i < processorList.size(); i++) {
+                ChadoProcessor currentProcessor = processorList.get(i);
+                String className = currentProcessor.getClass().getName();
+                if (i < replayCount) {
+                    LOG.info("Replaying " + className + " from the delta in " + deltaDir);
+                    ConverterStats.Phase replayPhase = stats.startPhase(currentProcessor.getClass().getSimpleName());
+                    try {
+                        checkpoint.restore(this, i, currentProcessor);
+                        int itemCount = replayItemStreams(i, currentProcessor, objectIds);
+                        currentProcessor.remapObjectIds(objectIds);
+                        LOG.info("Replayed " + itemCount + " items of " + className);
+                    } finally {
+                        stats.endPhase(replayPhase);
+                    }
+                    getCompletedProcessors().add(currentProcessor);
+                    checkpoint.save(this, i, currentProcessor);
+                    continue;
+                }
+                if (deltaState == null && checkpoint != null && i < checkpoint.getCompletedCount()) {
+                    LOG.info("Restoring " + className + " from the checkpoint in " + checkpointDir);
+                    checkpoint.restore(this, i, currentProcessor);
+                    getCompletedProcessors().add(currentProcessor);
+                    continue;
+                }
+                if (deltaState != null && currentProcessor.isOrganismIndependent()) {
+                    runByOrganism(i, currentProcessor, (i == replayCount) ? changedOrganisms : null, objectIds,
+                                  streaming);
+                    getCompletedProcessors().add(currentProcessor);
+                    checkpoint.save(this, i, currentProcessor);
+                    continue;
+                }
+                if (deltaState != null) {
+                    recorder.startRecording(getItemStream(i));
+                }
+                ConverterStats.Phase processorPhase = stats.startPhase(currentProcessor.getClass().getSimpleName());
+                try {
+                    currentProcessor.process(getConnection());
+                } finally {
+                    stats.endPhase(processorPhase);
+                }
+                if (streaming) {
+                    // end the read transaction so the server can release the processor's snapshot
+                    getConnection().commit();
+                }
+                if (deltaState != null) {
+                    recorder.finishRecording();
+                }
                 getCompletedProcessors().add(currentProcessor);
+                if (checkpoint != null) {
+                    checkpoint.save(this, i, currentProcessor);
+                }
+            }
+            if (deltaState != null) {
+                deltaState.save(processorList);
+            }
+            if (resultSetSnapshot != null) {
+                resultSetSnapshot.close();
+            }
+        } catch (Exception e) {
+            recorder.abortRecording();
+            if (streaming) {
+                getConnection().rollback();
+            }
+            throw e;
+        } finally {
+            if (streaming) {
+                getConnection().setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Run an organism-independent processor in a delta run one organism at a time, recording each organism's
+     * stores to its own item stream.  If the processor's earlier streams can be used, the organisms whose tables
+     * didn't change are replayed from them instead, after restoring the converter's state from the end of the
+     * processor in the previous run so that the new Items' identifiers follow those of the replayed ones.
+     * @param index the index of the processor in the list
+     * @param processor the processor, see ChadoProcessor.isOrganismIndependent()
+     * @param changedOrganisms the organisms to run the processor for, or null to run it for every organism
+     * @param objectIds the object ids of the replayed Items, see RecordingItemWriter.replay()
+     * @param streaming true if the connection is in a transaction to be committed after each organism
+     * @throws Exception if there is a problem while processing
+     */
+    private void runByOrganism(int index, ChadoProcessor processor, Set<Integer> changedOrganisms,
+                               IntIntHashMap objectIds, boolean streaming) throws Exception {
+        if (changedOrganisms != null) {
+            checkpoint.restore(this, index, processor);
+        }
+        ConverterStats.Phase processorPhase = stats.startPhase(processor.getClass().getSimpleName());
+        try {
+            for (Integer organismId : new TreeSet<Integer>(getDesiredChadoOrganismIds())) {
+                File itemStream = getItemStream(index, organismId);
+                if (changedOrganisms != null && !changedOrganisms.contains(organismId)) {
+                    int itemCount = recorder.replay(itemStream, objectIds);
+                    LOG.info("Replayed " + itemCount + " items of " + processor.getClass().getName()
+                             + " for organism " + organismId);
+                    continue;
+                }
+                processor.setOrganismIds(Collections.singleton(organismId));
+                recorder.startRecording(itemStream);
+                processor.process(getConnection());
+                if (streaming) {
+                    getConnection().commit();
+                }
+                recorder.finishRecording();
+            }
+        } finally {
+            processor.setOrganismIds(null);
+            stats.endPhase(processorPhase);
+        }
+    }
+
+    /**
+     * Replay the item streams of a processor in the delta directory: one per organism if the processor is
+     * organism-independent, otherwise one for the processor.
+     * @param index the index of the processor in the list
+     * @param processor the processor
+     * @param objectIds the object ids of the replayed Items, see RecordingItemWriter.replay()
+     * @return the number of Items stored
+     * @throws Exception if a stream can't be replayed
+     */
+    private int replayItemStreams(int index, ChadoProcessor processor, IntIntHashMap objectIds) throws Exception {
+        if (!processor.isOrganismIndependent()) {
+            return recorder.replay(getItemStream(index), objectIds);
+        }
+        int itemCount = 0;
+        for (Integer organismId : new TreeSet<Integer>(getDesiredChadoOrganismIds())) {
+            itemCount += recorder.replay(getItemStream(index, organismId), objectIds);
+        }
+        return itemCount;
+    }
+
+    /**
+     * Return true if the delta directory holds every item stream of a processor.
+     * @param index the index of the processor in the list
+     * @param processor the processor
+     * @return true if the streams exist
+     */
+    private boolean hasItemStreams(int index, ChadoProcessor processor) {
+        if (!processor.isOrganismIndependent()) {
+            return getItemStream(index).exists();
+        }
+        for (Integer organismId : getDesiredChadoOrganismIds()) {
+            if (!getItemStream(index, organismId).exists()) {
+                return false;
             }
         }
+        return true;
+    }
+
+    /**
+     * Return the file holding a processor's item stream in the delta directory.
+     * @param index the index of the processor in the list
+     * @return the file
+     */
+    private File getItemStream(int index) {
+        return new File(deltaDir, "processor-" + index + ".items");
+    }
+
+    /**
+     * Return the file holding an organism's item stream of an organism-independent processor in the delta
+     * directory.
+     * @param index the index of the processor in the list
+     * @param organismId the chado organism_id
+     * @return the file
+     */
+    private File getItemStream(int index, Integer organismId) {
+        return new File(deltaDir, "processor-" + index + "-organism-" + organismId + ".items");
+    }
+
+    /**
+     * Return the settings that a delta run's results depend on, other than the processors' own stamps: the
+     * organisms and processors, the data source, and the settings that change which Items are stored, or their
+     * order and so the identifiers they get.  A result set snapshot replaces the chado rows the marks are read
+     * from, so its mode is included too.  The settings that only change the logging, like the explain report and
+     * the debug sample rate, are left out.
+     * @return the settings as a String
+     */
+    private String getDeltaConfig() {
+        return processors.trim()
+            + "|" + getDataSourceName()
+            + "|" + new TreeSet<Integer>(chadoToOrgData.keySet())
+            + "|" + new TreeSet<Integer>(chadoToHomologueOrgData.keySet())
+            + "|" + new TreeMap<Integer, String>(chadoToStrainId)
+            + "|" + new TreeMap<Integer, String>(chadoToHomologueStrainId)
+            + "|" + reactomeFilename + "|" + phytozomeVersion
+            + "|fetchSize=" + fetchSize
+            + "|organismThreads=" + organismThreads + "|phaseThreads=" + phaseThreads
+            + "|boundedMemory=" + boundedMemory + "|featureHeapBudget=" + featureHeapBudget
+            + "|resultSetSnapshot=" + (resultSetSnapshotDir == null ? "none"
+                                       : resultSetSnapshotDir + (resultSetReplay ? ":replay" : ":snapshot"));
     }
 
     /**
@@ -482,7 +1152,7 @@ public class ChadoDBConverter extends BioDBConverter {
      * @param chadoId the chado organism_id
      * @return the Organism Item
      */
-    public Item getOrganismItem(Integer chadoId) {
+    public synchronized Item getOrganismItem(Integer chadoId) {
         String taxonId = chadoToOrgData.get(chadoId).getTaxonId();
         return getOrganismItem(taxonId);
     }
@@ -492,7 +1162,7 @@ public class ChadoDBConverter extends BioDBConverter {
      * @param chadoId the chado organism_id
      * @return the Strain Item
      */
-    public Item getStrainItem(Integer chadoId) {
+    public synchronized Item getStrainItem(Integer chadoId) {
         String identifier = chadoToStrainId.get(chadoId);
         if (identifier==null) {
             throw new RuntimeException("Strain identifier not found for chado organism_id="+chadoId);
@@ -510,7 +1180,7 @@ public class ChadoDBConverter extends BioDBConverter {
      * @param chadoId the chado organism_id
      * @return the Organism Item
      */
-    public Item getHomologueOrganismItem(Integer chadoId) {
+    public synchronized Item getHomologueOrganismItem(Integer chadoId) {
         String taxonId = chadoToHomologueOrgData.get(chadoId).getTaxonId();
         return getOrganismItem(taxonId);
     }
@@ -520,7 +1190,7 @@ public class ChadoDBConverter extends BioDBConverter {
      * @param chadoId the chado organism_id
      * @return the Strain Item
      */
-    public Item getHomologueStrainItem(Integer chadoId) {
+    public synchronized Item getHomologueStrainItem(Integer chadoId) {
         String identifier = chadoToHomologueStrainId.get(chadoId);
         Item organism = getOrganismItem(chadoId);
         return getStrainItem(identifier, organism);
@@ -531,7 +1201,7 @@ public class ChadoDBConverter extends BioDBConverter {
      * @param taxonId the organism's taxonId
      * @return the Organism Item
      */
-    public Item getOrganismItem(String taxonId) {
+    public synchronized Item getOrganismItem(String taxonId) {
         if (organismItems.containsKey(taxonId)) {
             return organismItems.get(taxonId);
         } else {
@@ -548,7 +1218,7 @@ public class ChadoDBConverter extends BioDBConverter {
      * @param organism the organism Item linked to this strain
      * @return the Strain Item
      */
-    public Item getStrainItem(String identifier, Item organism) {
+    public synchronized Item getStrainItem(String identifier, Item organism) {
         if (strainItems.containsKey(identifier)) {
             return strainItems.get(identifier);
         } else {
@@ -571,14 +1241,45 @@ public class ChadoDBConverter extends BioDBConverter {
 
     /**
      * Store the organisms and strains at the end. Overrides BioDBConverter.close() because ours have chadoId added.
+     * Also writes the JSON summary of the run's stats and drops the CVs the processors read, so they don't stay
+     * on the heap for the later sources of the build.
      */
     @Override
     public void close() {
         try {
             store(organismItems.values());
             store(strainItems.values());
+            if (checkpoint != null && deltaState == null) {
+                // the run is complete, so the next one starts from scratch
+                checkpoint.clear();
+            }
         } catch (Exception e) {
             System.err.println(e);
         }
+        writeStats();
+        stats.unregister();
+        ChadoCVFactory.clearCache();
+    }
+
+    /**
+     * Write the JSON summary of the stats to the stats file, or to the log if there isn't one.
+     */
+    private void writeStats() {
+        String json = stats.getJsonSummary();
+        if (StringUtils.isEmpty(statsFile)) {
+            LOG.info("converter stats:\n" + json);
+            return;
+        }
+        try {
+            Writer writer = new FileWriter(statsFile);
+            try {
+                writer.write(json);
+            } finally {
+                writer.close();
+            }
+            LOG.info("wrote converter stats to " + statsFile);
+        } catch (IOException e) {
+            LOG.warn("failed to write converter stats to " + statsFile + ":\n" + json, e);
+        }
     }
 }
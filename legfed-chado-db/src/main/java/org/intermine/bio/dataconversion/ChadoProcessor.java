@@ -10,8 +10,25 @@ package org.intermine.bio.dataconversion;
  *
  */
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.apache.log4j.Logger;
 
 import org.intermine.dataconversion.ItemWriter;
 import org.intermine.metadata.Model;
@@ -30,8 +47,30 @@ import org.intermine.xml.full.Reference;
  */
 public abstract class ChadoProcessor {
     
+    private static final Logger LOG = Logger.getLogger(ChadoProcessor.class);
+
     private final ChadoDBConverter chadoDBConverter;
 
+    // the writer for the stores of a thread running a partition or a concurrent phase, unset otherwise
+    private final ThreadLocal<OrderedPartitionWriter> partitionWriter = new ThreadLocal<OrderedPartitionWriter>();
+
+    // the organisms to process, if the converter has narrowed them for a delta run, see getOrganismIds()
+    private Set<Integer> organismIds = null;
+
+    /**
+     * A piece of work that runPartitioned() runs once per partition, or that a PhaseScheduler runs as a phase.
+     */
+    protected interface PartitionTask
+    {
+        /**
+         * Process one partition.
+         * @param connection a connection to chado used only by this partition
+         * @param partition the partition key, eg. a chado organism_id
+         * @throws Exception if there is a problem while processing
+         */
+        void process(Connection connection, Integer partition) throws Exception;
+    }
+
     /**
      * Create a new ChadoModuleProcessor object.
      * @param chadoDBConverter the converter that created this Processor
@@ -79,6 +118,315 @@ public abstract class ChadoProcessor {
      */
     public abstract void process(Connection connection) throws Exception;
 
+    /**
+     * Return true if this processor can be restored from a checkpoint, see ChadoDBConverter.setCheckpointDir():
+     * either writeCheckpoint() saves the state that later processors need, or it has none once process() has
+     * stored its Items.  The default is false, so that a new processor isn't skipped on a resumed run without
+     * its state; the checkpoint stops at the first processor that returns false.
+     * @return true if the processor can be checkpointed
+     */
+    protected boolean isCheckpointable() {
+        return false;
+    }
+
+    /**
+     * Write the state that later processors get from this one with ChadoDBConverter.findProcessor() to a
+     * checkpoint, see ChadoDBConverter.setCheckpointDir().  Called after process() completes.  The default
+     * writes nothing, for processors that later ones don't depend on.
+     * @param out the checkpoint snapshot
+     * @throws IOException if the snapshot can't be written
+     */
+    protected void writeCheckpoint(DataOutputStream out) throws IOException {
+        // nothing to save
+    }
+
+    /**
+     * Restore the state written by writeCheckpoint(), in place of calling process().
+     * @param in the checkpoint snapshot
+     * @throws IOException if the snapshot can't be read
+     */
+    protected void readCheckpoint(DataInputStream in) throws IOException {
+        // nothing to restore
+    }
+
+    /**
+     * Return the chado tables this processor reads, for ChadoDBConverter.setDeltaDir(): the processor is run again
+     * if the rows of any of them changed for the organisms being processed.  The default is every table that
+     * DeltaState tracks, so processors that don't override this are rerun whenever anything changes.
+     * @return the table names
+     */
+    protected String[] getSourceTables() {
+        return DeltaState.ALL_TABLES;
+    }
+
+    /**
+     * Return a stamp of the inputs of this processor that aren't chado tables, eg. the size and time of a file it
+     * reads, for ChadoDBConverter.setDeltaDir(): the processor is run again if the stamp changes.
+     * @return the stamp, empty if the processor only reads chado
+     */
+    protected String getDeltaStamp() {
+        return "";
+    }
+
+    /**
+     * Return true if this processor's stores for each organism depend only on that organism's chado rows and the
+     * state of earlier processors, so that a delta run (see ChadoDBConverter.setDeltaDir()) can record them as an
+     * item stream per organism and only run the processor for the organisms whose tables changed.  Such a
+     * processor must only process getOrganismIds() and must share no Items or state between organisms.  The
+     * default is false, so the processor is recorded and rerun as a whole.
+     * @return true if the processor's results are independent per organism
+     */
+    protected boolean isOrganismIndependent() {
+        return false;
+    }
+
+    /**
+     * Return the chado organism_ids this processor should process: ChadoDBConverter.getDesiredChadoOrganismIds(),
+     * or a single organism when a delta run processes an organism-independent processor one organism at a time.
+     * @return the chado organism_ids
+     */
+    protected Set<Integer> getOrganismIds() {
+        return (organismIds == null) ? chadoDBConverter.getDesiredChadoOrganismIds() : organismIds;
+    }
+
+    /**
+     * Narrow the organisms processed by the next call to process(), see isOrganismIndependent().
+     * @param organismIds the chado organism_ids, or null for all the desired ones
+     */
+    void setOrganismIds(Set<Integer> organismIds) {
+        this.organismIds = organismIds;
+    }
+
+    /**
+     * Replace the object ids of stored Items held in the state restored by readCheckpoint(), after the Items
+     * were stored again under new ids by a delta run, see ChadoDBConverter.setDeltaDir().  The default does
+     * nothing, for processors whose state holds no object ids.
+     * @param objectIds the new object id of each old one
+     */
+    protected void remapObjectIds(IntIntHashMap objectIds) {
+        // no object ids to remap
+    }
+
+    /**
+     * Create a forward-only, read-only Statement.  If the converter has a fetch size set, rows are
+     * fetched from a server-side cursor in batches of that size instead of being read into memory
+     * in one go; with PostgreSQL this only happens when the connection is not in autocommit mode.
+     * @param connection the database connection to chado
+     * @return the new Statement
+     * @throws SQLException if the Statement can't be created
+     */
+    protected Statement createStatement(Connection connection) throws SQLException {
+        Statement stmt = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        int fetchSize = chadoDBConverter.getFetchSize();
+        if (fetchSize > 0) {
+            stmt.setFetchSize(fetchSize);
+        }
+        return stmt;
+    }
+
+    /**
+     * Execute a query as a forward-only, read-only PreparedStatement, with the converter's fetch size as in
+     * createStatement().  The Statement is closed when the returned ResultSet is closed, so callers only need to
+     * close the ResultSet.  If the converter has an explain report the query's plan is recorded first.
+     * @param connection the database connection to chado
+     * @param query the SQL query, with a ? for each parameter
+     * @param parameters the values of the parameters
+     * @return the ResultSet
+     * @throws SQLException if a database problem occurs
+     */
+    protected ResultSet executeQuery(Connection connection, String query, Object... parameters) throws SQLException {
+        return executeQuery(connection, chadoDBConverter.getFetchSize(), query, parameters);
+    }
+
+    /**
+     * Execute a query as executeQuery() does, with the given fetch size in place of the converter's, for
+     * processors that must stream a query whatever the converter's settings.  The rows are only fetched from a
+     * server-side cursor if the connection is not in autocommit mode.
+     * @param connection the database connection to chado
+     * @param fetchSize the number of rows to fetch per round trip, 0 to read the whole result set
+     * @param query the SQL query, with a ? for each parameter
+     * @param parameters the values of the parameters
+     * @return the ResultSet
+     * @throws SQLException if a database problem occurs
+     */
+    protected ResultSet executeQuery(Connection connection, int fetchSize, String query, Object... parameters)
+        throws SQLException {
+        QueryPlanReport queryPlanReport = chadoDBConverter.getQueryPlanReport();
+        if (queryPlanReport != null) {
+            queryPlanReport.explain(connection, query, parameters);
+        }
+        PreparedStatement stmt = connection.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        try {
+            if (fetchSize > 0) {
+                stmt.setFetchSize(fetchSize);
+            }
+            for (int i = 0; i < parameters.length; i++) {
+                stmt.setObject(i + 1, parameters[i]);
+            }
+            ResultSet res = stmt.executeQuery();
+            stmt.closeOnCompletion();
+            return res;
+        } catch (SQLException e) {
+            stmt.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Execute a query as executeQuery() does, through the converter's result set snapshot if it has one (see
+     * ChadoDBConverter.setResultSetSnapshotDir()): in snapshot mode the rows are written to the snapshot as they
+     * are read, and in replay mode they are read from the snapshot and chado isn't queried.
+     * @param connection the database connection to chado
+     * @param name the name of the result set in the snapshot, unique in this processor
+     * @param query the SQL query, with a ? for each parameter
+     * @param parameters the values of the parameters
+     * @return the ResultSet
+     * @throws SQLException if a database problem occurs or the snapshot can't be read or written
+     */
+    protected ResultSet executeSnapshotQuery(Connection connection, String name, String query, Object... parameters)
+        throws SQLException {
+        return executeSnapshotQuery(connection, chadoDBConverter.getFetchSize(), name, query, parameters);
+    }
+
+    /**
+     * Execute a query as executeSnapshotQuery() does, with the given fetch size in place of the converter's, so that
+     * a snapshot of large rows can be written as they stream from chado.
+     * @param connection the database connection to chado
+     * @param fetchSize the number of rows to fetch per round trip, 0 to read the whole result set
+     * @param name the name of the result set in the snapshot, unique in this processor
+     * @param query the SQL query, with a ? for each parameter
+     * @param parameters the values of the parameters
+     * @return the ResultSet
+     * @throws SQLException if a database problem occurs or the snapshot can't be read or written
+     */
+    protected ResultSet executeSnapshotQuery(Connection connection, int fetchSize, String name, String query,
+                                             Object... parameters) throws SQLException {
+        ResultSetSnapshot snapshot = chadoDBConverter.getResultSetSnapshot();
+        if (snapshot == null) {
+            return executeQuery(connection, fetchSize, query, parameters);
+        }
+        StringBuilder snapshotName = new StringBuilder(getClass().getSimpleName()).append('.').append(name);
+        for (Object parameter : parameters) {
+            snapshotName.append('-').append(parameter);
+        }
+        try {
+            if (snapshot.isReplay()) {
+                return snapshot.open(snapshotName.toString());
+            }
+            return snapshot.record(snapshotName.toString(), executeQuery(connection, fetchSize, query, parameters));
+        } catch (IOException e) {
+            throw new SQLException("failed to use the result set snapshot " + snapshotName, e);
+        }
+    }
+
+    /**
+     * Count chado rows read by this processor in the converter's stats.
+     * @param count the number of rows
+     */
+    protected void countRows(int count) {
+        chadoDBConverter.getStats().countRows(count);
+    }
+
+    /**
+     * Run a task once for each partition on ChadoDBConverter.getOrganismThreads() threads and wait for them all
+     * to finish.  Each partition gets its own connection from the Database, in a transaction if a fetch size is
+     * set.  While the partitions run, the store methods of this class go through an OrderedPartitionWriter and
+     * the task must only touch state that is thread-safe or belongs to its partition.
+     * @param name a name for the log
+     * @param partitions the partition keys, in the order their stores should be written
+     * @param task the task to run
+     * @throws Exception the first exception thrown by a partition, once all the partitions have stopped
+     */
+    protected void runPartitioned(String name, List<Integer> partitions, final PartitionTask task) throws Exception {
+        int threads = Math.min(chadoDBConverter.getOrganismThreads(), partitions.size());
+        LOG.info(name + ": running " + partitions.size() + " partitions on " + threads + " threads");
+        final OrderedPartitionWriter writer = createPartitionWriter(partitions.size(), true);
+        // the partitions count their rows and stores in the calling thread's phase
+        final ConverterStats.Phase phase = chadoDBConverter.getStats().getCurrentPhase();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        try {
+            for (int i = 0; i < partitions.size(); i++) {
+                final int partitionIndex = i;
+                final Integer partition = partitions.get(i);
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        chadoDBConverter.getStats().bind(phase);
+                        try {
+                            runPartition(writer, partitionIndex, task, partition);
+                        } finally {
+                            chadoDBConverter.getStats().bind(null);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            // wait for every partition, even after a failure, so none is left storing once the writer is gone
+            Exception failure = null;
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (failure == null) {
+                        failure = (cause instanceof Exception) ? (Exception) cause : e;
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            if (!writer.isDone()) {
+                throw new IllegalStateException(name + ": partitions finished with stores still buffered");
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Create an OrderedPartitionWriter for partitions started by the calling thread.  If the calling thread is
+     * itself running a partition, the new writer writes into that partition of its writer.
+     * @param partitionCount the number of partitions
+     * @param ordered true to write the partitions' stores in partition order, false to write them as they're made
+     * @return the writer
+     */
+    OrderedPartitionWriter createPartitionWriter(int partitionCount, boolean ordered) {
+        return new OrderedPartitionWriter(chadoDBConverter, partitionCount, partitionWriter.get(), ordered);
+    }
+
+    /**
+     * Run a task as a partition of the given writer on the calling thread, with its own connection to chado.  The
+     * connection is committed if the task succeeds, and the partition is finished whatever happens.
+     * @param writer the writer the partition belongs to
+     * @param partitionIndex the index of the partition in the writer
+     * @param task the task
+     * @param partition the partition key passed to the task
+     * @throws Exception if the task fails
+     */
+    void runPartition(OrderedPartitionWriter writer, int partitionIndex, PartitionTask task, Integer partition)
+        throws Exception {
+        partitionWriter.set(writer);
+        writer.bind(partitionIndex);
+        try {
+            Connection connection = getDatabase().getConnection();
+            try {
+                if (chadoDBConverter.getFetchSize() > 0) {
+                    connection.setAutoCommit(false);
+                }
+                task.process(connection, partition);
+                if (!connection.getAutoCommit()) {
+                    connection.commit();
+                }
+            } finally {
+                connection.close();
+            }
+        } finally {
+            partitionWriter.remove();
+            writer.finish(partitionIndex);
+        }
+    }
+
     /**
      * Set an attribute in an Item by creating an Attribute object and storing it.
      * @param intermineObjectId the intermine object ID of the item to create this attribute for.
@@ -91,7 +439,13 @@ public abstract class ChadoProcessor {
         Attribute att = new Attribute();
         att.setName(attributeName);
         att.setValue(value);
-        chadoDBConverter.store(att, intermineObjectId);
+        chadoDBConverter.getStats().countAttribute();
+        OrderedPartitionWriter writer = partitionWriter.get();
+        if (writer != null) {
+            writer.store(att, intermineObjectId);
+        } else {
+            chadoDBConverter.store(att, intermineObjectId);
+        }
     }
 
     /**
@@ -101,6 +455,11 @@ public abstract class ChadoProcessor {
      * @throws ObjectStoreException if an error occurs while storing
      */
     protected Integer store(Item item) throws ObjectStoreException {
+        chadoDBConverter.getStats().countItem();
+        OrderedPartitionWriter writer = partitionWriter.get();
+        if (writer != null) {
+            return writer.store(item);
+        }
         return chadoDBConverter.store(item);
     }
 
@@ -111,7 +470,13 @@ public abstract class ChadoProcessor {
      * @throws ObjectStoreException if an error occurs in storing
      */
     public void store(Reference reference, Integer itemId) throws ObjectStoreException {
-	chadoDBConverter.store(reference, itemId);
+        chadoDBConverter.getStats().countReference();
+        OrderedPartitionWriter writer = partitionWriter.get();
+        if (writer != null) {
+            writer.store(reference, itemId);
+        } else {
+            chadoDBConverter.store(reference, itemId);
+        }
     }
 
     /**
@@ -121,7 +486,13 @@ public abstract class ChadoProcessor {
      * @throws ObjectStoreException if an error occurs in storing
      */
     public void store(org.intermine.model.fulldata.ReferenceList referenceList, Integer itemId) throws ObjectStoreException {
-        chadoDBConverter.getItemWriter().store(referenceList, itemId);
+        chadoDBConverter.getStats().countReference();
+        OrderedPartitionWriter writer = partitionWriter.get();
+        if (writer != null) {
+            writer.store(referenceList, itemId);
+        } else {
+            chadoDBConverter.getItemWriter().store(referenceList, itemId);
+        }
     }
 
     /**
@@ -131,7 +502,13 @@ public abstract class ChadoProcessor {
      * @throws ObjectStoreException if an error occurs in storing
      */
     public void store(org.intermine.xml.full.ReferenceList referenceList, Integer itemId) throws ObjectStoreException {
-        chadoDBConverter.store(referenceList, itemId);
+        chadoDBConverter.getStats().countReference();
+        OrderedPartitionWriter writer = partitionWriter.get();
+        if (writer != null) {
+            writer.store(referenceList, itemId);
+        } else {
+            chadoDBConverter.store(referenceList, itemId);
+        }
     }
 
     /**
@@ -0,0 +1,117 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine, NCGR
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A registry of Items keyed by chado id that partitions running on several threads share, so that an Item
+ * referenced from more than one organism is only created once.  The ids are spread over striped
+ * IntObjectHashMaps, each guarded by its own lock, so there is no boxed key per Item and threads rarely wait
+ * for each other.  The registry only guards its maps: Items taken from it that are still being changed must
+ * be locked by the threads changing them.
+ *
+ * @param <V> the registered value, an Item or a holder of one
+ * @author Sam Hokin
+ */
+class ConcurrentItemRegistry<V>
+{
+    private static final int STRIPE_BITS = 6;
+
+    private final IntObjectHashMap<V>[] stripes;
+
+    /**
+     * Create an empty registry.
+     */
+    @SuppressWarnings("unchecked")
+    ConcurrentItemRegistry() {
+        stripes = new IntObjectHashMap[1 << STRIPE_BITS];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new IntObjectHashMap<V>();
+        }
+    }
+
+    private IntObjectHashMap<V> stripe(int chadoId) {
+        return stripes[(chadoId * 0x9E3779B9) >>> (32 - STRIPE_BITS)];
+    }
+
+    /**
+     * Return the Item registered for a chado id.
+     * @param chadoId the chado id
+     * @return the Item or null if there is none
+     */
+    V get(int chadoId) {
+        IntObjectHashMap<V> stripe = stripe(chadoId);
+        synchronized (stripe) {
+            return stripe.get(chadoId);
+        }
+    }
+
+    /**
+     * Register an Item for a chado id unless another thread got there first.
+     * @param chadoId the chado id
+     * @param item the new Item
+     * @return the registered Item: the given one, or the one already registered which should be used instead
+     */
+    V putIfAbsent(int chadoId, V item) {
+        IntObjectHashMap<V> stripe = stripe(chadoId);
+        synchronized (stripe) {
+            V existing = stripe.get(chadoId);
+            if (existing != null) {
+                return existing;
+            }
+            stripe.put(chadoId, item);
+            return item;
+        }
+    }
+
+    /**
+     * Return the number of Items registered.
+     * @return the size
+     */
+    int size() {
+        int size = 0;
+        for (IntObjectHashMap<V> stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Return the registered Items in chado id order, so the order they are stored in doesn't depend on which
+     * thread registered them.
+     * @return the Items
+     */
+    List<V> values() {
+        List<V> items = new ArrayList<V>();
+        long[] order = new long[size()];
+        for (IntObjectHashMap<V> stripe : stripes) {
+            synchronized (stripe) {
+                for (Map.Entry<Integer, V> entry : stripe.entrySet()) {
+                    // the chado id in the high bits sorts the index in the low bits
+                    order[items.size()] = (((long) entry.getKey().intValue()) << 32) | items.size();
+                    items.add(entry.getValue());
+                }
+            }
+        }
+        Arrays.sort(order, 0, items.size());
+        List<V> sorted = new ArrayList<V>(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            sorted.add(items.get((int) order[i]));
+        }
+        return sorted;
+    }
+}
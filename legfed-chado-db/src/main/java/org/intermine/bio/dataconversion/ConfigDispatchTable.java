@@ -0,0 +1,215 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine, NCGR
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.collections.keyvalue.MultiKey;
+import org.intermine.bio.chado.config.ConfigAction;
+import org.intermine.bio.chado.config.CreateSynonymAction;
+import org.intermine.bio.chado.config.SetFieldConfigAction;
+
+/**
+ * The configuration of one organism from SequenceProcessor.getConfig(), compiled for the per-row lookups of the
+ * feature, dbxref, featureprop, cvterm and synonym tables.  Every InterMine type and field named in the config is
+ * given a dense id, and the action lists are held in arrays indexed by [table][type id][field id and is_current],
+ * so a lookup is two map gets on Strings with cached hash codes and three array reads, with no MultiKey to
+ * allocate.  The lookups with an is_current fall back to the entry without one when compiled, as the processors
+ * did at run time.
+ *
+ * The keys compiled, with the field that is given an id:
+ *   ("feature", type, data source name, field) - only for the converter's data source
+ *   ("dbxref", type, db name, is_current or null)
+ *   ("prop", type, prop type name)
+ *   ("cvterm", type, cv name)
+ *   ("synonym", type, synonym type name, is_current or null)
+ * Other keys, eg. for relationships, are looked up in the config Map as before.
+ *
+ * @author Sam Hokin
+ */
+class ConfigDispatchTable
+{
+    static final int FEATURE = 0;
+    static final int DBXREF = 1;
+    static final int PROP = 2;
+    static final int CVTERM = 3;
+    static final int SYNONYM = 4;
+    private static final String[] TABLE_NAMES = {"feature", "dbxref", "prop", "cvterm", "synonym"};
+
+    // the three is_current slots of each field: none, true and false
+    private static final int NO_CURRENT = 0;
+    private static final int IS_CURRENT = 1;
+    private static final int NOT_CURRENT = 2;
+
+    private final Map<String, Integer> typeIds = new HashMap<String, Integer>();
+    private final Map<String, Integer> fieldIds = new HashMap<String, Integer>();
+    // [table][type id][field id * 3 + is_current slot]
+    private final Actions[][][] actions;
+
+    /**
+     * The actions of one config key, split by class so they can be called without instanceof tests.
+     */
+    static final class Actions
+    {
+        private static final SetFieldConfigAction[] NO_SET_FIELD_ACTIONS = new SetFieldConfigAction[0];
+        private static final CreateSynonymAction[] NO_SYNONYM_ACTIONS = new CreateSynonymAction[0];
+
+        final SetFieldConfigAction[] setFieldActions;
+        final CreateSynonymAction[] createSynonymActions;
+        private final boolean empty;
+
+        Actions(List<ConfigAction> actionList) {
+            List<SetFieldConfigAction> setFields = new ArrayList<SetFieldConfigAction>();
+            List<CreateSynonymAction> createSynonyms = new ArrayList<CreateSynonymAction>();
+            for (ConfigAction action : actionList) {
+                if (action instanceof SetFieldConfigAction) {
+                    setFields.add((SetFieldConfigAction) action);
+                } else if (action instanceof CreateSynonymAction) {
+                    createSynonyms.add((CreateSynonymAction) action);
+                }
+            }
+            setFieldActions = setFields.toArray(NO_SET_FIELD_ACTIONS);
+            createSynonymActions = createSynonyms.toArray(NO_SYNONYM_ACTIONS);
+            empty = actionList.isEmpty();
+        }
+
+        /**
+         * Return true if the key was configured with no actions at all.
+         * @return true if the action list was empty
+         */
+        boolean isEmpty() {
+            return empty;
+        }
+    }
+
+    /**
+     * Compile the config of an organism.
+     * @param config the config from SequenceProcessor.getConfig()
+     * @param dataSourceName the converter's data source name, the only one whose "feature" keys are compiled
+     */
+    ConfigDispatchTable(Map<MultiKey, List<ConfigAction>> config, String dataSourceName) {
+        Map<List<Object>, List<ConfigAction>> compiled = new HashMap<List<Object>, List<ConfigAction>>();
+        for (Map.Entry<MultiKey, List<ConfigAction>> entry : config.entrySet()) {
+            MultiKey key = entry.getKey();
+            int table = getTable(key.getKey(0));
+            if (table < 0 || key.size() < 3) {
+                continue;
+            }
+            String field;
+            Object isCurrent = null;
+            if (table == FEATURE) {
+                if (key.size() != 4 || !dataSourceName.equals(key.getKey(2))) {
+                    continue;
+                }
+                field = (String) key.getKey(3);
+            } else {
+                field = (String) key.getKey(2);
+                if (key.size() > 3) {
+                    isCurrent = key.getKey(3);
+                }
+            }
+            String type = (String) key.getKey(1);
+            intern(typeIds, type);
+            intern(fieldIds, field);
+            List<Object> compiledKey = new ArrayList<Object>();
+            compiledKey.add(Integer.valueOf(table));
+            compiledKey.add(type);
+            compiledKey.add(field);
+            compiledKey.add(isCurrent);
+            compiled.put(compiledKey, entry.getValue());
+        }
+
+        actions = new Actions[TABLE_NAMES.length][typeIds.size()][fieldIds.size() * 3];
+        for (Map.Entry<List<Object>, List<ConfigAction>> entry : compiled.entrySet()) {
+            List<Object> key = entry.getKey();
+            int table = ((Integer) key.get(0)).intValue();
+            int typeId = typeIds.get(key.get(1)).intValue();
+            int fieldId = fieldIds.get(key.get(2)).intValue();
+            actions[table][typeId][fieldId * 3 + getCurrentSlot(key.get(3))] = new Actions(entry.getValue());
+        }
+        // a key with an is_current falls back to the key without
+        for (Actions[][] tableActions : actions) {
+            for (Actions[] typeActions : tableActions) {
+                for (int i = 0; i < typeActions.length; i += 3) {
+                    if (typeActions[i + IS_CURRENT] == null) {
+                        typeActions[i + IS_CURRENT] = typeActions[i + NO_CURRENT];
+                    }
+                    if (typeActions[i + NOT_CURRENT] == null) {
+                        typeActions[i + NOT_CURRENT] = typeActions[i + NO_CURRENT];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the actions configured for a key without an is_current.
+     * @param table the table, eg. ConfigDispatchTable.PROP
+     * @param type the InterMine type of the feature
+     * @param field the field of the key, eg. the prop type name
+     * @return the actions or null if none are configured
+     */
+    Actions get(int table, String type, String field) {
+        return get(table, type, field, NO_CURRENT);
+    }
+
+    /**
+     * Return the actions configured for a key with an is_current, or if there are none, for the key without.
+     * @param table the table, ConfigDispatchTable.DBXREF or ConfigDispatchTable.SYNONYM
+     * @param type the InterMine type of the feature
+     * @param field the db name or synonym type name
+     * @param isCurrent the is_current value of the row
+     * @return the actions or null if none are configured
+     */
+    Actions get(int table, String type, String field, boolean isCurrent) {
+        return get(table, type, field, isCurrent ? IS_CURRENT : NOT_CURRENT);
+    }
+
+    private Actions get(int table, String type, String field, int currentSlot) {
+        if (type == null || field == null) {
+            return null;
+        }
+        Integer typeId = typeIds.get(type);
+        if (typeId == null) {
+            return null;
+        }
+        Integer fieldId = fieldIds.get(field);
+        if (fieldId == null) {
+            return null;
+        }
+        return actions[table][typeId.intValue()][fieldId.intValue() * 3 + currentSlot];
+    }
+
+    private static int getTable(Object tableName) {
+        for (int i = 0; i < TABLE_NAMES.length; i++) {
+            if (TABLE_NAMES[i].equals(tableName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int getCurrentSlot(Object isCurrent) {
+        if (isCurrent == null) {
+            return NO_CURRENT;
+        }
+        return Boolean.TRUE.equals(isCurrent) ? IS_CURRENT : NOT_CURRENT;
+    }
+
+    private static void intern(Map<String, Integer> ids, String value) {
+        if (!ids.containsKey(value)) {
+            ids.put(value, Integer.valueOf(ids.size()));
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine, NCGR
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+import org.intermine.model.InterMineObject;
+import org.intermine.model.fulldata.Attribute;
+import org.intermine.model.fulldata.Item;
+import org.intermine.model.fulldata.Reference;
+import org.intermine.model.fulldata.ReferenceList;
+import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.objectstore.ObjectStoreWriter;
+import org.intermine.objectstore.ObjectStoreWriterFactory;
+import org.intermine.objectstore.query.ConstraintOp;
+import org.intermine.objectstore.query.QueryClass;
+import org.intermine.objectstore.query.QueryEvaluable;
+import org.intermine.objectstore.query.QueryField;
+import org.intermine.objectstore.query.QueryForeignKey;
+import org.intermine.objectstore.query.QueryValue;
+import org.intermine.objectstore.query.SimpleConstraint;
+
+/**
+ * The checkpoint of a ChadoDBConverter run, kept in a directory so that a run that fails in a late processor can
+ * be restarted without redoing the processors that finished.  The processors run in order, so the checkpoint
+ * records how many of them have completed.  For each one, it also stores a snapshot of the state that later
+ * processors need, written by ChadoProcessor.writeCheckpoint().  The converter's own state (the item identifier
+ * counters and the organism and strain Items) is snapshotted with them.  Processors that don't say they can be
+ * restored this way, see ChadoProcessor.isCheckpointable(), end the checkpoint.
+ *
+ * The Items stored by a processor that failed part way are still in the items database, and the rerun creates
+ * them again with the same identifiers.  So the manifest also records the largest object id stored when each
+ * processor completed: a resumed run deletes every Item stored after the last completed processor's, with its
+ * Attributes, References and ReferenceLists, before it starts.  The items database may not have committed the
+ * last Items of a completed processor before the failure, so the resumed run only trusts the completed
+ * processors whose last Item is in the database.  This assumes, as in an InterMine build, that the items
+ * database holds only this source's Items, and that processors only add References and Attributes to their own
+ * Items.
+ *
+ * The snapshots are gzipped DataOutputStreams.  Every file is written under a temporary name and renamed when
+ * complete.  The manifest is written last, so a run that dies while checkpointing leaves the previous checkpoint
+ * intact.  A checkpoint is only used if it was made with the same list of processors.
+ *
+ * @author Sam Hokin
+ */
+class ConverterCheckpoint
+{
+    private static final Logger LOG = Logger.getLogger(ConverterCheckpoint.class);
+
+    private static final int VERSION = 3;
+    private static final String MANIFEST = "manifest";
+
+    private final File dir;
+    private final String processors;
+    private int completedCount = 0;
+    // the largest object id stored when each completed processor was saved, -1 if none had been
+    private final List<Integer> lastObjectIds = new ArrayList<Integer>();
+    // true if the checkpoint was made by an earlier run, whose stores may have to be deleted by resume()
+    private boolean resuming = false;
+    // set once a processor that can't be checkpointed completes, see save()
+    private String refusedProcessor = null;
+
+    /**
+     * Open the checkpoint in a directory, creating the directory if needed.  An existing checkpoint made with a
+     * different list of processors is ignored and will be overwritten.
+     * @param dir the checkpoint directory
+     * @param processors the converter's list of processors
+     * @throws IOException if the directory can't be created or the manifest can't be read
+     */
+    ConverterCheckpoint(File dir, String processors) throws IOException {
+        this.dir = dir;
+        this.processors = processors.trim();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can't create checkpoint directory " + dir);
+        }
+        File manifest = new File(dir, MANIFEST);
+        if (manifest.exists()) {
+            DataInputStream in = openInput(manifest);
+            try {
+                int version = in.readInt();
+                String checkpointProcessors = in.readUTF();
+                int count = in.readInt();
+                if (version != VERSION) {
+                    LOG.warn("ignoring checkpoint in " + dir + " with version " + version);
+                } else if (!checkpointProcessors.equals(this.processors)) {
+                    LOG.warn("ignoring checkpoint in " + dir + " made for processors: " + checkpointProcessors);
+                } else {
+                    completedCount = count;
+                    for (int i = 0; i < count; i++) {
+                        lastObjectIds.add(Integer.valueOf(in.readInt()));
+                    }
+                    resuming = true;
+                    LOG.info("checkpoint in " + dir + ": " + count + " processors completed");
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Return the number of processors, from the start of the list, that were completed by an earlier run.
+     * @return the number of completed processors
+     */
+    int getCompletedCount() {
+        return completedCount;
+    }
+
+    /**
+     * Prepare the items database for a run that resumes from this checkpoint.  The completed processors whose
+     * last Item isn't in the database are rolled back, and every Item stored after the last one that is, ie. the
+     * partial stores of the failed processor, is deleted with its Attributes, References and ReferenceLists.  A
+     * new checkpoint is started with an empty manifest, so that a rerun after a failure in the first processor
+     * deletes its stores too.
+     * @param targetAlias the alias of the ObjectStoreWriter of the items database
+     * @throws IOException if the manifest can't be written
+     * @throws ObjectStoreException if the Items can't be checked or deleted
+     */
+    void resume(String targetAlias) throws IOException, ObjectStoreException {
+        if (!resuming) {
+            writeManifest(0);
+            return;
+        }
+        ObjectStoreWriter osw = ObjectStoreWriterFactory.getObjectStoreWriter(targetAlias);
+        try {
+            int count = completedCount;
+            while (count > 0) {
+                int lastObjectId = lastObjectIds.get(count - 1).intValue();
+                if (lastObjectId < 0 || osw.getObjectById(Integer.valueOf(lastObjectId), Item.class) != null) {
+                    break;
+                }
+                count--;
+            }
+            if (count < completedCount) {
+                LOG.warn("the items database is missing the last Items of " + (completedCount - count)
+                         + " completed processors, which will be run again");
+                rollBack(count);
+            }
+            int lastObjectId = (count == 0) ? -1 : lastObjectIds.get(count - 1).intValue();
+            osw.beginTransaction();
+            deleteItemParts(osw, Attribute.class, lastObjectId);
+            deleteItemParts(osw, Reference.class, lastObjectId);
+            deleteItemParts(osw, ReferenceList.class, lastObjectId);
+            QueryClass qc = new QueryClass(Item.class);
+            osw.delete(qc, laterThan(new QueryField(qc, "id"), lastObjectId));
+            osw.commitTransaction();
+            LOG.info("deleted the Items stored after object " + lastObjectId + " by the failed run");
+        } finally {
+            if (osw.isInTransaction()) {
+                osw.abortTransaction();
+            }
+            osw.close();
+        }
+        resuming = false;
+    }
+
+    // delete the Attributes, References or ReferenceLists of the Items stored after an object id
+    private static void deleteItemParts(ObjectStoreWriter osw, Class<? extends InterMineObject> cls,
+                                        int lastObjectId) throws ObjectStoreException {
+        QueryClass qc = new QueryClass(cls);
+        osw.delete(qc, laterThan(new QueryForeignKey(qc, "item"), lastObjectId));
+    }
+
+    private static SimpleConstraint laterThan(QueryEvaluable objectId, int lastObjectId) {
+        return new SimpleConstraint(objectId, ConstraintOp.GREATER_THAN, new QueryValue(Integer.valueOf(lastObjectId)));
+    }
+
+    /**
+     * Restore the converter's state and that of a completed processor.  The converter's state is that saved with
+     * the processor, so restoring the processors in order leaves it as it was after the last one.
+     * @param converter the converter
+     * @param index the index of the processor in the list
+     * @param processor a new instance of the processor
+     * @throws IOException if a snapshot can't be read
+     */
+    void restore(ChadoDBConverter converter, int index, ChadoProcessor processor) throws IOException {
+        DataInputStream in = openInput(getConverterSnapshot(index));
+        try {
+            converter.readCheckpoint(in);
+        } finally {
+            in.close();
+        }
+        in = openInput(getProcessorSnapshot(index));
+        try {
+            processor.readCheckpoint(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Record a processor as completed, with snapshots of its state and of the converter's.  A processor that
+     * can't be checkpointed isn't recorded, nor are any after it, as they may depend on its state.
+     * @param converter the converter
+     * @param index the index of the processor in the list, which must be the next one
+     * @param processor the processor
+     * @throws IOException if the snapshots can't be written
+     */
+    void save(ChadoDBConverter converter, int index, ChadoProcessor processor) throws IOException {
+        if (refusedProcessor != null) {
+            return;
+        }
+        if (!processor.isCheckpointable()) {
+            refusedProcessor = processor.getClass().getSimpleName();
+            LOG.warn("not checkpointing " + refusedProcessor + " or the processors after it, as it can't be restored"
+                     + " from a snapshot");
+            return;
+        }
+        if (index != completedCount) {
+            throw new IllegalStateException("processor " + index + " completed after " + completedCount
+                                            + " processors");
+        }
+        long start = System.currentTimeMillis();
+        File processorSnapshot = getProcessorSnapshot(index);
+        DataOutputStream out = openOutput(processorSnapshot);
+        try {
+            processor.writeCheckpoint(out);
+        } finally {
+            out.close();
+        }
+        commit(processorSnapshot);
+        File converterSnapshot = getConverterSnapshot(index);
+        out = openOutput(converterSnapshot);
+        try {
+            converter.writeCheckpoint(out);
+        } finally {
+            out.close();
+        }
+        commit(converterSnapshot);
+        lastObjectIds.add(Integer.valueOf(converter.getLastObjectId()));
+        writeManifest(index + 1);
+        LOG.info("checkpointed " + processor.getClass().getSimpleName() + " in "
+                 + (System.currentTimeMillis() - start) + " ms (" + (processorSnapshot.length() >> 10) + " KB)");
+    }
+
+    /**
+     * Mark only the first processors as completed, so that the later ones can be run and saved again.  Used by a
+     * delta run, which keeps the snapshots of every processor and reruns those whose chado tables changed.
+     * @param count the number of processors to keep, no more than the completed count
+     * @throws IOException if the manifest can't be written
+     */
+    void rollBack(int count) throws IOException {
+        if (count > completedCount) {
+            throw new IllegalStateException("can't roll back to " + count + " of " + completedCount
+                                            + " completed processors");
+        }
+        if (count < completedCount) {
+            writeManifest(count);
+        }
+    }
+
+    private void writeManifest(int count) throws IOException {
+        File manifest = new File(dir, MANIFEST);
+        DataOutputStream out = openOutput(manifest);
+        try {
+            out.writeInt(VERSION);
+            out.writeUTF(processors);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                out.writeInt(lastObjectIds.get(i).intValue());
+            }
+        } finally {
+            out.close();
+        }
+        commit(manifest);
+        completedCount = count;
+        lastObjectIds.subList(count, lastObjectIds.size()).clear();
+    }
+
+    /**
+     * Delete the checkpoint once the run is complete, so the next run starts from scratch.
+     */
+    void clear() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().equals(MANIFEST) || file.getName().endsWith(".snapshot")) {
+                    if (!file.delete()) {
+                        LOG.warn("failed to delete checkpoint file " + file);
+                    }
+                }
+            }
+        }
+        completedCount = 0;
+        lastObjectIds.clear();
+    }
+
+    private File getConverterSnapshot(int index) {
+        return new File(dir, "converter-" + index + ".snapshot");
+    }
+
+    private File getProcessorSnapshot(int index) {
+        return new File(dir, "processor-" + index + ".snapshot");
+    }
+
+    private static DataInputStream openInput(File file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file), 1 << 16)));
+    }
+
+    private static DataOutputStream openOutput(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        return new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(temp), 1 << 16)));
+    }
+
+    private static void commit(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        if (file.exists() && !file.delete()) {
+            throw new IOException("can't replace " + file);
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("can't rename " + temp + " to " + file);
+        }
+    }
+
+    /**
+     * Write a String that may be null or longer than DataOutput.writeUTF() allows.
+     * @param out the output
+     * @param value the String or null
+     * @throws IOException if the String can't be written
+     */
+    static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read a String written by writeString().
+     * @param in the input
+     * @return the String or null
+     * @throws IOException if the String can't be read
+     */
+    static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
@@ -0,0 +1,417 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine, NCGR
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The instrumentation of a ChadoDBConverter run: timers for each processor and each phase of a processor, counters
+ * of the chado rows read and the Items, Attributes and References stored, and heap and garbage collection
+ * snapshots taken as each phase ends.  Phases nest, eg. "SequenceProcessor/processFeatureTable", and a count is
+ * added to the phase the counting thread is in and to all the phases around it.  Threads started by a phase
+ * bind themselves to it with bind().
+ *
+ * The heap and GC numbers are for the whole JVM: when phases run concurrently they include the other phases.
+ * The stats are registered as a JMX MBean while the converter runs, and getJsonSummary() is written when the
+ * converter is closed.
+ *
+ * @author Sam Hokin
+ */
+public class ConverterStats implements ConverterStatsMBean
+{
+    private static final Logger LOG = Logger.getLogger(ConverterStats.class);
+
+    private final long startTime = System.currentTimeMillis();
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicLong items = new AtomicLong();
+    private final AtomicLong attributes = new AtomicLong();
+    private final AtomicLong references = new AtomicLong();
+
+    // every phase started, in start order
+    private final List<Phase> phases = new ArrayList<Phase>();
+    private final ThreadLocal<Phase> currentPhase = new ThreadLocal<Phase>();
+    private long maxPeakHeap = 0;
+    private ObjectName objectName = null;
+
+    /**
+     * A timed phase with its own counters.
+     */
+    public static final class Phase
+    {
+        private final String name;
+        private final Phase parent;
+        // the phase the starting thread was in, restored when this one ends
+        private final Phase previous;
+        private final long start = System.currentTimeMillis();
+        private final long gcCountAtStart = getGcCount();
+        private final long gcMillisAtStart = getGcMillis();
+        private final AtomicLong rows = new AtomicLong();
+        private final AtomicLong items = new AtomicLong();
+        private final AtomicLong attributes = new AtomicLong();
+        private final AtomicLong references = new AtomicLong();
+        private volatile long end = -1;
+        private long heapUsed;
+        private long peakHeap;
+        private long gcCount;
+        private long gcMillis;
+
+        private Phase(String name, Phase parent, Phase previous) {
+            this.name = (parent == null) ? name : parent.name + "/" + name;
+            this.parent = parent;
+            this.previous = previous;
+        }
+
+        /**
+         * @return the name of the phase, with the names of the phases around it
+         */
+        public String getName() {
+            return name;
+        }
+
+        private long getMillis() {
+            return ((end < 0) ? System.currentTimeMillis() : end) - start;
+        }
+
+        private String getSummary() {
+            long millis = getMillis();
+            String summary = name + ": " + millis + " ms, " + rows.get() + " rows (" + perSecond(rows.get(), millis)
+                + " rows/sec), " + items.get() + " items, " + attributes.get() + " attributes, " + references.get()
+                + " references";
+            if (end >= 0) {
+                summary += ", heap used " + (heapUsed >> 20) + " MB, peak " + (peakHeap >> 20) + " MB, " + gcCount
+                    + " GCs taking " + gcMillis + " ms";
+            }
+            return summary;
+        }
+
+        private void appendJson(StringBuilder json) {
+            json.append("{\"name\": ").append(quote(name));
+            json.append(", \"millis\": ").append(getMillis());
+            json.append(", \"running\": ").append(end < 0);
+            json.append(", \"rows\": ").append(rows.get());
+            json.append(", \"rowsPerSecond\": ").append(perSecond(rows.get(), getMillis()));
+            json.append(", \"items\": ").append(items.get());
+            json.append(", \"attributes\": ").append(attributes.get());
+            json.append(", \"references\": ").append(references.get());
+            if (end >= 0) {
+                json.append(", \"heapUsed\": ").append(heapUsed);
+                json.append(", \"peakHeap\": ").append(peakHeap);
+                json.append(", \"gcCount\": ").append(gcCount);
+                json.append(", \"gcMillis\": ").append(gcMillis);
+            }
+            json.append("}");
+        }
+    }
+
+    /**
+     * Start a phase inside the calling thread's current phase and make it the current phase.
+     * @param name the name of the phase
+     * @return the phase, to pass to endPhase()
+     */
+    public Phase startPhase(String name) {
+        return startPhase(name, currentPhase.get());
+    }
+
+    /**
+     * Start a phase inside the given phase and make it the calling thread's current phase.  Used by threads
+     * that run a phase for another thread.
+     * @param name the name of the phase
+     * @param parent the phase around the new one, or null
+     * @return the phase, to pass to endPhase()
+     */
+    public Phase startPhase(String name, Phase parent) {
+        Phase phase = new Phase(name, parent, currentPhase.get());
+        synchronized (phases) {
+            phases.add(phase);
+        }
+        currentPhase.set(phase);
+        return phase;
+    }
+
+    /**
+     * End a phase started by the calling thread: take the heap and GC snapshots, log the phase's summary and
+     * restore the thread's previous phase.
+     * @param phase the phase
+     */
+    public void endPhase(Phase phase) {
+        phase.gcCount = getGcCount() - phase.gcCountAtStart;
+        phase.gcMillis = getGcMillis() - phase.gcMillisAtStart;
+        phase.heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        synchronized (this) {
+            phase.peakHeap = resetPeakHeap();
+            maxPeakHeap = Math.max(maxPeakHeap, phase.peakHeap);
+        }
+        phase.end = System.currentTimeMillis();
+        bind(phase.previous);
+        LOG.info(phase.getSummary());
+    }
+
+    /**
+     * Return the calling thread's current phase, for binding the threads it starts.
+     * @return the phase or null
+     */
+    public Phase getCurrentPhase() {
+        return currentPhase.get();
+    }
+
+    /**
+     * Make the given phase the calling thread's current phase.
+     * @param phase the phase, null to unbind the thread
+     */
+    public void bind(Phase phase) {
+        if (phase == null) {
+            currentPhase.remove();
+        } else {
+            currentPhase.set(phase);
+        }
+    }
+
+    /**
+     * Count chado rows read.
+     * @param count the number of rows
+     */
+    public void countRows(long count) {
+        rows.addAndGet(count);
+        for (Phase phase = currentPhase.get(); phase != null; phase = phase.parent) {
+            phase.rows.addAndGet(count);
+        }
+    }
+
+    /**
+     * Count a stored Item.
+     */
+    public void countItem() {
+        items.incrementAndGet();
+        for (Phase phase = currentPhase.get(); phase != null; phase = phase.parent) {
+            phase.items.incrementAndGet();
+        }
+    }
+
+    /**
+     * Count a stored Attribute.
+     */
+    public void countAttribute() {
+        attributes.incrementAndGet();
+        for (Phase phase = currentPhase.get(); phase != null; phase = phase.parent) {
+            phase.attributes.incrementAndGet();
+        }
+    }
+
+    /**
+     * Count a stored Reference or ReferenceList.
+     */
+    public void countReference() {
+        references.incrementAndGet();
+        for (Phase phase = currentPhase.get(); phase != null; phase = phase.parent) {
+            phase.references.incrementAndGet();
+        }
+    }
+
+    /**
+     * Register these stats as a JMX MBean.  Failures are logged and otherwise ignored.
+     * @param name the name to register under, eg. the data source name
+     */
+    public synchronized void register(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName newName = new ObjectName("org.intermine.bio.dataconversion:type=ChadoDBConverter,name="
+                                                + ObjectName.quote(String.valueOf(name)));
+            if (server.isRegistered(newName)) {
+                server.unregisterMBean(newName);
+            }
+            server.registerMBean(this, newName);
+            objectName = newName;
+        } catch (JMException e) {
+            LOG.warn("failed to register the converter stats with JMX", e);
+        }
+    }
+
+    /**
+     * Unregister the JMX MBean if it was registered.
+     */
+    public synchronized void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            LOG.warn("failed to unregister the converter stats from JMX", e);
+        }
+        objectName = null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getElapsedMillis() {
+        return System.currentTimeMillis() - startTime;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getRowCount() {
+        return rows.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getItemCount() {
+        return items.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getAttributeCount() {
+        return attributes.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getReferenceCount() {
+        return references.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getRowsPerSecond() {
+        return perSecond(rows.get(), getElapsedMillis());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getHeapUsed() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String[] getRunningPhases() {
+        return getPhaseSummaries(true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String[] getFinishedPhases() {
+        return getPhaseSummaries(false);
+    }
+
+    private String[] getPhaseSummaries(boolean running) {
+        List<String> summaries = new ArrayList<String>();
+        synchronized (phases) {
+            for (Phase phase : phases) {
+                if ((phase.end < 0) == running) {
+                    summaries.add(phase.getSummary());
+                }
+            }
+        }
+        return summaries.toArray(new String[summaries.size()]);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getJsonSummary() {
+        long millis = getElapsedMillis();
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"millis\": ").append(millis);
+        json.append(",\n  \"rows\": ").append(rows.get());
+        json.append(",\n  \"rowsPerSecond\": ").append(perSecond(rows.get(), millis));
+        json.append(",\n  \"items\": ").append(items.get());
+        json.append(",\n  \"attributes\": ").append(attributes.get());
+        json.append(",\n  \"references\": ").append(references.get());
+        synchronized (this) {
+            json.append(",\n  \"maxPeakHeap\": ").append(maxPeakHeap);
+        }
+        json.append(",\n  \"gcCount\": ").append(getGcCount());
+        json.append(",\n  \"gcMillis\": ").append(getGcMillis());
+        json.append(",\n  \"phases\": [");
+        synchronized (phases) {
+            for (int i = 0; i < phases.size(); i++) {
+                json.append((i == 0) ? "\n    " : ",\n    ");
+                phases.get(i).appendJson(json);
+            }
+        }
+        json.append("\n  ]\n}\n");
+        return json.toString();
+    }
+
+    private static long perSecond(long count, long millis) {
+        return count * 1000L / Math.max(1, millis);
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < ' ') {
+                quoted.append(String.format("\\u%04x", Integer.valueOf(c)));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static long getGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long getGcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    // the sum of the peak usage of the heap memory pools since the last call; the peaks are reset
+    private static long resetPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                MemoryUsage usage = pool.getPeakUsage();
+                if (usage != null) {
+                    peak += usage.getUsed();
+                }
+                pool.resetPeakUsage();
+            }
+        }
+        return peak;
+    }
+}
@@ -0,0 +1,70 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine, NCGR
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+/**
+ * The JMX view of a ChadoDBConverter's ConverterStats, registered while the converter runs so a build can be
+ * watched with jconsole or any other JMX client.
+ *
+ * @author Sam Hokin
+ */
+public interface ConverterStatsMBean
+{
+    /**
+     * @return the milliseconds since the converter started
+     */
+    long getElapsedMillis();
+
+    /**
+     * @return the number of chado rows read by the processors
+     */
+    long getRowCount();
+
+    /**
+     * @return the number of Items stored
+     */
+    long getItemCount();
+
+    /**
+     * @return the number of Attributes stored
+     */
+    long getAttributeCount();
+
+    /**
+     * @return the number of References and ReferenceLists stored
+     */
+    long getReferenceCount();
+
+    /**
+     * @return the rows read per second since the converter started
+     */
+    long getRowsPerSecond();
+
+    /**
+     * @return the heap in use, in bytes
+     */
+    long getHeapUsed();
+
+    /**
+     * @return a summary line for each phase that is running
+     */
+    String[] getRunningPhases();
+
+    /**
+     * @return a summary line for each phase that has finished
+     */
+    String[] getFinishedPhases();
+
+    /**
+     * @return the summary of the whole run as JSON
+     */
+    String getJsonSummary();
+}
@@ -0,0 +1,341 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine, NCGR
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * The marks of a delta run of ChadoDBConverter, see ChadoDBConverter.setDeltaDir().  For each organism and each
+ * chado table the processors read, a mark is the row count and the sum of a hash of every row, so rows added,
+ * deleted or updated in place all change it.  A per-feature table is marked for the organism of the feature at
+ * each end that joins it to feature, eg. feature_relationship for both its subject and its object.  The feature
+ * table's rows are hashed without their residues, which md5checksum and seqlen stand in for.  Tables that aren't
+ * per feature, like cvterm and pub, are marked once for all organisms.  The organism table is read by the
+ * converter itself, so it is marked for every processor.  A processor is unchanged if the marks of all its
+ * tables, and its own stamp, are the same as in the state file written by the previous run.
+ *
+ * The row hashes use PostgreSQL's hashtext(), so a change can be missed if it leaves the sum of the hashes the
+ * same; a 32-bit hash of each row makes that unlikely for the edits of a chado database.
+ *
+ * @author Sam Hokin
+ */
+class DeltaState
+{
+    private static final Logger LOG = Logger.getLogger(DeltaState.class);
+
+    private static final int VERSION = 2;
+    private static final String STATE_FILE = "delta.state";
+
+    // the organism table, read by the converter for every processor
+    static final String ORGANISM_TABLE = "organism";
+
+    // the hash of a feature row, leaving out the residues
+    private static final String FEATURE_HASH = "hashtext(concat_ws('|', t.feature_id, t.dbxref_id, t.name, t.uniquename,"
+        + " t.seqlen, t.md5checksum, t.type_id, t.is_analysis, t.is_obsolete, t.timelastmodified))";
+
+    // the tables with rows per feature and the columns joining them to feature
+    private static final String[][] ORGANISM_TABLES = {
+        {"featureloc", "feature_id", "srcfeature_id"},
+        {"featureprop", "feature_id"},
+        {"feature_relationship", "subject_id", "object_id"},
+        {"feature_synonym", "feature_id"},
+        {"feature_dbxref", "feature_id"},
+        {"feature_cvterm", "feature_id"},
+        {"feature_pub", "feature_id"},
+        {"feature_stock", "feature_id"},
+        {"featurepos", "feature_id", "map_feature_id"},
+    };
+
+    // the tables shared by all organisms
+    private static final String[] GLOBAL_TABLES = {
+        "cvterm", "pub", "dbxref", "synonym", "stock", "featuremap", "featuremap_pub", "phylotree", "phylonode"
+    };
+
+    /**
+     * Every table that DeltaState can mark.
+     */
+    static final String[] ALL_TABLES;
+
+    static {
+        ALL_TABLES = new String[1 + ORGANISM_TABLES.length + GLOBAL_TABLES.length];
+        int i = 0;
+        ALL_TABLES[i++] = "feature";
+        for (String[] table : ORGANISM_TABLES) {
+            ALL_TABLES[i++] = table[0];
+        }
+        for (String table : GLOBAL_TABLES) {
+            ALL_TABLES[i++] = table;
+        }
+    }
+
+    // marks are keyed by "table:organism_id", with organism_id 0 for the global tables, and hold the row count
+    // and the sum of the row hashes, or -1s if the table couldn't be read
+    private final Map<String, long[]> previousMarks = new HashMap<String, long[]>();
+    private final Map<String, long[]> currentMarks = new HashMap<String, long[]>();
+    // the class name and stamp of each processor of the previous run
+    private final Map<Integer, String> previousProcessors = new HashMap<Integer, String>();
+
+    private final File stateFile;
+    private final String config;
+    private Collection<Integer> organismIds;
+
+    /**
+     * Read the state of the previous run from a directory, if it was made with the same configuration.
+     * @param dir the delta directory, created if needed
+     * @param config the converter's settings, which must match for the previous run's marks to be used
+     * @throws IOException if the directory can't be created or the state can't be read
+     */
+    DeltaState(File dir, String config) throws IOException {
+        this.config = config;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can't create delta directory " + dir);
+        }
+        stateFile = new File(dir, STATE_FILE);
+        if (!stateFile.exists()) {
+            LOG.info("no delta state in " + dir + ", running every processor");
+            return;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)));
+        try {
+            int version = in.readInt();
+            String stateConfig = ConverterCheckpoint.readString(in);
+            if (version != VERSION || !config.equals(stateConfig)) {
+                LOG.info("delta state in " + dir + " was made with other settings, running every processor");
+                return;
+            }
+            int processorCount = in.readInt();
+            for (int i = 0; i < processorCount; i++) {
+                previousProcessors.put(Integer.valueOf(i), ConverterCheckpoint.readString(in));
+            }
+            int markCount = in.readInt();
+            for (int i = 0; i < markCount; i++) {
+                String key = in.readUTF();
+                previousMarks.put(key, new long[] {in.readLong(), in.readLong()});
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Read the current marks of the tables read by the given processors.  Call this in autocommit mode: a table
+     * that doesn't exist is marked as unreadable, so the processors reading it always run.
+     * @param connection the chado connection
+     * @param organismIds the chado organism_ids being processed
+     * @param processors the processors
+     */
+    void readMarks(Connection connection, Collection<Integer> organismIds, List<ChadoProcessor> processors) {
+        this.organismIds = new TreeSet<Integer>(organismIds);
+        Set<String> tables = new TreeSet<String>();
+        tables.add(ORGANISM_TABLE);
+        for (ChadoProcessor processor : processors) {
+            for (String table : processor.getSourceTables()) {
+                tables.add(table);
+            }
+        }
+        if (this.organismIds.isEmpty()) {
+            return;
+        }
+        String inOrganisms = " IN (" + StringUtils.join(this.organismIds, ",") + ")";
+        long start = System.currentTimeMillis();
+        readMarks(connection, ORGANISM_TABLE, "SELECT t.organism_id, count(*), sum(hashtext(t::text)) FROM organism t"
+                  + " WHERE t.organism_id" + inOrganisms + " GROUP BY t.organism_id");
+        if (tables.contains("feature")) {
+            readMarks(connection, "feature", "SELECT t.organism_id, count(*), sum(" + FEATURE_HASH + ") FROM feature t"
+                      + " WHERE t.organism_id" + inOrganisms + " GROUP BY t.organism_id");
+        }
+        for (String[] table : ORGANISM_TABLES) {
+            if (tables.contains(table[0])) {
+                // a row is marked for the organism of each feature it joins, so an edit at either end is caught
+                List<String> ends = new ArrayList<String>();
+                for (int i = 1; i < table.length; i++) {
+                    ends.add("SELECT f.organism_id, hashtext(t::text) AS hash FROM " + table[0] + " t"
+                             + " JOIN feature f ON f.feature_id = t." + table[i] + " WHERE f.organism_id" + inOrganisms);
+                }
+                readMarks(connection, table[0], "SELECT organism_id, count(*), sum(hash) FROM ("
+                          + StringUtils.join(ends, " UNION ALL ") + ") ends GROUP BY organism_id");
+            }
+        }
+        for (String table : GLOBAL_TABLES) {
+            if (tables.contains(table)) {
+                readMarks(connection, table, "SELECT 0, count(*), sum(hashtext(t::text)) FROM " + table + " t");
+            }
+        }
+        LOG.info("read the delta marks of " + tables.size() + " tables in "
+                 + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private void readMarks(Connection connection, String table, String query) {
+        // organisms with no rows have a mark of zeroes
+        for (Integer organismId : organismIds) {
+            currentMarks.put(markKey(table, organismId.intValue()), new long[] {0, 0});
+        }
+        currentMarks.put(markKey(table, 0), new long[] {0, 0});
+        try {
+            Statement stmt = connection.createStatement();
+            try {
+                ResultSet res = stmt.executeQuery(query);
+                while (res.next()) {
+                    currentMarks.put(markKey(table, res.getInt(1)), new long[] {res.getLong(2), res.getLong(3)});
+                }
+                res.close();
+            } finally {
+                stmt.close();
+            }
+        } catch (SQLException e) {
+            LOG.warn("can't read the delta marks of " + table + ", processors reading it will run: " + e);
+            for (Map.Entry<String, long[]> entry : currentMarks.entrySet()) {
+                if (entry.getKey().startsWith(table + ":")) {
+                    entry.setValue(new long[] {-1, -1});
+                }
+            }
+        }
+    }
+
+    private static String markKey(String table, int organismId) {
+        return table + ":" + organismId;
+    }
+
+    /**
+     * Return true if a processor's results from the previous run can be used: it was at the same place in the list
+     * of processors, its stamp is the same and none of its tables changed for the organisms being processed.
+     * @param index the index of the processor in the list
+     * @param processor the processor
+     * @return true if the processor is unchanged
+     */
+    boolean isUnchanged(int index, ChadoProcessor processor) {
+        Set<Integer> changed = getChangedOrganisms(index, processor);
+        return changed != null && changed.isEmpty();
+    }
+
+    /**
+     * Return the organisms whose tables read by a processor changed, for a processor whose results are recorded
+     * per organism, see ChadoProcessor.isOrganismIndependent().
+     * @param index the index of the processor in the list
+     * @param processor the processor
+     * @return the chado organism_ids, or null if the processor has to run for every organism: it wasn't at the
+     * same place in the list, its stamp changed or one of the tables shared by all organisms changed
+     */
+    Set<Integer> getChangedOrganisms(int index, ChadoProcessor processor) {
+        String previous = previousProcessors.get(Integer.valueOf(index));
+        if (previous == null || !previous.equals(getProcessorKey(processor))) {
+            return null;
+        }
+        Set<String> tables = new TreeSet<String>(Arrays.asList(processor.getSourceTables()));
+        tables.add(ORGANISM_TABLE);
+        Set<Integer> changed = new TreeSet<Integer>();
+        for (String table : tables) {
+            if (isChanged(table, 0)) {
+                return null;
+            }
+            for (Integer organismId : organismIds) {
+                if (isChanged(table, organismId.intValue())) {
+                    changed.add(organismId);
+                }
+            }
+        }
+        return changed;
+    }
+
+    private boolean isChanged(String table, int organismId) {
+        String key = markKey(table, organismId);
+        long[] current = currentMarks.get(key);
+        long[] previous = previousMarks.get(key);
+        if (current == null && previous == null) {
+            return false;
+        }
+        return current == null || previous == null || current[0] < 0
+            || current[0] != previous[0] || current[1] != previous[1];
+    }
+
+    /**
+     * Return the organisms with a changed table, for the log.
+     * @return the chado organism_ids
+     */
+    Set<Integer> getChangedOrganisms() {
+        Set<Integer> changed = new TreeSet<Integer>();
+        for (String key : currentMarks.keySet()) {
+            int colon = key.lastIndexOf(':');
+            int organismId = Integer.parseInt(key.substring(colon + 1));
+            if (organismId != 0 && isChanged(key.substring(0, colon), organismId)) {
+                changed.add(Integer.valueOf(organismId));
+            }
+        }
+        return changed;
+    }
+
+    private static String getProcessorKey(ChadoProcessor processor) {
+        return processor.getClass().getName() + "|" + processor.getDeltaStamp();
+    }
+
+    /**
+     * Delete the state file, so that if this run fails the next one runs every processor.
+     */
+    void invalidate() {
+        if (stateFile.exists() && !stateFile.delete()) {
+            LOG.warn("failed to delete " + stateFile);
+        }
+    }
+
+    /**
+     * Write the current marks, once every processor has completed and its item stream is saved.
+     * @param processors the processors, in order
+     * @throws IOException if the state can't be written
+     */
+    void save(List<ChadoProcessor> processors) throws IOException {
+        File temp = new File(stateFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(VERSION);
+            ConverterCheckpoint.writeString(out, config);
+            out.writeInt(processors.size());
+            for (ChadoProcessor processor : processors) {
+                ConverterCheckpoint.writeString(out, getProcessorKey(processor));
+            }
+            out.writeInt(currentMarks.size());
+            for (Map.Entry<String, long[]> entry : currentMarks.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue()[0]);
+                out.writeLong(entry.getValue()[1]);
+            }
+        } finally {
+            out.close();
+        }
+        if (stateFile.exists() && !stateFile.delete()) {
+            throw new IOException("can't replace " + stateFile);
+        }
+        if (!temp.renameTo(stateFile)) {
+            throw new IOException("can't rename " + temp + " to " + stateFile);
+        }
+    }
+}
@@ -10,6 +10,12 @@ package org.intermine.bio.dataconversion;
  *
  */
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -20,7 +26,9 @@ import org.intermine.xml.full.Item;
 
 /**
  * Data about one feature from the feature table in chado.  This exists to avoid having lots of
- * Item objects in memory.
+ * Item objects in memory.  There can be tens of millions of these so the fields are kept compact: the object id
+ * is an int, the item identifier is held as its two numeric parts, and the synonyms are a sorted array that is
+ * only allocated when the first synonym is added.
  *
  * @author Kim Rutherford
  */
@@ -30,12 +38,18 @@ class FeatureData
     OrganismData organismData;
     private String uniqueName;
     private String chadoFeatureName;
-    private Set<String> existingSynonyms = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+    // sorted with String.CASE_INSENSITIVE_ORDER, null until the first synonym is added
+    private String[] existingSynonyms = null;
+    // the item identifier if it isn't of the usual "alias_number" form, otherwise null and the parts below are used
     private String itemIdentifier;
+    private int itemIdentifierAlias;
+    private int itemIdentifierNumber;
     private String interMineType;
-    private Integer intermineObjectId;
+    private int intermineObjectId;
 
     private short flags = 0;
+    // set when the feature is read from a SpillingFeatureDataRegistry, cleared by the registry's eviction sweep
+    boolean referenced = false;
     static final short EVIDENCE_CREATED = 0;
     static final short IDENTIFIER_SET = 1;
     static final short LENGTH_SET = 2;
@@ -63,7 +77,7 @@ class FeatureData
      * @return the ID
      */
     public Integer getIntermineObjectId() {
-        return intermineObjectId;
+        return Integer.valueOf(intermineObjectId);
     }
 
     /**
@@ -72,7 +86,7 @@ class FeatureData
      * @param intermineObjectId the intermineObjectId to set
      */
     public void setIntermineObjectId(Integer intermineObjectId) {
-        this.intermineObjectId = intermineObjectId;
+        this.intermineObjectId = intermineObjectId.intValue();
     }
 
     /**
@@ -141,7 +155,12 @@ class FeatureData
      * @param chadoFeatureName the chadoFeatureName to set
      */
     public void setChadoFeatureName(String chadoFeatureName) {
-        this.chadoFeatureName = chadoFeatureName;
+        // share the uniqueName String when they're the same, which is common
+        if (chadoFeatureName != null && chadoFeatureName.equals(uniqueName)) {
+            this.chadoFeatureName = uniqueName;
+        } else {
+            this.chadoFeatureName = chadoFeatureName;
+        }
     }
 
     /**
@@ -173,15 +192,41 @@ class FeatureData
      * @return the new InterMine Item identifier
      */
     public String getItemIdentifier() {
-        return itemIdentifier;
+        if (itemIdentifier != null) {
+            return itemIdentifier;
+        }
+        return itemIdentifierAlias + "_" + itemIdentifierNumber;
     }
 
     /**
-     * Set the item identifier for this feature.
+     * Set the item identifier for this feature.  Identifiers made by DataConverter.createItem() look like
+     * "alias_number" and are stored as two ints, anything else is kept as a String.
      * @param itemIdentifier the new item identifier
      */
     public void setItemIdentifier(String itemIdentifier) {
         this.itemIdentifier = itemIdentifier;
+        int underscore = (itemIdentifier == null) ? -1 : itemIdentifier.indexOf('_');
+        if (underscore > 0) {
+            try {
+                int alias = Integer.parseInt(itemIdentifier.substring(0, underscore));
+                int number = Integer.parseInt(itemIdentifier.substring(underscore + 1));
+                if (itemIdentifier.equals(alias + "_" + number)) {
+                    this.itemIdentifier = null;
+                    this.itemIdentifierAlias = alias;
+                    this.itemIdentifierNumber = number;
+                }
+            } catch (NumberFormatException e) {
+                // not a generated identifier, keep the String
+            }
+        }
+    }
+
+    /**
+     * Return true if the item identifier is held as a String rather than as two ints.
+     * @return true if the identifier is a String
+     */
+    boolean hasStringItemIdentifier() {
+        return itemIdentifier != null;
     }
 
     /**
@@ -252,13 +297,45 @@ class FeatureData
 
 
     /**
-     * Return the set of identifiers for which Synonyms have been created.
+     * Return the set of identifiers for which Synonyms have been created.  This is a read-only, case-insensitive
+     * copy; use hasExistingSynonym() to test for a synonym.
      * @return the existingSynonyms
      */
     public final Set<String> getExistingSynonyms() {
-        return existingSynonyms;
+        if (existingSynonyms == null) {
+            return Collections.emptySet();
+        }
+        Set<String> synonyms = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+        synonyms.addAll(Arrays.asList(existingSynonyms));
+        return Collections.unmodifiableSet(synonyms);
+    }
+
+    /**
+     * Return true if a Synonym has been created for the given identifier, ignoring case.
+     * @param synonym the identifier
+     * @return true if the synonym exists
+     */
+    public boolean hasExistingSynonym(String synonym) {
+        return existingSynonyms != null
+            && Arrays.binarySearch(existingSynonyms, synonym, String.CASE_INSENSITIVE_ORDER) >= 0;
     }
 
+    /**
+     * Return the number of Synonyms created for this feature.
+     * @return the synonym count
+     */
+    int getExistingSynonymCount() {
+        return (existingSynonyms == null) ? 0 : existingSynonyms.length;
+    }
+
+    /**
+     * Return the synonym at the given index, in case-insensitive order.
+     * @param index the index
+     * @return the synonym
+     */
+    String getExistingSynonym(int index) {
+        return existingSynonyms[index];
+    }
 
     /**
      * this is a newer method, we are now creating synonyms later than we used to (because of
@@ -267,7 +344,154 @@ class FeatureData
      * @param synonym identifier that has just been created as a synonym
      */
     public void addExistingSynonym(String synonym) {
-        existingSynonyms.add(synonym);
+        if (existingSynonyms == null) {
+            existingSynonyms = new String[] {synonym};
+            return;
+        }
+        int pos = Arrays.binarySearch(existingSynonyms, synonym, String.CASE_INSENSITIVE_ORDER);
+        if (pos >= 0) {
+            return;
+        }
+        int insert = -1 - pos;
+        String[] synonyms = new String[existingSynonyms.length + 1];
+        System.arraycopy(existingSynonyms, 0, synonyms, 0, insert);
+        synonyms[insert] = synonym;
+        System.arraycopy(existingSynonyms, insert, synonyms, insert + 1, existingSynonyms.length - insert);
+        existingSynonyms = synonyms;
+    }
+
+    /**
+     * The number of bytes written by writeSpillRecord().
+     */
+    static final int SPILL_RECORD_BYTES = 16;
+
+    /**
+     * Write the fixed-width fields of this feature to a spill record, see SpillingFeatureDataRegistry.  The
+     * organism and type are recorded by the registry.
+     * @param record the record buffer, positioned where the fields go
+     */
+    void writeSpillRecord(ByteBuffer record) {
+        record.putInt(intermineObjectId);
+        record.putInt(itemIdentifierAlias);
+        record.putInt(itemIdentifierNumber);
+        record.putShort(flags);
+        record.putShort((short) 0);
+    }
+
+    /**
+     * Write the variable-length fields of this feature to the spill arena, see SpillingFeatureDataRegistry.
+     * @param out the arena entry
+     * @throws IOException if the fields can't be written
+     */
+    void writeSpillFields(DataOutput out) throws IOException {
+        ConverterCheckpoint.writeString(out, md5checksum);
+        ConverterCheckpoint.writeString(out, uniqueName);
+        out.writeBoolean(chadoFeatureName != null && chadoFeatureName == uniqueName);
+        if (chadoFeatureName == null || chadoFeatureName != uniqueName) {
+            ConverterCheckpoint.writeString(out, chadoFeatureName);
+        }
+        ConverterCheckpoint.writeString(out, itemIdentifier);
+        int synonymCount = getExistingSynonymCount();
+        out.writeInt(synonymCount);
+        for (int i = 0; i < synonymCount; i++) {
+            ConverterCheckpoint.writeString(out, existingSynonyms[i]);
+        }
+    }
+
+    /**
+     * Read a feature spilled by writeSpillRecord() and writeSpillFields().
+     * @param record the record buffer, positioned at the fields
+     * @param in the arena entry
+     * @param organismData the feature's organism
+     * @param interMineType the feature's type
+     * @return the feature
+     * @throws IOException if the fields can't be read
+     */
+    static FeatureData readSpill(ByteBuffer record, DataInput in, OrganismData organismData,
+                                 String interMineType) throws IOException {
+        FeatureData fdat = new FeatureData();
+        fdat.organismData = organismData;
+        fdat.interMineType = interMineType;
+        fdat.intermineObjectId = record.getInt();
+        fdat.itemIdentifierAlias = record.getInt();
+        fdat.itemIdentifierNumber = record.getInt();
+        fdat.flags = record.getShort();
+        fdat.md5checksum = ConverterCheckpoint.readString(in);
+        fdat.uniqueName = ConverterCheckpoint.readString(in);
+        if (in.readBoolean()) {
+            fdat.chadoFeatureName = fdat.uniqueName;
+        } else {
+            fdat.chadoFeatureName = ConverterCheckpoint.readString(in);
+        }
+        fdat.itemIdentifier = ConverterCheckpoint.readString(in);
+        int synonymCount = in.readInt();
+        if (synonymCount > 0) {
+            fdat.existingSynonyms = new String[synonymCount];
+            for (int i = 0; i < synonymCount; i++) {
+                fdat.existingSynonyms[i] = ConverterCheckpoint.readString(in);
+            }
+        }
+        return fdat;
     }
 
+    /**
+     * Write this feature to a checkpoint snapshot, see ConverterCheckpoint.
+     * @param out the snapshot
+     * @throws IOException if the snapshot can't be written
+     */
+    void writeCheckpoint(DataOutput out) throws IOException {
+        ConverterCheckpoint.writeString(out, (organismData == null) ? null : organismData.getTaxonId());
+        ConverterCheckpoint.writeString(out, md5checksum);
+        ConverterCheckpoint.writeString(out, uniqueName);
+        ConverterCheckpoint.writeString(out, chadoFeatureName);
+        ConverterCheckpoint.writeString(out, interMineType);
+        ConverterCheckpoint.writeString(out, itemIdentifier);
+        out.writeInt(itemIdentifierAlias);
+        out.writeInt(itemIdentifierNumber);
+        out.writeInt(intermineObjectId);
+        out.writeShort(flags);
+        int synonymCount = getExistingSynonymCount();
+        out.writeInt(synonymCount);
+        for (int i = 0; i < synonymCount; i++) {
+            ConverterCheckpoint.writeString(out, existingSynonyms[i]);
+        }
+    }
+
+    /**
+     * Read a feature written by writeCheckpoint().
+     * @param in the snapshot
+     * @param registry the registry the feature will be put in, whose shared Strings are used
+     * @param organisms the OrganismData of the converter's organisms keyed by taxon id
+     * @return the feature
+     * @throws IOException if the snapshot can't be read
+     */
+    static FeatureData readCheckpoint(DataInput in, FeatureDataRegistry registry,
+                                      Map<String, OrganismData> organisms) throws IOException {
+        FeatureData fdat = new FeatureData();
+        String taxonId = ConverterCheckpoint.readString(in);
+        if (taxonId != null) {
+            fdat.organismData = organisms.get(taxonId);
+            if (fdat.organismData == null) {
+                throw new IOException("checkpoint has a feature of organism " + taxonId
+                                      + " which is not being processed");
+            }
+        }
+        fdat.md5checksum = ConverterCheckpoint.readString(in);
+        fdat.uniqueName = ConverterCheckpoint.readString(in);
+        fdat.chadoFeatureName = ConverterCheckpoint.readString(in);
+        fdat.interMineType = registry.intern(ConverterCheckpoint.readString(in));
+        fdat.itemIdentifier = ConverterCheckpoint.readString(in);
+        fdat.itemIdentifierAlias = in.readInt();
+        fdat.itemIdentifierNumber = in.readInt();
+        fdat.intermineObjectId = in.readInt();
+        fdat.flags = in.readShort();
+        int synonymCount = in.readInt();
+        if (synonymCount > 0) {
+            fdat.existingSynonyms = new String[synonymCount];
+            for (int i = 0; i < synonymCount; i++) {
+                fdat.existingSynonyms[i] = ConverterCheckpoint.readString(in);
+            }
+        }
+        return fdat;
+    }
 }
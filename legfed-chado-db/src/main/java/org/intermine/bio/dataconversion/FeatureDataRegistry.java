@@ -0,0 +1,109 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine, NCGR
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The registry of FeatureData keyed by chado feature_id, used by SequenceProcessor in place of a
+ * HashMap&lt;Integer, FeatureData&gt;.  Strings shared by many features, like the InterMine type, are interned here.
+ * Since it is a Map, getFeatureMap() and initialiseFeatureMap() keep working for subclasses.
+ *
+ * getMemoryReport() estimates the bytes per feature of the registry against the HashMap/TreeSet layout it replaced,
+ * assuming a 64-bit JVM with compressed oops and 8-byte alignment.  The figures are computed from per-object sizes,
+ * not measured, and are logged as such alongside the measured heap in use.
+ *
+ * Like IntObjectHashMap the registry is not thread-safe; SequenceProcessor writes it while holding the
+ * ChadoDBConverter's lock.
+ *
+ * @author Sam Hokin
+ */
+class FeatureDataRegistry extends IntObjectHashMap<FeatureData>
+{
+    // the strings shared between features
+    private Map<String, String> internedStrings = new HashMap<String, String>();
+
+    /**
+     * Return the registry's shared copy of the given String.  Synchronized as features may be registered from
+     * several threads.
+     * @param value the String
+     * @return an equal String shared by all callers
+     */
+    synchronized String intern(String value) {
+        if (value == null) {
+            return null;
+        }
+        String interned = internedStrings.get(value);
+        if (interned == null) {
+            internedStrings.put(value, value);
+            interned = value;
+        }
+        return interned;
+    }
+
+    /**
+     * Return a one line report of the estimated heap used per feature by this registry and by the HashMap of
+     * FeatureData with TreeSet synonyms that it replaced, for the current contents.  The estimates are computed
+     * from object sizes, not measured; the measured heap in use by the whole JVM is reported for comparison.
+     * @return the report
+     */
+    String getMemoryReport() {
+        int count = size();
+        if (count == 0) {
+            return "feature registry is empty";
+        }
+        long shared = 0;
+        long before = 0;
+        long after = 0;
+        for (FeatureData fdat : values()) {
+            shared += stringBytes(fdat.getUniqueName());
+            shared += stringBytes(fdat.getChecksum());
+            for (int i = 0; i < fdat.getExistingSynonymCount(); i++) {
+                shared += stringBytes(fdat.getExistingSynonym(i));
+            }
+            // HashMap.Node, Integer key, FeatureData with 8 references, Integer object id, TreeSet and TreeMap,
+            // TreeMap.Entry per synonym and a String each for the name, item identifier and type
+            before += 32 + 16 + 48 + 16 + 16 + 48 + 40L * fdat.getExistingSynonymCount();
+            before += stringBytes(fdat.getChadoFeatureName());
+            before += stringBytes(fdat.getItemIdentifier());
+            before += stringBytes(fdat.getInterMineType());
+            // FeatureData with 7 references and 3 ints, the synonym array and any unshared Strings
+            after += 56;
+            if (fdat.getExistingSynonymCount() > 0) {
+                after += align(16 + 4L * fdat.getExistingSynonymCount());
+            }
+            if (fdat.getChadoFeatureName() != fdat.getUniqueName()) {
+                after += stringBytes(fdat.getChadoFeatureName());
+            }
+            if (fdat.hasStringItemIdentifier()) {
+                after += stringBytes(fdat.getItemIdentifier());
+            }
+        }
+        int hashMapCapacity = Integer.highestOneBit(Math.max(1, (int) (count / 0.75f)) * 2 - 1);
+        before += shared + align(16 + 4L * hashMapCapacity);
+        after += shared + 2 * align(16 + 4L * capacity());
+        Runtime runtime = Runtime.getRuntime();
+        long heapUsed = runtime.totalMemory() - runtime.freeMemory();
+        return "feature registry: " + count + " features; estimate, not measured: " + (after / count)
+            + " bytes per feature (" + (after >> 20) + " MB) against " + (before / count) + " bytes per feature ("
+            + (before >> 20) + " MB) for a HashMap of FeatureData; measured heap in use: " + (heapUsed >> 20) + " MB";
+    }
+
+    // a Java 8 String: the String object and its char[]
+    private static long stringBytes(String s) {
+        return (s == null) ? 0 : 24 + align(16 + 2L * s.length());
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+}
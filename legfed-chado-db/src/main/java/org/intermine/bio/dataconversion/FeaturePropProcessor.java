@@ -15,11 +15,9 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 
-import java.util.Collection;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Set;
-import java.util.HashSet;
 
 import org.apache.log4j.Logger;
 
@@ -39,6 +37,11 @@ import org.intermine.xml.full.Reference;
 public class FeaturePropProcessor extends ChadoProcessor {
     private static final Logger LOG = Logger.getLogger(FeaturePropProcessor.class);
 
+    // the chado tables read, see ChadoProcessor.getSourceTables()
+    private static final String[] SOURCE_TABLES = {
+        "feature", "featureprop", "cvterm"
+    };
+
     /**
      * Create a new FeaturePropProcessor
      * @param chadoDBConverter the ChadoDBConverter that is controlling this processor
@@ -47,18 +50,101 @@ public class FeaturePropProcessor extends ChadoProcessor {
         super(chadoDBConverter);
     }
 
+    /**
+     * The InterMine class of a chado feature type and the attributes its featureprop types are loaded into.
+     */
+    private static final class FeatureClass {
+        final String className;
+        // featureprop type_id to attribute name
+        final IntObjectHashMap<String> attributes = new IntObjectHashMap<String>();
+        int count = 0;
+
+        FeatureClass(String className) {
+            this.className = className;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected String[] getSourceTables() {
+        return SOURCE_TABLES;
+    }
+
+    /**
+     * It only adds the featureprops to Items it stores itself, so it has no state to save.
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean isCheckpointable() {
+        return true;
+    }
+
+    /**
+     * Each organism's Items, phenotypes and strain description come from its own rows.
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean isOrganismIndependent() {
+        return true;
+    }
+
     /**
      * {@inheritDoc}
      * We process the chado database by reading the featureprop table for the feature_id values of our features of interest.
+     * Each organism's featureprops are read in a single scan ordered by feature_id, so each feature's props are a run of
+     * rows that are pivoted into its Item through a dispatch table from prop type to attribute, and the Item is stored
+     * when the run ends.
      */
     @Override
     public void process(Connection connection) throws SQLException, ObjectStoreException {
         
         // initialize our DB statement
         Statement stmt = connection.createStatement();
+
+        // the dispatch table, keyed by feature type_id
+        IntObjectHashMap<FeatureClass> featureClasses = new IntObjectHashMap<FeatureClass>();
+        addFeatureClass(featureClasses, stmt, "Gene", "gene",
+                        "description", "Note");
+        addFeatureClass(featureClasses, stmt, "LinkageGroup", "linkage_group",
+                        "assignedLinkageGroup", "Assigned Linkage Group");
+        addFeatureClass(featureClasses, stmt, "QTL", "QTL",
+                        "description", "comment",
+                        "publicationLinkageGroup", "Publication Linkage Group",
+                        "analysisMethod", "QTL Analysis Method",
+                        "identifier", "QTL Identifier",
+                        "peak", "QTL Peak",
+                        "studyTreatment", "QTL Study Treatment");
+        addFeatureClass(featureClasses, stmt, "GeneticMarker", "genetic_marker",
+                        "description", "description",
+                        "sourceDescription", "Source Description",
+                        "canonicalMarker", "Canonical Marker");
+        // NOTE: proteins are stored in chado as "polypeptide"
+        addFeatureClass(featureClasses, stmt, "Protein", "polypeptide",
+                        "note", "Note");
+        addFeatureClass(featureClasses, stmt, "ProteinMatch", "protein_match",
+                        "signatureDesc", "signature_desc",
+                        "status", "status",
+                        "date", "date");
+        addFeatureClass(featureClasses, stmt, "ProteinHmmMatch", "protein_hmm_match",
+                        "signatureDesc", "signature_desc",
+                        "status", "status",
+                        "date", "date");
+        StringBuilder featureTypeIds = new StringBuilder();
+        for (Integer featureTypeId : featureClasses.keySet()) {
+            featureTypeIds.append(featureTypeIds.length()==0 ? "" : ",").append(featureTypeId);
+        }
+
+        // the QTL props that make its Phenotype
+        int qtlTypeId = getTypeId(stmt, "QTL");
+        int traitNameTypeId = getTypeId(stmt, "Experiment Trait Name");
+        int traitDescriptionTypeId = getTypeId(stmt, "Experiment Trait Description");
+        int traitUnitTypeId = getTypeId(stmt, "Trait Unit");
+        stmt.close();
                 
         // get the desired chado organism_ids
-        Set<Integer> organismIds = getChadoDBConverter().getDesiredChadoOrganismIds();
+        Set<Integer> organismIds = getOrganismIds();
 
         // now loop over the desired chado organisms
         for (Integer organismId : organismIds) {
@@ -68,178 +154,146 @@ public class FeaturePropProcessor extends ChadoProcessor {
             Item organism = getChadoDBConverter().getOrganismItem(organismId);
 
             // add the strain description from the chado organism description
-            ResultSet rs = stmt.executeQuery("SELECT * FROM organism WHERE organism_id="+organism_id);
-            if (rs.next()) {
-                String description = rs.getString("comment");
-                if (description!=null && description.trim().length()>0) {
-		    Item strain = getChadoDBConverter().getStrainItem(organismId);
-                    strain.setAttribute("description", description.trim());
-                }
-            }
+            ResultSet rs = executeQuery(connection, "SELECT comment FROM organism WHERE organism_id=?", organismId);
+            String description = rs.next() ? rs.getString("comment") : null;
             rs.close();
+            Item strain = getChadoDBConverter().getStrainItem(organismId);
+            if (description!=null && description.trim().length()>0) {
+                strain.setAttribute("description", description.trim());
+            } else if (strain.hasAttribute("description")) {
+                // restored from the converter's snapshot by a delta run, but since removed from chado
+                strain.removeAttribute("description");
+            }
+
+            if (featureClasses.isEmpty()) {
+                continue;
+            }
+            for (FeatureClass featureClass : featureClasses.values()) {
+                featureClass.count = 0;
+            }
 
-            // load gene attributes
-            Map<Integer,Item> geneMap = generateMap(stmt, organism_id, organism, "Gene", "gene");
-            geneMap = loadAttributes(geneMap, stmt, organism_id, "description", "gene", "Note");
-            store(geneMap.values());
-            LOG.info("Stored "+geneMap.size()+" genes for organism_id="+organism_id);
-
-            // load linkage group attributes
-            Map<Integer,Item> linkageGroupMap = generateMap(stmt, organism_id, organism, "LinkageGroup", "linkage_group");
-            linkageGroupMap = loadAttributes(linkageGroupMap, stmt, organism_id, "assignedLinkageGroup", "linkage_group", "Assigned Linkage Group");
-            store(linkageGroupMap.values());
-            LOG.info("Stored "+linkageGroupMap.size()+" linkage groups for organism_id="+organism_id);
-            
-            // load QTL attributes
-            Map<Integer,Item> qtlMap = generateMap(stmt, organism_id, organism, "QTL", "QTL");
-            qtlMap = loadAttributes(qtlMap, stmt, organism_id, "description", "QTL", "comment");
-            qtlMap = loadAttributes(qtlMap, stmt, organism_id, "publicationLinkageGroup", "QTL", "Publication Linkage Group");
-            qtlMap = loadAttributes(qtlMap, stmt, organism_id, "analysisMethod", "QTL", "QTL Analysis Method");
-            qtlMap = loadAttributes(qtlMap, stmt, organism_id, "identifier", "QTL", "QTL Identifier");
-            qtlMap = loadAttributes(qtlMap, stmt, organism_id, "peak", "QTL", "QTL Peak");
-            qtlMap = loadAttributes(qtlMap, stmt, organism_id, "studyTreatment", "QTL", "QTL Study Treatment");
-            // run through the QTLs and create Phenotype references
+            // the props of each feature are in rank DESC order: a later value of an attribute replaces an earlier
+            // one, while the first value of a trait prop is kept
             Map<String,Item> phenotypeMap = new HashMap<>(); // keyed by name=Experiment Trait Name
-            int traitNameTypeId = getTypeId(stmt, "Experiment Trait Name");
-            int traitDescriptionTypeId = getTypeId(stmt, "Experiment Trait Description");
-            int traitUnitTypeId = getTypeId(stmt, "Trait Unit");
-            for (int chadoId : qtlMap.keySet()) {
-                Item qtl = qtlMap.get(chadoId);
-                String name = null;
-                String description = null;
-                String unit = null;
-                int qtlTypeId = getTypeId(stmt, "QTL");
-                rs = stmt.executeQuery("SELECT featureprop.* FROM featureprop,feature " +
-                                       "WHERE featureprop.feature_id=feature.feature_id AND feature.type_id="+qtlTypeId+" ORDER BY rank DESC");
-                while (rs.next()) {
-                    int type_id = rs.getInt("type_id");
-                    if (type_id==traitNameTypeId && name==null) {
-                        name = rs.getString("value");
-                    } else if (type_id==traitDescriptionTypeId && description==null) {
-                        description = rs.getString("value");
-                    } else if (type_id==traitUnitTypeId && unit==null) {
-                        unit = rs.getString("value");
+            rs = executeQuery(connection,
+                              "SELECT feature.feature_id, feature.type_id AS feature_type_id, feature.uniquename, feature.name," +
+                              " featureprop.type_id, featureprop.value" +
+                              " FROM featureprop JOIN feature ON featureprop.feature_id=feature.feature_id" +
+                              " WHERE feature.organism_id=? AND feature.type_id IN (" + featureTypeIds + ")" +
+                              " ORDER BY feature.feature_id ASC, featureprop.rank DESC",
+                              organismId);
+            Item item = null;
+            FeatureClass featureClass = null;
+            int currentFeatureId = 0;
+            String traitName = null;
+            String traitDescription = null;
+            String traitUnit = null;
+            int rows = 0;
+            while (rs.next()) {
+                rows++;
+                int feature_id = rs.getInt("feature_id");
+                if (item==null || feature_id!=currentFeatureId) {
+                    // the previous feature's run has ended
+                    if (item!=null) {
+                        storeFeature(item, traitName, traitDescription, traitUnit, phenotypeMap);
                     }
+                    currentFeatureId = feature_id;
+                    int featureTypeId = rs.getInt("feature_type_id");
+                    featureClass = featureClasses.get(featureTypeId);
+                    item = createItem(featureClass.className);
+                    item.setAttribute("chadoId", String.valueOf(feature_id));
+                    item.setAttribute("primaryIdentifier", rs.getString("uniquename"));
+                    item.setAttribute("secondaryIdentifier", rs.getString("name"));
+                    item.setReference("organism", organism);
+                    featureClass.count++;
+                    traitName = null;
+                    traitDescription = null;
+                    traitUnit = null;
                 }
-                if (name!=null) {
-                    Item phenotype = null;
-                    if (phenotypeMap.containsKey(name)) {
-                        phenotype = phenotypeMap.get(name);
-                    } else {
-                        phenotype = createItem("Phenotype");
-                        phenotype.setAttribute("name", name);
-                        if (description!=null) phenotype.setAttribute("description", description);
-                        if (unit!=null) phenotype.setAttribute("unit", unit);
-                        store(phenotype);
-                        phenotypeMap.put(name, phenotype);
+                int type_id = rs.getInt("type_id");
+                String value = rs.getString("value");
+                String attributeName = featureClass.attributes.get(type_id);
+                if (attributeName!=null && value!=null && value.trim().length()>0) {
+                    item.setAttribute(attributeName, value.trim());
+                }
+                if (rs.getInt("feature_type_id")==qtlTypeId) {
+                    if (type_id==traitNameTypeId && traitName==null) {
+                        traitName = value;
+                    } else if (type_id==traitDescriptionTypeId && traitDescription==null) {
+                        traitDescription = value;
+                    } else if (type_id==traitUnitTypeId && traitUnit==null) {
+                        traitUnit = value;
                     }
-                    qtl.setReference("phenotype", phenotype);
                 }
             }
-            // store the QTLs
-            store(qtlMap.values());
-            LOG.info("Stored "+qtlMap.size()+" QTLs for organism_id="+organism_id);
-
-            // load genetic marker attributes
-            Map<Integer,Item> geneticMarkerMap = generateMap(stmt, organism_id, organism, "GeneticMarker", "genetic_marker");
-            geneticMarkerMap = loadAttributes(geneticMarkerMap, stmt, organism_id, "description", "genetic_marker", "description");
-            geneticMarkerMap = loadAttributes(geneticMarkerMap, stmt, organism_id, "sourceDescription", "genetic_marker", "Source Description");
-            geneticMarkerMap = loadAttributes(geneticMarkerMap, stmt, organism_id, "canonicalMarker", "genetic_marker", "Canonical Marker");
-            store(geneticMarkerMap.values());
-            LOG.info("Stored "+geneticMarkerMap.size()+" genetic markers for organism_id="+organism_id);
-
-            // load protein attributes
-            // NOTE: proteins are stored in chado as "polypeptide"
-            Map<Integer,Item> proteinMap = generateMap(stmt, organism_id, organism, "Protein", "polypeptide");
-            proteinMap = loadAttributes(proteinMap, stmt, organism_id, "note", "polypeptide", "Note");
-            store(proteinMap.values());
-            LOG.info("Stored "+proteinMap.size()+" proteins for organism_id="+organism_id);
-
-            // load protein match attributes
-            Map<Integer,Item> proteinMatchMap = generateMap(stmt, organism_id, organism, "ProteinMatch", "protein_match");
-            proteinMatchMap = loadAttributes(proteinMatchMap, stmt, organism_id, "signatureDesc", "protein_match", "signature_desc");
-            proteinMatchMap = loadAttributes(proteinMatchMap, stmt, organism_id, "status", "protein_match", "status");
-            proteinMatchMap = loadAttributes(proteinMatchMap, stmt, organism_id, "date", "protein_match", "date");
-            store(proteinMatchMap.values());
-            LOG.info("Stored "+proteinMatchMap.size()+" protein matches for organism_id="+organism_id);
-
-            // load protein HMM match attributes
-            Map<Integer,Item> proteinHmmMatchMap = generateMap(stmt, organism_id, organism, "ProteinHmmMatch", "protein_hmm_match");
-            proteinHmmMatchMap = loadAttributes(proteinHmmMatchMap, stmt, organism_id, "signatureDesc", "protein_hmm_match", "signature_desc");
-            proteinHmmMatchMap = loadAttributes(proteinHmmMatchMap, stmt, organism_id, "status", "protein_hmm_match", "status");
-            proteinHmmMatchMap = loadAttributes(proteinHmmMatchMap, stmt, organism_id, "date", "protein_hmm_match", "date");
-            store(proteinHmmMatchMap.values());
-            LOG.info("Stored "+proteinHmmMatchMap.size()+" protein matches for organism_id="+organism_id);
+            rs.close();
+            if (item!=null) {
+                storeFeature(item, traitName, traitDescription, traitUnit, phenotypeMap);
+            }
+            countRows(rows);
+            for (FeatureClass stored : featureClasses.values()) {
+                LOG.info("Stored "+stored.count+" "+stored.className+" items for organism_id="+organism_id);
+            }
+            LOG.info("Stored "+phenotypeMap.size()+" phenotypes for organism_id="+organism_id+" from "+rows+" featureprop rows");
         } // organism loop
     }
 
     /**
-     * Return the cvterm.cvterm_id for the requested cvterm.name, 0 if not found.
-     * Require that a non-empty definition exist - this narrows some dupes (like "description") to a single record.
+     * Add a feature type to the dispatch table with the featureprop types loaded into its attributes.  Types that
+     * aren't in chado are left out.
+     * @param featureClasses the dispatch table
+     * @param stmt the statement for the cvterm queries
+     * @param className the InterMine class of the features
+     * @param featureCVTermName the chado type of the features
+     * @param attributePropNames pairs of attribute name and featureprop type name
      */
-    int getTypeId(Statement stmt, String name) throws SQLException {
-        ResultSet rs = stmt.executeQuery("SELECT * FROM cvterm WHERE name='"+name+"' AND length(definition)>0");
-        int cvTermId = 0;
-        if (rs.next()) cvTermId = rs.getInt("cvterm_id");
-        rs.close();
-        return cvTermId;
+    void addFeatureClass(IntObjectHashMap<FeatureClass> featureClasses, Statement stmt, String className,
+                         String featureCVTermName, String... attributePropNames) throws SQLException {
+        int featureTypeId = getTypeId(stmt, featureCVTermName);
+        if (featureTypeId==0) {
+            LOG.info("No "+featureCVTermName+" type in chado, skipping "+className+".");
+            return;
+        }
+        FeatureClass featureClass = new FeatureClass(className);
+        for (int i = 0; i < attributePropNames.length; i += 2) {
+            int propTypeId = getTypeId(stmt, attributePropNames[i+1]);
+            if (propTypeId!=0) {
+                featureClass.attributes.put(propTypeId, attributePropNames[i]);
+            }
+        }
+        featureClasses.put(featureTypeId, featureClass);
     }
 
     /**
-     * Create a map, keyed with chado feature_id, with records from the feature table; restrict to feature records which have corresponding records in featureprop.
+     * Store a feature once its props have been loaded, first creating and storing its Phenotype if it is a QTL
+     * with an Experiment Trait Name.
      */
-    Map<Integer,Item> generateMap(Statement stmt, int organism_id, Item organism, String className, String featureCVTermName) throws SQLException {
-        int featureTypeId = getTypeId(stmt, featureCVTermName);
-        Map<Integer,Item> map = new HashMap<>();
-        ResultSet rs = stmt.executeQuery("SELECT DISTINCT feature.feature_id,feature.uniquename,feature.name " +
-                                         "FROM feature,featureprop " +
-                                         "WHERE feature.feature_id=featureprop.feature_id " +
-                                         "AND organism_id="+organism_id+" " +
-                                         "AND feature.type_id="+featureTypeId+" " +
-                                         "ORDER BY feature_id");
-        while (rs.next()) {
-            int feature_id = rs.getInt("feature_id");
-            String uniquename = rs.getString("uniquename");
-            String name = rs.getString("name");
-            Item item = createItem(className);
-            item.setAttribute("chadoId", String.valueOf(feature_id));
-            item.setAttribute("primaryIdentifier", uniquename);
-            item.setAttribute("secondaryIdentifier", name);
-            item.setReference("organism", organism);
-            map.put(feature_id, item);
+    void storeFeature(Item item, String traitName, String traitDescription, String traitUnit,
+                      Map<String,Item> phenotypeMap) throws ObjectStoreException {
+        if (traitName!=null) {
+            Item phenotype = phenotypeMap.get(traitName);
+            if (phenotype==null) {
+                phenotype = createItem("Phenotype");
+                phenotype.setAttribute("name", traitName);
+                if (traitDescription!=null) phenotype.setAttribute("description", traitDescription);
+                if (traitUnit!=null) phenotype.setAttribute("unit", traitUnit);
+                store(phenotype);
+                phenotypeMap.put(traitName, phenotype);
+            }
+            item.setReference("phenotype", phenotype);
         }
-        rs.close();
-        return map;
+        store(item);
     }
 
     /**
-     * Load an attribute into the items in the given map.
+     * Return the cvterm.cvterm_id for the requested cvterm.name, 0 if not found.
+     * Require that a non-empty definition exist - this narrows some dupes (like "description") to a single record.
      */
-    Map<Integer,Item> loadAttributes(Map<Integer,Item> map, Statement stmt, int organism_id, String attributeName, String featureCVTermName, String propCVTermName)
-        throws SQLException {
-        int featureTypeId = getTypeId(stmt, featureCVTermName);
-        int propTypeId = getTypeId(stmt, propCVTermName);
-        // spin through the featureprop records and load the desired property value as the attribute name
-        ResultSet rs = stmt.executeQuery("SELECT featureprop.* FROM featureprop,feature " +
-                                         "WHERE featureprop.feature_id=feature.feature_id " +
-                                         "AND featureprop.type_id="+propTypeId+" " +
-                                         "AND feature.organism_id="+organism_id+" " +
-                                         "AND feature.type_id="+featureTypeId+" " +
-                                         "ORDER BY feature_id ASC, rank DESC");
-        while (rs.next()) {
-            int feature_id = rs.getInt("feature_id");
-            if (map.containsKey(feature_id)) {
-                String value = rs.getString("value");
-                if (value!=null && value.trim().length()>0) {
-                    Item item = map.get(feature_id);
-                    item.setAttribute(attributeName, value.trim());
-                }
-            } else {
-                LOG.error("No feature found for feature "+feature_id+".");
-            }
-        }
+    int getTypeId(Statement stmt, String name) throws SQLException {
+        ResultSet rs = stmt.executeQuery("SELECT * FROM cvterm WHERE name='"+name+"' AND length(definition)>0");
+        int cvTermId = 0;
+        if (rs.next()) cvTermId = rs.getInt("cvterm_id");
         rs.close();
-        // return map without storing its items
-        return map;
+        return cvTermId;
     }
 }
@@ -0,0 +1,161 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine, NCGR
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The feature_relationship rows read by SequenceProcessor in its single scan of the table, held as parallel int
+ * arrays of subject, object and relation type so that both the subject-first and object-first groupings can be
+ * built in memory without a second query.  Each relationship is flagged with the orientations it takes part in.
+ *
+ * sortedBy() returns the relationships of one orientation as longs packing the feature1_id into the high 32 bits
+ * and the relationship's index into the low 32 bits, so a primitive sort groups them by feature1_id and keeps the
+ * rows of a group in the order they were read.
+ *
+ * @author Sam Hokin
+ */
+class FeatureRelationships
+{
+    private static final byte SUBJECT_FIRST = 1;
+    private static final byte OBJECT_FIRST = 2;
+
+    private int[] subjects = new int[1024];
+    private int[] objects = new int[1024];
+    private int[] types = new int[1024];
+    private byte[] orientations = new byte[1024];
+    private int size = 0;
+    private int subjectFirstCount = 0;
+    private int objectFirstCount = 0;
+
+    // the relation type names, indexed by the values in types
+    private List<String> typeNames = new ArrayList<String>();
+    private Map<String, Integer> typeIndexes = new HashMap<String, Integer>();
+
+    /**
+     * Add a relationship.
+     * @param subjectId the chado subject_id
+     * @param objectId the chado object_id
+     * @param typeName the name of the relationship type
+     * @param subjectFirst true if the relationship is processed with the subject as feature1
+     * @param objectFirst true if the relationship is processed with the object as feature1
+     */
+    void add(int subjectId, int objectId, String typeName, boolean subjectFirst, boolean objectFirst) {
+        if (!subjectFirst && !objectFirst) {
+            return;
+        }
+        if (size == subjects.length) {
+            int capacity = size + (size >> 1);
+            subjects = Arrays.copyOf(subjects, capacity);
+            objects = Arrays.copyOf(objects, capacity);
+            types = Arrays.copyOf(types, capacity);
+            orientations = Arrays.copyOf(orientations, capacity);
+        }
+        Integer typeIndex = typeIndexes.get(typeName);
+        if (typeIndex == null) {
+            typeIndex = Integer.valueOf(typeNames.size());
+            typeNames.add(typeName);
+            typeIndexes.put(typeName, typeIndex);
+        }
+        subjects[size] = subjectId;
+        objects[size] = objectId;
+        types[size] = typeIndex.intValue();
+        byte orientation = 0;
+        if (subjectFirst) {
+            orientation |= SUBJECT_FIRST;
+            subjectFirstCount++;
+        }
+        if (objectFirst) {
+            orientation |= OBJECT_FIRST;
+            objectFirstCount++;
+        }
+        orientations[size] = orientation;
+        size++;
+    }
+
+    /**
+     * Return the number of relationships held.
+     * @return the number of relationships
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Return the relationships of one orientation sorted by feature1_id.  Unpack them with getFeature1Id() and
+     * getIndex().
+     * @param subjectFirst true to make the subject feature1, false to make the object feature1
+     * @return the packed, sorted relationships
+     */
+    long[] sortedBy(boolean subjectFirst) {
+        byte orientation = subjectFirst ? SUBJECT_FIRST : OBJECT_FIRST;
+        int[] firstIds = subjectFirst ? subjects : objects;
+        long[] sorted = new long[subjectFirst ? subjectFirstCount : objectFirstCount];
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            if ((orientations[i] & orientation) != 0) {
+                // feature ids are never negative so the signed sort orders them correctly
+                sorted[n++] = ((long) firstIds[i] << 32) | i;
+            }
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Return the feature1_id of a packed relationship from sortedBy().
+     * @param packed the packed relationship
+     * @return the feature1_id
+     */
+    static int getFeature1Id(long packed) {
+        return (int) (packed >>> 32);
+    }
+
+    /**
+     * Return the index of a packed relationship from sortedBy().
+     * @param packed the packed relationship
+     * @return the index of the relationship
+     */
+    static int getIndex(long packed) {
+        return (int) packed;
+    }
+
+    /**
+     * Return the subject_id of a relationship.
+     * @param index the index of the relationship
+     * @return the subject_id
+     */
+    int getSubjectId(int index) {
+        return subjects[index];
+    }
+
+    /**
+     * Return the object_id of a relationship.
+     * @param index the index of the relationship
+     * @return the object_id
+     */
+    int getObjectId(int index) {
+        return objects[index];
+    }
+
+    /**
+     * Return the name of the type of a relationship.
+     * @param index the index of the relationship
+     * @return the relationship type name
+     */
+    String getTypeName(int index) {
+        return typeNames.get(types[index]);
+    }
+}
@@ -16,8 +16,11 @@ import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeSet;
 import java.util.Set;
@@ -39,6 +42,11 @@ public class GeneFamilyProcessor extends ChadoProcessor {
 	
     private static final Logger LOG = Logger.getLogger(GeneFamilyProcessor.class);
 
+    // the chado tables read, see ChadoProcessor.getSourceTables()
+    private static final String[] SOURCE_TABLES = {
+        "feature", "featureprop", "phylotree", "phylonode", "feature_relationship", "cvterm"
+    };
+
     /**
      * Create a new GeneFamilyProcessor
      *
@@ -48,6 +56,23 @@ public class GeneFamilyProcessor extends ChadoProcessor {
         super(chadoDBConverter);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected String[] getSourceTables() {
+        return SOURCE_TABLES;
+    }
+
+    /**
+     * The gene families are stored by process(), and later processors don't use them.
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean isCheckpointable() {
+        return true;
+    }
+
     /**
      * {@inheritDoc}
      * We process the chado database by reading the phylotree, phylonode, feature and feature_relationship tables
@@ -59,7 +84,6 @@ public class GeneFamilyProcessor extends ChadoProcessor {
         Statement stmt = connection.createStatement();
         ResultSet rs;
         
-        Map<Integer,Item> geneMap = new HashMap<>();
         Map<String,Item> geneFamilyMap = new HashMap<>();
 
         // CV term IDs
@@ -117,41 +141,81 @@ public class GeneFamilyProcessor extends ChadoProcessor {
         rs.close();
 	LOG.info("Consensus regions associated with gene families.");
 
-        // Spin through the gene families and associate their genes with them
-        for (String geneFamilyName : geneFamilyMap.keySet()) {
-            Item geneFamily = geneFamilyMap.get(geneFamilyName);
-            String query = "SELECT feature.feature_id,feature.uniquename,feature.name" +
-                " FROM feature,featureprop" +
-                " WHERE feature.feature_id=featureprop.feature_id" +
-                " AND feature.type_id="+geneTypeId +
-                " AND featureprop.type_id="+geneFamilyTypeId +
-                " AND featureprop.value='"+geneFamilyName+"'";
-            rs = stmt.executeQuery(query);
-            while (rs.next()) {
-                int chadoId = rs.getInt("feature_id");
-                String uniquename = rs.getString("uniquename");
-                String name = rs.getString("name");
-                Item gene;
-                if (geneMap.containsKey(chadoId)) {
-                    gene = geneMap.get(chadoId);
-                } else {
-                    gene = getChadoDBConverter().createItem("Gene");
-                    gene.setAttribute("chadoId", String.valueOf(chadoId));
-                    gene.setAttribute("primaryIdentifier", uniquename);
-                    gene.setAttribute("chadoUniqueName", uniquename);
-                    gene.setAttribute("chadoName", name);
-                    gene.setReference("geneFamily", geneFamily);
-                    geneMap.put(chadoId, gene);
+        // associate the genes with their gene families, read with one query sorted so each family's genes are a run
+        boolean boundedMemory = getChadoDBConverter().isBoundedMemory();
+        // the genes already given a family, a gene with several keeps the first
+        IntObjectHashMap<Item> geneMap = new IntObjectHashMap<Item>();
+        BitSet storedGeneIds = new BitSet();
+        rs = executeQuery(connection,
+                          "SELECT featureprop.value, feature.feature_id, feature.uniquename, feature.name" +
+                          " FROM featureprop JOIN feature ON feature.feature_id=featureprop.feature_id" +
+                          " WHERE featureprop.type_id=? AND feature.type_id=? AND featureprop.value IS NOT NULL" +
+                          " ORDER BY featureprop.value, feature.feature_id",
+                          geneFamilyTypeId, geneTypeId);
+        String currentFamilyName = null;
+        Item geneFamily = null;
+        List<Item> familyGenes = new ArrayList<Item>();
+        int rows = 0;
+        int geneCount = 0;
+        while (rs.next()) {
+            rows++;
+            String geneFamilyName = rs.getString("value");
+            if (!geneFamilyName.equals(currentFamilyName)) {
+                // the previous family's run has ended
+                if (boundedMemory) {
+                    storeGeneFamily(geneFamilyMap, currentFamilyName, familyGenes);
                 }
+                currentFamilyName = geneFamilyName;
+                geneFamily = geneFamilyMap.get(geneFamilyName);
+            }
+            int chadoId = rs.getInt("feature_id");
+            if (boundedMemory ? storedGeneIds.get(chadoId) : geneMap.containsKey(chadoId)) {
+                continue;
+            }
+            String uniquename = rs.getString("uniquename");
+            String name = rs.getString("name");
+            Item gene = getChadoDBConverter().createItem("Gene");
+            gene.setAttribute("chadoId", String.valueOf(chadoId));
+            gene.setAttribute("primaryIdentifier", uniquename);
+            gene.setAttribute("chadoUniqueName", uniquename);
+            gene.setAttribute("chadoName", name);
+            gene.setReference("geneFamily", geneFamily);
+            geneCount++;
+            if (boundedMemory) {
+                storedGeneIds.set(chadoId);
+                familyGenes.add(gene);
+            } else {
+                geneMap.put(chadoId, gene);
             }
-            rs.close();
         }
+        rs.close();
+        countRows(rows);
+        LOG.info("Associated " + geneCount + " genes with gene families from " + rows + " featureprop rows.");
 
         // store stuff stored in maps
-        store(geneMap.values());
+        if (boundedMemory) {
+            storeGeneFamily(geneFamilyMap, currentFamilyName, familyGenes);
+        } else {
+            store(geneMap.values());
+        }
         store(geneFamilyMap.values());
     }
 
+    /**
+     * Store a gene family and its genes once its run of rows has ended, in bounded memory mode, and drop them.
+     * @param geneFamilyMap the gene families not yet stored, which the family is removed from
+     * @param geneFamilyName the name of the family, null before the first run
+     * @param familyGenes the family's genes, cleared once stored
+     */
+    private void storeGeneFamily(Map<String,Item> geneFamilyMap, String geneFamilyName, List<Item> familyGenes)
+        throws ObjectStoreException {
+        store(familyGenes);
+        familyGenes.clear();
+        if (geneFamilyName != null) {
+            store(geneFamilyMap.remove(geneFamilyName));
+        }
+    }
+
     /**
      * Get the CVTerm ID for a given CVTerm name.
      * @param stmt the database connection statement, initialized to the chado database
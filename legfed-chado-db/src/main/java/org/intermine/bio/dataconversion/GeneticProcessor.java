@@ -16,11 +16,12 @@ import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.Map;
-import java.util.HashMap;
-import java.util.Set;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 
 import org.intermine.bio.util.OrganismData;
@@ -33,8 +34,13 @@ import org.intermine.xml.full.Reference;
  * Store the various genetic data from the LegFed/LIS chado database.
  * These come from feature, featuremap, featurepos, featureloc, feature_relationship, feature_stock and stock.
  *
- * Since this processer deals only with chado data, Items are stored in maps with Integer keys equal to
- * the chado feature.feature_id.
+ * Since this processer deals only with chado data, Items are held in registries keyed by the chado feature.feature_id.
+ *
+ * The organisms are processed concurrently.  Each query is run in the partition of the organism that owns the feature
+ * it changes, so a marker, QTL or linkage group is only changed by its own organism's partition and is stored as soon
+ * as that partition is done.  A feature gets its organism from its own feature.organism_id, whichever partition
+ * creates it.  Features of organisms that aren't being processed are only referred to; they're stored at the end with
+ * the lowest organism_id that refers to them.
  *
  * @author Sam Hokin
  */
@@ -42,6 +48,60 @@ public class GeneticProcessor extends ChadoProcessor {
 	
     private static final Logger LOG = Logger.getLogger(GeneticProcessor.class);
 
+    // the chado tables read, see ChadoProcessor.getSourceTables()
+    private static final String[] SOURCE_TABLES = {
+        "feature", "featureloc", "feature_relationship", "feature_cvterm", "feature_stock", "stock", "featuremap",
+        "featurepos", "featureprop", "feature_pub", "featuremap_pub", "pub", "cvterm"
+    };
+
+    // the condition on a linkage group L that it is created by the featurepos queries, for the QTL range queries
+    private static final String LINKAGE_GROUP_EXISTS =
+        "(EXISTS (SELECT 1 FROM featurepos WHERE featurepos.map_feature_id=L.feature_id) " +
+        "OR EXISTS (SELECT 1 FROM featurepos WHERE featurepos.feature_id=L.feature_id AND featurepos.mappos>0))";
+
+    // the Items shared by the organism partitions, keyed by chado feature_id, featuremap_id or pub_id; genetic maps and
+    // publications are stored when created, the features once their organism's partition is done
+    private final ConcurrentItemRegistry<RegisteredFeature> chromosomes = new ConcurrentItemRegistry<RegisteredFeature>();
+    private final ConcurrentItemRegistry<Item> geneticMaps = new ConcurrentItemRegistry<Item>();
+    private final ConcurrentItemRegistry<RegisteredFeature> linkageGroups = new ConcurrentItemRegistry<RegisteredFeature>();
+    private final ConcurrentItemRegistry<RegisteredFeature> markers = new ConcurrentItemRegistry<RegisteredFeature>();
+    private final ConcurrentItemRegistry<RegisteredFeature> qtls = new ConcurrentItemRegistry<RegisteredFeature>();
+    private final ConcurrentItemRegistry<Item> publications = new ConcurrentItemRegistry<Item>();
+
+    // the cv term IDs for our items of interest, set before the partitions start
+    private int linkageGroupTypeId;
+    private int geneticMarkerTypeId;
+    private int qtlTypeId;
+    private int favorableAlleleSourceTypeId;
+    private int nearestMarkerTypeId;
+    private int flankingMarkerLowTypeId;
+    private int flankingMarkerHighTypeId;
+
+    // the chado organism_ids being processed, as an SQL list
+    private String organismIdList;
+
+    /**
+     * A feature's Item in a registry, with the organism that owns it.  Only the owning organism's partition changes
+     * the Item, after claiming it; the others only refer to it.  Once stored, the Item is replaced by an empty one
+     * with the same identifier, which is all that references need.
+     */
+    private static class RegisteredFeature
+    {
+        private final int chadoId;
+        private final int organismId;
+        private Item item;
+        // the lowest organism_id of the partitions that referred to the feature
+        private int lowestOrganismId = Integer.MAX_VALUE;
+        private boolean claimed = false;
+        private boolean stored = false;
+
+        RegisteredFeature(int chadoId, int organismId, Item item) {
+            this.chadoId = chadoId;
+            this.organismId = organismId;
+            this.item = item;
+        }
+    }
+
     /**
      * Create a new GeneticProcessor
      * @param chadoDBConverter the ChadoDBConverter that is controlling this processor
@@ -50,392 +110,532 @@ public class GeneticProcessor extends ChadoProcessor {
         super(chadoDBConverter);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected String[] getSourceTables() {
+        return SOURCE_TABLES;
+    }
+
+    /**
+     * The maps, markers and QTLs are all stored by process(), so there is no state to save.
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean isCheckpointable() {
+        return true;
+    }
+
     /**
      * {@inheritDoc}
      * We process the chado database by reading the feature, featureloc, featurepos, featuremap, feature_relationship and featureprop tables.
+     * The organisms are processed concurrently on ChadoDBConverter.getOrganismThreads() connections, sharing the Item
+     * registries, since a QTL or linkage group can refer to a marker of another organism.
      */
     @Override
-    public void process(Connection connection) throws SQLException, ObjectStoreException {
-        
-        // store stuff in maps to avoid duplication
-        Map<Integer,Item> linkageGroupMap = new HashMap<>();
-        Map<Integer,Item> markerMap = new HashMap<>();
-        Map<Integer,Item> qtlMap = new HashMap<>();
-        Map<Integer,Item> geneticMapMap = new HashMap<>();
-        Map<Integer,Item> chromosomeMap = new HashMap<>();
-        Map<Integer,Item> publicationMap = new HashMap<>();
-
-        // initialize our DB statement
-        Statement stmt = connection.createStatement();
-        ResultSet rs; // general-purpose use
-        String query; // general-purpose use
+    public void process(Connection connection) throws Exception {
         
         // set the cv term IDs for our items of interest
-        int linkageGroupTypeId = getTypeId(stmt, "linkage_group");
-        int geneticMarkerTypeId = getTypeId(stmt, "genetic_marker");
-        int qtlTypeId = getTypeId(stmt, "QTL");
-        int consensusRegionTypeId = getTypeId(stmt, "consensus_region");
-        int favorableAlleleSourceTypeId = getTypeId(stmt, "Favorable Allele Source");
-        int nearestMarkerTypeId = getTypeId(stmt, "Nearest Marker");
-        int flankingMarkerLowTypeId = getTypeId(stmt, "Flanking Marker Low");
-        int flankingMarkerHighTypeId = getTypeId(stmt, "Flanking Marker High");
+        Statement stmt = connection.createStatement();
+        linkageGroupTypeId = getTypeId(stmt, "linkage_group");
+        geneticMarkerTypeId = getTypeId(stmt, "genetic_marker");
+        qtlTypeId = getTypeId(stmt, "QTL");
+        favorableAlleleSourceTypeId = getTypeId(stmt, "Favorable Allele Source");
+        nearestMarkerTypeId = getTypeId(stmt, "Nearest Marker");
+        flankingMarkerLowTypeId = getTypeId(stmt, "Flanking Marker Low");
+        flankingMarkerHighTypeId = getTypeId(stmt, "Flanking Marker High");
+        stmt.close();
         
         // get the desired chado organism_ids
-        Set<Integer> organismIds = getChadoDBConverter().getDesiredChadoOrganismIds();
+        List<Integer> organismIds = new ArrayList<Integer>(getChadoDBConverter().getDesiredChadoOrganismIds());
+        Collections.sort(organismIds);
+        organismIdList = StringUtils.join(organismIds, ",");
 
-        // loop over the chado organisms to fill the Item maps 
-        for (Integer organismId : organismIds) {
-            int organism_id = organismId.intValue();
-            Item organism = getChadoDBConverter().getOrganismItem(organismId);
-            Item strain = getChadoDBConverter().getStrainItem(organismId);
+        // query the featuremap table for genetic maps that are actually associated with features, owned by the lowest
+        // organism with features on them, before the partitions start
+        ResultSet rs = executeQuery(connection,
+                                    "SELECT featuremap.featuremap_id AS gfeatureid, featuremap.name AS gname, " +
+                                    "featuremap.description AS gdescription, MIN(feature.organism_id) AS organismid " +
+                                    "FROM featuremap,featurepos,feature " +
+                                    "WHERE featuremap.featuremap_id=featurepos.featuremap_id " +
+                                    "AND   featurepos.feature_id=feature.feature_id " +
+                                    "AND   feature.organism_id IN (" + organismIdList + ") " +
+                                    "GROUP BY featuremap.featuremap_id, featuremap.name, featuremap.description " +
+                                    "ORDER BY featuremap.featuremap_id");
+        int rows = 0;
+        while (rs.next()) {
+            rows++;
+            int gfeatureid = rs.getInt("gfeatureid");
+            String gname = rs.getString("gname");
+            String gdescription = rs.getString("gdescription");
+            Item geneticMap = createItem("GeneticMap");
+            geneticMap.setAttribute("chadoId", String.valueOf(gfeatureid));
+            geneticMap.setAttribute("primaryIdentifier", gname);
+            if (gdescription!=null) geneticMap.setAttribute("description", gdescription);
+            geneticMap.setAttribute("unit", "cM");
+            geneticMap.setReference("organism", getChadoDBConverter().getOrganismItem(rs.getInt("organismid")));
+            geneticMaps.putIfAbsent(gfeatureid, geneticMap);
+            store(geneticMap);
+        }
+        rs.close();
+        countRows(rows);
 
-            // query the featureloc table for marker chromosome locations
-            query = "SELECT C.feature_id AS cfeatureid, C.name AS cname, C.uniquename AS cuniquename, " +
-                "M.feature_id AS mfeatureid, M.name AS mname, M.uniquename AS muniquename, " +
-                "featureloc.fmin AS start, featureloc.fmax AS end " +
-                "FROM feature C, feature M, featureloc " +
-                "WHERE C.organism_id="+organism_id+" " +
-                "AND   M.type_id="+geneticMarkerTypeId+" " +
-                "AND   featureloc.feature_id=M.feature_id " +
-                "AND   featureloc.srcfeature_id=C.feature_id";
-            rs = stmt.executeQuery(query);
-            while (rs.next()) {
-                int cfeatureid = rs.getInt("cfeatureid");
-                String cname = rs.getString("cname");
-                String cuniquename = rs.getString("cuniquename");
-                int mfeatureid = rs.getInt("mfeatureid");
-                String mname = rs.getString("mname");
-                String muniquename = fixUniqueName(rs.getString("muniquename"));
-                int start = rs.getInt("start");
-                int end = rs.getInt("end");
-                Item chromosome;
-                if (chromosomeMap.containsKey(cfeatureid)) {
-                    chromosome = chromosomeMap.get(cfeatureid);
-                } else {
-                    // assume no markers positioned on scaffolds!
-                    chromosome = createItem("Chromosome");
-                    chromosome.setAttribute("chadoId", String.valueOf(cfeatureid));
-                    chromosome.setAttribute("primaryIdentifier", cuniquename);
-                    chromosome.setAttribute("secondaryIdentifier", cname);
-                    chromosome.setReference("organism", organism);
-                    chromosome.setReference("strain", strain);
-                    chromosomeMap.put(cfeatureid, chromosome);
-                }
-                Item marker;
-                if (markerMap.containsKey(mfeatureid)) {
-                    marker = markerMap.get(mfeatureid);
-                } else {
-                    marker = createItem("GeneticMarker");
-                    marker.setAttribute("chadoId", String.valueOf(mfeatureid));
-                    marker.setAttribute("primaryIdentifier", muniquename);
-                    marker.setAttribute("secondaryIdentifier", mname);
-                    marker.setReference("organism", organism);
-                    marker.setReference("strain", strain);
-                    markerMap.put(mfeatureid, marker);
-                }
-                // create/update the marker's chromosome location
-                Item location = createItem("Location");
-                location.setAttribute("start", String.valueOf(start));
-                location.setAttribute("end", String.valueOf(end));
-                location.setReference("feature", marker);
-                location.setReference("locatedOn", chromosome);
-                store(location);
-                marker.setReference("chromosome", chromosome);
-                marker.setReference("chromosomeLocation", location);
+        // process the organisms to fill the Item registries
+        runPartitioned("GeneticProcessor", organismIds, new PartitionTask() {
+            public void process(Connection organismConnection, Integer organismId) throws Exception {
+                processOrganism(organismConnection, organismId);
             }
-            rs.close();
-
-            // query the feature_relationship table for marker-QTL relations
-            query = "SELECT DISTINCT Q.feature_id AS qfeatureid, Q.uniquename AS quniquename, Q.name AS qname, " +
-                "M.feature_id AS mfeatureid, M.uniquename AS muniquename, M.name AS mname " +
-                "FROM feature_relationship, feature Q, feature M " +
-                "WHERE Q.organism_id="+organism_id+" " +
-                "AND feature_relationship.type_id IN ("+nearestMarkerTypeId+","+flankingMarkerLowTypeId+","+flankingMarkerHighTypeId+") " +
-                "AND feature_relationship.subject_id=Q.feature_id " +
-                "AND feature_relationship.object_id=M.feature_id";
-            rs = stmt.executeQuery(query);
-            while (rs.next()) {
-                int qfeatureid = rs.getInt("qfeatureid");
-                String quniquename = fixUniqueName(rs.getString("quniquename"));
-                String qname = rs.getString("qname");
-                int mfeatureid = rs.getInt("mfeatureid");
-                String muniquename = fixUniqueName(rs.getString("muniquename"));
-                String mname = rs.getString("mname");
-                Item qtl;
-                if (qtlMap.containsKey(qfeatureid)) {
-                    qtl = qtlMap.get(qfeatureid);
-                } else {
-                    qtl = createItem("QTL");
-                    qtl.setAttribute("chadoId", String.valueOf(qfeatureid));
-                    qtl.setAttribute("primaryIdentifier", quniquename);
-                    qtl.setAttribute("secondaryIdentifier", qname);
-                    qtl.setReference("organism", organism);
-                    qtlMap.put(qfeatureid, qtl);
-                }
-                Item marker;
-                if (markerMap.containsKey(mfeatureid)) {
-                    marker = markerMap.get(mfeatureid);
-                } else {
-                    marker = createItem("GeneticMarker");
-                    marker.setAttribute("chadoId", String.valueOf(mfeatureid));
-                    marker.setAttribute("primaryIdentifier", muniquename);
-                    marker.setAttribute("secondaryIdentifier", mname);
-                    marker.setReference("organism", organism);
-                    markerMap.put(mfeatureid, marker);
-                }
-                qtl.addToCollection("markers", marker);
+        });
+        
+        // query the pub table to retrieve and link Publications that are referenced by our genetic maps in featuremap_pub
+        rs = executeQuery(connection,
+                          "SELECT featuremap.featuremap_id AS gfeatureid, pub.* " +
+                          "FROM pub, featuremap_pub, featuremap " +
+                          "WHERE pub.pub_id=featuremap_pub.pub_id " +
+                          "AND featuremap_pub.featuremap_id=featuremap.featuremap_id " +
+                          "AND volume!='NULL' AND pyear!='submitted'");
+        rows = 0;
+        while (rs.next()) {
+            rows++;
+            int gfeatureid = rs.getInt("gfeatureid");
+            int pub_id = rs.getInt("pub_id");
+            // only add publications that are associated with the genetic maps we've pulled above
+            Item geneticMap = geneticMaps.get(gfeatureid);
+            if (geneticMap!=null && publications.get(pub_id)==null) {
+                Item publication = createItem("Publication");
+                setPublicationAttributes(publication, rs);
+                publication.addToCollection("entities", geneticMap);
+                publications.putIfAbsent(pub_id, publication);
+                store(publication);
             }
-            rs.close();
+        }
+        rs.close();
+        countRows(rows);
+            
+        // store the features that no partition claimed
+        int unclaimed = storeUnclaimed(chromosomes, true) + storeUnclaimed(markers, true)
+            + storeUnclaimed(qtls, false) + storeUnclaimed(linkageGroups, false);
+        LOG.info("Stored "+chromosomes.size()+" chromosomes, "+geneticMaps.size()+" genetic maps, "+linkageGroups.size()+
+                 " linkage groups, "+qtls.size()+" QTLs, "+markers.size()+" markers and "+publications.size()+" publications, "+
+                 unclaimed+" of the features after all the organisms.");
+    }
 
-            // query the featurepos table for marker-linkage group positions
-            query = "SELECT DISTINCT L.feature_id AS lfeatureid, L.uniquename AS luniquename, L.name AS lname, mappos, " +
-                "M.feature_id AS mfeatureid, M.uniquename AS muniquename, M.name AS mname " +
-                "FROM featurepos, feature L, feature M " +
-                "WHERE L.organism_id="+organism_id+" " +
-                "AND   featurepos.map_feature_id=L.feature_id " +
-                "AND   featurepos.feature_id=M.feature_id";
-            rs = stmt.executeQuery(query);
-            while (rs.next()) {
-                int lfeatureid = rs.getInt("lfeatureid");
-                String luniquename = fixUniqueName(rs.getString("luniquename"));
-                String lname = rs.getString("lname");
-                int mfeatureid = rs.getInt("mfeatureid");
-                String muniquename = fixUniqueName(rs.getString("muniquename"));
-                String mname = rs.getString("mname");
-                double mappos = round(rs.getDouble("mappos"),3);
-                Item linkageGroup;
-                if (linkageGroupMap.containsKey(lfeatureid)) {
-                    linkageGroup = linkageGroupMap.get(lfeatureid);
-                } else {
-                    linkageGroup = createItem("LinkageGroup");
-                    linkageGroup.setAttribute("chadoId", String.valueOf(lfeatureid));
-                    linkageGroup.setAttribute("primaryIdentifier", luniquename);
-                    linkageGroup.setAttribute("secondaryIdentifier", lname);
-                    linkageGroup.setReference("organism", organism);
-                    linkageGroupMap.put(lfeatureid, linkageGroup);
-                }
-                if (lname.equals(mname)) {
-                    // linkage group length is given by lname==mname and mappos>0
-                    if (mappos>0.0) {
-                        linkageGroup.setAttribute("length", String.valueOf(mappos));
-                    }
-                } else {
-                    Item marker;
-                    if (markerMap.containsKey(mfeatureid)) {
-                        marker = markerMap.get(mfeatureid);
-                    } else {
-                        marker = createItem("GeneticMarker");
-                        marker.setAttribute("chadoId", String.valueOf(mfeatureid));
-                        marker.setAttribute("primaryIdentifier", muniquename);
-                        marker.setAttribute("secondaryIdentifier", mname);
-                        marker.setReference("organism", organism);
-                        markerMap.put(mfeatureid, marker);
-                    }
-                    linkageGroup.addToCollection("markers", marker);
-                    // set the linkage group position of the marker
-                    Item linkageGroupPosition = createItem("LinkageGroupPosition");
-                    linkageGroupPosition.setAttribute("position", String.valueOf(mappos));
-                    linkageGroupPosition.setReference("linkageGroup", linkageGroup);
-                    store(linkageGroupPosition);
-                    marker.addToCollection("linkageGroupPositions", linkageGroupPosition);
+    /**
+     * Run the queries of one organism, on a connection of its own, and store the features it owns.  Each query is
+     * filtered on the organism of the features it changes, so no other partition changes them.
+     * @param connection the organism's connection
+     * @param organismId the chado organism_id
+     */
+    void processOrganism(Connection connection, Integer organismId) throws SQLException, ObjectStoreException {
+        Item organism = getChadoDBConverter().getOrganismItem(organismId);
+        // the features owned by this organism, stored once its queries are done
+        List<RegisteredFeature> owned = new ArrayList<RegisteredFeature>();
+        ResultSet rs;
+        int rows;
+
+        // query the featureloc table for marker chromosome locations
+        rs = executeQuery(connection,
+                          "SELECT C.feature_id AS cfeatureid, C.name AS cname, C.uniquename AS cuniquename, C.organism_id AS corganismid, " +
+                          "M.feature_id AS mfeatureid, M.name AS mname, M.uniquename AS muniquename, " +
+                          "featureloc.fmin AS start, featureloc.fmax AS end " +
+                          "FROM feature C, feature M, featureloc " +
+                          "WHERE M.organism_id=? " +
+                          "AND   M.type_id=? " +
+                          "AND   featureloc.feature_id=M.feature_id " +
+                          "AND   featureloc.srcfeature_id=C.feature_id",
+                          organismId, geneticMarkerTypeId);
+        rows = 0;
+        while (rs.next()) {
+            rows++;
+            int cfeatureid = rs.getInt("cfeatureid");
+            String cname = rs.getString("cname");
+            String cuniquename = rs.getString("cuniquename");
+            int mfeatureid = rs.getInt("mfeatureid");
+            String mname = rs.getString("mname");
+            String muniquename = fixUniqueName(rs.getString("muniquename"));
+            int start = rs.getInt("start");
+            int end = rs.getInt("end");
+            // assume no markers positioned on scaffolds!
+            Item chromosome = getFeature(chromosomes, "Chromosome", cfeatureid, cuniquename, cname, rs.getInt("corganismid"),
+                                         true, organismId, owned);
+            Item marker = getFeature(markers, "GeneticMarker", mfeatureid, muniquename, mname, organismId, true, organismId, owned);
+            // create/update the marker's chromosome location
+            Item location = createItem("Location");
+            location.setAttribute("start", String.valueOf(start));
+            location.setAttribute("end", String.valueOf(end));
+            location.setReference("feature", marker);
+            location.setReference("locatedOn", chromosome);
+            store(location);
+            marker.setReference("chromosome", chromosome);
+            marker.setReference("chromosomeLocation", location);
+        }
+        rs.close();
+        countRows(rows);
+
+        // query the feature_relationship table for marker-QTL relations
+        rs = executeQuery(connection,
+                          "SELECT DISTINCT Q.feature_id AS qfeatureid, Q.uniquename AS quniquename, Q.name AS qname, " +
+                          "M.feature_id AS mfeatureid, M.uniquename AS muniquename, M.name AS mname, M.organism_id AS morganismid " +
+                          "FROM feature_relationship, feature Q, feature M " +
+                          "WHERE Q.organism_id=? " +
+                          "AND feature_relationship.type_id IN (?,?,?) " +
+                          "AND feature_relationship.subject_id=Q.feature_id " +
+                          "AND feature_relationship.object_id=M.feature_id",
+                          organismId, nearestMarkerTypeId, flankingMarkerLowTypeId, flankingMarkerHighTypeId);
+        rows = 0;
+        while (rs.next()) {
+            rows++;
+            int qfeatureid = rs.getInt("qfeatureid");
+            String quniquename = fixUniqueName(rs.getString("quniquename"));
+            String qname = rs.getString("qname");
+            int mfeatureid = rs.getInt("mfeatureid");
+            String muniquename = fixUniqueName(rs.getString("muniquename"));
+            String mname = rs.getString("mname");
+            Item qtl = getFeature(qtls, "QTL", qfeatureid, quniquename, qname, organismId, false, organismId, owned);
+            Item marker = getFeature(markers, "GeneticMarker", mfeatureid, muniquename, mname, rs.getInt("morganismid"),
+                                     true, organismId, owned);
+            qtl.addToCollection("markers", marker);
+        }
+        rs.close();
+        countRows(rows);
+
+        // query the featurepos table for the markers and lengths of this organism's linkage groups
+        rs = executeQuery(connection,
+                          "SELECT DISTINCT L.feature_id AS lfeatureid, L.uniquename AS luniquename, L.name AS lname, mappos, " +
+                          "M.feature_id AS mfeatureid, M.uniquename AS muniquename, M.name AS mname, M.organism_id AS morganismid " +
+                          "FROM featurepos, feature L, feature M " +
+                          "WHERE L.organism_id=? " +
+                          "AND   featurepos.map_feature_id=L.feature_id " +
+                          "AND   featurepos.feature_id=M.feature_id",
+                          organismId);
+        rows = 0;
+        while (rs.next()) {
+            rows++;
+            int lfeatureid = rs.getInt("lfeatureid");
+            String luniquename = fixUniqueName(rs.getString("luniquename"));
+            String lname = rs.getString("lname");
+            int mfeatureid = rs.getInt("mfeatureid");
+            String muniquename = fixUniqueName(rs.getString("muniquename"));
+            String mname = rs.getString("mname");
+            double mappos = round(rs.getDouble("mappos"),3);
+            Item linkageGroup = getFeature(linkageGroups, "LinkageGroup", lfeatureid, luniquename, lname, organismId, false,
+                                           organismId, owned);
+            if (lname.equals(mname)) {
+                // linkage group length is given by lname==mname and mappos>0
+                if (mappos>0.0) {
+                    linkageGroup.setAttribute("length", String.valueOf(mappos));
                 }
+            } else {
+                Item marker = getFeature(markers, "GeneticMarker", mfeatureid, muniquename, mname, rs.getInt("morganismid"),
+                                         true, organismId, owned);
+                linkageGroup.addToCollection("markers", marker);
             }
-            rs.close();
+        }
+        rs.close();
+        countRows(rows);
 
-            // query the featuremap table for genetic maps that are actually associated with features
-            query = "SELECT DISTINCT featuremap.featuremap_id AS gfeatureid, featuremap.name AS gname, featuremap.description AS gdescription " +
-                "FROM featuremap,featurepos,feature " +
-                "WHERE featuremap.featuremap_id=featurepos.featuremap_id " +
-                "AND   featurepos.feature_id=feature.feature_id " +
-                "AND   feature.organism_id="+organism_id;
-            rs = stmt.executeQuery(query);
-            while (rs.next()) {
-                int gfeatureid = rs.getInt("gfeatureid");
-                String gname = rs.getString("gname");
-                String gdescription = rs.getString("gdescription");
-                Item geneticMap = createItem("GeneticMap");
-                geneticMap.setAttribute("chadoId", String.valueOf(gfeatureid));
-                geneticMap.setAttribute("primaryIdentifier", gname);
-                geneticMap.setAttribute("description", gdescription);
-                geneticMap.setAttribute("unit", "cM");
-                geneticMap.setReference("organism", organism);
-                geneticMapMap.put(gfeatureid, geneticMap);
+        // query the featurepos table for the linkage group positions of this organism's markers
+        rs = executeQuery(connection,
+                          "SELECT DISTINCT L.feature_id AS lfeatureid, L.uniquename AS luniquename, L.name AS lname, " +
+                          "L.organism_id AS lorganismid, mappos, M.feature_id AS mfeatureid, M.uniquename AS muniquename, M.name AS mname " +
+                          "FROM featurepos, feature L, feature M " +
+                          "WHERE M.organism_id=? " +
+                          "AND   featurepos.map_feature_id=L.feature_id " +
+                          "AND   featurepos.feature_id=M.feature_id",
+                          organismId);
+        rows = 0;
+        while (rs.next()) {
+            rows++;
+            String lname = rs.getString("lname");
+            String mname = rs.getString("mname");
+            if (lname.equals(mname)) {
+                // a linkage group length, not a marker position
+                continue;
             }
-            rs.close();
+            int lfeatureid = rs.getInt("lfeatureid");
+            String luniquename = fixUniqueName(rs.getString("luniquename"));
+            int mfeatureid = rs.getInt("mfeatureid");
+            String muniquename = fixUniqueName(rs.getString("muniquename"));
+            double mappos = round(rs.getDouble("mappos"),3);
+            Item linkageGroup = getFeature(linkageGroups, "LinkageGroup", lfeatureid, luniquename, lname, rs.getInt("lorganismid"),
+                                           false, organismId, owned);
+            Item marker = getFeature(markers, "GeneticMarker", mfeatureid, muniquename, mname, organismId, true, organismId, owned);
+            // set the linkage group position of the marker
+            Item linkageGroupPosition = createItem("LinkageGroupPosition");
+            linkageGroupPosition.setAttribute("position", String.valueOf(mappos));
+            linkageGroupPosition.setReference("linkageGroup", linkageGroup);
+            store(linkageGroupPosition);
+            marker.addToCollection("linkageGroupPositions", linkageGroupPosition);
+        }
+        rs.close();
+        countRows(rows);
 
-            // query the featurepos and featuremap tables to get the genetic maps and their linkage groups
-            query = "SELECT featuremap.featuremap_id AS gfeatureid, featuremap.name AS gname, " +
-                "feature.feature_id AS lfeatureid, feature.uniquename AS luniquename, feature.name AS lname " +
-                "FROM feature,featurepos,featuremap " +
-                "WHERE feature.feature_id=featurepos.feature_id " +
-                "AND   featurepos.featuremap_id=featuremap.featuremap_id " +
-                "AND   mappos>0 " +
-                "AND   feature.type_id="+linkageGroupTypeId+" " +
-                "AND   feature.organism_id="+organism_id;
-            rs = stmt.executeQuery(query);
-            while (rs.next()) {
-                int gfeatureid = rs.getInt("gfeatureid");
-                String gname = rs.getString("gname");
-                int lfeatureid = rs.getInt("lfeatureid");
-                String luniquename = fixUniqueName(rs.getString("luniquename"));
-                String lname = rs.getString("lname");
-                Item geneticMap;
-                if (geneticMapMap.containsKey(gfeatureid)) {
-                    geneticMap = geneticMapMap.get(gfeatureid);
-                } else {
-                    geneticMap = createItem("GeneticMap");
-                    geneticMap.setAttribute("chadoId", String.valueOf(gfeatureid));
-                    geneticMap.setAttribute("primaryIdentifier", gname);
-                    geneticMap.setAttribute("unit", "cM");
-                    geneticMap.setReference("organism", organism);
-                    geneticMapMap.put(gfeatureid, geneticMap);
-                }
-                Item linkageGroup;
-                if (linkageGroupMap.containsKey(lfeatureid)) {
-                    linkageGroup = linkageGroupMap.get(lfeatureid);
-                } else {
-                    linkageGroup = createItem("LinkageGroup");
-                    linkageGroup.setAttribute("chadoId", String.valueOf(lfeatureid));
-                    linkageGroup.setAttribute("primaryIdentifier", luniquename);
-                    linkageGroup.setAttribute("secondaryIdentifier", lname);
-                    linkageGroup.setReference("organism", organism);
-                    linkageGroupMap.put(lfeatureid, linkageGroup);
-                }
+        // query the featurepos and featuremap tables to get the genetic maps of this organism's linkage groups
+        rs = executeQuery(connection,
+                          "SELECT featuremap.featuremap_id AS gfeatureid, featuremap.name AS gname, " +
+                          "feature.feature_id AS lfeatureid, feature.uniquename AS luniquename, feature.name AS lname " +
+                          "FROM feature,featurepos,featuremap " +
+                          "WHERE feature.feature_id=featurepos.feature_id " +
+                          "AND   featurepos.featuremap_id=featuremap.featuremap_id " +
+                          "AND   mappos>0 " +
+                          "AND   feature.type_id=? " +
+                          "AND   feature.organism_id=?",
+                          linkageGroupTypeId, organismId);
+        rows = 0;
+        while (rs.next()) {
+            rows++;
+            int gfeatureid = rs.getInt("gfeatureid");
+            int lfeatureid = rs.getInt("lfeatureid");
+            String luniquename = fixUniqueName(rs.getString("luniquename"));
+            String lname = rs.getString("lname");
+            Item geneticMap = geneticMaps.get(gfeatureid);
+            Item linkageGroup = getFeature(linkageGroups, "LinkageGroup", lfeatureid, luniquename, lname, organismId, false,
+                                           organismId, owned);
+            if (geneticMap!=null) {
                 linkageGroup.setReference("geneticMap", geneticMap);
             }
+        }
+        rs.close();
+        countRows(rows);
+
+        // query the featureloc table for the ranges of this organism's QTLs on linkage groups, remembering to divide by 100!
+        rs = executeQuery(connection,
+                          "SELECT L.feature_id AS lfeatureid, L.uniquename AS luniquename, L.name AS lname, L.organism_id AS lorganismid, " +
+                          "Q.feature_id AS qfeatureid, Q.uniquename AS quniquename, Q.name AS qname, " +
+                          "featureloc.fmin AS begin, featureloc.fmax AS end " +
+                          "FROM feature L, feature Q, featureloc " +
+                          "WHERE Q.feature_id=featureloc.feature_id " +
+                          "AND   L.feature_id=featureloc.srcfeature_id " +
+                          "AND   Q.type_id=? " +
+                          "AND   L.type_id=? " +
+                          "AND   Q.organism_id=? " +
+                          "AND   L.organism_id IN (" + organismIdList + ") " +
+                          "AND   " + LINKAGE_GROUP_EXISTS,
+                          qtlTypeId, linkageGroupTypeId, organismId);
+        rows = 0;
+        while (rs.next()) {
+            rows++;
+            int lfeatureid = rs.getInt("lfeatureid");
+            String luniquename = fixUniqueName(rs.getString("luniquename"));
+            String lname = rs.getString("lname");
+            int qfeatureid = rs.getInt("qfeatureid");
+            String quniquename = fixUniqueName(rs.getString("quniquename"));
+            String qname = rs.getString("qname");
+            double begin = rs.getDouble("begin")/100.0;
+            double end = rs.getDouble("end")/100.0;
+            Item linkageGroup = getFeature(linkageGroups, "LinkageGroup", lfeatureid, luniquename, lname, rs.getInt("lorganismid"),
+                                           false, organismId, owned);
+            Item qtl = getFeature(qtls, "QTL", qfeatureid, quniquename, qname, organismId, false, organismId, owned);
+            Item linkageGroupRange = createItem("LinkageGroupRange");
+            linkageGroupRange.setAttribute("begin", String.valueOf(round(begin,2)));
+            linkageGroupRange.setAttribute("end", String.valueOf(round(end,2)));
+            linkageGroupRange.setAttribute("length", String.valueOf(round(end-begin,2)));
+            linkageGroupRange.setReference("linkageGroup", linkageGroup);
+            store(linkageGroupRange);
+            qtl.addToCollection("linkageGroupRanges", linkageGroupRange);
+        }
+        rs.close();
+        countRows(rows);
 
-            // query the featureloc table for QTL ranges on linkage groups, remembering to divide by 100!
-            query = "SELECT L.feature_id AS lfeatureid, L.uniquename AS luniquename, L.name AS lname, " +
-                "Q.feature_id AS qfeatureid, Q.uniquename AS quniquename, Q.name AS qname, " +
-                "featureloc.fmin AS begin, featureloc.fmax AS end " +
-                "FROM feature L, feature Q, featureloc " +
-                "WHERE Q.feature_id=featureloc.feature_id " +
-                "AND   L.feature_id=featureloc.srcfeature_id " +
-                "AND   Q.type_id="+qtlTypeId+" " +
-                "AND   L.type_id="+linkageGroupTypeId+" " +
-                "AND   L.organism_id="+organism_id;
-            rs = stmt.executeQuery(query);
-            while (rs.next()) {
-                int lfeatureid = rs.getInt("lfeatureid");
-                String luniquename = fixUniqueName(rs.getString("luniquename"));
-                String lname = rs.getString("lname");
-                int qfeatureid = rs.getInt("qfeatureid");
-                String quniquename = fixUniqueName(rs.getString("quniquename"));
-                String qname = rs.getString("qname");
-                double begin = rs.getDouble("begin")/100.0;
-                double end = rs.getDouble("end")/100.0;
-                if (linkageGroupMap.containsKey(lfeatureid)) {
-                    Item linkageGroup = linkageGroupMap.get(lfeatureid);
-                    Item qtl;
-                    if (qtlMap.containsKey(qfeatureid)) {
-                        qtl = qtlMap.get(qfeatureid);
-                    } else {
-                        qtl = createItem("QTL");
-                        qtl.setAttribute("chadoId", String.valueOf(qfeatureid));
-                        qtl.setAttribute("primaryIdentifier", quniquename);
-                        qtl.setAttribute("secondaryIdentifier", qname);
-                        qtl.setReference("organism", organism);
-                        qtlMap.put(qfeatureid, qtl);
+        // query the featureloc table for the QTLs on this organism's linkage groups
+        rs = executeQuery(connection,
+                          "SELECT L.feature_id AS lfeatureid, L.uniquename AS luniquename, L.name AS lname, " +
+                          "Q.feature_id AS qfeatureid, Q.uniquename AS quniquename, Q.name AS qname, Q.organism_id AS qorganismid " +
+                          "FROM feature L, feature Q, featureloc " +
+                          "WHERE Q.feature_id=featureloc.feature_id " +
+                          "AND   L.feature_id=featureloc.srcfeature_id " +
+                          "AND   Q.type_id=? " +
+                          "AND   L.type_id=? " +
+                          "AND   L.organism_id=? " +
+                          "AND   " + LINKAGE_GROUP_EXISTS,
+                          qtlTypeId, linkageGroupTypeId, organismId);
+        rows = 0;
+        while (rs.next()) {
+            rows++;
+            int lfeatureid = rs.getInt("lfeatureid");
+            String luniquename = fixUniqueName(rs.getString("luniquename"));
+            String lname = rs.getString("lname");
+            int qfeatureid = rs.getInt("qfeatureid");
+            String quniquename = fixUniqueName(rs.getString("quniquename"));
+            String qname = rs.getString("qname");
+            Item linkageGroup = getFeature(linkageGroups, "LinkageGroup", lfeatureid, luniquename, lname, organismId, false,
+                                           organismId, owned);
+            Item qtl = getFeature(qtls, "QTL", qfeatureid, quniquename, qname, rs.getInt("qorganismid"), false, organismId, owned);
+            linkageGroup.addToCollection("QTLs", qtl); // redundant???
+        }
+        rs.close();
+        countRows(rows);
+
+        // query the pub table to retrieve and link Publications that are referenced by our QTLs via feature_cvterm
+        rs = executeQuery(connection,
+                          "SELECT feature.feature_id AS qfeatureid, pub.* " +
+                          "FROM feature,feature_cvterm,pub " +
+                          "WHERE feature.type_id=? " +
+                          "AND feature.organism_id=? " +
+                          "AND feature.feature_id=feature_cvterm.feature_id " +
+                          "AND feature_cvterm.pub_id=pub.pub_id " +
+                          "AND volume!='NULL' AND pyear!='submitted'",
+                          qtlTypeId, organismId);
+        rows = 0;
+        while (rs.next()) {
+            rows++;
+            int qfeatureid = rs.getInt("qfeatureid");
+            int pub_id = rs.getInt("pub_id");
+            // only add publications that are associated with the QTLs we've pulled above
+            Item qtl = getClaimed(qtls, qfeatureid);
+            if (qtl!=null) {
+                Item publication = publications.get(pub_id);
+                if (publication==null) {
+                    Item created = createItem("Publication");
+                    setPublicationAttributes(created, rs);
+                    publication = publications.putIfAbsent(pub_id, created);
+                    if (publication==created) {
+                        store(publication);
                     }
-                    Item linkageGroupRange = createItem("LinkageGroupRange");
-                    linkageGroupRange.setAttribute("begin", String.valueOf(round(begin,2)));
-                    linkageGroupRange.setAttribute("end", String.valueOf(round(end,2)));
-                    linkageGroupRange.setAttribute("length", String.valueOf(round(end-begin,2)));
-                    linkageGroupRange.setReference("linkageGroup", linkageGroup);
-                    store(linkageGroupRange);
-                    qtl.addToCollection("linkageGroupRanges", linkageGroupRange);
-                    linkageGroup.addToCollection("QTLs", qtl); // redundant???
                 }
+                qtl.addToCollection("publications", publication);
             }
-            rs.close();
+        }
+        rs.close();
+        countRows(rows);
 
-            // query the pub table to retrieve and link Publications that are referenced by our QTLs via feature_cvterm
-            query = "SELECT feature.uniquename AS quniquename, feature.name AS qname, pub.* " +
-                "FROM feature,feature_cvterm,pub " +
-                "WHERE feature.type_id="+qtlTypeId+" " +
-                "AND feature.organism_id="+organism_id+" " +
-                "AND feature.feature_id=feature_cvterm.feature_id " +
-                "AND feature_cvterm.pub_id=pub.pub_id " +
-                "AND volume!='NULL' AND pyear!='submitted'";
-            rs = stmt.executeQuery(query);
-            while (rs.next()) {
-                String quniquename = fixUniqueName(rs.getString("quniquename"));
-                String qname = rs.getString("qname");
-                int pub_id = rs.getInt("pub_id");
-                // only add publications that are associated with the QTLs we've pulled above
-                if (qtlMap.containsKey(quniquename)) {
-                    Item qtl = qtlMap.get(quniquename);
-                    Item publication;
-                    if (publicationMap.containsKey(pub_id)) {
-                        publication = publicationMap.get(pub_id);
-                    } else {
-                        publication = createItem("Publication");
-                        setPublicationAttributes(publication, rs);
-                        publicationMap.put(pub_id, publication);
-                    }
-                    qtl.addToCollection("publications", publication);
-                }
+        // query the feature_stock table for QTL favorable allele source
+        rs = executeQuery(connection,
+                          "SELECT feature.feature_id AS qfeatureid, stock.uniquename AS stockuniquename " +
+                          "FROM feature,feature_stock,stock " +
+                          "WHERE feature.feature_id=feature_stock.feature_id " +
+                          "AND feature_stock.stock_id=stock.stock_id " +
+                          "AND feature.organism_id=? " +
+                          "AND feature_stock.type_id=?",
+                          organismId, favorableAlleleSourceTypeId);
+        rows = 0;
+        while (rs.next()) {
+            rows++;
+            int qfeatureid = rs.getInt("qfeatureid");
+            String stockuniquename = rs.getString("stockuniquename");
+            Item qtl = getClaimed(qtls, qfeatureid);
+            if (qtl!=null) {
+                Item stock = getChadoDBConverter().getStrainItem(stockuniquename, organism);
+                qtl.setReference("favorableAlleleSource", stock);
             }
-            rs.close();
+        }
+        rs.close();
+        countRows(rows);
 
-            // query the feature_stock table for QTL favorable allele source
-            query = "SELECT feature.feature_id AS qfeatureid, feature.uniquename AS quniquename, feature.name AS qname, " +
-                "stock.stock_id AS stockid, stock.uniquename AS stockuniquename, stock.name AS stockname " +
-                "FROM feature,feature_stock,stock " +
-                "WHERE feature.feature_id=feature_stock.feature_id " +
-                "AND feature_stock.stock_id=stock.stock_id " +
-                "AND feature.organism_id="+organism_id+" " +
-                "AND feature_stock.type_id="+favorableAlleleSourceTypeId;
-            rs = stmt.executeQuery(query);
-            while (rs.next()) {
-                int qfeatureid = rs.getInt("qfeatureid");
-                String quniquename = fixUniqueName(rs.getString("quniquename"));
-                String qname = rs.getString("qname");
-                int stockid = rs.getInt("stockid");
-                String stockuniquename = rs.getString("stockuniquename");
-                String stockname = rs.getString("stockname");
-                if (qtlMap.containsKey(qfeatureid)) {
-                    Item qtl = qtlMap.get(qfeatureid);
-                    Item stock = getChadoDBConverter().getStrainItem(stockuniquename, organism);
-                    qtl.setReference("favorableAlleleSource", stock);
-                }
+        // every change to this organism's features has been made, so store them
+        Collections.sort(owned, new Comparator<RegisteredFeature>() {
+            public int compare(RegisteredFeature a, RegisteredFeature b) {
+                return Integer.compare(a.chadoId, b.chadoId);
             }
-            rs.close();
+        });
+        for (RegisteredFeature feature : owned) {
+            storeFeature(feature);
         }
-        
-        // query the pub table to retrieve and link Publications that are referenced by our genetic maps in featuremap_pub
-        query = "SELECT featuremap.name AS gname, pub.* " +
-            "FROM pub, featuremap_pub, featuremap " +
-            "WHERE pub.pub_id=featuremap_pub.pub_id " +
-            "AND featuremap_pub.featuremap_id=featuremap.featuremap_id " +
-            "AND volume!='NULL' AND pyear!='submitted'";
-        rs = stmt.executeQuery(query);
-        while (rs.next()) {
-            String gname = rs.getString("gname");
-            int pub_id = rs.getInt("pub_id");
-            // only add publications that are associated with the genetic maps we've pulled above
-            if (geneticMapMap.containsKey(gname)) {
-                Item geneticMap = geneticMapMap.get(gname);
-                Item publication;
-                if (publicationMap.containsKey(pub_id)) {
-                    publication = publicationMap.get(pub_id);
-                } else {
-                    publication = createItem("Publication");
-                    setPublicationAttributes(publication, rs);
-                    publication.addToCollection("entities", geneticMap);
-                    publicationMap.put(pub_id, publication);
-                }
+    }
+
+    /**
+     * Return the Item of a chado feature from a registry, creating and registering it if it's new.  The Item's
+     * attributes and organism come from the feature's own row, so they don't depend on which partition creates it;
+     * features of organisms that aren't being processed get their organism when they're stored, see storeUnclaimed().
+     * If the feature belongs to the calling partition's organism, the partition claims it and stores it when done.
+     * @param registry the registry of the feature's class
+     * @param className the InterMine class
+     * @param chadoId the chado feature_id
+     * @param uniquename the (fixed) feature uniquename
+     * @param name the feature name
+     * @param featureOrganismId the feature's own chado organism_id
+     * @param withStrain true to reference the strain of the feature's organism
+     * @param partitionOrganismId the chado organism_id of the calling partition
+     * @param owned the features claimed by the calling partition, added to if this one is claimed
+     * @return the Item
+     */
+    Item getFeature(ConcurrentItemRegistry<RegisteredFeature> registry, String className, int chadoId, String uniquename,
+                    String name, int featureOrganismId, boolean withStrain, int partitionOrganismId,
+                    List<RegisteredFeature> owned) {
+        RegisteredFeature feature = registry.get(chadoId);
+        if (feature==null) {
+            Item created = createItem(className);
+            created.setAttribute("chadoId", String.valueOf(chadoId));
+            created.setAttribute("primaryIdentifier", uniquename);
+            created.setAttribute("secondaryIdentifier", name);
+            if (isProcessed(featureOrganismId)) {
+                setOrganism(created, featureOrganismId, withStrain);
             }
+            feature = registry.putIfAbsent(chadoId, new RegisteredFeature(chadoId, featureOrganismId, created));
         }
-        rs.close();
-            
-        // store the items held in maps
-        store(chromosomeMap.values());
-        store(geneticMapMap.values());
-        store(linkageGroupMap.values());
-        store(qtlMap.values());
-        store(markerMap.values());
-        store(publicationMap.values());
+        synchronized (feature) {
+            feature.lowestOrganismId = Math.min(feature.lowestOrganismId, partitionOrganismId);
+            if (feature.organismId==partitionOrganismId && !feature.claimed) {
+                feature.claimed = true;
+                owned.add(feature);
+            }
+            return feature.item;
+        }
+    }
+
+    /**
+     * Return the Item of a feature claimed by the calling partition, which is only claimed by its own organism.
+     * @return the Item, or null if the feature isn't registered or hasn't been claimed
+     */
+    Item getClaimed(ConcurrentItemRegistry<RegisteredFeature> registry, int chadoId) {
+        RegisteredFeature feature = registry.get(chadoId);
+        if (feature==null) {
+            return null;
+        }
+        synchronized (feature) {
+            return feature.claimed ? feature.item : null;
+        }
+    }
+
+    /**
+     * Store the features of a registry that no partition claimed, once every partition is done: those that their own
+     * organism's partition didn't change, and those of organisms that aren't processed, which are given the lowest
+     * organism that referred to them.
+     * @return the number of features stored
+     */
+    int storeUnclaimed(ConcurrentItemRegistry<RegisteredFeature> registry, boolean withStrain) throws ObjectStoreException {
+        int count = 0;
+        for (RegisteredFeature feature : registry.values()) {
+            if (feature.stored) {
+                continue;
+            }
+            if (!isProcessed(feature.organismId)) {
+                setOrganism(feature.item, feature.lowestOrganismId, withStrain);
+            }
+            storeFeature(feature);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Store a feature's Item and keep only its identifier for the references made to it afterwards.
+     */
+    void storeFeature(RegisteredFeature feature) throws ObjectStoreException {
+        synchronized (feature) {
+            store(feature.item);
+            feature.stored = true;
+            feature.item = new Item(feature.item.getIdentifier(), feature.item.getClassName(), feature.item.getImplementations());
+        }
+    }
+
+    /**
+     * Set the organism reference of a feature's Item, and the strain if it has one.
+     */
+    void setOrganism(Item item, int organismId, boolean withStrain) {
+        item.setReference("organism", getChadoDBConverter().getOrganismItem(organismId));
+        if (withStrain) {
+            Item strain = getChadoDBConverter().getStrainItem(organismId);
+            if (strain!=null) item.setReference("strain", strain);
+        }
+    }
+
+    /**
+     * Return true if the given chado organism_id is one of those being processed.
+     */
+    boolean isProcessed(int organismId) {
+        return getChadoDBConverter().getChadoIdToOrgDataMap().containsKey(organismId);
     }
 
     /**
@@ -0,0 +1,166 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine, NCGR
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash map from int keys to non-negative ints, for indexes of chado ids to record numbers.  Keys
+ * and values live in parallel int[]s with linear probing, and an empty slot is marked by a value of -1, so there
+ * is no object per mapping.
+ *
+ * @author Sam Hokin
+ */
+class IntIntHashMap
+{
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private int[] keys;
+    private int[] values;
+    private int mask;
+    private int size = 0;
+    private int resizeAt;
+
+    /**
+     * Create a new map sized to hold the given number of entries without rehashing.
+     * @param expectedSize the expected number of entries
+     */
+    IntIntHashMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity * LOAD_FACTOR < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, -1);
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int slot(int key) {
+        int i = hash(key) & mask;
+        while (values[i] >= 0) {
+            if (keys[i] == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1 - i;
+    }
+
+    /**
+     * Return the value for the given key.
+     * @param key the key
+     * @return the value or -1 if there is no mapping
+     */
+    int get(int key) {
+        int i = slot(key);
+        return i < 0 ? -1 : values[i];
+    }
+
+    /**
+     * Add or replace the mapping for the given key.
+     * @param key the key
+     * @param value the non-negative value
+     */
+    void put(int key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("negative values are not allowed, key: " + key);
+        }
+        int i = slot(key);
+        if (i >= 0) {
+            values[i] = value;
+            return;
+        }
+        i = -1 - i;
+        keys[i] = key;
+        values[i] = value;
+        if (++size > resizeAt) {
+            rehash(keys.length << 1);
+        }
+    }
+
+    /**
+     * Remove the mapping for the given key.
+     * @param key the key
+     * @return the removed value or -1 if there was none
+     */
+    int remove(int key) {
+        int i = slot(key);
+        if (i < 0) {
+            return -1;
+        }
+        int old = values[i];
+        // backward-shift deletion, as in IntObjectHashMap
+        int hole = i;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (values[j] < 0) {
+                break;
+            }
+            int home = hash(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        values[hole] = -1;
+        size--;
+        return old;
+    }
+
+    /**
+     * Return the number of mappings.
+     * @return the size
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Return the keys of all the mappings, in no particular order.
+     * @return the keys
+     */
+    int[] keys() {
+        int[] result = new int[size];
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] >= 0) {
+                result[n++] = keys[i];
+            }
+        }
+        return result;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldValues[j] >= 0) {
+                int i = -1 - slot(oldKeys[j]);
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine, NCGR
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An open-addressing hash map from primitive int keys to objects, for the maps keyed by chado ids that can hold
+ * tens of millions of entries.  Keys live in an int[] and values in a parallel Object[] with linear probing, so
+ * there is no boxed key or entry object per mapping.  The int methods should be used in loops; the Map methods
+ * are an adapter for code that expects a Map&lt;Integer, V&gt;.  Null values are not allowed.
+ *
+ * The map is not thread-safe: a put() may rehash the table under a concurrent reader.  A map shared between
+ * threads must be written while holding one lock; SequenceProcessor's feature registry is written while holding
+ * the ChadoDBConverter's lock, and its concurrent phases only read it once the phases that write it have
+ * finished.
+ *
+ * @param <V> the value type
+ * @author Sam Hokin
+ */
+class IntObjectHashMap<V> extends AbstractMap<Integer, V>
+{
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private int[] keys;
+    private Object[] values;
+    private int mask;
+    private int size = 0;
+    private int resizeAt;
+    private int modCount = 0;
+
+    /**
+     * Create a new, empty map.
+     */
+    IntObjectHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a new map sized to hold the given number of entries without rehashing.
+     * @param expectedSize the expected number of entries
+     */
+    IntObjectHashMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity * LOAD_FACTOR < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int slot(int key) {
+        int i = hash(key) & mask;
+        while (values[i] != null) {
+            if (keys[i] == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1 - i;
+    }
+
+    /**
+     * Return the value for the given key.
+     * @param key the key
+     * @return the value or null if there is no mapping
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int i = slot(key);
+        return i < 0 ? null : (V) values[i];
+    }
+
+    /**
+     * Return true if there is a mapping for the given key.
+     * @param key the key
+     * @return true if the key is present
+     */
+    public boolean containsKey(int key) {
+        return slot(key) >= 0;
+    }
+
+    /**
+     * Add or replace the mapping for the given key.
+     * @param key the key
+     * @param value the non-null value
+     * @return the previous value or null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("null values are not allowed, key: " + key);
+        }
+        int i = slot(key);
+        if (i >= 0) {
+            V old = (V) values[i];
+            values[i] = value;
+            return old;
+        }
+        i = -1 - i;
+        keys[i] = key;
+        values[i] = value;
+        modCount++;
+        if (++size > resizeAt) {
+            rehash(keys.length << 1);
+        }
+        return null;
+    }
+
+    /**
+     * Remove the mapping for the given key.
+     * @param key the key
+     * @return the removed value or null
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        int i = slot(key);
+        if (i < 0) {
+            return null;
+        }
+        V old = (V) values[i];
+        removeSlot(i);
+        return old;
+    }
+
+    // backward-shift deletion keeps the probe sequences intact without tombstones
+    private void removeSlot(int i) {
+        int hole = i;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (values[j] == null) {
+                break;
+            }
+            int home = hash(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        values[hole] = null;
+        size--;
+        modCount++;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+                int j = -1 - slot(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * Return the number of slots in the hash table, for memory estimates.
+     * @return the capacity
+     */
+    int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * Return the key in a slot of the hash table, for subclasses that sweep the table.
+     * @param slot the slot, from 0 to capacity() - 1
+     * @return the key, undefined if the slot is empty
+     */
+    int slotKey(int slot) {
+        return keys[slot];
+    }
+
+    /**
+     * Return the value in a slot of the hash table, for subclasses that sweep the table.
+     * @param slot the slot, from 0 to capacity() - 1
+     * @return the value or null if the slot is empty
+     */
+    @SuppressWarnings("unchecked")
+    V slotValue(int slot) {
+        return (V) values[slot];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clear() {
+        allocate(DEFAULT_CAPACITY);
+        size = 0;
+        modCount++;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V get(Object key) {
+        return (key instanceof Integer) ? get(((Integer) key).intValue()) : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean containsKey(Object key) {
+        return (key instanceof Integer) && containsKey(((Integer) key).intValue());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V put(Integer key, V value) {
+        return put(key.intValue(), value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V remove(Object key) {
+        return (key instanceof Integer) ? remove(((Integer) key).intValue()) : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * The entries are created as the set is iterated; prefer the int methods in loops.
+     */
+    @Override
+    public Set<Map.Entry<Integer, V>> entrySet() {
+        return new AbstractSet<Map.Entry<Integer, V>>() {
+            @Override
+            public Iterator<Map.Entry<Integer, V>> iterator() {
+                return new EntryIterator();
+            }
+            @Override
+            public int size() {
+                return size;
+            }
+            @Override
+            public void clear() {
+                IntObjectHashMap.this.clear();
+            }
+        };
+    }
+
+    /**
+     * Iterates over the occupied slots, handing out entries that write through to the map.  Removal through the
+     * iterator is not supported.
+     */
+    private class EntryIterator implements Iterator<Map.Entry<Integer, V>>
+    {
+        private int next = -1;
+        private int expectedModCount = modCount;
+
+        EntryIterator() {
+            advance();
+        }
+
+        private void advance() {
+            do {
+                next++;
+            } while (next < values.length && values[next] == null);
+        }
+
+        public boolean hasNext() {
+            return next < values.length;
+        }
+
+        public Map.Entry<Integer, V> next() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int slot = next;
+            advance();
+            return new SlotEntry(slot);
+        }
+
+        public void remove() {
+            // a backward shift could move a visited entry into an unvisited slot
+            throw new UnsupportedOperationException("remove by key instead");
+        }
+    }
+
+    /**
+     * A map entry backed by a slot of the table.
+     */
+    private class SlotEntry extends AbstractMap.SimpleEntry<Integer, V>
+    {
+        private static final long serialVersionUID = 1L;
+        private final int slot;
+
+        @SuppressWarnings("unchecked")
+        SlotEntry(int slot) {
+            super(Integer.valueOf(keys[slot]), (V) values[slot]);
+            this.slot = slot;
+        }
+
+        @Override
+        public V setValue(V value) {
+            if (value == null) {
+                throw new IllegalArgumentException("null values are not allowed");
+            }
+            values[slot] = value;
+            return super.setValue(value);
+        }
+    }
+}
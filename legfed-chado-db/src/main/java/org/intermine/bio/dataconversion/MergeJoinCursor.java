@@ -0,0 +1,114 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine, NCGR
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A ResultSet sorted on an int key column, read alongside a driving query sorted on the same key so the two can be
+ * merge-joined as they stream: for each key of the driving query, next(key) steps through the rows with that key,
+ * skipping the rows of keys the driving query doesn't have.  This replaces a query per driving row with one query
+ * per related table.
+ *
+ *   while (proteins.next()) {
+ *       int proteinId = proteins.getInt("feature_id");
+ *       while (matches.next(proteinId)) {
+ *           ResultSet match = matches.getResultSet();
+ *           ...
+ *
+ * @author Sam Hokin
+ */
+class MergeJoinCursor implements AutoCloseable
+{
+    private final ResultSet res;
+    private final String keyColumn;
+    private boolean hasRow;
+    private int key;
+    // true when the current row has been returned by next() and must be stepped past by the next call
+    private boolean returned = false;
+    private int rows = 0;
+
+    /**
+     * Wrap a ResultSet sorted on a key column, ascending, and read its first row.  The ResultSet is closed if
+     * the first row can't be read.
+     * @param res the ResultSet
+     * @param keyColumn the key column
+     * @throws SQLException if the first row can't be read
+     */
+    MergeJoinCursor(ResultSet res, String keyColumn) throws SQLException {
+        this.res = res;
+        this.keyColumn = keyColumn;
+        try {
+            fetch();
+        } catch (SQLException | RuntimeException e) {
+            res.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Move to the next row with the given key.  The keys must be passed in ascending order; rows with smaller
+     * keys are skipped.
+     * @param target the key
+     * @return true if the ResultSet is on a row with the key, false once there are no more
+     * @throws SQLException if a database problem occurs
+     */
+    boolean next(int target) throws SQLException {
+        if (returned) {
+            fetch();
+        }
+        while (hasRow && key < target) {
+            fetch();
+        }
+        returned = hasRow && key == target;
+        return returned;
+    }
+
+    /**
+     * Return the ResultSet, positioned on the row of the last call to next() that returned true.
+     * @return the ResultSet
+     */
+    ResultSet getResultSet() {
+        return res;
+    }
+
+    /**
+     * Return the number of rows read so far, for the converter's stats.
+     * @return the number of rows
+     */
+    int getRowCount() {
+        return rows;
+    }
+
+    /**
+     * Close the ResultSet.
+     * @throws SQLException if a database problem occurs
+     */
+    @Override
+    public void close() throws SQLException {
+        res.close();
+    }
+
+    private void fetch() throws SQLException {
+        returned = false;
+        hasRow = res.next();
+        if (hasRow) {
+            rows++;
+            int nextKey = res.getInt(keyColumn);
+            if (rows > 1 && nextKey < key) {
+                throw new IllegalStateException("merge join query is not sorted on " + keyColumn + ": " + nextKey
+                                                + " follows " + key);
+            }
+            key = nextKey;
+        }
+    }
+}
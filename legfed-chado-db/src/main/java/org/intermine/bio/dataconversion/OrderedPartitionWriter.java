@@ -0,0 +1,329 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine, NCGR
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.lang.StringUtils;
+import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.xml.full.Attribute;
+import org.intermine.xml.full.Item;
+import org.intermine.xml.full.Reference;
+import org.intermine.xml.full.ReferenceList;
+
+/**
+ * Funnels the stores made by concurrently running partitions into the converter's ItemWriter, which is not
+ * thread-safe.  All writes are made while holding the ChadoDBConverter's lock, the same lock that guards
+ * createItem().
+ *
+ * Items are written immediately because their object ids are needed by the caller.  The References,
+ * ReferenceLists and Attributes that hang off them are written in partition order: the lowest unfinished
+ * partition writes straight through while the others buffer until every partition before them has finished, so
+ * the order of those stores in the items database doesn't depend on thread timing.  A waiting partition keeps at
+ * most MAX_BUFFERED_STORES of them on the heap; older ones are spilled to a temporary file in the converter's
+ * featureSpillDir and read back in order when the partition's turn comes, so a long first partition doesn't hold
+ * the output of all the others in memory.
+ *
+ * A writer can also be created unordered, for partitions whose stores don't depend on each other's order, like
+ * the concurrent phases of a PhaseScheduler: then every partition writes straight through and nothing is
+ * buffered.
+ *
+ * Writers nest: a writer created by a thread that is running a partition of another writer passes its ordered
+ * stores on to that partition, so organism partitions inside a concurrent phase keep their order.
+ *
+ * @author Sam Hokin
+ */
+class OrderedPartitionWriter
+{
+    // the number of stores a waiting partition keeps on the heap before spilling them
+    private static final int MAX_BUFFERED_STORES = 1 << 14;
+
+    // the kinds of spilled store
+    private static final byte REFERENCE = 0;
+    private static final byte REFERENCE_LIST = 1;
+    private static final byte ATTRIBUTE = 2;
+
+    private final ChadoDBConverter converter;
+    private final OrderedPartitionWriter parent;
+    private final int parentPartition;
+    private final boolean ordered;
+    private final List<PendingStores> pendingStores = new ArrayList<PendingStores>();
+    private final boolean[] finished;
+    private final ThreadLocal<Integer> partition = new ThreadLocal<Integer>();
+    // the partition that writes straight through
+    private int current = 0;
+
+    /**
+     * Create a writer for the given number of partitions.
+     * @param converter the converter whose ItemWriter receives the stores
+     * @param partitionCount the number of partitions
+     * @param parent the writer of the partition the calling thread is running, or null to write to the converter
+     * @param ordered true to write the stores in partition order, false to write every partition straight through
+     */
+    OrderedPartitionWriter(ChadoDBConverter converter, int partitionCount, OrderedPartitionWriter parent,
+                           boolean ordered) {
+        this.converter = converter;
+        this.parent = parent;
+        this.ordered = ordered;
+        if (parent != null) {
+            Integer boundPartition = parent.partition.get();
+            if (boundPartition == null) {
+                throw new IllegalStateException("nested writer created by a thread that isn't bound to a partition");
+            }
+            this.parentPartition = boundPartition.intValue();
+        } else {
+            this.parentPartition = -1;
+        }
+        this.finished = new boolean[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            pendingStores.add(new PendingStores());
+        }
+    }
+
+    /**
+     * Bind the calling thread to a partition; later stores from the thread belong to that partition.
+     * @param partitionIndex the index of the partition
+     */
+    void bind(int partitionIndex) {
+        partition.set(Integer.valueOf(partitionIndex));
+    }
+
+    /**
+     * Store an Item immediately.
+     * @param item the Item
+     * @return the object id of the stored Item
+     * @throws ObjectStoreException if there is a problem while storing
+     */
+    Integer store(Item item) throws ObjectStoreException {
+        synchronized (converter) {
+            return converter.store(item);
+        }
+    }
+
+    /**
+     * Store a Reference, Attribute, org.intermine.xml.full.ReferenceList or
+     * org.intermine.model.fulldata.ReferenceList for the Item with the given object id, in partition order if the
+     * writer is ordered.
+     * @param store the object to store
+     * @param itemId the object id of the Item it belongs to
+     * @throws ObjectStoreException if there is a problem while storing
+     */
+    void store(Object store, Integer itemId) throws ObjectStoreException {
+        Integer partitionIndex = partition.get();
+        if (partitionIndex == null) {
+            throw new IllegalStateException("store from a thread that isn't bound to a partition");
+        }
+        store(partitionIndex.intValue(), store, itemId);
+    }
+
+    private void store(int p, Object store, Integer itemId) throws ObjectStoreException {
+        synchronized (converter) {
+            if (!ordered || p == current) {
+                write(store, itemId);
+            } else {
+                pendingStores.get(p).add(store, itemId);
+            }
+        }
+    }
+
+    /**
+     * Mark a partition as finished and unbind the calling thread.  If it was the partition writing straight
+     * through, the buffered stores of the following partitions are written until an unfinished one is reached.
+     * @param partitionIndex the index of the partition
+     * @throws ObjectStoreException if there is a problem while storing
+     */
+    void finish(int partitionIndex) throws ObjectStoreException {
+        partition.remove();
+        synchronized (converter) {
+            finished[partitionIndex] = true;
+            while (current < finished.length && finished[current]) {
+                current++;
+                if (current < finished.length) {
+                    drain(current);
+                }
+            }
+        }
+    }
+
+    /**
+     * Return true once every partition has finished and all buffered stores have been written.
+     * @return true if the writer is done
+     */
+    boolean isDone() {
+        synchronized (converter) {
+            return current == finished.length;
+        }
+    }
+
+    private void drain(int partitionIndex) throws ObjectStoreException {
+        pendingStores.get(partitionIndex).drain();
+    }
+
+    private void write(Object store, Integer itemId) throws ObjectStoreException {
+        if (parent != null) {
+            parent.store(parentPartition, store, itemId);
+        } else if (store instanceof Reference) {
+            converter.store((Reference) store, itemId);
+        } else if (store instanceof Attribute) {
+            converter.store((Attribute) store, itemId);
+        } else if (store instanceof org.intermine.xml.full.ReferenceList) {
+            converter.store((org.intermine.xml.full.ReferenceList) store, itemId);
+        } else if (store instanceof org.intermine.model.fulldata.ReferenceList) {
+            converter.getItemWriter().store((org.intermine.model.fulldata.ReferenceList) store, itemId);
+        } else {
+            throw new IllegalArgumentException("can't store a " + store.getClass().getName());
+        }
+    }
+
+    /**
+     * The stores of a partition that is waiting for the partitions before it, in the order they were made: the
+     * oldest in a spill file once there have been more than MAX_BUFFERED_STORES, the rest on the heap.  Only used
+     * while holding the converter's lock.
+     */
+    private class PendingStores
+    {
+        private final List<Object> stores = new ArrayList<Object>();
+        private final List<Integer> itemIds = new ArrayList<Integer>();
+        private File spillFile = null;
+        private DataOutputStream spill = null;
+        private int spilledCount = 0;
+
+        void add(Object store, Integer itemId) throws ObjectStoreException {
+            stores.add(store);
+            itemIds.add(itemId);
+            if (stores.size() >= MAX_BUFFERED_STORES) {
+                spill();
+            }
+        }
+
+        // write the stores on the heap to the end of the spill file
+        private void spill() throws ObjectStoreException {
+            try {
+                if (spill == null) {
+                    File dir = converter.getFeatureSpillDir();
+                    if (!dir.isDirectory() && !dir.mkdirs()) {
+                        throw new IOException("can't create spill directory " + dir);
+                    }
+                    spillFile = File.createTempFile("intermine_partition_stores", ".tmp", dir);
+                    spillFile.deleteOnExit();
+                    spill = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile), 1 << 16));
+                }
+                for (int i = 0; i < stores.size(); i++) {
+                    writeStore(spill, stores.get(i), itemIds.get(i).intValue());
+                }
+            } catch (IOException e) {
+                throw new ObjectStoreException("failed to spill partition stores to " + spillFile, e);
+            }
+            spilledCount += stores.size();
+            stores.clear();
+            itemIds.clear();
+        }
+
+        // write the spilled stores and then the ones on the heap, and forget them
+        void drain() throws ObjectStoreException {
+            if (spill != null) {
+                try {
+                    spill.close();
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile),
+                                                                                     1 << 16));
+                    try {
+                        for (int i = 0; i < spilledCount; i++) {
+                            readAndWriteStore(in);
+                        }
+                    } finally {
+                        in.close();
+                    }
+                } catch (IOException e) {
+                    throw new ObjectStoreException("failed to read partition stores from " + spillFile, e);
+                } finally {
+                    spillFile.delete();
+                    spill = null;
+                    spilledCount = 0;
+                }
+            }
+            for (int i = 0; i < stores.size(); i++) {
+                write(stores.get(i), itemIds.get(i));
+            }
+            stores.clear();
+            itemIds.clear();
+        }
+
+        private void writeStore(DataOutputStream out, Object store, int itemId) throws IOException {
+            if (store instanceof Reference) {
+                Reference reference = (Reference) store;
+                out.writeByte(REFERENCE);
+                out.writeInt(itemId);
+                ConverterCheckpoint.writeString(out, reference.getName());
+                ConverterCheckpoint.writeString(out, reference.getRefId());
+            } else if (store instanceof Attribute) {
+                Attribute attribute = (Attribute) store;
+                out.writeByte(ATTRIBUTE);
+                out.writeInt(itemId);
+                ConverterCheckpoint.writeString(out, attribute.getName());
+                ConverterCheckpoint.writeString(out, attribute.getValue());
+            } else if (store instanceof ReferenceList) {
+                ReferenceList referenceList = (ReferenceList) store;
+                writeReferenceList(out, itemId, referenceList.getName(), referenceList.getRefIds());
+            } else if (store instanceof org.intermine.model.fulldata.ReferenceList) {
+                // read back as an org.intermine.xml.full.ReferenceList, which the writer stores the same way
+                org.intermine.model.fulldata.ReferenceList referenceList =
+                    (org.intermine.model.fulldata.ReferenceList) store;
+                String refIds = referenceList.getRefIds();
+                List<String> ids = (refIds == null) ? new ArrayList<String>()
+                    : Arrays.asList(StringUtils.split(refIds, ' '));
+                writeReferenceList(out, itemId, referenceList.getName(), ids);
+            } else {
+                throw new IllegalArgumentException("can't store a " + store.getClass().getName());
+            }
+        }
+
+        private void writeReferenceList(DataOutputStream out, int itemId, String name, List<String> refIds)
+            throws IOException {
+            out.writeByte(REFERENCE_LIST);
+            out.writeInt(itemId);
+            ConverterCheckpoint.writeString(out, name);
+            out.writeInt(refIds.size());
+            for (String refId : refIds) {
+                ConverterCheckpoint.writeString(out, refId);
+            }
+        }
+
+        private void readAndWriteStore(DataInputStream in) throws IOException, ObjectStoreException {
+            byte kind = in.readByte();
+            Integer itemId = Integer.valueOf(in.readInt());
+            String name = ConverterCheckpoint.readString(in);
+            if (kind == REFERENCE) {
+                write(new Reference(name, ConverterCheckpoint.readString(in)), itemId);
+            } else if (kind == ATTRIBUTE) {
+                write(new Attribute(name, ConverterCheckpoint.readString(in)), itemId);
+            } else if (kind == REFERENCE_LIST) {
+                int count = in.readInt();
+                List<String> refIds = new ArrayList<String>(count);
+                for (int i = 0; i < count; i++) {
+                    refIds.add(ConverterCheckpoint.readString(in));
+                }
+                write(new ReferenceList(name, refIds), itemId);
+            } else {
+                throw new IOException("unknown store " + kind + " in " + spillFile);
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine, NCGR
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs the phases of a ChadoProcessor, each declared with the phases it depends on.  With one thread the phases
+ * run in the order they were added on the processor's connection, as they always have.  With more, every phase
+ * whose dependencies have finished is started on its own connection, and the phases' stores go through an
+ * unordered OrderedPartitionWriter with one partition per phase.  The phases that run together are independent,
+ * so their stores are written straight through as they're made rather than held back for the earlier phases.
+ * Every phase is timed and counted as a ConverterStats phase inside the calling thread's phase.
+ *
+ * Phases that run concurrently must only share state that is thread-safe; per-feature state is guarded by
+ * the processor's feature locks.
+ *
+ * @author Sam Hokin
+ */
+class PhaseScheduler
+{
+    private static final Logger LOG = Logger.getLogger(PhaseScheduler.class);
+
+    private final ChadoProcessor processor;
+    private final int threads;
+    private final List<String> names = new ArrayList<String>();
+    private final List<ChadoProcessor.PartitionTask> tasks = new ArrayList<ChadoProcessor.PartitionTask>();
+    private final List<Set<Integer>> dependencies = new ArrayList<Set<Integer>>();
+
+    /**
+     * Create a scheduler for a processor.
+     * @param processor the processor whose phases are run
+     * @param threads the number of phases that may run at once
+     */
+    PhaseScheduler(ChadoProcessor processor, int threads) {
+        this.processor = processor;
+        this.threads = threads;
+    }
+
+    /**
+     * Add a phase.  The task is given the connection to use and a null partition.  Dependencies must already
+     * have been added, so the order of the phases is always a valid serial order.
+     * @param name the name of the phase
+     * @param task the phase
+     * @param dependsOn the names of the phases that must finish before this one starts
+     */
+    void add(String name, ChadoProcessor.PartitionTask task, String... dependsOn) {
+        if (names.contains(name)) {
+            throw new IllegalArgumentException("phase " + name + " added twice");
+        }
+        Set<Integer> phaseDependencies = new HashSet<Integer>();
+        for (String dependency : dependsOn) {
+            int index = names.indexOf(dependency);
+            if (index < 0) {
+                throw new IllegalArgumentException("phase " + name + " depends on " + dependency
+                                                   + " which hasn't been added");
+            }
+            phaseDependencies.add(Integer.valueOf(index));
+        }
+        names.add(name);
+        tasks.add(task);
+        dependencies.add(phaseDependencies);
+    }
+
+    /**
+     * Run the phases and wait for them to finish.
+     * @param connection the processor's connection, used when the phases run serially
+     * @throws Exception the first exception thrown by a phase, once the running phases have stopped
+     */
+    void run(Connection connection) throws Exception {
+        long start = System.currentTimeMillis();
+        ConverterStats stats = processor.getChadoDBConverter().getStats();
+        if (threads <= 1 || connection == null) {
+            for (int i = 0; i < names.size(); i++) {
+                ConverterStats.Phase phase = stats.startPhase(names.get(i));
+                try {
+                    tasks.get(i).process(connection, null);
+                } finally {
+                    stats.endPhase(phase);
+                }
+            }
+        } else {
+            runConcurrently(stats);
+        }
+        LOG.info("all phases finished in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private void runConcurrently(final ConverterStats stats) throws Exception {
+        LOG.info("running " + names.size() + " phases on up to " + threads + " threads");
+        final OrderedPartitionWriter writer = processor.createPartitionWriter(names.size(), false);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CompletionService<Integer> completionService = new ExecutorCompletionService<Integer>(executor);
+        boolean[] started = new boolean[names.size()];
+        boolean[] finished = new boolean[names.size()];
+        final ConverterStats.Phase parent = stats.getCurrentPhase();
+        int running = 0;
+        Exception failure = null;
+        try {
+            while (true) {
+                if (failure == null) {
+                    for (int i = 0; i < names.size(); i++) {
+                        if (!started[i] && isReady(i, finished)) {
+                            started[i] = true;
+                            running++;
+                            final int phase = i;
+                            completionService.submit(new Callable<Integer>() {
+                                public Integer call() throws Exception {
+                                    ConverterStats.Phase statsPhase = stats.startPhase(names.get(phase), parent);
+                                    try {
+                                        processor.runPartition(writer, phase, tasks.get(phase), null);
+                                    } finally {
+                                        stats.endPhase(statsPhase);
+                                    }
+                                    return Integer.valueOf(phase);
+                                }
+                            });
+                        }
+                    }
+                }
+                if (running == 0) {
+                    break;
+                }
+                Future<Integer> future = completionService.take();
+                running--;
+                try {
+                    finished[future.get().intValue()] = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (failure == null) {
+                        failure = (cause instanceof Exception) ? (Exception) cause : e;
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        if (!writer.isDone()) {
+            throw new IllegalStateException("phases finished with stores still buffered: " + Arrays.toString(finished));
+        }
+    }
+
+    private boolean isReady(int phase, boolean[] finished) {
+        for (Integer dependency : dependencies.get(phase)) {
+            if (!finished[dependency.intValue()]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
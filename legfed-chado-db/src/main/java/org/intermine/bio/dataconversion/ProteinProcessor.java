@@ -15,9 +15,6 @@ import java.math.RoundingMode;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
-import java.util.Map;
-import java.util.HashMap;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
@@ -39,6 +36,14 @@ import org.intermine.xml.full.Reference;
 public class ProteinProcessor extends ChadoProcessor {
     private static final Logger LOG = Logger.getLogger(ProteinProcessor.class);
 
+    // the chado tables read, see ChadoProcessor.getSourceTables()
+    private static final String[] SOURCE_TABLES = {
+        "feature", "featureloc", "feature_relationship", "cvterm"
+    };
+
+    // the fetch size of the merge-joined queries when the converter has none set
+    private static final int MERGE_JOIN_FETCH_SIZE = 1000;
+
     /**
      * Create a new ProteinProcessor
      *
@@ -50,46 +55,126 @@ public class ProteinProcessor extends ChadoProcessor {
 
     /**
      * {@inheritDoc}
-     * We process the chado database by reading the feature and featureloc tables.
+     */
+    @Override
+    protected String[] getSourceTables() {
+        return SOURCE_TABLES;
+    }
+
+    /**
+     * The proteins and their relations are stored by process(), and nothing is kept afterwards.
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean isCheckpointable() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     * We process the chado database by reading the feature and featureloc tables.  Each organism's proteins are
+     * read with one query, and each of their relationships (consensus regions, protein matches, protein HMM matches
+     * with their domains, and mRNAs) with one more query per organism, all sorted by the protein feature_id so they
+     * are merge-joined to the proteins as they stream, rather than queried per protein.
      */
     @Override
     public void process(Connection connection) throws SQLException, ObjectStoreException {
         
-        // initialize our DB stuff
-        Statement stmt1 = connection.createStatement();
-        Statement stmt2 = connection.createStatement();
-        Statement stmt3 = connection.createStatement();
-        ResultSet rs1;
-        ResultSet rs2;
-        ResultSet rs3;
-        
         // get the desired chado organism_ids
         Set<Integer> organismIds = getChadoDBConverter().getDesiredChadoOrganismIds();
 
         // CV term IDs
-        int proteinTypeId = getCVTermId(stmt1, "polypeptide");
-        int proteinDomainTypeId = getCVTermId(stmt1, "polypeptide_domain");
-        int proteinMatchTypeId = getCVTermId(stmt1, "protein_match");
-        int proteinHmmMatchTypeId = getCVTermId(stmt1, "protein_hmm_match");
-        int consensusRegionTypeId = getCVTermId(stmt1, "consensus_region");
-        int mRNATypeId = getCVTermId(stmt1, "mRNA");
+        int proteinTypeId = getCVTermId(connection, "polypeptide");
+        int proteinDomainTypeId = getCVTermId(connection, "polypeptide_domain");
+        int proteinMatchTypeId = getCVTermId(connection, "protein_match");
+        int proteinHmmMatchTypeId = getCVTermId(connection, "protein_hmm_match");
+        int consensusRegionTypeId = getCVTermId(connection, "consensus_region");
+        int mRNATypeId = getCVTermId(connection, "mRNA");
 
         // consensus regions are organism-independent and are associated with multiple proteins / protein HMM matches
-        Map<Integer,Item> crMap = new HashMap<Integer,Item>();
+        IntObjectHashMap<Item> crMap = new IntObjectHashMap<Item>();
 
         // protein domains can be associated with multiple proteins
-        Map<Integer,Item> proteinDomainMap = new HashMap<Integer,Item>();
+        IntObjectHashMap<Item> proteinDomainMap = new IntObjectHashMap<Item>();
 
-        // cycle through organisms
-        for (Integer organismId : organismIds) {
+        // the five merge-joined result sets of an organism are open at once, so they must stream from server-side
+        // cursors rather than each be read into the heap; if the converter isn't streaming, stream them anyway
+        int fetchSize = getChadoDBConverter().getFetchSize();
+        if (fetchSize == 0) {
+            fetchSize = MERGE_JOIN_FETCH_SIZE;
+        }
+        boolean autoCommit = connection.getAutoCommit();
+        if (autoCommit) {
+            connection.setAutoCommit(false);
+        }
+        try {
+            // cycle through organisms
+            for (Integer organismId : organismIds) {
+                processOrganism(connection, fetchSize, organismId, proteinTypeId, proteinDomainTypeId, proteinMatchTypeId,
+                                proteinHmmMatchTypeId, consensusRegionTypeId, mRNATypeId, crMap, proteinDomainMap);
+            }
+        } finally {
+            if (autoCommit) {
+                connection.setAutoCommit(true);
+            }
+        }
 
-            // grab the Organism and Strain corresponding to this chado organism_id
-            Item organism = getChadoDBConverter().getOrganismItem(organismId);
-            Item strain = getChadoDBConverter().getStrainItem(organismId);
+    }
+
+    /**
+     * Create and store the proteins of an organism, merge-joining their relationships to them as they stream.
+     */
+    private void processOrganism(Connection connection, int fetchSize, Integer organismId, int proteinTypeId,
+                                 int proteinDomainTypeId, int proteinMatchTypeId, int proteinHmmMatchTypeId,
+                                 int consensusRegionTypeId, int mRNATypeId, IntObjectHashMap<Item> crMap,
+                                 IntObjectHashMap<Item> proteinDomainMap) throws SQLException, ObjectStoreException {
 
-            // query the proteins for this organism
-            rs1 = stmt1.executeQuery("SELECT * FROM feature WHERE organism_id="+organismId+" AND type_id="+proteinTypeId);
+        // grab the Organism and Strain corresponding to this chado organism_id
+        Item organism = getChadoDBConverter().getOrganismItem(organismId);
+        Item strain = getChadoDBConverter().getStrainItem(organismId);
+
+        // the proteins of this organism and their relationships, all sorted by protein feature_id
+        try (ResultSet rs1 = executeQuery(connection, fetchSize,
+                                          "SELECT feature_id, uniquename, name, residues, seqlen, md5checksum FROM feature"
+                                          + " WHERE organism_id=? AND type_id=? ORDER BY feature_id",
+                                          organismId, proteinTypeId);
+             MergeJoinCursor crCursor = new MergeJoinCursor(executeQuery(connection, fetchSize,
+                "SELECT fl.feature_id AS protein_id, cr.feature_id, cr.uniquename, cr.name, cr.residues, cr.seqlen,"
+                + " cr.md5checksum FROM featureloc fl"
+                + " JOIN feature p ON p.feature_id=fl.feature_id"
+                + " JOIN feature cr ON cr.feature_id=fl.srcfeature_id"
+                + " WHERE p.organism_id=? AND p.type_id=? AND cr.type_id=? ORDER BY fl.feature_id",
+                organismId, proteinTypeId, consensusRegionTypeId), "protein_id");
+             MergeJoinCursor proteinMatchCursor = new MergeJoinCursor(executeQuery(connection, fetchSize,
+                "SELECT fl.srcfeature_id AS protein_id, m.feature_id, m.uniquename, m.name, fl.fmin, fl.fmax"
+                + " FROM featureloc fl"
+                + " JOIN feature p ON p.feature_id=fl.srcfeature_id"
+                + " JOIN feature m ON m.feature_id=fl.feature_id"
+                + " WHERE p.organism_id=? AND p.type_id=? AND m.type_id=? ORDER BY fl.srcfeature_id, fl.featureloc_id",
+                organismId, proteinTypeId, proteinMatchTypeId), "protein_id");
+             // an HMM match has a row for each of its domains, or one row with null domain columns if it has none
+             MergeJoinCursor proteinHmmMatchCursor = new MergeJoinCursor(executeQuery(connection, fetchSize,
+                "SELECT hl.srcfeature_id AS protein_id, hl.featureloc_id, h.feature_id, h.uniquename, h.name,"
+                + " hl.fmin, hl.fmax, d.feature_id AS domain_id, d.uniquename AS domain_uniquename,"
+                + " d.name AS domain_name, dl.fmin AS domain_fmin, dl.fmax AS domain_fmax"
+                + " FROM featureloc hl"
+                + " JOIN feature p ON p.feature_id=hl.srcfeature_id"
+                + " JOIN feature h ON h.feature_id=hl.feature_id"
+                + " LEFT JOIN (featureloc dl JOIN feature d ON d.feature_id=dl.srcfeature_id AND d.type_id=?)"
+                + " ON dl.feature_id=h.feature_id"
+                + " WHERE p.organism_id=? AND p.type_id=? AND h.type_id=?"
+                + " ORDER BY hl.srcfeature_id, hl.featureloc_id, dl.featureloc_id",
+                proteinDomainTypeId, organismId, proteinTypeId, proteinHmmMatchTypeId), "protein_id");
+             MergeJoinCursor mRNACursor = new MergeJoinCursor(executeQuery(connection, fetchSize,
+                "SELECT fr.subject_id AS protein_id, m.feature_id, m.uniquename, m.name FROM feature_relationship fr"
+                + " JOIN feature p ON p.feature_id=fr.subject_id"
+                + " JOIN feature m ON m.feature_id=fr.object_id"
+                + " WHERE p.organism_id=? AND p.type_id=? AND m.type_id=? ORDER BY fr.subject_id, fr.feature_relationship_id",
+                organismId, proteinTypeId, mRNATypeId), "protein_id")) {
+
+            int rows = 0;
             while (rs1.next()) {
+                rows++;
 
                 // create the Protein item
                 int proteinId = rs1.getInt("feature_id");
@@ -119,175 +204,200 @@ public class ProteinProcessor extends ChadoProcessor {
                     protein.setReference("sequence", proteinSequence);
                 }
 
-                // query, create and store the consensus region(s) (without their sequences, which we'll add in GeneFamilyProcessor)
-                rs2 = stmt2.executeQuery("SELECT feature.* FROM feature,featureloc WHERE type_id="+consensusRegionTypeId+
-                                         " AND feature.feature_id=featureloc.srcfeature_id AND featureloc.feature_id="+proteinId);
-                while (rs2.next()) {
-                    int crId = rs2.getInt("feature_id");
-                    String crUniqueName = rs2.getString("uniquename");
-                    String crName = rs2.getString("name");
-                    String crResidues = rs2.getString("residues");
-                    int crLength = rs2.getInt("seqlen");
-                    String crMd5Checksum = rs2.getString("md5checksum");
-                    Item cr;
-                    if (crMap.containsKey(crId)) {
-                        cr = crMap.get(crId);
-                    } else {
-                        cr = getChadoDBConverter().createItem("ConsensusRegion");
-                        cr.setAttribute("chadoId", String.valueOf(crId));
-                        cr.setAttribute("primaryIdentifier", crUniqueName);
-                        cr.setAttribute("secondaryIdentifier", crName);
-                        cr.setAttribute("length", String.valueOf(crLength));
-                        cr.setAttribute("chadoUniqueName", crUniqueName);
-                        cr.setAttribute("chadoName", crName);
-                        if (crMd5Checksum!=null) cr.setAttribute("md5checksum", crMd5Checksum);
-                        // create and store the consensus region Sequence item IF residues exist
-                        if (crResidues!=null && crResidues.length()>0) {
-                            Item crSequence = getChadoDBConverter().createItem("Sequence");
-                            crSequence.setAttribute("length", String.valueOf(crLength));
-                            if (crMd5Checksum!=null) crSequence.setAttribute("md5checksum", crMd5Checksum);
-                            crSequence.setAttribute("residues", crResidues);
-                            store(crSequence);
-                            cr.setReference("sequence", crSequence);
-                        }
-                        store(cr);
-                        crMap.put(crId, cr);
-                    }
-                    protein.addToCollection("consensusRegions", cr);
-                }
-                rs2.close();
-
-                // query, create and store the protein matches to this protein
-                rs2 = stmt2.executeQuery("SELECT feature.*,fmin,fmax FROM feature,featureloc WHERE type_id="+proteinMatchTypeId+
-                                         " AND feature.feature_id=featureloc.feature_id AND featureloc.srcfeature_id="+proteinId);
-                while (rs2.next()) {
-                    int proteinMatchId = rs2.getInt("feature_id");
-                    String proteinMatchUniqueName = rs2.getString("uniquename");
-                    String proteinMatchName = rs2.getString("name");
-                    int start = rs2.getInt("fmin") + 1; // zero-based
-                    int end = rs2.getInt("fmax");
-                    Item proteinMatch = getChadoDBConverter().createItem("ProteinMatch");
-                    proteinMatch.setAttribute("chadoId", String.valueOf(proteinMatchId));
-                    proteinMatch.setAttribute("primaryIdentifier", proteinMatchUniqueName);
-                    proteinMatch.setAttribute("secondaryIdentifier", proteinMatchName);
-                    proteinMatch.setAttribute("chadoUniqueName", proteinMatchUniqueName);
-                    proteinMatch.setAttribute("chadoName", proteinMatchName);
-                    proteinMatch.setReference("organism", organism);
-                    proteinMatch.setReference("protein", protein);
-                    Item proteinLocation = getChadoDBConverter().createItem("Location");
-                    proteinLocation.setAttribute("start", String.valueOf(start));
-                    proteinLocation.setAttribute("end", String.valueOf(end));
-                    proteinLocation.setReference("locatedOn", protein);
-                    proteinLocation.setReference("feature", proteinMatch);
-                    store(proteinLocation);
-                    proteinMatch.setReference("proteinLocation", proteinLocation);
-                    store(proteinMatch);
-                }
-                rs2.close();
-                
-                // query, create and store the protein HMM matches to this protein
-                rs2 = stmt2.executeQuery("SELECT feature.*,fmin,fmax FROM feature,featureloc WHERE type_id="+proteinHmmMatchTypeId+
-                                         " AND feature.feature_id=featureloc.feature_id AND featureloc.srcfeature_id="+proteinId);
-                while (rs2.next()) {
-                    int proteinHmmMatchId = rs2.getInt("feature_id");
-                    String proteinHmmMatchUniqueName = rs2.getString("uniquename");
-                    String proteinHmmMatchName = rs2.getString("name");
-                    int pStart = rs2.getInt("fmin") + 1; // zero-based
-                    int pEnd = rs2.getInt("fmax");
-                    Item proteinHmmMatch = getChadoDBConverter().createItem("ProteinHmmMatch");
-                    proteinHmmMatch.setAttribute("chadoId", String.valueOf(proteinHmmMatchId));
-                    proteinHmmMatch.setAttribute("primaryIdentifier", proteinHmmMatchUniqueName);
-                    proteinHmmMatch.setAttribute("secondaryIdentifier", proteinHmmMatchName);
-                    proteinHmmMatch.setAttribute("chadoUniqueName", proteinHmmMatchUniqueName);
-                    proteinHmmMatch.setAttribute("chadoName", proteinHmmMatchName);
-                    proteinHmmMatch.setReference("organism", organism);
-                    proteinHmmMatch.setReference("protein", protein);
-                    // locate the HMM on the protein
-                    Item proteinLocation = getChadoDBConverter().createItem("Location");
-                    proteinLocation.setAttribute("start", String.valueOf(pStart));
-                    proteinLocation.setAttribute("end", String.valueOf(pEnd));
-                    proteinLocation.setReference("feature", proteinHmmMatch);
-                    proteinLocation.setReference("locatedOn", protein);
-                    store(proteinLocation);
-                    proteinHmmMatch.setReference("proteinLocation", proteinLocation);
-                    // query, create and store the ProteinDomain associated with this ProteinHmmMatch (and therefore this Protein)
-                    rs3 = stmt3.executeQuery("SELECT feature.*,fmin,fmax FROM feature,featureloc WHERE type_id="+proteinDomainTypeId+
-                                             " AND feature.feature_id=featureloc.srcfeature_id AND featureloc.feature_id="+proteinHmmMatchId);
-                    while (rs3.next()) {
-                        int proteinDomainId = rs3.getInt("feature_id");
-                        String proteinDomainUniqueName = rs3.getString("uniquename");
-                        String proteinDomainName = rs3.getString("name");
-                        int pdStart = rs3.getInt("fmin") + 1; // zero-based
-                        int pdEnd = rs3.getInt("fmax");
-                        Item proteinDomain;
-                        if (proteinDomainMap.containsKey(proteinDomainId)) {
-                            proteinDomain = proteinDomainMap.get(proteinDomainId);
-                        } else {
-                            proteinDomain = getChadoDBConverter().createItem("ProteinDomain");
-                            proteinDomain.setAttribute("chadoId", String.valueOf(proteinDomainId));
-                            proteinDomain.setAttribute("primaryIdentifier", proteinDomainUniqueName);
-                            proteinDomain.setAttribute("secondaryIdentifier", proteinDomainName);
-                            proteinDomain.setAttribute("chadoUniqueName", proteinDomainUniqueName);
-                            proteinDomain.setAttribute("chadoName", proteinDomainName);
-                            store(proteinDomain);
-                            proteinDomainMap.put(proteinDomainId, proteinDomain);
-                        }
-                        proteinHmmMatch.setReference("proteinDomain", proteinDomain);
-                        // locate the HMM on the protein domain
-                        Item proteinDomainLocation = getChadoDBConverter().createItem("Location");
-                        proteinDomainLocation.setAttribute("start", String.valueOf(pdStart));
-                        proteinDomainLocation.setAttribute("end", String.valueOf(pdEnd));
-                        proteinDomainLocation.setReference("feature", proteinHmmMatch);
-                        proteinDomainLocation.setReference("locatedOn", proteinDomain);
-                        store(proteinDomainLocation);
-                        proteinHmmMatch.setReference("proteinDomainLocation", proteinDomainLocation);
-                        protein.addToCollection("proteinDomains", proteinDomain);
-                    }
-                    rs3.close();
-                    store(proteinHmmMatch);
-                }
-                rs2.close();
-
-                // query create and store the mRNAs associated with this protein
-                rs2 = stmt2.executeQuery("SELECT feature.* FROM feature,feature_relationship WHERE feature.type_id="+mRNATypeId+
-                                         " AND feature.feature_id=object_id AND subject_id="+proteinId);
-                while (rs2.next()) {
-                    int mRNAId = rs2.getInt("feature_id");
-                    String mRNAUniqueName = rs2.getString("uniquename");
-                    String mRNAName = rs2.getString("name");
-                    Item mRNA = getChadoDBConverter().createItem("MRNA");
-                    mRNA.setAttribute("chadoId", String.valueOf(mRNAId));
-                    mRNA.setAttribute("primaryIdentifier", mRNAUniqueName);
-                    mRNA.setReference("protein", protein);
-                    store(mRNA);
-                }
-                rs2.close();
+                processConsensusRegions(crCursor, proteinId, protein, crMap);
+                processProteinMatches(proteinMatchCursor, proteinId, protein, organism);
+                processProteinHmmMatches(proteinHmmMatchCursor, proteinId, protein, organism, proteinDomainMap);
+                processMRNAs(mRNACursor, proteinId, protein);
 
                 // store this protein
                 store(protein);
             }
-            rs1.close();
+            countRows(rows + crCursor.getRowCount() + proteinMatchCursor.getRowCount()
+                      + proteinHmmMatchCursor.getRowCount() + mRNACursor.getRowCount());
+            LOG.info("Organism " + organismId + ": " + rows + " proteins with " + crCursor.getRowCount()
+                     + " consensus region, " + proteinMatchCursor.getRowCount() + " protein match, "
+                     + proteinHmmMatchCursor.getRowCount() + " HMM match and " + mRNACursor.getRowCount()
+                     + " mRNA rows");
+        }
+    }
+
+    /**
+     * Create and store the consensus region(s) of a protein (without their sequences, which we'll add in
+     * GeneFamilyProcessor), or take them from crMap if another protein has them.
+     */
+    private void processConsensusRegions(MergeJoinCursor cursor, int proteinId, Item protein, IntObjectHashMap<Item> crMap)
+        throws SQLException, ObjectStoreException {
+        while (cursor.next(proteinId)) {
+            ResultSet rs2 = cursor.getResultSet();
+            int crId = rs2.getInt("feature_id");
+            Item cr = crMap.get(crId);
+            if (cr == null) {
+                String crUniqueName = rs2.getString("uniquename");
+                String crName = rs2.getString("name");
+                String crResidues = rs2.getString("residues");
+                int crLength = rs2.getInt("seqlen");
+                String crMd5Checksum = rs2.getString("md5checksum");
+                cr = getChadoDBConverter().createItem("ConsensusRegion");
+                cr.setAttribute("chadoId", String.valueOf(crId));
+                cr.setAttribute("primaryIdentifier", crUniqueName);
+                cr.setAttribute("secondaryIdentifier", crName);
+                cr.setAttribute("length", String.valueOf(crLength));
+                cr.setAttribute("chadoUniqueName", crUniqueName);
+                cr.setAttribute("chadoName", crName);
+                if (crMd5Checksum!=null) cr.setAttribute("md5checksum", crMd5Checksum);
+                // create and store the consensus region Sequence item IF residues exist
+                if (crResidues!=null && crResidues.length()>0) {
+                    Item crSequence = getChadoDBConverter().createItem("Sequence");
+                    crSequence.setAttribute("length", String.valueOf(crLength));
+                    if (crMd5Checksum!=null) crSequence.setAttribute("md5checksum", crMd5Checksum);
+                    crSequence.setAttribute("residues", crResidues);
+                    store(crSequence);
+                    cr.setReference("sequence", crSequence);
+                }
+                store(cr);
+                crMap.put(crId, cr);
+            }
+            protein.addToCollection("consensusRegions", cr);
+        }
+    }
+
+    /**
+     * Create and store the protein matches to a protein, with their locations on it.
+     */
+    private void processProteinMatches(MergeJoinCursor cursor, int proteinId, Item protein, Item organism)
+        throws SQLException, ObjectStoreException {
+        while (cursor.next(proteinId)) {
+            ResultSet rs2 = cursor.getResultSet();
+            int proteinMatchId = rs2.getInt("feature_id");
+            String proteinMatchUniqueName = rs2.getString("uniquename");
+            String proteinMatchName = rs2.getString("name");
+            int start = rs2.getInt("fmin") + 1; // zero-based
+            int end = rs2.getInt("fmax");
+            Item proteinMatch = getChadoDBConverter().createItem("ProteinMatch");
+            proteinMatch.setAttribute("chadoId", String.valueOf(proteinMatchId));
+            proteinMatch.setAttribute("primaryIdentifier", proteinMatchUniqueName);
+            proteinMatch.setAttribute("secondaryIdentifier", proteinMatchName);
+            proteinMatch.setAttribute("chadoUniqueName", proteinMatchUniqueName);
+            proteinMatch.setAttribute("chadoName", proteinMatchName);
+            proteinMatch.setReference("organism", organism);
+            proteinMatch.setReference("protein", protein);
+            Item proteinLocation = getChadoDBConverter().createItem("Location");
+            proteinLocation.setAttribute("start", String.valueOf(start));
+            proteinLocation.setAttribute("end", String.valueOf(end));
+            proteinLocation.setReference("locatedOn", protein);
+            proteinLocation.setReference("feature", proteinMatch);
+            store(proteinLocation);
+            proteinMatch.setReference("proteinLocation", proteinLocation);
+            store(proteinMatch);
+        }
+    }
 
+    /**
+     * Create and store the protein HMM matches to a protein, with their locations on it and on their protein
+     * domains.  The cursor has a row per HMM match location and domain, so an HMM match is stored when the
+     * rows move on to the next one.
+     */
+    private void processProteinHmmMatches(MergeJoinCursor cursor, int proteinId, Item protein, Item organism,
+                                  IntObjectHashMap<Item> proteinDomainMap) throws SQLException, ObjectStoreException {
+        Item proteinHmmMatch = null;
+        int hmmLocationId = 0;
+        while (cursor.next(proteinId)) {
+            ResultSet rs2 = cursor.getResultSet();
+            int locationId = rs2.getInt("featureloc_id");
+            if (proteinHmmMatch == null || locationId != hmmLocationId) {
+                if (proteinHmmMatch != null) {
+                    store(proteinHmmMatch);
+                }
+                hmmLocationId = locationId;
+                int proteinHmmMatchId = rs2.getInt("feature_id");
+                String proteinHmmMatchUniqueName = rs2.getString("uniquename");
+                String proteinHmmMatchName = rs2.getString("name");
+                int pStart = rs2.getInt("fmin") + 1; // zero-based
+                int pEnd = rs2.getInt("fmax");
+                proteinHmmMatch = getChadoDBConverter().createItem("ProteinHmmMatch");
+                proteinHmmMatch.setAttribute("chadoId", String.valueOf(proteinHmmMatchId));
+                proteinHmmMatch.setAttribute("primaryIdentifier", proteinHmmMatchUniqueName);
+                proteinHmmMatch.setAttribute("secondaryIdentifier", proteinHmmMatchName);
+                proteinHmmMatch.setAttribute("chadoUniqueName", proteinHmmMatchUniqueName);
+                proteinHmmMatch.setAttribute("chadoName", proteinHmmMatchName);
+                proteinHmmMatch.setReference("organism", organism);
+                proteinHmmMatch.setReference("protein", protein);
+                // locate the HMM on the protein
+                Item proteinLocation = getChadoDBConverter().createItem("Location");
+                proteinLocation.setAttribute("start", String.valueOf(pStart));
+                proteinLocation.setAttribute("end", String.valueOf(pEnd));
+                proteinLocation.setReference("feature", proteinHmmMatch);
+                proteinLocation.setReference("locatedOn", protein);
+                store(proteinLocation);
+                proteinHmmMatch.setReference("proteinLocation", proteinLocation);
+            }
+            // create and store the ProteinDomain associated with this ProteinHmmMatch (and therefore this Protein)
+            int proteinDomainId = rs2.getInt("domain_id");
+            if (rs2.wasNull()) {
+                continue;
+            }
+            int pdStart = rs2.getInt("domain_fmin") + 1; // zero-based
+            int pdEnd = rs2.getInt("domain_fmax");
+            Item proteinDomain = proteinDomainMap.get(proteinDomainId);
+            if (proteinDomain == null) {
+                String proteinDomainUniqueName = rs2.getString("domain_uniquename");
+                String proteinDomainName = rs2.getString("domain_name");
+                proteinDomain = getChadoDBConverter().createItem("ProteinDomain");
+                proteinDomain.setAttribute("chadoId", String.valueOf(proteinDomainId));
+                proteinDomain.setAttribute("primaryIdentifier", proteinDomainUniqueName);
+                proteinDomain.setAttribute("secondaryIdentifier", proteinDomainName);
+                proteinDomain.setAttribute("chadoUniqueName", proteinDomainUniqueName);
+                proteinDomain.setAttribute("chadoName", proteinDomainName);
+                store(proteinDomain);
+                proteinDomainMap.put(proteinDomainId, proteinDomain);
+            }
+            proteinHmmMatch.setReference("proteinDomain", proteinDomain);
+            // locate the HMM on the protein domain
+            Item proteinDomainLocation = getChadoDBConverter().createItem("Location");
+            proteinDomainLocation.setAttribute("start", String.valueOf(pdStart));
+            proteinDomainLocation.setAttribute("end", String.valueOf(pdEnd));
+            proteinDomainLocation.setReference("feature", proteinHmmMatch);
+            proteinDomainLocation.setReference("locatedOn", proteinDomain);
+            store(proteinDomainLocation);
+            proteinHmmMatch.setReference("proteinDomainLocation", proteinDomainLocation);
+            protein.addToCollection("proteinDomains", proteinDomain);
         }
+        if (proteinHmmMatch != null) {
+            store(proteinHmmMatch);
+        }
+    }
 
+    /**
+     * Create and store the mRNAs associated with a protein.
+     */
+    private void processMRNAs(MergeJoinCursor cursor, int proteinId, Item protein) throws SQLException, ObjectStoreException {
+        while (cursor.next(proteinId)) {
+            ResultSet rs2 = cursor.getResultSet();
+            int mRNAId = rs2.getInt("feature_id");
+            String mRNAUniqueName = rs2.getString("uniquename");
+            Item mRNA = getChadoDBConverter().createItem("MRNA");
+            mRNA.setAttribute("chadoId", String.valueOf(mRNAId));
+            mRNA.setAttribute("primaryIdentifier", mRNAUniqueName);
+            mRNA.setReference("protein", protein);
+            store(mRNA);
+        }
     }
 
     /**
      * Get the CVTerm ID for a given CVTerm name.
-     * @param stmt the database connection statement, initialized to the chado database
+     * @param connection the database connection to chado
      * @param name the desired CV term name
      * @return the CV term id
      * @throws SQLException
      */
-     protected int getCVTermId(Statement stmt, String name) throws SQLException {
-        ResultSet rs = stmt.executeQuery("SELECT cvterm_id FROM cvterm WHERE name='"+name+"'");
-        if (rs.next()) {
-            int cvtermId = rs.getInt("cvterm_id");
-            rs.close();
-            return cvtermId;
-        } else {
-            throw new RuntimeException("Could not determine CV term id for '"+name+"'.");
+    protected int getCVTermId(Connection connection, String name) throws SQLException {
+        try (ResultSet rs = executeQuery(connection, "SELECT cvterm_id FROM cvterm WHERE name=?", name)) {
+            if (rs.next()) {
+                return rs.getInt("cvterm_id");
+            } else {
+                throw new RuntimeException("Could not determine CV term id for '"+name+"'.");
+            }
         }
-     }
+    }
     
 }
@@ -0,0 +1,144 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine, NCGR
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Records the PostgreSQL plan of every query a ChadoProcessor runs through executeQuery(), for tracing slow
+ * extractions back to plan changes between chado instances.  Before a query is run, it is run once more under
+ * EXPLAIN (ANALYZE, BUFFERS) and the plan, the time taken and the number of rows returned are appended to the
+ * report file.  This runs every query twice, so it is an instrumentation mode and not for production builds.
+ *
+ * @author Sam Hokin
+ */
+class QueryPlanReport
+{
+    private static final Logger LOG = Logger.getLogger(QueryPlanReport.class);
+
+    // the actual rows and loops of a plan node, eg. "(actual time=0.011..5.062 rows=1200 loops=1)"
+    private static final Pattern ACTUAL_ROWS = Pattern.compile("actual time=\\S+ rows=(\\d+) loops=(\\d+)");
+
+    private final File file;
+    private int queryCount = 0;
+
+    /**
+     * Create a report, replacing any existing file.
+     * @param file the report file
+     * @throws IOException if the file can't be written
+     */
+    QueryPlanReport(File file) throws IOException {
+        this.file = file;
+        PrintWriter out = new PrintWriter(new FileWriter(file, false));
+        try {
+            out.println("# chado query plans, started " + new Date());
+        } finally {
+            out.close();
+        }
+        LOG.info("writing query plans to " + file);
+    }
+
+    /**
+     * Explain a query with EXPLAIN (ANALYZE, BUFFERS) and append the plan to the report.  Failures are logged
+     * and don't stop the build.
+     * @param connection the connection the query will be run on
+     * @param query the SQL query, with ? for the parameters
+     * @param parameters the parameters of the query
+     */
+    void explain(Connection connection, String query, Object... parameters) {
+        List<String> plan = new ArrayList<String>();
+        long start = System.currentTimeMillis();
+        Savepoint savepoint = null;
+        try {
+            // a failed statement aborts the whole transaction when streaming, so the EXPLAIN gets a savepoint
+            if (!connection.getAutoCommit()) {
+                savepoint = connection.setSavepoint();
+            }
+            PreparedStatement stmt = connection.prepareStatement("EXPLAIN (ANALYZE, BUFFERS) " + query);
+            try {
+                for (int i = 0; i < parameters.length; i++) {
+                    stmt.setObject(i + 1, parameters[i]);
+                }
+                ResultSet res = stmt.executeQuery();
+                while (res.next()) {
+                    plan.add(res.getString(1));
+                }
+                res.close();
+            } finally {
+                stmt.close();
+            }
+            if (savepoint != null) {
+                connection.releaseSavepoint(savepoint);
+            }
+        } catch (SQLException e) {
+            LOG.warn("failed to explain query: " + query, e);
+            plan.add("EXPLAIN failed: " + e.getMessage());
+            if (savepoint != null) {
+                try {
+                    connection.rollback(savepoint);
+                } catch (SQLException e2) {
+                    LOG.warn("failed to roll back to the savepoint before the EXPLAIN", e2);
+                }
+            }
+        }
+        write(query, parameters, plan, System.currentTimeMillis() - start);
+    }
+
+    private synchronized void write(String query, Object[] parameters, List<String> plan, long millis) {
+        queryCount++;
+        try {
+            PrintWriter out = new PrintWriter(new FileWriter(file, true));
+            try {
+                out.println();
+                out.println("## query " + queryCount + " on " + Thread.currentThread().getName());
+                out.println(query);
+                if (parameters.length > 0) {
+                    out.println("parameters: " + Arrays.asList(parameters));
+                }
+                out.println("rows: " + getRowCount(plan) + ", explain took " + millis + " ms");
+                for (String line : plan) {
+                    out.println(line);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("failed to write query plan to " + file, e);
+        }
+    }
+
+    // the top node of the plan reports the rows returned by the query
+    private static long getRowCount(List<String> plan) {
+        if (!plan.isEmpty()) {
+            Matcher matcher = ACTUAL_ROWS.matcher(plan.get(0));
+            if (matcher.find()) {
+                return Long.parseLong(matcher.group(1)) * Long.parseLong(matcher.group(2));
+            }
+        }
+        return -1;
+    }
+}
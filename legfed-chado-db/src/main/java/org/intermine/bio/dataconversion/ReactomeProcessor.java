@@ -11,6 +11,7 @@ package org.intermine.bio.dataconversion;
  */
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
@@ -18,6 +19,9 @@ import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Set;
@@ -50,6 +54,14 @@ public class ReactomeProcessor extends ChadoProcessor {
 	
     private static final Logger LOG = LogManager.getLogger(ReactomeProcessor.class);
 
+    // the chado tables read, see ChadoProcessor.getSourceTables()
+    private static final String[] SOURCE_TABLES = {
+        "feature", "cvterm"
+    };
+
+    // the number of missed gene names given as examples in the log
+    private static final int MISSED_NAMES_LOGGED = 10;
+
     Map<String,Item> organismMap = new HashMap<>(); // keyed by "Genus species"
 
     /**
@@ -60,6 +72,33 @@ public class ReactomeProcessor extends ChadoProcessor {
         super(chadoDBConverter);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected String[] getSourceTables() {
+        return SOURCE_TABLES;
+    }
+
+    /**
+     * The pathways are stored by process(), and later processors don't use them.
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean isCheckpointable() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     * The reactome file is stamped by its path, size and modification time.
+     */
+    @Override
+    protected String getDeltaStamp() {
+        File file = new File(getChadoDBConverter().getReactomeFilename());
+        return file.getPath() + ":" + file.length() + ":" + file.lastModified();
+    }
+
     /**
      * {@inheritDoc}
      * Process by spinning through the reactome file and associating pathways for our organisms with genes from chado.
@@ -67,7 +106,7 @@ public class ReactomeProcessor extends ChadoProcessor {
     @Override
     public void process(Connection connection) throws Exception {
         // Items stored in maps to avoid dupe stores
-        Map<Integer,Item> geneMap = new HashMap<Integer,Item>();  // keyed by feature_id
+        IntObjectHashMap<Item> geneMap = new IntObjectHashMap<Item>();  // keyed by feature_id
         Map<String,Item> pathwayMap = new HashMap<String,Item>();    // keyed by identifier
         
         // initialize our DB statement
@@ -92,85 +131,147 @@ public class ReactomeProcessor extends ChadoProcessor {
         rs.next();
         int geneCVTermId = rs.getInt("cvterm_id");
         rs.close();
+        stmt.close();
+
+        // index the names of our organisms' genes once, rather than querying chado for each line of the file;
+        // a name maps to a row of geneFeatureIds and geneUniqueNames, the lowest feature_id if it is not unique
+        StringIntHashMap geneIndex = new StringIntHashMap(1 << 16);
+        int[] geneFeatureIds = new int[1 << 16];
+        String[] geneUniqueNames = new String[1 << 16];
+        for (Integer organismId : organismIds) {
+            rs = executeQuery(connection,
+                              "SELECT feature_id, uniquename, name FROM feature WHERE type_id=? AND organism_id=?"
+                              + " ORDER BY feature_id",
+                              geneCVTermId, organismId);
+            int rows = 0;
+            while (rs.next()) {
+                rows++;
+                String name = rs.getString("name");
+                if (name == null) {
+                    continue;
+                }
+                int row = geneIndex.size();
+                if (geneIndex.putIfAbsent(name, row)) {
+                    if (row == geneFeatureIds.length) {
+                        geneFeatureIds = Arrays.copyOf(geneFeatureIds, row << 1);
+                        geneUniqueNames = Arrays.copyOf(geneUniqueNames, row << 1);
+                    }
+                    geneFeatureIds[row] = rs.getInt("feature_id");
+                    geneUniqueNames[row] = rs.getString("uniquename");
+                }
+            }
+            rs.close();
+            countRows(rows);
+        }
+        LOG.info("Indexed "+geneIndex.size()+" gene names.");
 
-        // load the reactome file into a map
+        // stream the reactome file, resolving its genes against the index
         String reactomeFilename = getChadoDBConverter().getReactomeFilename();
         LOG.info("Reading "+reactomeFilename);
+        int lineCount = 0;
+        int unmappedCount = 0;  // lines for our species whose gene names we can't turn into chado names
+        int missCount = 0;      // lines whose chado names aren't genes of our organisms
+        Set<String> missedNames = new LinkedHashSet<String>();
         BufferedReader reader = new BufferedReader(new FileReader(reactomeFilename));
-        String line = null;
-        while ((line=reader.readLine())!=null) {
-            if (!line.startsWith("#")) {
+        try {
+            String line = null;
+            while ((line=reader.readLine())!=null) {
+                if (line.startsWith("#")) {
+                    continue;
+                }
+                lineCount++;
                 String[] fields = line.split("\t");
                 String identifier = fields[0];
                 String pathwayName = fields[1];
                 String species = fields[2];
                 String geneName = fields[3];
-                if (speciesSet.contains(species)) {
-                    String featureName = null;
-                    Item organism = organismMap.get(species);
-                    // HACK: concoct the correct chado feature.name
-                    if (geneName.contains("_")) {
-                        String[] parts = geneName.split("_");
-                        if (parts[0].equals("GLYMA")) {
-                            featureName = "glyma.Glyma."+parts[1];
-                        } else if (parts[0].equals("PHAVU")) {
-                            featureName = "phavu.Phvul."+parts[1];
-                            featureName = featureName.substring(0, featureName.length()-1); // drop the trailing "g"
-                        } else if (parts[0].equals("MTR")) {
-                            featureName = "medtr.Medtr"+parts[1];
-                        } else if (parts[0].equals("C.cajan")) {
-                            featureName = "cajca.C.cajan_"+parts[1];
-                        } else if (parts[0].equals("TanjilG")) {
-                            featureName = "lupan.Lup0"+parts[1];
-                        } else if (parts[0].equals("Tp57577")) {
-                            featureName = "tripr."+parts[3];
-                        }
-                    } else if (geneName.startsWith("Aradu")) {
-                        featureName = "aradu."+geneName;
-                    } else if (geneName.startsWith("Araip")) {
-                        featureName = "araip."+geneName;
-                    }
-                    if (featureName!=null) {
-                        String query = "SELECT * FROM feature WHERE type_id="+geneCVTermId+" AND name='"+featureName+"'";
-                        rs = stmt.executeQuery(query);
-                        if (rs.next()) {
-                            // get or store the gene
-                            Item gene = null;
-                            int feature_id = rs.getInt("feature_id");
-                            if (geneMap.containsKey(feature_id)) {
-                                gene = geneMap.get(feature_id);
-                            } else {
-                                gene = getChadoDBConverter().createItem("Gene");
-                                gene.setAttribute("chadoId", String.valueOf(feature_id));
-                                gene.setAttribute("primaryIdentifier", rs.getString("uniquename"));
-                                gene.setAttribute("secondaryIdentifier", rs.getString("name"));
-                                gene.setReference("organism", organism);
-                                geneMap.put(feature_id, gene);
-                            }
-                            // get or store the pathway, with reference to organism
-                            Item pathway = null;
-                            if (pathwayMap.containsKey(identifier)) {
-                                pathway = pathwayMap.get(identifier);
-                            } else {
-                                pathway = getChadoDBConverter().createItem("Pathway");
-                                pathway.setAttribute("identifier", identifier);
-                                pathway.setAttribute("name", pathwayName);
-                                pathway.setReference("organism", organism);
-                                pathwayMap.put(identifier, pathway);
-                            }
-                            // associate gene with pathway
-                            gene.addToCollection("pathways", pathway);
-                        } else {
-                            LOG.error(featureName+" not found in chado database.");
-                        }
-                        rs.close();
-                    }
+                if (!speciesSet.contains(species)) {
+                    continue;
+                }
+                Item organism = organismMap.get(species);
+                String featureName = getFeatureName(geneName);
+                if (featureName==null) {
+                    unmappedCount++;
+                    continue;
+                }
+                int row = geneIndex.get(featureName);
+                if (row<0) {
+                    missCount++;
+                    missedNames.add(featureName);
+                    continue;
                 }
+                // get or store the gene
+                int feature_id = geneFeatureIds[row];
+                Item gene = geneMap.get(feature_id);
+                if (gene==null) {
+                    gene = getChadoDBConverter().createItem("Gene");
+                    gene.setAttribute("chadoId", String.valueOf(feature_id));
+                    gene.setAttribute("primaryIdentifier", geneUniqueNames[row]);
+                    gene.setAttribute("secondaryIdentifier", featureName);
+                    gene.setReference("organism", organism);
+                    geneMap.put(feature_id, gene);
+                }
+                // get or store the pathway, with reference to organism
+                Item pathway = pathwayMap.get(identifier);
+                if (pathway==null) {
+                    pathway = getChadoDBConverter().createItem("Pathway");
+                    pathway.setAttribute("identifier", identifier);
+                    pathway.setAttribute("name", pathwayName);
+                    pathway.setReference("organism", organism);
+                    pathwayMap.put(identifier, pathway);
+                }
+                // associate gene with pathway
+                gene.addToCollection("pathways", pathway);
             }
+        } finally {
+            reader.close();
+        }
+        LOG.info("Read "+lineCount+" reactome lines: "+geneMap.size()+" genes in "+pathwayMap.size()+" pathways, "
+                 +unmappedCount+" lines with gene names that can't be mapped to chado, "
+                 +missCount+" lines with "+missedNames.size()+" chado names not found.");
+        if (!missedNames.isEmpty()) {
+            StringBuilder examples = new StringBuilder();
+            Iterator<String> iter = missedNames.iterator();
+            for (int i = 0; i < MISSED_NAMES_LOGGED && iter.hasNext(); i++) {
+                examples.append(i==0 ? "" : ", ").append(iter.next());
+            }
+            LOG.error("Gene names not found in chado database, eg. "+examples);
         }
 
         // store the maps here so that the collection get stored
         store(geneMap.values());
         store(pathwayMap.values());
     }
+
+    /**
+     * Concoct the chado feature.name of a Plant Reactome gene name.
+     * HACK: this is species-specific, as the Plant Reactome gene names do NOT match the LIS gene names.
+     * @param geneName the Plant Reactome gene name
+     * @return the chado feature name, or null if the gene name can't be mapped
+     */
+    static String getFeatureName(String geneName) {
+        String featureName = null;
+        if (geneName.contains("_")) {
+            String[] parts = geneName.split("_");
+            if (parts[0].equals("GLYMA")) {
+                featureName = "glyma.Glyma."+parts[1];
+            } else if (parts[0].equals("PHAVU")) {
+                featureName = "phavu.Phvul."+parts[1];
+                featureName = featureName.substring(0, featureName.length()-1); // drop the trailing "g"
+            } else if (parts[0].equals("MTR")) {
+                featureName = "medtr.Medtr"+parts[1];
+            } else if (parts[0].equals("C.cajan")) {
+                featureName = "cajca.C.cajan_"+parts[1];
+            } else if (parts[0].equals("TanjilG")) {
+                featureName = "lupan.Lup0"+parts[1];
+            } else if (parts[0].equals("Tp57577")) {
+                featureName = "tripr."+parts[3];
+            }
+        } else if (geneName.startsWith("Aradu")) {
+            featureName = "aradu."+geneName;
+        } else if (geneName.startsWith("Araip")) {
+            featureName = "araip."+geneName;
+        }
+        return featureName;
+    }
 }
@@ -0,0 +1,368 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine, NCGR
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.lang.StringUtils;
+import org.intermine.dataconversion.ItemWriter;
+import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.xml.full.Attribute;
+import org.intermine.xml.full.Item;
+import org.intermine.xml.full.Reference;
+import org.intermine.xml.full.ReferenceList;
+
+/**
+ * The ItemWriter that ChadoDBConverter hands to its super class, passing every store on to the real writer.  In
+ * a delta run (see ChadoDBConverter.setDeltaDir()) it also records the stores of each processor to an item
+ * stream file, which a later run replays instead of running the processor again.
+ *
+ * A stream is a gzipped list of operations: Items with the object id they were stored under, and References,
+ * ReferenceLists and Attributes stored afterwards for an object id.  Object ids differ from one run to the next,
+ * so replay() maps the recorded ids to the new ones and rewrites the stream with them, keeping every stream of
+ * the delta directory in the ids of the last run.
+ *
+ * @author Sam Hokin
+ */
+class RecordingItemWriter implements ItemWriter
+{
+    private static final int END = 0;
+    private static final int ITEM = 1;
+    private static final int REFERENCE = 2;
+    private static final int REFERENCE_LIST = 3;
+    private static final int ATTRIBUTE = 4;
+
+    private final ItemWriter writer;
+    // the largest object id the writer has given an Item, -1 until one is stored, see getLastObjectId()
+    private int lastObjectId = -1;
+    private File recordingFile = null;
+    private DataOutputStream recording = null;
+
+    /**
+     * Wrap an ItemWriter.
+     * @param writer the writer the stores are passed to
+     */
+    RecordingItemWriter(ItemWriter writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Start recording the stores to an item stream.  The stream is written to a temporary file until
+     * finishRecording() is called, so a failed run doesn't leave a partial stream in its place.
+     * @param file the item stream file
+     * @throws IOException if the file can't be created
+     */
+    synchronized void startRecording(File file) throws IOException {
+        if (recording != null) {
+            throw new IllegalStateException("already recording to " + recordingFile);
+        }
+        recordingFile = file;
+        recording = openOutput(file);
+    }
+
+    /**
+     * Stop recording and replace the item stream file with the new stream.
+     * @throws IOException if the stream can't be written
+     */
+    synchronized void finishRecording() throws IOException {
+        recording.writeByte(END);
+        recording.close();
+        recording = null;
+        commit(recordingFile);
+    }
+
+    /**
+     * Stop recording and throw the new stream away, after a failure.
+     */
+    synchronized void abortRecording() {
+        if (recording != null) {
+            try {
+                recording.close();
+            } catch (IOException e) {
+                // the stream is being thrown away
+            }
+            recording = null;
+            new File(recordingFile.getPath() + ".tmp").delete();
+        }
+    }
+
+    /**
+     * Store the Items and other objects of an item stream again, in their recorded order, and rewrite the stream
+     * with their new object ids.
+     * @param file the item stream file
+     * @param objectIds the new object id of each recorded one, added to for the Items of this stream; it must
+     * hold the Items of earlier streams that this one refers to
+     * @return the number of Items stored
+     * @throws IOException if the stream can't be read or rewritten
+     * @throws ObjectStoreException if there is a problem storing
+     */
+    synchronized int replay(File file, IntIntHashMap objectIds) throws IOException, ObjectStoreException {
+        int itemCount = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(
+                new FileInputStream(file), 1 << 16)));
+        DataOutputStream out = openOutput(file);
+        try {
+            int op;
+            while ((op = in.readByte()) != END) {
+                out.writeByte(op);
+                if (op == ITEM) {
+                    int oldId = in.readInt();
+                    Item item = readItem(in);
+                    Integer newId = storeItem(item);
+                    if (oldId >= 0 && newId != null) {
+                        objectIds.put(oldId, newId.intValue());
+                    }
+                    out.writeInt((newId == null) ? -1 : newId.intValue());
+                    writeItem(out, item);
+                    itemCount++;
+                    continue;
+                }
+                int oldId = in.readInt();
+                int newId = objectIds.get(oldId);
+                if (newId < 0) {
+                    throw new IOException("item stream " + file + " refers to object " + oldId
+                                          + " which isn't in it or an earlier stream");
+                }
+                out.writeInt(newId);
+                String name = ConverterCheckpoint.readString(in);
+                ConverterCheckpoint.writeString(out, name);
+                if (op == REFERENCE) {
+                    String refId = ConverterCheckpoint.readString(in);
+                    ConverterCheckpoint.writeString(out, refId);
+                    writer.store(new Reference(name, refId), Integer.valueOf(newId));
+                } else if (op == REFERENCE_LIST) {
+                    List<String> refIds = readStrings(in);
+                    writeStrings(out, refIds);
+                    writer.store(new ReferenceList(name, refIds), Integer.valueOf(newId));
+                } else if (op == ATTRIBUTE) {
+                    String value = ConverterCheckpoint.readString(in);
+                    ConverterCheckpoint.writeString(out, value);
+                    writer.store(new Attribute(name, value), Integer.valueOf(newId));
+                } else {
+                    throw new IOException("unknown operation " + op + " in item stream " + file);
+                }
+            }
+            out.writeByte(END);
+        } catch (EOFException e) {
+            throw new IOException("item stream " + file + " is truncated", e);
+        } finally {
+            in.close();
+            out.close();
+        }
+        commit(file);
+        return itemCount;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized Integer store(Item item) throws ObjectStoreException {
+        Integer objectId = storeItem(item);
+        if (recording != null) {
+            record(objectId, item);
+        }
+        return objectId;
+    }
+
+    /**
+     * Store the Items one at a time, so that their object ids are known.
+     * {@inheritDoc}
+     */
+    public synchronized void store(Collection<Item> items) throws ObjectStoreException {
+        for (Item item : items) {
+            store(item);
+        }
+    }
+
+    /**
+     * Return the largest object id the writer has given an Item.  The items database hands out increasing ids,
+     * so the Items stored after this call will have larger ones, see ConverterCheckpoint.
+     * @return the object id, or -1 if no Item has been stored
+     */
+    synchronized int getLastObjectId() {
+        return lastObjectId;
+    }
+
+    private Integer storeItem(Item item) throws ObjectStoreException {
+        Integer objectId = writer.store(item);
+        if (objectId != null && objectId.intValue() > lastObjectId) {
+            lastObjectId = objectId.intValue();
+        }
+        return objectId;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized void store(ReferenceList referenceList, Integer objectId) throws ObjectStoreException {
+        writer.store(referenceList, objectId);
+        if (recording != null) {
+            record(REFERENCE_LIST, objectId, referenceList.getName(), null, referenceList.getRefIds());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized void store(org.intermine.model.fulldata.ReferenceList referenceList, Integer objectId)
+        throws ObjectStoreException {
+        writer.store(referenceList, objectId);
+        if (recording != null) {
+            // replayed as an org.intermine.xml.full.ReferenceList, which the writer stores the same way
+            String refIds = referenceList.getRefIds();
+            List<String> ids = (refIds == null) ? new ArrayList<String>()
+                : Arrays.asList(StringUtils.split(refIds, ' '));
+            record(REFERENCE_LIST, objectId, referenceList.getName(), null, ids);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized void store(Reference reference, Integer objectId) throws ObjectStoreException {
+        writer.store(reference, objectId);
+        if (recording != null) {
+            record(REFERENCE, objectId, reference.getName(), reference.getRefId(), null);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized void store(Attribute attribute, Integer objectId) throws ObjectStoreException {
+        writer.store(attribute, objectId);
+        if (recording != null) {
+            record(ATTRIBUTE, objectId, attribute.getName(), attribute.getValue(), null);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void close() throws ObjectStoreException {
+        abortRecording();
+        writer.close();
+    }
+
+    private void record(Integer objectId, Item item) throws ObjectStoreException {
+        try {
+            recording.writeByte(ITEM);
+            recording.writeInt((objectId == null) ? -1 : objectId.intValue());
+            writeItem(recording, item);
+        } catch (IOException e) {
+            throw new ObjectStoreException("failed to record item " + item.getIdentifier() + " to "
+                                           + recordingFile, e);
+        }
+    }
+
+    private void record(int op, Integer objectId, String name, String value, List<String> values)
+        throws ObjectStoreException {
+        try {
+            recording.writeByte(op);
+            recording.writeInt(objectId.intValue());
+            ConverterCheckpoint.writeString(recording, name);
+            if (values != null) {
+                writeStrings(recording, values);
+            } else {
+                ConverterCheckpoint.writeString(recording, value);
+            }
+        } catch (IOException e) {
+            throw new ObjectStoreException("failed to record a store for object " + objectId + " to "
+                                           + recordingFile, e);
+        }
+    }
+
+    private static void writeItem(DataOutputStream out, Item item) throws IOException {
+        ConverterCheckpoint.writeString(out, item.getIdentifier());
+        ConverterCheckpoint.writeString(out, item.getClassName());
+        ConverterCheckpoint.writeString(out, item.getImplementations());
+        out.writeInt(item.getAttributes().size());
+        for (Attribute attribute : item.getAttributes()) {
+            ConverterCheckpoint.writeString(out, attribute.getName());
+            ConverterCheckpoint.writeString(out, attribute.getValue());
+        }
+        out.writeInt(item.getReferences().size());
+        for (Reference reference : item.getReferences()) {
+            ConverterCheckpoint.writeString(out, reference.getName());
+            ConverterCheckpoint.writeString(out, reference.getRefId());
+        }
+        out.writeInt(item.getCollections().size());
+        for (ReferenceList collection : item.getCollections()) {
+            ConverterCheckpoint.writeString(out, collection.getName());
+            writeStrings(out, collection.getRefIds());
+        }
+    }
+
+    private static Item readItem(DataInputStream in) throws IOException {
+        Item item = new Item(ConverterCheckpoint.readString(in), ConverterCheckpoint.readString(in),
+                             ConverterCheckpoint.readString(in));
+        int attributeCount = in.readInt();
+        for (int i = 0; i < attributeCount; i++) {
+            item.addAttribute(new Attribute(ConverterCheckpoint.readString(in), ConverterCheckpoint.readString(in)));
+        }
+        int referenceCount = in.readInt();
+        for (int i = 0; i < referenceCount; i++) {
+            item.addReference(new Reference(ConverterCheckpoint.readString(in), ConverterCheckpoint.readString(in)));
+        }
+        int collectionCount = in.readInt();
+        for (int i = 0; i < collectionCount; i++) {
+            String name = ConverterCheckpoint.readString(in);
+            item.addCollection(new ReferenceList(name, readStrings(in)));
+        }
+        return item;
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            ConverterCheckpoint.writeString(out, value);
+        }
+    }
+
+    private static List<String> readStrings(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> values = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(ConverterCheckpoint.readString(in));
+        }
+        return values;
+    }
+
+    private static DataOutputStream openOutput(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        return new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(temp),
+                                                                                  1 << 16)));
+    }
+
+    private static void commit(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        if (file.exists() && !file.delete()) {
+            throw new IOException("can't replace " + file);
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("can't rename " + temp + " to " + file);
+        }
+    }
+}
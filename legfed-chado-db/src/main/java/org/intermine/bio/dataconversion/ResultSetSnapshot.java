@@ -0,0 +1,619 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine, NCGR
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A local copy of the result sets a processor reads from chado, see ChadoDBConverter.setResultSetSnapshotDir().
+ * In snapshot mode each result set is read whole from chado and written to a set of files, one per column, then
+ * read back from them; in replay mode the result sets are read from the files without querying chado.
+ *
+ * The column files are gzipped.  Integers are written as the variable-length difference from the previous value
+ * of the column, so ascending ids take a byte or two.  Strings of up to MAX_DICTIONARY_LENGTH characters are
+ * written as their number in a dictionary shared by every result set, longer ones (eg. residues) in full.  The
+ * dictionary is held in memory while the snapshot is made and replayed, so it stops growing at
+ * MAX_DICTIONARY_STRINGS strings or MAX_DICTIONARY_CHARS characters, and the strings that aren't in it by then are
+ * written in full too.  The nulls of each column are kept in a bitmap in the result set's meta file.  The
+ * dictionary is written by close() at the end of a snapshot run, with the settings the snapshot was made for.
+ *
+ * @author Sam Hokin
+ */
+class ResultSetSnapshot
+{
+    private static final Logger LOG = Logger.getLogger(ResultSetSnapshot.class);
+
+    private static final int VERSION = 2;
+    private static final String DICTIONARY = "strings.dict";
+    private static final String META_SUFFIX = ".meta";
+    private static final String COLUMN_SUFFIX = ".col";
+    private static final int MAX_DICTIONARY_LENGTH = 256;
+    private static final int MAX_DICTIONARY_STRINGS = 1 << 22;
+    private static final long MAX_DICTIONARY_CHARS = 1L << 27;
+
+    // the column types; any other JDBC type is kept as a string
+    private static final byte INT = 0;
+    private static final byte LONG = 1;
+    private static final byte BOOLEAN = 2;
+    private static final byte STRING = 3;
+
+    private final File dir;
+    private final boolean replay;
+    private final String config;
+
+    // the dictionary: in snapshot mode the number of each string, in replay mode the strings by number
+    private StringIntHashMap dictionaryNumbers = null;
+    private List<String> dictionaryStrings = null;
+    private String[] dictionary = null;
+    // the characters in the dictionary while the snapshot is made
+    private long dictionaryChars = 0;
+    private boolean dictionaryFull = false;
+
+    /**
+     * Open a snapshot directory.  In snapshot mode, a previous snapshot in the directory is deleted; in replay
+     * mode, the dictionary is read and the snapshot must have been made with the same settings.
+     * @param dir the snapshot directory, created if needed in snapshot mode
+     * @param replay true to read the result sets from the snapshot, false to make one
+     * @param config the converter's settings, eg. the organisms, which must match for a replay
+     * @throws IOException if the directory can't be created or the dictionary can't be read
+     */
+    ResultSetSnapshot(File dir, boolean replay, String config) throws IOException {
+        this.dir = dir;
+        this.replay = replay;
+        this.config = config;
+        if (replay) {
+            readDictionary();
+            return;
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can't create snapshot directory " + dir);
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String fileName = file.getName();
+                if (fileName.equals(DICTIONARY) || fileName.endsWith(META_SUFFIX)
+                    || fileName.endsWith(COLUMN_SUFFIX)) {
+                    if (!file.delete()) {
+                        throw new IOException("can't delete the old snapshot file " + file);
+                    }
+                }
+            }
+        }
+        dictionaryNumbers = new StringIntHashMap(1 << 16);
+        dictionaryStrings = new ArrayList<String>();
+    }
+
+    /**
+     * Return true if the result sets are read from the snapshot instead of chado.
+     * @return true in replay mode
+     */
+    boolean isReplay() {
+        return replay;
+    }
+
+    /**
+     * Write a result set to the snapshot and return a result set that reads it back.  The given result set is
+     * read to the end and closed.
+     * @param name the name of the result set, unique in the snapshot
+     * @param res the result set from chado
+     * @return the result set read from the snapshot
+     * @throws SQLException if the result set can't be read
+     * @throws IOException if the snapshot can't be written
+     */
+    ResultSet record(String name, ResultSet res) throws SQLException, IOException {
+        long start = System.currentTimeMillis();
+        int rowCount = 0;
+        ResultSetMetaData metaData = res.getMetaData();
+        int columnCount = metaData.getColumnCount();
+        String[] columnNames = new String[columnCount];
+        byte[] types = new byte[columnCount];
+        BitSet[] nulls = new BitSet[columnCount];
+        long[] previous = new long[columnCount];
+        DataOutputStream[] outputs = new DataOutputStream[columnCount];
+        try {
+            for (int i = 0; i < columnCount; i++) {
+                columnNames[i] = metaData.getColumnLabel(i + 1);
+                types[i] = getType(metaData.getColumnType(i + 1));
+                nulls[i] = new BitSet();
+                outputs[i] = openOutput(getColumnFile(name, i));
+            }
+            while (res.next()) {
+                for (int i = 0; i < columnCount; i++) {
+                    switch (types[i]) {
+                    case INT:
+                    case LONG:
+                        long number = res.getLong(i + 1);
+                        if (res.wasNull()) {
+                            nulls[i].set(rowCount);
+                        } else {
+                            writeVarLong(outputs[i], number - previous[i]);
+                            previous[i] = number;
+                        }
+                        break;
+                    case BOOLEAN:
+                        boolean bool = res.getBoolean(i + 1);
+                        if (res.wasNull()) {
+                            nulls[i].set(rowCount);
+                        } else {
+                            outputs[i].writeByte(bool ? 1 : 0);
+                        }
+                        break;
+                    default:
+                        String string = res.getString(i + 1);
+                        if (string == null) {
+                            nulls[i].set(rowCount);
+                        } else {
+                            writeString(outputs[i], string);
+                        }
+                    }
+                }
+                rowCount++;
+            }
+        } finally {
+            res.close();
+            for (DataOutputStream out : outputs) {
+                if (out != null) {
+                    out.close();
+                }
+            }
+        }
+        DataOutputStream out = openOutput(getMetaFile(name));
+        try {
+            out.writeInt(VERSION);
+            out.writeInt(rowCount);
+            out.writeInt(columnCount);
+            for (int i = 0; i < columnCount; i++) {
+                out.writeUTF(columnNames[i]);
+                out.writeByte(types[i]);
+                long[] words = nulls[i].toLongArray();
+                out.writeInt(words.length);
+                for (long word : words) {
+                    out.writeLong(word);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        LOG.info("snapshot of " + name + ": " + rowCount + " rows in " + (System.currentTimeMillis() - start) + " ms");
+        return open(name);
+    }
+
+    /**
+     * Return a forward-only result set that reads a result set from the snapshot.  It supports next(), wasNull(),
+     * close(), findColumn() and getInt(), getLong(), getBoolean(), getString() and getObject() by column index or
+     * label; the other methods throw SQLFeatureNotSupportedException.
+     * @param name the name of the result set
+     * @return the result set
+     * @throws IOException if the result set isn't in the snapshot or can't be read
+     */
+    ResultSet open(String name) throws IOException {
+        File metaFile = getMetaFile(name);
+        if (!metaFile.exists()) {
+            throw new IOException("no result set " + name + " in the snapshot in " + dir);
+        }
+        Reader reader;
+        DataInputStream in = openInput(metaFile);
+        try {
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException(metaFile + " has version " + version);
+            }
+            int rowCount = in.readInt();
+            int columnCount = in.readInt();
+            String[] columnNames = new String[columnCount];
+            byte[] types = new byte[columnCount];
+            BitSet[] nulls = new BitSet[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                columnNames[i] = in.readUTF();
+                types[i] = in.readByte();
+                long[] words = new long[in.readInt()];
+                for (int j = 0; j < words.length; j++) {
+                    words[j] = in.readLong();
+                }
+                nulls[i] = BitSet.valueOf(words);
+            }
+            reader = new Reader(name, rowCount, columnNames, types, nulls);
+        } finally {
+            in.close();
+        }
+        return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] {ResultSet.class},
+                                                  reader);
+    }
+
+    /**
+     * Finish a snapshot by writing its dictionary.  Does nothing in replay mode.
+     * @throws IOException if the dictionary can't be written
+     */
+    synchronized void close() throws IOException {
+        if (replay) {
+            return;
+        }
+        File file = new File(dir, DICTIONARY);
+        DataOutputStream out = openOutput(file);
+        try {
+            out.writeInt(VERSION);
+            ConverterCheckpoint.writeString(out, config);
+            out.writeInt(dictionaryStrings.size());
+            for (String string : dictionaryStrings) {
+                ConverterCheckpoint.writeString(out, string);
+            }
+        } finally {
+            out.close();
+        }
+        LOG.info("wrote the snapshot in " + dir + " with " + dictionaryStrings.size() + " dictionary strings");
+    }
+
+    private void readDictionary() throws IOException {
+        File file = new File(dir, DICTIONARY);
+        if (!file.exists()) {
+            throw new IOException("no complete snapshot in " + dir);
+        }
+        DataInputStream in = openInput(file);
+        try {
+            int version = in.readInt();
+            String snapshotConfig = ConverterCheckpoint.readString(in);
+            if (version != VERSION) {
+                throw new IOException(file + " has version " + version);
+            }
+            if (!config.equals(snapshotConfig)) {
+                throw new IOException("the snapshot in " + dir + " was made for " + snapshotConfig + ", not " + config);
+            }
+            dictionary = new String[in.readInt()];
+            for (int i = 0; i < dictionary.length; i++) {
+                dictionary[i] = ConverterCheckpoint.readString(in);
+            }
+        } finally {
+            in.close();
+        }
+        LOG.info("replaying the snapshot in " + dir + " with " + dictionary.length + " dictionary strings");
+    }
+
+    private static byte getType(int sqlType) {
+        switch (sqlType) {
+        case Types.INTEGER:
+        case Types.SMALLINT:
+        case Types.TINYINT:
+            return INT;
+        case Types.BIGINT:
+            return LONG;
+        case Types.BIT:
+        case Types.BOOLEAN:
+            return BOOLEAN;
+        default:
+            return STRING;
+        }
+    }
+
+    // a string is 0 followed by the string in full, or its number in the dictionary plus one
+    private void writeString(DataOutputStream out, String string) throws IOException {
+        if (string.length() > MAX_DICTIONARY_LENGTH) {
+            writeVarLong(out, 0);
+            ConverterCheckpoint.writeString(out, string);
+            return;
+        }
+        int number;
+        synchronized (this) {
+            number = dictionaryNumbers.get(string);
+            if (number < 0) {
+                if (dictionaryStrings.size() >= MAX_DICTIONARY_STRINGS
+                    || dictionaryChars + string.length() > MAX_DICTIONARY_CHARS) {
+                    if (!dictionaryFull) {
+                        dictionaryFull = true;
+                        LOG.info("the snapshot dictionary is full at " + dictionaryStrings.size() + " strings, "
+                                 + "writing new strings in full");
+                    }
+                    writeVarLong(out, 0);
+                    ConverterCheckpoint.writeString(out, string);
+                    return;
+                }
+                number = dictionaryStrings.size();
+                dictionaryNumbers.putIfAbsent(string, number);
+                dictionaryStrings.add(string);
+                dictionaryChars += string.length();
+            }
+        }
+        writeVarLong(out, number + 1);
+    }
+
+    private String readString(DataInputStream in) throws IOException {
+        int code = (int) readVarLong(in);
+        if (code == 0) {
+            return ConverterCheckpoint.readString(in);
+        }
+        if (replay) {
+            return dictionary[code - 1];
+        }
+        // a result set read back while the snapshot is made
+        synchronized (this) {
+            return dictionaryStrings.get(code - 1);
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            out.writeByte((int) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        out.writeByte((int) zigzag);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long zigzag = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readByte();
+            zigzag |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    private File getMetaFile(String name) {
+        return new File(dir, name + META_SUFFIX);
+    }
+
+    private File getColumnFile(String name, int column) {
+        return new File(dir, name + "." + column + COLUMN_SUFFIX);
+    }
+
+    private static DataInputStream openInput(File file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file), 1 << 16)));
+    }
+
+    private static DataOutputStream openOutput(File file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file), 1 << 16)));
+    }
+
+    /**
+     * The ResultSet methods of a result set read from the snapshot, reading each column file in step.
+     */
+    private class Reader implements InvocationHandler
+    {
+        private final String name;
+        private final int rowCount;
+        private final byte[] types;
+        private final BitSet[] nulls;
+        private final Map<String, Integer> columnIndexes = new HashMap<String, Integer>();
+        private final DataInputStream[] inputs;
+        // the values of the current row, numbers and booleans (as 0 or 1) in one array and strings in the other
+        private final long[] numbers;
+        private final String[] strings;
+        private int row = -1;
+        private boolean wasNull = false;
+        private boolean closed = false;
+
+        Reader(String name, int rowCount, String[] columnNames, byte[] types, BitSet[] nulls) throws IOException {
+            this.name = name;
+            this.rowCount = rowCount;
+            this.types = types;
+            this.nulls = nulls;
+            numbers = new long[types.length];
+            strings = new String[types.length];
+            inputs = new DataInputStream[types.length];
+            try {
+                for (int i = 0; i < types.length; i++) {
+                    // JDBC labels are case-insensitive and the first of a duplicated label is used
+                    String label = columnNames[i].toLowerCase();
+                    if (!columnIndexes.containsKey(label)) {
+                        columnIndexes.put(label, Integer.valueOf(i + 1));
+                    }
+                    inputs[i] = openInput(getColumnFile(name, i));
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String methodName = method.getName();
+            if (methodName.equals("next")) {
+                return Boolean.valueOf(next());
+            }
+            if (methodName.equals("close")) {
+                close();
+                return null;
+            }
+            if (methodName.equals("isClosed")) {
+                return Boolean.valueOf(closed);
+            }
+            if (methodName.equals("wasNull")) {
+                return Boolean.valueOf(wasNull);
+            }
+            if (methodName.equals("findColumn")) {
+                return Integer.valueOf(findColumn((String) args[0]));
+            }
+            if (methodName.equals("equals")) {
+                return Boolean.valueOf(proxy == args[0]);
+            }
+            if (methodName.equals("hashCode")) {
+                return Integer.valueOf(System.identityHashCode(proxy));
+            }
+            if (methodName.equals("toString")) {
+                return "snapshot result set " + name;
+            }
+            if (methodName.equals("setFetchSize") || methodName.equals("setFetchDirection")) {
+                return null;
+            }
+            if (args != null && args.length == 1 && methodName.startsWith("get")) {
+                int column = (args[0] instanceof String) ? findColumn((String) args[0]) : ((Integer) args[0]).intValue();
+                if (methodName.equals("getInt")) {
+                    return Integer.valueOf((int) getNumber(column));
+                }
+                if (methodName.equals("getLong")) {
+                    return Long.valueOf(getNumber(column));
+                }
+                if (methodName.equals("getBoolean")) {
+                    return Boolean.valueOf(getBoolean(column));
+                }
+                if (methodName.equals("getString")) {
+                    return getString(column);
+                }
+                if (methodName.equals("getObject")) {
+                    return getObject(column);
+                }
+            }
+            throw new SQLFeatureNotSupportedException(methodName + " isn't supported by a snapshot result set");
+        }
+
+        private boolean next() throws SQLException {
+            if (closed) {
+                throw new SQLException("snapshot result set " + name + " is closed");
+            }
+            if (row + 1 >= rowCount) {
+                row = rowCount;
+                return false;
+            }
+            row++;
+            try {
+                for (int i = 0; i < types.length; i++) {
+                    if (nulls[i].get(row)) {
+                        continue;
+                    }
+                    switch (types[i]) {
+                    case INT:
+                    case LONG:
+                        numbers[i] += readVarLong(inputs[i]);
+                        break;
+                    case BOOLEAN:
+                        numbers[i] = inputs[i].readByte();
+                        break;
+                    default:
+                        strings[i] = readString(inputs[i]);
+                    }
+                }
+            } catch (IOException e) {
+                throw new SQLException("failed to read row " + row + " of snapshot result set " + name, e);
+            }
+            return true;
+        }
+
+        private void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (DataInputStream in : inputs) {
+                if (in != null) {
+                    in.close();
+                }
+            }
+        }
+
+        private int findColumn(String label) throws SQLException {
+            Integer index = columnIndexes.get(label.toLowerCase());
+            if (index == null) {
+                throw new SQLException("no column " + label + " in snapshot result set " + name);
+            }
+            return index.intValue();
+        }
+
+        // return the 0-based index of a column of the current row, setting wasNull
+        private int getColumn(int column) throws SQLException {
+            if (row < 0 || row >= rowCount) {
+                throw new SQLException("snapshot result set " + name + " isn't on a row");
+            }
+            if (column < 1 || column > types.length) {
+                throw new SQLException("no column " + column + " in snapshot result set " + name);
+            }
+            wasNull = nulls[column - 1].get(row);
+            return column - 1;
+        }
+
+        private long getNumber(int column) throws SQLException {
+            int i = getColumn(column);
+            if (wasNull) {
+                return 0;
+            }
+            if (types[i] == STRING) {
+                try {
+                    return Long.parseLong(strings[i].trim());
+                } catch (NumberFormatException e) {
+                    throw new SQLException("column " + column + " of snapshot result set " + name
+                                           + " isn't a number: " + strings[i]);
+                }
+            }
+            return numbers[i];
+        }
+
+        private boolean getBoolean(int column) throws SQLException {
+            int i = getColumn(column);
+            if (wasNull) {
+                return false;
+            }
+            if (types[i] == STRING) {
+                String value = strings[i].trim();
+                return value.equals("t") || value.equalsIgnoreCase("true") || value.equals("1");
+            }
+            return numbers[i] != 0;
+        }
+
+        private String getString(int column) throws SQLException {
+            int i = getColumn(column);
+            if (wasNull) {
+                return null;
+            }
+            switch (types[i]) {
+            case INT:
+            case LONG:
+                return String.valueOf(numbers[i]);
+            case BOOLEAN:
+                return (numbers[i] != 0) ? "t" : "f";
+            default:
+                return strings[i];
+            }
+        }
+
+        private Object getObject(int column) throws SQLException {
+            int i = getColumn(column);
+            if (wasNull) {
+                return null;
+            }
+            switch (types[i]) {
+            case INT:
+                return Integer.valueOf((int) numbers[i]);
+            case LONG:
+                return Long.valueOf(numbers[i]);
+            case BOOLEAN:
+                return Boolean.valueOf(numbers[i] != 0);
+            default:
+                return strings[i];
+            }
+        }
+    }
+}
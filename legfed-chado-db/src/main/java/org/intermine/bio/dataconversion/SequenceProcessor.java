@@ -10,12 +10,19 @@ package org.intermine.bio.dataconversion;
  *
  */
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -24,6 +31,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.collections.keyvalue.MultiKey;
 import org.apache.commons.collections.map.MultiKeyMap;
@@ -32,6 +41,7 @@ import org.apache.log4j.Logger;
 import org.intermine.bio.chado.config.ConfigAction;
 import org.intermine.bio.chado.config.CreateSynonymAction;
 import org.intermine.bio.chado.config.DoNothingAction;
+import org.intermine.bio.chado.config.MatchResult;
 import org.intermine.bio.chado.config.SetFieldConfigAction;
 import org.intermine.bio.util.OrganismData;
 import org.intermine.metadata.ClassDescriptor;
@@ -67,16 +77,25 @@ public class SequenceProcessor extends ChadoProcessor {
 	
     private static final Logger LOG = Logger.getLogger(SequenceProcessor.class);
 
-    // set true for extra verbose debug lines
-    private static final boolean DEBUG = true;
+    // the chado tables read, see ChadoProcessor.getSourceTables()
+    private static final String[] SOURCE_TABLES = {
+        "feature", "featureloc", "feature_relationship", "feature_dbxref", "dbxref", "feature_synonym", "synonym",
+        "featureprop", "feature_cvterm", "cvterm", "feature_pub", "pub", "featuremap"
+    };
+
+    // the number of debug lines offered to sampleDebug(), for sampling 1 in ChadoDBConverter.getDebugSampleRate()
+    private final AtomicLong debugLineCount = new AtomicLong();
     
     // a map from chado feature id to FeatureData objects, populated by processFeatureTable()
-    // and used to get object types, Item IDs etc. (see FeatureData)
-    protected Map<Integer, FeatureData> featureMap = new HashMap<Integer, FeatureData>();
+    // and used to get object types, Item IDs etc. (see FeatureData and FeatureDataRegistry)
+    protected FeatureDataRegistry featureMap = new FeatureDataRegistry();
 
     // we don't configure anything by default, so the process methods do their default actions
     private static final MultiKeyMap DEFAULT_CONFIG = new MultiKeyMap();
 
+    // the config of each organism compiled by getDispatchTable(), keyed by taxon id
+    private final Map<String, ConfigDispatchTable> dispatchTables = new ConcurrentHashMap<String, ConfigDispatchTable>();
+
     // A map from sourceFeature uniqueName to chado feature_ids, populated by processFeatureTable()
     private Map<Integer, Map<String, Integer>> sourceFeatureMaps = new HashMap<Integer, Map<String, Integer>>();
 
@@ -110,11 +129,32 @@ public class SequenceProcessor extends ChadoProcessor {
     private static final String[] SRC_FEATURE_IM_LOCATIONS =  { "chromosomeLocation", "supercontigLocation" }; 
 	
     // Avoid explosion of log messages by only logging missing collections once
-    private Set<String> loggedMissingCols = new HashSet<String>();
+    private Set<String> loggedMissingCols = Collections.synchronizedSet(new HashSet<String>());
 
     // Count specific debug lines
     private HashMap<String, Integer> debugLineMap = new HashMap<String, Integer>();
 
+    // the chado types of the stored features that can have a sequence, populated by processFeatureTable()
+    private Set<String> sequenceFeatureTypes = Collections.synchronizedSet(new HashSet<String>());
+
+    // residues longer than this are read from chado in substr() windows of this many characters
+    private static final int SEQUENCE_CHUNK_SIZE = 1 << 20;
+
+    // true if the organism phases run concurrently, see ChadoDBConverter.setOrganismThreads()
+    private boolean partitioned = false;
+
+    // true if other connections need to read the feature temp table
+    private boolean sharedTempTable = false;
+
+    // the striped locks returned by featureLock()
+    private static final int FEATURE_LOCK_BITS = 6;
+    private final Object[] featureLocks = new Object[1 << FEATURE_LOCK_BITS];
+    {
+        for (int i = 0; i < featureLocks.length; i++) {
+            featureLocks[i] = new Object();
+        }
+    }
+
     /**
      * An action that makes a synonym.
      */
@@ -146,6 +186,10 @@ public class SequenceProcessor extends ChadoProcessor {
         synchronized (this) {
             tempFeatureTableName  = TEMP_FEATURE_TABLE_NAME_PREFIX+"_"+System.currentTimeMillis()/1000L;
         }
+        if (chadoDBConverter.getFeatureHeapBudget() > 0) {
+            featureMap = new SpillingFeatureDataRegistry(chadoDBConverter.getFeatureSpillDir(),
+                                                         chadoDBConverter.getFeatureHeapBudget());
+        }
     }
 
     /**
@@ -154,7 +198,9 @@ public class SequenceProcessor extends ChadoProcessor {
      * @param initialMap map of chado feature id to FeatureData objects
      */
     protected void initialiseFeatureMap(Map<Integer, FeatureData> initialMap) {
-        featureMap.putAll(initialMap);
+        synchronized (getChadoDBConverter()) {
+            featureMap.putAll(initialMap);
+        }
     }
 
     /**
@@ -167,72 +213,412 @@ public class SequenceProcessor extends ChadoProcessor {
         return DEFAULT_CONFIG;
     }
 
+    /**
+     * Return the config of a feature's organism compiled for the per-row lookups, compiling it from getConfig()
+     * the first time it's needed.
+     * @param fdat the FeatureData of the feature
+     * @return the compiled config
+     */
+    private ConfigDispatchTable getDispatchTable(FeatureData fdat) {
+        String taxonId = fdat.getOrganismData().getTaxonId();
+        ConfigDispatchTable dispatchTable = dispatchTables.get(taxonId);
+        if (dispatchTable == null) {
+            // two threads may both compile it, which is harmless
+            dispatchTable = new ConfigDispatchTable(getConfig(taxonId), getChadoDBConverter().getDataSourceName());
+            dispatchTables.put(taxonId, dispatchTable);
+        }
+        return dispatchTable;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected String[] getSourceTables() {
+        return SOURCE_TABLES;
+    }
+
+    /**
+     * Its features, publications and source features are saved by writeCheckpoint().
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean isCheckpointable() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void remapObjectIds(IntIntHashMap objectIds) {
+        for (Map.Entry<Integer, FeatureData> entry : featureMap.entrySet()) {
+            FeatureData fdat = entry.getValue();
+            int objectId = objectIds.get(fdat.getIntermineObjectId().intValue());
+            if (objectId < 0) {
+                throw new IllegalStateException("feature " + entry.getKey() + " has object id "
+                                                + fdat.getIntermineObjectId() + " which wasn't replayed");
+            }
+            fdat.setIntermineObjectId(Integer.valueOf(objectId));
+        }
+    }
+
     /**
      * {@inheritDoc}
      * We process the chado database by reading each table in turn (feature, pub, featureloc, etc.)
      * Each row of each table is read and stored if appropriate.
+     * The phases are run by a PhaseScheduler: if ChadoDBConverter.getPhaseThreads() is more than one the phases
+     * that only depend on the features run concurrently.  If ChadoDBConverter.getOrganismThreads() is more than
+     * one, the feature, location, relation, dbxref and synonym phases are also partitioned by organism_id and the
+     * partitions run concurrently.  Both are ignored if ChadoDBConverter.getFeatureHeapBudget() is set and the
+     * features may be spilled to disk.
      */
     @Override
     public void process(Connection connection) throws Exception {
+        ConverterStats stats = getChadoDBConverter().getStats();
+        // a spilling registry may replace a feature that another thread holds, so run everything serially
+        boolean spilling = featureMap instanceof SpillingFeatureDataRegistry;
+        int organismThreads = spilling ? 1 : getChadoDBConverter().getOrganismThreads();
+        int phaseThreads = spilling ? 1 : getChadoDBConverter().getPhaseThreads();
+        if (spilling && (getChadoDBConverter().getOrganismThreads() > 1
+                         || getChadoDBConverter().getPhaseThreads() > 1)) {
+            LOG.warn("featureHeapBudget is set, ignoring organismThreads and phaseThreads");
+        }
+        // a result set snapshot has one result set per query for all organisms, so the organisms aren't partitioned
+        ResultSetSnapshot snapshot = getChadoDBConverter().getResultSetSnapshot();
+        boolean replaying = snapshot != null && snapshot.isReplay();
+        if (snapshot != null && organismThreads > 1) {
+            LOG.warn("resultSetSnapshotDir is set, ignoring organismThreads");
+            organismThreads = 1;
+        }
+        partitioned = organismThreads > 1 && connection != null;
+        sharedTempTable = connection != null && (organismThreads > 1 || phaseThreads > 1);
+
         // overridden by subclasses if necessary
-        earlyExtraProcessing(connection); if (DEBUG) logDebugLines();
-		
-        createFeatureTempTable(connection); if (DEBUG) logDebugLines();
-
-        processFeatureTable(connection); if (DEBUG) logDebugLines();
-        processFeatureCVTermTable(connection); if (DEBUG) logDebugLines();
-        processPubTable(connection); if (DEBUG) logDebugLines();
-        processLocationTable(connection); if (DEBUG) logDebugLines();
-        processRelationTable(connection, true); if (DEBUG) logDebugLines();
-        processRelationTable(connection, false); if (DEBUG) logDebugLines();
-        processDbxrefTable(connection); if (DEBUG) logDebugLines();
-        processSynonymTable(connection); if (DEBUG) logDebugLines();
-        processFeaturePropTable(connection); if (DEBUG) logDebugLines();
+        ConverterStats.Phase phase = stats.startPhase("earlyExtraProcessing");
+        earlyExtraProcessing(connection); endPhase(phase);
+
+        if (!replaying) {
+            phase = stats.startPhase("createFeatureTempTable");
+            createFeatureTempTable(connection); endPhase(phase);
+        }
+
+        // the feature table must be read first.  The phases after it only read featureMap and emit items, and the
+        // per-feature flags and synonyms they set are written under the feature locks, so they depend on nothing else
+        // and are added in the order they run serially
+        PhaseScheduler phases = new PhaseScheduler(this, phaseThreads);
+        phases.add("processFeatureTable", organismPhase("processFeatureTable", new PartitionTask() {
+            public void process(Connection phaseConnection, Integer organismId) throws Exception {
+                processFeatureTable(phaseConnection, organismId);
+            }
+        }));
+        phases.add("processSequenceTable", new PartitionTask() {
+            public void process(Connection phaseConnection, Integer partition) throws Exception {
+                LOG.info(featureMap.getMemoryReport());
+                processSequenceTable(phaseConnection);
+            }
+        }, "processFeatureTable");
+        phases.add("processFeatureCVTermTable", new PartitionTask() {
+            public void process(Connection phaseConnection, Integer partition) throws Exception {
+                processFeatureCVTermTable(phaseConnection);
+            }
+        }, "processFeatureTable");
+        phases.add("processPubTable", new PartitionTask() {
+            public void process(Connection phaseConnection, Integer partition) throws Exception {
+                processPubTable(phaseConnection);
+            }
+        }, "processFeatureTable");
+        phases.add("processLocationTable", organismPhase("processLocationTable", new PartitionTask() {
+            public void process(Connection phaseConnection, Integer organismId) throws Exception {
+                processLocationTable(phaseConnection, organismId);
+            }
+        }), "processFeatureTable");
+        phases.add("processRelationTable", organismPhase("processRelationTable", new PartitionTask() {
+            public void process(Connection phaseConnection, Integer organismId) throws Exception {
+                processRelationTable(phaseConnection, organismId);
+            }
+        }), "processFeatureTable");
+        phases.add("processDbxrefTable", organismPhase("processDbxrefTable", new PartitionTask() {
+            public void process(Connection phaseConnection, Integer organismId) throws Exception {
+                processDbxrefTable(phaseConnection, organismId);
+            }
+        }), "processFeatureTable");
+        phases.add("processSynonymTable", organismPhase("processSynonymTable", new PartitionTask() {
+            public void process(Connection phaseConnection, Integer organismId) throws Exception {
+                processSynonymTable(phaseConnection, organismId);
+            }
+        }), "processFeatureTable");
+        phases.add("processFeaturePropTable", new PartitionTask() {
+            public void process(Connection phaseConnection, Integer partition) throws Exception {
+                processFeaturePropTable(phaseConnection);
+            }
+        }, "processFeatureTable");
+        phases.run(connection);
+        logDebugLines();
+        LOG.info(featureMap.getMemoryReport());
 
         // overridden by subclasses if necessary
-        extraProcessing(connection, featureMap); if (DEBUG) logDebugLines();
+        phase = stats.startPhase("extraProcessing");
+        extraProcessing(connection, featureMap); endPhase(phase);
         // overridden by subclasses if necessary
-        finishedProcessing(connection, featureMap); if (DEBUG) logDebugLines();
+        phase = stats.startPhase("finishedProcessing");
+        finishedProcessing(connection, featureMap); endPhase(phase);
+    }
+
+    /**
+     * Wrap a phase that can be partitioned by organism: it runs once per organism on separate connections if
+     * we're partitioned, otherwise once for all organisms on the phase's connection.
+     * @param phase the name of the phase
+     * @param task the phase, given an organism_id or null for all organisms
+     * @return the phase for the PhaseScheduler
+     */
+    private PartitionTask organismPhase(final String phase, final PartitionTask task) {
+        return new PartitionTask() {
+            public void process(Connection connection, Integer partition) throws Exception {
+                if (partitioned) {
+                    List<Integer> organismIds = new ArrayList<Integer>(getChadoDBConverter().getChadoIdToOrgDataMap().keySet());
+                    Collections.sort(organismIds);
+                    runPartitioned(phase, organismIds, task);
+                } else {
+                    task.process(connection, null);
+                }
+            }
+        };
+    }
+
+    /**
+     * Return the lock guarding the mutable state (flags, synonyms) of a feature's FeatureData while phases run
+     * concurrently.  The locks are striped so that features share a small fixed set of them.
+     * @param featureId the chado feature_id
+     * @return the lock
+     */
+    private Object featureLock(Integer featureId) {
+        return featureLocks[(featureId.intValue() * 0x9E3779B9) >>> (32 - FEATURE_LOCK_BITS)];
+    }
+
+    /**
+     * End a phase that runs outside the PhaseScheduler, logging the debug lines it produced.
+     * @param phase the phase
+     */
+    private void endPhase(ConverterStats.Phase phase) {
+        logDebugLines();
+        getChadoDBConverter().getStats().endPhase(phase);
     }
 
     /**
      * Query the feature table and store features as object of the appropriate type in the
      * object store.
      * @param connection
+     * @param organismId the chado organism_id to process, null for all organisms
      * @throws SQLException
      * @throws ObjectStoreException
      */
-    private void processFeatureTable(Connection connection) throws SQLException, ObjectStoreException {
+    private void processFeatureTable(Connection connection, Integer organismId) throws SQLException, ObjectStoreException {
+        ResultSet res = getFeatureTableResultSet(connection, organismId);
+        try {
+            processFeatureRows(res);
+        } finally {
+            res.close();
+        }
+    }
+
+    /**
+     * Create the features in the rows returned by getFeatureTableResultSet().
+     * @param res the result set
+     * @throws SQLException if there is a problem while reading
+     * @throws ObjectStoreException if there is a problem while storing
+     */
+    private void processFeatureRows(ResultSet res) throws SQLException, ObjectStoreException {
 	Set<String> sourceFeatureTypesSet = new HashSet<String>(SRC_FEATURE_TYPES);
-        ResultSet res = getFeatureTableResultSet(connection);
         int count = 0;
+        int rows = 0;
+        long start = System.currentTimeMillis();
         while (res.next()) {
+            rows++;
             // load vars from the ResultSet
             Integer featureId = new Integer(res.getInt("feature_id"));
             String name = res.getString("name");
             String uniqueName = res.getString("uniquename");
             String type = res.getString("type");
-            String residues = res.getString("residues");
             String checksum = res.getString("md5checksum");
-            Integer organismId = new Integer(res.getInt("organism_id"));
+            Integer featureOrganismId = new Integer(res.getInt("organism_id"));
             if (sourceFeatureTypesSet.contains(type)) {
-                addToSourceFeatureMaps(organismId, uniqueName, featureId);
+                addToSourceFeatureMaps(featureOrganismId, uniqueName, featureId);
             }
             int seqlen = res.getInt("seqlen"); // zero if missing
             // process and store this feature
-            if (processAndStoreFeature(featureId, uniqueName, name, seqlen, residues, checksum, type, organismId)) {
+            if (processAndStoreFeature(featureId, uniqueName, name, seqlen, checksum, type, featureOrganismId)) {
 		count++;
 	    }
         }
-        LOG.info("created " + count + " features");
-        res.close();
+        countRows(rows);
+        long millis = Math.max(1, System.currentTimeMillis() - start);
+        LOG.info("created " + count + " features from " + rows + " rows in " + millis + " ms ("
+                 + (rows * 1000L / millis) + " rows/sec)");
+    }
+
+    /**
+     * Query the residues of the stored features that can have a sequence and store them as Sequence items.
+     * The residues are not in the temp table; short ones come back with the query while long ones (chromosomes,
+     * supercontigs) are read in SEQUENCE_CHUNK_SIZE windows so the driver never holds a whole chromosome at once.
+     * With a result set snapshot the windows are rows of a result set per feature, so they are written to and
+     * replayed from the snapshot a window at a time too.
+     * @param connection
+     * @throws SQLException
+     * @throws ObjectStoreException
+     */
+    private void processSequenceTable(Connection connection) throws SQLException, ObjectStoreException {
+        if (sequenceFeatureTypes.isEmpty()) {
+            LOG.info("no stored features can have a sequence, skipping residues");
+            return;
+        }
+        ResultSet res = getSequenceResultSet(connection);
+        PreparedStatement chunkStmt = null;
+        // a snapshot of the windows streams them from chado only in a transaction
+        ResultSetSnapshot snapshot = getChadoDBConverter().getResultSetSnapshot();
+        boolean autoCommit = snapshot != null && !snapshot.isReplay() && connection.getAutoCommit();
+        if (autoCommit) {
+            connection.setAutoCommit(false);
+        }
+        try {
+            int count = 0;
+            int chunkedCount = 0;
+            int rows = 0;
+            while (res.next()) {
+                rows++;
+                Integer featureId = new Integer(res.getInt("feature_id"));
+                int residuesLength = res.getInt("residues_length");
+                FeatureData fdat = featureMap.get(featureId);
+                if (fdat == null || residuesLength == 0 || !fdat.checkField(SEQUENCE_STRING) || fdat.getFlag(SEQUENCE_STRING)) {
+                    continue;
+                }
+                String residues;
+                if (residuesLength <= SEQUENCE_CHUNK_SIZE) {
+                    residues = res.getString("residues");
+                } else if (snapshot != null) {
+                    residues = getSnapshotResidues(connection, featureId.intValue(), residuesLength);
+                    chunkedCount++;
+                } else {
+                    if (chunkStmt == null) {
+                        chunkStmt = connection.prepareStatement("SELECT convert_to(substr(residues, ?, ?), 'UTF8') FROM feature WHERE feature_id = ?");
+                    }
+                    residues = getChunkedResidues(chunkStmt, featureId.intValue(), residuesLength);
+                    chunkedCount++;
+                }
+                Item sequence = getChadoDBConverter().createItem("Sequence");
+                sequence.setAttribute("residues", residues);
+                sequence.setAttribute("length", String.valueOf(res.getInt("seqlen")));
+                Reference chrReference = new Reference();
+                chrReference.setName(SEQUENCE_STRING);
+                chrReference.setRefId(sequence.getIdentifier());
+                store(chrReference, fdat.getIntermineObjectId());
+                store(sequence);
+                synchronized (featureLock(featureId)) {
+                    fdat.setFlag(SEQUENCE_STRING, true);
+                }
+                count++;
+            }
+            countRows(rows);
+            LOG.info("created " + count + " sequences, " + chunkedCount + " of them read in chunks of " + SEQUENCE_CHUNK_SIZE);
+        } finally {
+            res.close();
+            if (chunkStmt != null) {
+                chunkStmt.close();
+            }
+            if (autoCommit) {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Read the residues of a long feature through the result set snapshot, as a result set with a row for each
+     * SEQUENCE_CHUNK_SIZE window, fetched from chado one row at a time.  Neither the snapshot nor its replay holds
+     * the sequence as one value; as in getChunkedResidues() each window is copied as UTF-8 bytes into one buffer of
+     * residuesLength bytes, which is decoded once into the returned String.
+     * @param connection the db connection, in a transaction if the snapshot is being made
+     * @param featureId the chado feature_id
+     * @param residuesLength the octet_length() of the residues in chado
+     * @return the residues
+     * @throws SQLException
+     */
+    private String getSnapshotResidues(Connection connection, int featureId, int residuesLength) throws SQLException {
+        byte[] residues = new byte[residuesLength];
+        int length = 0;
+        ResultSet res = executeSnapshotQuery(connection, 1, "residues",
+                                             "SELECT substr(f.residues, w.start, " + SEQUENCE_CHUNK_SIZE + ") AS chunk"
+                                             + " FROM feature f, generate_series(1, length(f.residues), " + SEQUENCE_CHUNK_SIZE + ") AS w(start)"
+                                             + " WHERE f.feature_id = ? ORDER BY w.start",
+                                             featureId);
+        try {
+            while (res.next()) {
+                String chunk = res.getString("chunk");
+                if (chunk == null || chunk.length() == 0) {
+                    break;
+                }
+                byte[] bytes = chunk.getBytes(StandardCharsets.UTF_8);
+                residues = appendResidues(residues, length, bytes);
+                length += bytes.length;
+            }
+        } finally {
+            res.close();
+        }
+        return new String(residues, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read the residues of a long feature in SEQUENCE_CHUNK_SIZE windows.  The windows come back as UTF-8 bytes and
+     * are copied into one buffer of residuesLength bytes, a byte per base, which is decoded once into the returned
+     * String; no char buffer of the whole sequence is built alongside it.
+     * @param chunkStmt a statement selecting convert_to(substr(residues, start, length), 'UTF8') for a feature_id
+     * @param featureId the chado feature_id
+     * @param residuesLength the octet_length() of the residues in chado
+     * @return the residues
+     * @throws SQLException
+     */
+    private String getChunkedResidues(PreparedStatement chunkStmt, int featureId, int residuesLength) throws SQLException {
+        byte[] residues = new byte[residuesLength];
+        int length = 0;
+        for (int start = 1; length < residues.length; start += SEQUENCE_CHUNK_SIZE) {
+            chunkStmt.setInt(1, start);
+            chunkStmt.setInt(2, SEQUENCE_CHUNK_SIZE);
+            chunkStmt.setInt(3, featureId);
+            byte[] chunk = null;
+            ResultSet res = chunkStmt.executeQuery();
+            try {
+                if (res.next()) {
+                    chunk = res.getBytes(1);
+                }
+            } finally {
+                res.close();
+            }
+            if (chunk == null || chunk.length == 0) {
+                break;
+            }
+            residues = appendResidues(residues, length, chunk);
+            length += chunk.length;
+        }
+        return new String(residues, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Copy a window of residues into the residues buffer after its first length bytes.
+     * @return the buffer, a larger copy if the window doesn't fit
+     */
+    private static byte[] appendResidues(byte[] residues, int length, byte[] chunk) {
+        if (length + chunk.length > residues.length) {
+            // the database encoding isn't UTF-8 and the residues aren't ASCII
+            residues = Arrays.copyOf(residues, length + chunk.length);
+        }
+        System.arraycopy(chunk, 0, residues, length, chunk.length);
+        return residues;
     }
 
 
     /**
      * Add the given sourceFeature feature_id, uniqueName and organismId to sourceFeatureMaps.
      */
-    private void addToSourceFeatureMaps(Integer organismId, String chrUniqueName, Integer chrId) {
+    private synchronized void addToSourceFeatureMaps(Integer organismId, String chrUniqueName, Integer chrId) {
         Map<String, Integer> sourceFeatureMap;
         if (sourceFeatureMaps.containsKey(organismId)) {
             sourceFeatureMap = sourceFeatureMaps.get(organismId);
@@ -250,17 +636,19 @@ public class SequenceProcessor extends ChadoProcessor {
      * @param uniqueName the uniquename from Chado
      * @param name the name from Chado
      * @param seqlen the sequence length from Chado
-     * @param residues the residues from Chado
      * @param md5checksum the MD5 checksum of the residues
      * @param chadoType the type of the feature from the feature + cvterm tables
      * @param organismId the chado organism id
      * @throws ObjectStoreException if there is a problem while storing
      */
-    private boolean processAndStoreFeature(Integer featureId, String uniqueName, String name, int seqlen, String residues, String md5checksum, String chadoType, Integer organismId)
+    private boolean processAndStoreFeature(Integer featureId, String uniqueName, String name, int seqlen, String md5checksum, String chadoType, Integer organismId)
         throws ObjectStoreException {
 		
-        if (featureMap.containsKey(featureId)) {
-            return false;
+        // the registry isn't thread-safe, so partitions write it under the converter's lock, see IntObjectHashMap
+        synchronized (getChadoDBConverter()) {
+            if (featureMap.containsKey(featureId)) {
+                return false;
+            }
         }
 
         FeatureData fdat = makeFeatureData(featureId.intValue(), chadoType, uniqueName, name, md5checksum, seqlen, organismId.intValue());
@@ -275,84 +663,58 @@ public class SequenceProcessor extends ChadoProcessor {
             setAttributeIfNotSet(fdat, "length", String.valueOf(seqlen));
         }
 		
-        ChadoDBConverter chadoDBConverter = getChadoDBConverter();
-        String dataSourceName = chadoDBConverter.getDataSourceName();
-        MultiKey nameKey = new MultiKey("feature", fdat.getInterMineType(), dataSourceName, "name");
-        OrganismData orgData = fdat.getOrganismData();
-        List<ConfigAction> nameActionList = getConfig(orgData.getTaxonId()).get(nameKey);
+        ConfigDispatchTable dispatchTable = getDispatchTable(fdat);
+        ConfigDispatchTable.Actions nameActions = dispatchTable.get(ConfigDispatchTable.FEATURE, fdat.getInterMineType(), "name");
 
         Set<String> fieldValuesSet = new HashSet<String>();
         String fixedName = fixIdentifier(fdat, name);
 
         // using the configuration, set a field to be the feature name
         if (!StringUtils.isBlank(fixedName)) {
-            if (nameActionList == null || nameActionList.size() == 0) {
+            if (nameActions == null || nameActions.isEmpty()) {
                 fieldValuesSet.add(fixedName);
                 setAttributeIfNotSet(fdat, SECONDARY_IDENTIFIER_STRING, fixedName);
             } else {
-                for (ConfigAction action: nameActionList) {
-                    if (action instanceof SetFieldConfigAction) {
-                        SetFieldConfigAction attrAction =
-			    (SetFieldConfigAction) action;
-                        if (attrAction.isValidValue(fixedName)) {
-                            String newFieldValue = attrAction.processValue(fixedName);
-                            setAttributeIfNotSet(fdat, attrAction.getFieldName(), newFieldValue);
-                            fieldValuesSet.add(newFieldValue);
-                        }
+                for (SetFieldConfigAction attrAction: nameActions.setFieldActions) {
+                    MatchResult match = attrAction.match(fixedName);
+                    if (match.isValid()) {
+                        String newFieldValue = match.getValue();
+                        setAttributeIfNotSet(fdat, attrAction.getFieldName(), newFieldValue);
+                        fieldValuesSet.add(newFieldValue);
                     }
                 }
             }
         }
 
-        MultiKey uniqueNameKey = new MultiKey("feature", fdat.getInterMineType(), dataSourceName, "uniquename");
-        List<ConfigAction> uniqueNameActionList = getConfig(fdat.getOrganismData().getTaxonId()).get(uniqueNameKey);
-        if (uniqueNameActionList == null || uniqueNameActionList.size() == 0) {
+        ConfigDispatchTable.Actions uniqueNameActions =
+            dispatchTable.get(ConfigDispatchTable.FEATURE, fdat.getInterMineType(), "uniquename");
+        if (uniqueNameActions == null || uniqueNameActions.isEmpty()) {
             // default: set primaryIdentifier to be the uniquename
             setAttributeIfNotSet(fdat, "primaryIdentifier", fixedUniqueName);
             fieldValuesSet.add(fixedUniqueName);
         } else {
             // using the configuration, set a field to be the feature name
-            for (ConfigAction action: uniqueNameActionList) {
-                if (action instanceof SetFieldConfigAction) {
-                    SetFieldConfigAction attrAction = (SetFieldConfigAction) action;
-                    if (attrAction.isValidValue(fixedUniqueName)) {
-                        String newFieldValue =
-			    attrAction.processValue(fixedUniqueName);
-                        setAttributeIfNotSet(fdat, attrAction.getFieldName(), newFieldValue);
-                        fieldValuesSet.add(newFieldValue);
-                    }
+            for (SetFieldConfigAction attrAction: uniqueNameActions.setFieldActions) {
+                MatchResult match = attrAction.match(fixedUniqueName);
+                if (match.isValid()) {
+                    String newFieldValue = match.getValue();
+                    setAttributeIfNotSet(fdat, attrAction.getFieldName(), newFieldValue);
+                    fieldValuesSet.add(newFieldValue);
                 }
             }
         }
 
-        // set the sequence if there is one
-        if (fdat.checkField(SEQUENCE_STRING) && residues!=null && residues.length()>0) {
-            if (!fdat.getFlag(SEQUENCE_STRING)) {
-                Item sequence = getChadoDBConverter().createItem("Sequence");
-                sequence.setAttribute("residues", residues);
-                sequence.setAttribute("length", String.valueOf(seqlen));
-                Reference chrReference = new Reference();
-                chrReference.setName(SEQUENCE_STRING);
-                chrReference.setRefId(sequence.getIdentifier());
-                store(chrReference, fdat.getIntermineObjectId());
-                store(sequence);
-                fdat.setFlag(SEQUENCE_STRING, true);
-            }
-        }
-
         // create a synonym for name, if configured
         if (!StringUtils.isBlank(name)) {
-            if (nameActionList != null) {
-                for (ConfigAction action : nameActionList) {
-                    if (action instanceof CreateSynonymAction) {
-                        CreateSynonymAction createSynonymAction = (CreateSynonymAction) action;
-                        if (createSynonymAction.isValidValue(fixedName)) {
-                            String processedName = createSynonymAction.processValue(fixedName);
-                            if (!fdat.getExistingSynonyms().contains(processedName)) {
-                                Item nameSynonym = createSynonym(fdat, processedName);
-                                if (nameSynonym != null) {
-                                    store(nameSynonym);
-                                }
+            if (nameActions != null) {
+                for (CreateSynonymAction createSynonymAction : nameActions.createSynonymActions) {
+                    MatchResult match = createSynonymAction.match(fixedName);
+                    if (match.isValid()) {
+                        String processedName = match.getValue();
+                        if (!fdat.hasExistingSynonym(processedName)) {
+                            Item nameSynonym = createSynonym(fdat, processedName);
+                            if (nameSynonym != null) {
+                                store(nameSynonym);
                             }
                         }
                     }
@@ -360,7 +722,13 @@ public class SequenceProcessor extends ChadoProcessor {
             }
         }
 
-        addToFeatureMap(featureId, fdat);
+        if (fdat.checkField(SEQUENCE_STRING)) {
+            sequenceFeatureTypes.add(chadoType);
+        }
+
+        synchronized (getChadoDBConverter()) {
+            addToFeatureMap(featureId, fdat);
+        }
 
         return true;
     }
@@ -408,7 +776,7 @@ public class SequenceProcessor extends ChadoProcessor {
         if (chadoType.equals("polypeptide")) interMineType = "Protein";
         if (chadoType.equals("polypeptide_domain")) interMineType = "ProteinDomain";
 
-        if (DEBUG) debugToLog("makeFeatureData: chadoType="+chadoType+" interMineType="+interMineType);
+        if (sampleDebug()) debugToLog("makeFeatureData: chadoType="+chadoType+" interMineType="+interMineType);
 
         OrganismData organismData = getChadoDBConverter().getChadoIdToOrgDataMap().get(new Integer(organismId));
 
@@ -424,13 +792,15 @@ public class SequenceProcessor extends ChadoProcessor {
         if (feature.checkAttribute("md5checksum") && md5checksum!=null) {
             feature.setAttribute("md5checksum", md5checksum);
         }
-        BioStoreHook.setSOTerm(getChadoDBConverter(), feature, chadoType, getChadoDBConverter().getSequenceOntologyRefId());
+        synchronized (getChadoDBConverter()) {
+            BioStoreHook.setSOTerm(getChadoDBConverter(), feature, chadoType, getChadoDBConverter().getSequenceOntologyRefId());
+        }
         fdat.setFieldExistenceFlags(feature);
         fdat.setIntermineObjectId(store(feature));
         fdat.setItemIdentifier(feature.getIdentifier());
         fdat.setUniqueName(uniqueName);
         fdat.setChadoFeatureName(name);
-        fdat.setInterMineType(feature.getClassName());
+        fdat.setInterMineType(featureMap.intern(feature.getClassName()));
         fdat.organismData = organismData;
         fdat.setMd5checksum(md5checksum);
         return fdat;
@@ -531,12 +901,14 @@ public class SequenceProcessor extends ChadoProcessor {
      * @throws SQLException if there is a problem
      */
     protected void finishedProcessing(Connection connection, Map<Integer, FeatureData> featureDataMap) throws SQLException {
-        // connection will be null for tests
-        if (connection != null) {
+        // connection will be null for tests, and there's no temp table when replaying a result set snapshot
+        ResultSetSnapshot snapshot = getChadoDBConverter().getResultSetSnapshot();
+        if (connection != null && (snapshot == null || !snapshot.isReplay())) {
             String query = "DROP TABLE " + tempFeatureTableName;
             Statement stmt = connection.createStatement();
             LOG.info("executing: " + query);
             stmt.execute(query);
+            stmt.close();
         }
     }
 
@@ -548,10 +920,34 @@ public class SequenceProcessor extends ChadoProcessor {
      * @throws ObjectStoreException if there is a problem while storing
      */
     protected void processLocationTable(Connection connection) throws SQLException, ObjectStoreException {
+        processLocationTable(connection, null);
+    }
+
+    /**
+     * Process the featureloc rows of the features of one organism and create Location objects.
+     * @param connection the Connection
+     * @param organismId the chado organism_id of the located features, null for all organisms
+     * @throws SQLException if there is a problem while querying
+     * @throws ObjectStoreException if there is a problem while storing
+     */
+    protected void processLocationTable(Connection connection, Integer organismId) throws SQLException, ObjectStoreException {
 	LOG.info("processLocationTable:START");
 
-        ResultSet res = getFeatureLocResultSet(connection);
+        ResultSet res = getFeatureLocResultSet(connection, organismId);
+        try {
+            processLocationRows(res);
+        } finally {
+            res.close();
+        }
+    }
 
+    /**
+     * Create Location objects from the rows returned by getFeatureLocResultSet().
+     * @param res the result set
+     * @throws SQLException if there is a problem while reading
+     * @throws ObjectStoreException if there is a problem while storing
+     */
+    private void processLocationRows(ResultSet res) throws SQLException, ObjectStoreException {
 	int count = 0;
         int featureWarnings = 0;
 	// put source feature InterMine reference and location strings into maps
@@ -561,7 +957,9 @@ public class SequenceProcessor extends ChadoProcessor {
 	    srcFeatureIMReferenceMap.put(SRC_FEATURE_IM_CLASSES[i], SRC_FEATURE_IM_REFERENCES[i]);
 	    srcFeatureIMLocationMap.put(SRC_FEATURE_IM_CLASSES[i], SRC_FEATURE_IM_LOCATIONS[i]);
 	}
+        int rows = 0;
         while (res.next()) {
+            rows++;
             Integer featureLocId = new Integer(res.getInt("featureloc_id"));
             Integer featureId = new Integer(res.getInt("feature_id"));
             Integer srcFeatureId = new Integer(res.getInt("srcfeature_id"));
@@ -623,7 +1021,7 @@ public class SequenceProcessor extends ChadoProcessor {
 		// throw new RuntimeException("processLocationTable:srcfeature_id ("+srcFeatureId+") from location "+featureLocId+" was not found in the feature table.");
             }
         } // while res.next()
-	res.close();
+        countRows(rows);
         LOG.info("processLocationTable:DONE, created "+count+" locations.");
     }
 
@@ -642,94 +1040,151 @@ public class SequenceProcessor extends ChadoProcessor {
     }
 
     /**
-     * Use the feature_relationship table to set relations (references and collections) between features.
+     * Use the feature_relationship table to set relations (references and collections) between features.  The
+     * table is read once; the relationships are then grouped by subject and by object in memory and processed
+     * subject first and then object first.  A subclass that overrides the deprecated per-orientation
+     * getFeatureRelationshipResultSet() methods has the table read through them, once per orientation, instead.
      */
-    private void processRelationTable(Connection connection, boolean subjectFirst) throws SQLException, ObjectStoreException {
-	LOG.info("processRelationTable:START; subjectFirst="+subjectFirst);
-		
-        ResultSet res = getFeatureRelationshipResultSet(connection, subjectFirst);
-        Integer lastSubjectId = null;
+    private void processRelationTable(Connection connection, Integer organismId) throws SQLException, ObjectStoreException {
+	LOG.info("processRelationTable:START");
+
+        FeatureRelationships relationships = new FeatureRelationships();
+        int count;
+        if (overridesOrientedRelationshipResultSet()) {
+            count = readRelationships(getOrientedRelationshipResultSet(connection, true, organismId), organismId,
+                                      Boolean.TRUE, relationships)
+                + readRelationships(getOrientedRelationshipResultSet(connection, false, organismId), organismId,
+                                    Boolean.FALSE, relationships);
+        } else {
+            count = readRelationships(getFeatureRelationshipResultSet(connection, organismId), organismId, null,
+                                      relationships);
+        }
+        LOG.info("processRelationTable: read "+count+" relations, "+relationships.size()+" kept");
+
+        processRelationships(relationships, true);
+        processRelationships(relationships, false);
+    }
+
+    /**
+     * Read feature_relationship rows into relationships, skipping undesired relation types and relationships with
+     * a feature that isn't in featureMap.  The result set is closed.
+     * @param res the rows of getFeatureRelationshipResultSet(Connection, Integer), or of one of the deprecated
+     * per-orientation queries
+     * @param organismId the chado organism_id of the partition, null for all organisms
+     * @param subjectFirst null for rows used in both orientations, otherwise the orientation of the deprecated
+     * query the rows come from
+     * @param relationships the relationships to add to
+     * @return the number of rows of desired relation types
+     */
+    private int readRelationships(ResultSet res, Integer organismId, Boolean subjectFirst, FeatureRelationships relationships)
+        throws SQLException {
+        int featureWarnings = 0;
+        int count = 0;
+        try {
+            int rows = 0;
+            while (res.next()) {
+                rows++;
+                int featRelationshipId = res.getInt("feature_relationship_id");
+                int subjectId;
+                int objectId;
+                if (subjectFirst == null) {
+                    subjectId = res.getInt("subject_id");
+                    objectId = res.getInt("object_id");
+                } else if (subjectFirst.booleanValue()) {
+                    subjectId = res.getInt("feature1_id");
+                    objectId = res.getInt("feature2_id");
+                } else {
+                    subjectId = res.getInt("feature2_id");
+                    objectId = res.getInt("feature1_id");
+                }
+                String relationTypeName = res.getString("type_name");
+
+                // skip out if this is an undesired relation
+                if (!DESIRED_RELATIONS.contains(relationTypeName)) {
+                    if (sampleDebug()) debugToLog("processRelationTable: skipped undesired relation "+relationTypeName);
+                    continue;
+                }
+
+                if (!featureMap.containsKey(objectId)) {
+                    // object feature missing from featureMap!
+                    if (featureWarnings<20) LOG.warn("object_id " + objectId + " from feature_relationship " + featRelationshipId + " was not found in the feature table");
+                    if (featureWarnings==20) LOG.warn("further feature_relationship warnings ignored");
+                    featureWarnings++;
+                } else if (!featureMap.containsKey(subjectId)) {
+                    // subject feature missing from featureMap!
+                    if (featureWarnings<20) LOG.warn("subject_id " + subjectId + " from feature_relationship " + featRelationshipId + " was not found in the feature table");
+                    if (featureWarnings==20) LOG.warn("further feature_relationship warnings ignored");
+                    featureWarnings++;
+                } else if (subjectFirst == null) {
+                    // when partitioned, each orientation belongs to the partition of its feature1
+                    boolean subjectOrientation = organismId == null || res.getInt("subject_organism_id") == organismId.intValue();
+                    boolean objectOrientation = organismId == null || res.getInt("object_organism_id") == organismId.intValue();
+                    // special case for part_of type relations - they are directional so only keep subjectFirst
+                    if (PARTOF_RELATIONS.contains(relationTypeName)) {
+                        objectOrientation = false;
+                    }
+                    relationships.add(subjectId, objectId, relationTypeName, subjectOrientation, objectOrientation);
+                } else if (subjectFirst.booleanValue()) {
+                    // the deprecated queries only return the rows whose feature1 is in the partition
+                    relationships.add(subjectId, objectId, relationTypeName, true, false);
+                } else if (!PARTOF_RELATIONS.contains(relationTypeName)) {
+                    relationships.add(subjectId, objectId, relationTypeName, false, true);
+                }
+                count++;
+            }
+            countRows(rows);
+        } finally {
+            res.close();
+        }
+        return count;
+    }
+
+    /**
+     * Create the collections and references for one orientation of the relationships read by
+     * processRelationTable(), one feature1 at a time.
+     * @param relationships the relationships
+     * @param subjectFirst true to group by subject, false to group by object
+     */
+    private void processRelationships(FeatureRelationships relationships, boolean subjectFirst) throws ObjectStoreException {
+        long[] sorted = relationships.sortedBy(subjectFirst);
 
         // Map from relation type to Map from object type to FeatureData - used to collect up all
         // the collection/reference information for ONE subject feature
         Map<String, Map<String, List<FeatureData>>> relTypeMap = new HashMap<String, Map<String, List<FeatureData>>>();
-		
-        int featureWarnings = 0;
+
         int collectionWarnings = 0;
-        int count = 0;
         int collectionTotal = 0;
-
-        while (res.next()) {
-			
-	    // load the data
-            Integer featRelationshipId = new Integer(res.getInt("feature_relationship_id"));
-            Integer firstFeatureId = new Integer(res.getInt("feature1_id"));
-            Integer secondFeatureId = new Integer(res.getInt("feature2_id"));
-            String relationTypeName = res.getString("type_name");
-
-            if (lastSubjectId != null && !firstFeatureId.equals(lastSubjectId)) {
-                if (!processCollectionData(lastSubjectId, relTypeMap, collectionWarnings, subjectFirst)) collectionWarnings++;
-                collectionTotal += relTypeMap.size();
-                relTypeMap = new HashMap<String, Map<String, List<FeatureData>>>();
+        for (int i = 0; i < sorted.length; i++) {
+            int firstFeatureId = FeatureRelationships.getFeature1Id(sorted[i]);
+            int index = FeatureRelationships.getIndex(sorted[i]);
+            int secondFeatureId = subjectFirst ? relationships.getObjectId(index) : relationships.getSubjectId(index);
+            String relationTypeName = relationships.getTypeName(index);
+
+            if (sampleDebug()) debugToLog("processRelationTable: processing relation "+relationTypeName+"; subjectFirst="+subjectFirst);
+
+            FeatureData objectFeatureData = featureMap.get(secondFeatureId);
+            Map<String, List<FeatureData>> objectClassFeatureDataMap = relTypeMap.get(relationTypeName);
+            if (objectClassFeatureDataMap == null) {
+                objectClassFeatureDataMap = new HashMap<String, List<FeatureData>>();
+                relTypeMap.put(relationTypeName, objectClassFeatureDataMap);
             }
-
-	    // skip out if this is an undesired relation
-	    if (!DESIRED_RELATIONS.contains(relationTypeName)) {
-		if (DEBUG) debugToLog("processRelationTable: skipped undesired relation "+relationTypeName);
-		continue;
-	    }
-			
-	    // special case for part_of type relations - they are directional so only keep subjectFirst
-            if (PARTOF_RELATIONS.contains(relationTypeName) && !subjectFirst) {
-		if (DEBUG) debugToLog("processRelationTable: skipped relation "+relationTypeName+" because subjectFirst="+subjectFirst);
-                continue;
+            String objectFeatureType = objectFeatureData.getInterMineType();
+            List<FeatureData> featureDataList = objectClassFeatureDataMap.get(objectFeatureType);
+            if (featureDataList == null) {
+                featureDataList = new ArrayList<FeatureData>();
+                objectClassFeatureDataMap.put(objectFeatureType, featureDataList);
             }
+            featureDataList.add(objectFeatureData);
 
-	    if (DEBUG) debugToLog("processRelationTable: processing relation "+relationTypeName+"; subjectFirst="+subjectFirst);
-
-            if (featureMap.containsKey(firstFeatureId) && featureMap.containsKey(secondFeatureId)) {
-		// both first and second feature found in featureMap
-		FeatureData objectFeatureData = featureMap.get(secondFeatureId);
-		Map<String, List<FeatureData>> objectClassFeatureDataMap;
-		if (relTypeMap.containsKey(relationTypeName)) {
-		    objectClassFeatureDataMap = relTypeMap.get(relationTypeName);
-		} else {	
-		    // THIS ALWAYS HAPPENS
-		    objectClassFeatureDataMap = new HashMap<String, List<FeatureData>>();
-		    relTypeMap.put(relationTypeName, objectClassFeatureDataMap);
-		}
-		List<FeatureData> featureDataList;
-		String objectFeatureType = objectFeatureData.getInterMineType();
-		if (objectClassFeatureDataMap.containsKey(objectFeatureType)) {
-		    featureDataList = objectClassFeatureDataMap.get(objectFeatureType);
-		} else {
-		    // THIS ALWAYS HAPPENS
-		    featureDataList = new ArrayList<FeatureData>();
-		    objectClassFeatureDataMap.put(objectFeatureType, featureDataList);
-		}
-		featureDataList.add(objectFeatureData);
-	    } else if (!featureMap.containsKey(secondFeatureId)) {
-		// second feature missing from featureMap!
-		if (featureWarnings<20) LOG.warn("object_id " + secondFeatureId + " from feature_relationship " + featRelationshipId + " was not found in the feature table");
-		if (featureWarnings==20) LOG.warn("further feature_relationship warnings ignored");
-		featureWarnings++;
-	    } else {
-		// first feature missing from featureMap!
-                if (featureWarnings<20) LOG.warn("subject_id " + firstFeatureId + " from feature_relationship " + featRelationshipId + " was not found in the feature table");
-		if (featureWarnings==20) LOG.warn("further feature_relationship warnings ignored");
-		featureWarnings++;
+            // the group ends at the last relationship or when the next one has a different feature1
+            if (i == sorted.length - 1 || FeatureRelationships.getFeature1Id(sorted[i + 1]) != firstFeatureId) {
+                if (!processCollectionData(firstFeatureId, relTypeMap, collectionWarnings, subjectFirst)) collectionWarnings++;
+                collectionTotal += relTypeMap.size();
+                relTypeMap = new HashMap<String, Map<String, List<FeatureData>>>();
             }
-            count++;
-            lastSubjectId = firstFeatureId;
-        }
-	// get last one
-        if (lastSubjectId != null) {
-            processCollectionData(lastSubjectId, relTypeMap, collectionWarnings, subjectFirst);
-            collectionTotal += relTypeMap.size();
         }
 
-	res.close();
-        LOG.info("processRelationTable:END; subjectFirst="+subjectFirst+"; processed "+count+" relations; total collection elements created: "+collectionTotal);
+        LOG.info("processRelationTable:END; subjectFirst="+subjectFirst+"; processed "+sorted.length+" relations; total collection elements created: "+collectionTotal);
     }
 
     /**
@@ -753,13 +1208,13 @@ public class SequenceProcessor extends ChadoProcessor {
         Integer intermineObjectId = subjectData.getIntermineObjectId();
         for (Map.Entry<String, Map<String, List<FeatureData>>> entry: relTypeMap.entrySet()) {
             String relationType = entry.getKey();
-            if (DEBUG) debugToLog("processCollectionData:relationType="+relationType);
+            if (sampleDebug()) debugToLog("processCollectionData:relationType="+relationType);
             Map<String, List<FeatureData>> objectClassFeatureDataMap = entry.getValue();
 
             Set<Entry<String, List<FeatureData>>> mapEntries = objectClassFeatureDataMap.entrySet();
             for (Map.Entry<String, List<FeatureData>> featureDataMap: mapEntries) {
                 String objectClass = featureDataMap.getKey();
-                if (DEBUG) debugToLog("processCollectionData:objectClass="+objectClass);
+                if (sampleDebug()) debugToLog("processCollectionData:objectClass="+objectClass);
                 List<FeatureData> featureDataCollection = featureDataMap.getValue();
                 List<FieldDescriptor> fds = null;
 
@@ -777,10 +1232,10 @@ public class SequenceProcessor extends ChadoProcessor {
                 if (actionList != null) {
                     if (actionList.size()==0 || actionList.size()==1 && actionList.get(0) instanceof DoNothingAction) {
                         // do nothing
-			if (DEBUG) debugToLog("processCollectionData:"+key.toString()+" actionList!=null, do nothing");
+			if (sampleDebug()) debugToLog("processCollectionData:"+key.toString()+" actionList!=null, do nothing");
                         continue;
                     }
-		    if (DEBUG) debugToLog("processCollectionData:"+key.toString()+" actionList!=null, building fds");
+		    if (sampleDebug()) debugToLog("processCollectionData:"+key.toString()+" actionList!=null, building fds");
                     fds = new ArrayList<FieldDescriptor>();
                     for (ConfigAction action: actionList) {
                         if (action instanceof SetFieldConfigAction) {
@@ -797,7 +1252,7 @@ public class SequenceProcessor extends ChadoProcessor {
                         throw new RuntimeException("no actions found for " + key);
                     }
                 } else {
-		    if (DEBUG) debugToLog("processCollectionData:"+key.toString()+" actionList==null");
+		    if (sampleDebug()) debugToLog("processCollectionData:"+key.toString()+" actionList==null");
                     // Try to find a reference or
                     // collection that has a name that looks right for these objects (of class
                     // objectClass).  eg.  If the subject is a Transcript and the objectClass
@@ -816,7 +1271,7 @@ public class SequenceProcessor extends ChadoProcessor {
 
                 for (FieldDescriptor fd: fds) {
 
-                    if (DEBUG) debugToLog("processCollectionData:fd="+fd.getName());
+                    if (sampleDebug()) debugToLog("processCollectionData:fd="+fd.getName());
                     
                     if (fd.isReference()) {
                         if (objectClassFeatureDataMap.size() > 1) {
@@ -908,7 +1363,7 @@ public class SequenceProcessor extends ChadoProcessor {
             possibleRefNames.add(StringUtil.decapitalise(unqualifiedClsName));
             possibleRefNames.add(StringUtil.decapitalise(unqualifiedClsName) + 's');
             for (String possibleRefName: possibleRefNames) {
-		if (DEBUG) debugToLog("getReferenceForRelationship("+objectType+","+cd.getName()+"):possibleRefName="+possibleRefName);
+		if (sampleDebug()) debugToLog("getReferenceForRelationship("+objectType+","+cd.getName()+"):possibleRefName="+possibleRefName);
                 FieldDescriptor fd = cd.getFieldDescriptorByName(possibleRefName);
                 if (fd != null) {
                     fds.add(fd);
@@ -919,19 +1374,36 @@ public class SequenceProcessor extends ChadoProcessor {
     }
 
     @SuppressWarnings("boxing")
-    private void processDbxrefTable(Connection connection)
+    private void processDbxrefTable(Connection connection, Integer organismId)
         throws SQLException, ObjectStoreException {
 
-        ResultSet res = getDbxrefResultSet(connection);
+        ResultSet res = getDbxrefResultSet(connection, organismId);
+        try {
+            processDbxrefRows(res);
+        } finally {
+            res.close();
+        }
+    }
+
+    /**
+     * Set fields and create synonyms from the rows returned by getDbxrefResultSet().
+     * @param res the result set
+     * @throws SQLException if there is a problem while reading
+     * @throws ObjectStoreException if there is a problem while storing
+     */
+    @SuppressWarnings("boxing")
+    private void processDbxrefRows(ResultSet res) throws SQLException, ObjectStoreException {
         Set<String> existingAttributes = new HashSet<String>();
         Integer currentFeatureId = null;
         int count = 0;
 
+        int rows = 0;
         while (res.next()) {
+            rows++;
             Integer featureId = new Integer(res.getInt("feature_id"));
             String accession = res.getString("accession");
             String dbName = res.getString("db_name");
-            Boolean isCurrent = res.getBoolean("is_current");
+            boolean isCurrent = res.getBoolean("is_current");
 
             if (currentFeatureId != null && currentFeatureId != featureId) {
                 existingAttributes = new HashSet<String>();
@@ -939,7 +1411,6 @@ public class SequenceProcessor extends ChadoProcessor {
 
             if (featureMap.containsKey(featureId)) {
                 FeatureData fdat = featureMap.get(featureId);
-                MultiKey key = new MultiKey("dbxref", fdat.getInterMineType(), dbName, isCurrent);
 
                 if (accession == null) {
                     throw new RuntimeException("found null accession in dbxref table for database "
@@ -947,27 +1418,21 @@ public class SequenceProcessor extends ChadoProcessor {
                 }
                 accession  = fixIdentifier(fdat, accession);
 
-                String taxonId = fdat.organismData.getTaxonId();
-                Map<MultiKey, List<ConfigAction>> orgConfig = getConfig(taxonId);
-                List<ConfigAction> actionList = orgConfig.get(key);
+                // the actions for isCurrent, or if there are none the actions ignoring isCurrent
+                ConfigDispatchTable.Actions actions =
+                    getDispatchTable(fdat).get(ConfigDispatchTable.DBXREF, fdat.getInterMineType(), dbName, isCurrent);
 
-                if (actionList == null) {
-                    // try ignoring isCurrent
-                    MultiKey key2 = new MultiKey("dbxref", fdat.getInterMineType(), dbName, null);
-                    actionList = orgConfig.get(key2);
-                }
-
-                if (actionList == null) {
+                if (actions == null) {
                     // no actions configured for this synonym
                     continue;
                 }
-                Set<String> fieldsSet = new HashSet<String>();
-                for (ConfigAction action: actionList) {
-                    if (action instanceof SetFieldConfigAction) {
-                        SetFieldConfigAction setAction = (SetFieldConfigAction) action;
+                synchronized (featureLock(featureId)) {
+                    Set<String> fieldsSet = new HashSet<String>();
+                    for (SetFieldConfigAction setAction: actions.setFieldActions) {
                         if (!existingAttributes.contains(setAction.getFieldName())) {
-                            if (setAction.isValidValue(accession)) {
-                                String newFieldValue = setAction.processValue(accession);
+                            MatchResult match = setAction.match(accession);
+                            if (match.isValid()) {
+                                String newFieldValue = match.getValue();
                                 setAttribute(fdat.getIntermineObjectId(), setAction.getFieldName(), newFieldValue);
                                 existingAttributes.add(setAction.getFieldName());
                                 fieldsSet.add(newFieldValue);
@@ -977,16 +1442,14 @@ public class SequenceProcessor extends ChadoProcessor {
                             }
                         }
                     }
-                }
 
-                for (ConfigAction action: actionList) {
-                    if (action instanceof CreateSynonymAction) {
-                        CreateSynonymAction createSynonymAction = (CreateSynonymAction) action;
-                        if (!createSynonymAction.isValidValue(accession)) {
+                    for (CreateSynonymAction createSynonymAction: actions.createSynonymActions) {
+                        MatchResult match = createSynonymAction.match(accession);
+                        if (!match.isValid()) {
                             continue;
                         }
-                        String newFieldValue = createSynonymAction.processValue(accession);
-                        if (fdat.getExistingSynonyms().contains(newFieldValue)) {
+                        String newFieldValue = match.getValue();
+                        if (fdat.hasExistingSynonym(newFieldValue)) {
                             continue;
                         }
                         Item synonym = createSynonym(fdat, newFieldValue);
@@ -1000,16 +1463,32 @@ public class SequenceProcessor extends ChadoProcessor {
 
             currentFeatureId = featureId;
         }
+        countRows(rows);
 
         LOG.info("created " + count + " synonyms from the dbxref table");
-        res.close();
     }
 
     private void processFeaturePropTable(Connection connection)
         throws SQLException, ObjectStoreException {
         ResultSet res = getFeaturePropResultSet(connection);
+        try {
+            processFeaturePropRows(res);
+        } finally {
+            res.close();
+        }
+    }
+
+    /**
+     * Set fields and create synonyms from the rows returned by getFeaturePropResultSet().
+     * @param res the result set
+     * @throws SQLException if there is a problem while reading
+     * @throws ObjectStoreException if there is a problem while storing
+     */
+    private void processFeaturePropRows(ResultSet res) throws SQLException, ObjectStoreException {
         int count = 0;
+        int rows = 0;
         while (res.next()) {
+            rows++;
             Integer featureId = new Integer(res.getInt("feature_id"));
             String identifier = res.getString("value");
 
@@ -1022,21 +1501,20 @@ public class SequenceProcessor extends ChadoProcessor {
             if (featureMap.containsKey(featureId)) {
 
                 FeatureData fdat = featureMap.get(featureId);
-                MultiKey key = new MultiKey("prop", fdat.getInterMineType(), propTypeName);
-                String taxonId = fdat.organismData.getTaxonId();
-                List<ConfigAction> actionList = getConfig(taxonId).get(key);
-                if (actionList == null) {
+                ConfigDispatchTable.Actions actions =
+                    getDispatchTable(fdat).get(ConfigDispatchTable.PROP, fdat.getInterMineType(), propTypeName);
+                if (actions == null) {
                     // no actions configured for this prop
                     continue;
                 }
 
-                Set<String> fieldsSet = new HashSet<String>();
+                synchronized (featureLock(featureId)) {
+                    Set<String> fieldsSet = new HashSet<String>();
 
-                for (ConfigAction action: actionList) {
-                    if (action instanceof SetFieldConfigAction) {
-                        SetFieldConfigAction setAction = (SetFieldConfigAction) action;
-                        if (setAction.isValidValue(identifier)) {
-                            String newFieldValue = setAction.processValue(identifier);
+                    for (SetFieldConfigAction setAction: actions.setFieldActions) {
+                        MatchResult match = setAction.match(identifier);
+                        if (match.isValid()) {
+                            String newFieldValue = match.getValue();
                             setAttribute(fdat.getIntermineObjectId(), setAction.getFieldName(),
 					 newFieldValue);
                             fieldsSet.add(newFieldValue);
@@ -1046,17 +1524,14 @@ public class SequenceProcessor extends ChadoProcessor {
                             }
                         }
                     }
-                }
 
-                for (ConfigAction action: actionList) {
-                    if (action instanceof CreateSynonymAction) {
-                        CreateSynonymAction synonymAction = (CreateSynonymAction) action;
-                        if (!synonymAction.isValidValue(identifier)) {
+                    for (CreateSynonymAction synonymAction: actions.createSynonymActions) {
+                        MatchResult match = synonymAction.match(identifier);
+                        if (!match.isValid()) {
                             continue;
                         }
-                        String newFieldValue = synonymAction.processValue(identifier);
-                        Set<String> existingSynonyms = fdat.getExistingSynonyms();
-                        if (existingSynonyms.contains(newFieldValue)) {
+                        String newFieldValue = match.getValue();
+                        if (fdat.hasExistingSynonym(newFieldValue)) {
                             continue;
                         }
                         Item synonym = createSynonym(fdat, newFieldValue);
@@ -1068,8 +1543,8 @@ public class SequenceProcessor extends ChadoProcessor {
                 }
             }
         }
+        countRows(rows);
         LOG.info("created " + count + " synonyms from the featureprop table");
-        res.close();
     }
 
     /**
@@ -1092,13 +1567,29 @@ public class SequenceProcessor extends ChadoProcessor {
     private void processFeatureCVTermTable(Connection connection)
         throws SQLException, ObjectStoreException {
         ResultSet res = getFeatureCVTermResultSet(connection);
+        try {
+            processFeatureCVTermRows(res);
+        } finally {
+            res.close();
+        }
+    }
+
+    /**
+     * Set fields and create synonyms from the rows returned by getFeatureCVTermResultSet().
+     * @param res the result set
+     * @throws SQLException if there is a problem while reading
+     * @throws ObjectStoreException if there is a problem while storing
+     */
+    private void processFeatureCVTermRows(ResultSet res) throws SQLException, ObjectStoreException {
         int count = 0;
         Integer previousFeatureId = null;
 
         // map from reference/collection name to list of Items to store in the reference or collection
         Map<String, List<Item>> dataMap = new HashMap<String, List<Item>>();
 
+        int rows = 0;
         while (res.next()) {
+            rows++;
             Integer featureId = new Integer(res.getInt("feature_id"));
             String cvtermName = res.getString("cvterm_name");
             String cvName = res.getString("cv_name");
@@ -1114,22 +1605,20 @@ public class SequenceProcessor extends ChadoProcessor {
                 dataMap = new HashMap<String, List<Item>>();
             }
 
-            MultiKey key = new MultiKey("cvterm", fdat.getInterMineType(), cvName);
-
-            String taxonId = fdat.organismData.getTaxonId();
-            List<ConfigAction> actionList = getConfig(taxonId).get(key);
-            if (actionList == null) {
+            ConfigDispatchTable.Actions actions =
+                getDispatchTable(fdat).get(ConfigDispatchTable.CVTERM, fdat.getInterMineType(), cvName);
+            if (actions == null) {
                 // no actions configured for this prop
                 continue;
             }
 
-            Set<String> fieldsSet = new HashSet<String>();
+            synchronized (featureLock(featureId)) {
+                Set<String> fieldsSet = new HashSet<String>();
 
-            for (ConfigAction action: actionList) {
-                if (action instanceof SetFieldConfigAction) {
-                    SetFieldConfigAction setAction = (SetFieldConfigAction) action;
-                    if (setAction.isValidValue(cvtermName)) {
-                        String newFieldValue = setAction.processValue(cvtermName);
+                for (SetFieldConfigAction setAction: actions.setFieldActions) {
+                    MatchResult match = setAction.match(cvtermName);
+                    if (match.isValid()) {
+                        String newFieldValue = match.getValue();
                         setAttribute(fdat.getIntermineObjectId(), setAction.getFieldName(),
 				     newFieldValue);
 
@@ -1138,24 +1627,26 @@ public class SequenceProcessor extends ChadoProcessor {
                             fdat.setFlag(FeatureData.IDENTIFIER_SET, true);
                         }
                     }
-                } else {
-                    if (action instanceof CreateSynonymAction) {
-                        CreateSynonymAction synonymAction = (CreateSynonymAction) action;
-                        if (!synonymAction.isValidValue(cvtermName)) {
-                            continue;
-                        }
-                        String newFieldValue = synonymAction.processValue(cvtermName);
-                        Set<String> existingSynonyms = fdat.getExistingSynonyms();
-                        if (existingSynonyms.contains(newFieldValue)) {
-                            continue;
-                        }
-                        Item synonym = createSynonym(fdat, newFieldValue);
-                        if (synonym != null) {
-                            store(synonym);
-                            count++;
-                        }
-                    } else {
-                        // TODO fixme
+                }
+
+                for (CreateSynonymAction synonymAction: actions.createSynonymActions) {
+                    MatchResult match = synonymAction.match(cvtermName);
+                    if (!match.isValid()) {
+                        continue;
+                    }
+                    String newFieldValue = match.getValue();
+                    if (fdat.hasExistingSynonym(newFieldValue)) {
+                        continue;
+                    }
+                    Item synonym = createSynonym(fdat, newFieldValue);
+                    if (synonym != null) {
+                        store(synonym);
+                        count++;
+                    }
+                }
+
+                // CreateCollectionActions are not compiled into the ConfigDispatchTable
+                // TODO fixme
 			//                        if (action instanceof CreateCollectionAction) {
 			//                            CreateCollectionAction cca = (CreateCollectionAction) action;
 			//
@@ -1188,19 +1679,17 @@ public class SequenceProcessor extends ChadoProcessor {
 			//                            }
 			//                            itemList.add(item);
 			//                        }
-                    }
-                }
             }
 
             previousFeatureId = featureId;
         }
+        countRows(rows);
 
         if (previousFeatureId != null) {
             processCVTermRefCols(previousFeatureId, dataMap);
         }
 
         LOG.info("created " + count + " synonyms from the feature_cvterm table");
-        res.close();
     }
 
 
@@ -1250,13 +1739,30 @@ public class SequenceProcessor extends ChadoProcessor {
     }
 
     @SuppressWarnings("boxing")
-    private void processSynonymTable(Connection connection)
+    private void processSynonymTable(Connection connection, Integer organismId)
         throws SQLException, ObjectStoreException {
-        ResultSet res = getSynonymResultSet(connection);
+        ResultSet res = getSynonymResultSet(connection, organismId);
+        try {
+            processSynonymRows(res);
+        } finally {
+            res.close();
+        }
+    }
+
+    /**
+     * Set fields and create synonyms from the rows returned by getSynonymResultSet().
+     * @param res the result set
+     * @throws SQLException if there is a problem while reading
+     * @throws ObjectStoreException if there is a problem while storing
+     */
+    @SuppressWarnings("boxing")
+    private void processSynonymRows(ResultSet res) throws SQLException, ObjectStoreException {
         Set<String> existingAttributes = new HashSet<String>();
         Integer currentFeatureId = null;
         int count = 0;
+        int rows = 0;
         while (res.next()) {
+            rows++;
             Integer featureId = new Integer(res.getInt("feature_id"));
             String identifier = res.getString("synonym_name");
             String synonymTypeName = res.getString("type_name");
@@ -1268,7 +1774,7 @@ public class SequenceProcessor extends ChadoProcessor {
                 synonymTypeName = "identifier";
             }
 
-            Boolean isCurrent = res.getBoolean("is_current");
+            boolean isCurrent = res.getBoolean("is_current");
 
             // it is a not null in db
             if (identifier == null) {
@@ -1283,47 +1789,37 @@ public class SequenceProcessor extends ChadoProcessor {
             if (featureMap.containsKey(featureId)) {
                 FeatureData fdat = featureMap.get(featureId);
                 identifier = fixIdentifier(fdat, identifier);
-                MultiKey key =
-		    new MultiKey("synonym", fdat.getInterMineType(),
-				 synonymTypeName, isCurrent);
-                String taxonId = fdat.organismData.getTaxonId();
-                Map<MultiKey, List<ConfigAction>> orgConfig = getConfig(taxonId);
-                List<ConfigAction> actionList = orgConfig.get(key);
-
-                if (actionList == null) {
-                    // try ignoring isCurrent
-                    MultiKey key2 =
-			new MultiKey("synonym", fdat.getInterMineType(), synonymTypeName, null);
-                    actionList = orgConfig.get(key2);
-                }
-                if (actionList == null) {
+                // the actions for isCurrent, or if there are none the actions ignoring isCurrent
+                ConfigDispatchTable.Actions actions =
+                    getDispatchTable(fdat).get(ConfigDispatchTable.SYNONYM, fdat.getInterMineType(), synonymTypeName, isCurrent);
+                if (actions == null) {
                     // no actions configured for this synonym
                     continue;
                 }
-                for (ConfigAction action: actionList) {
-                    if (action instanceof SetFieldConfigAction) {
-                        SetFieldConfigAction setAction = (SetFieldConfigAction) action;
-                        if (!existingAttributes.contains(setAction.getFieldName())
-			    && setAction.isValidValue(identifier)) {
-                            String newFieldValue = setAction.processValue(identifier);
+                synchronized (featureLock(featureId)) {
+                    for (SetFieldConfigAction setAction: actions.setFieldActions) {
+                        if (existingAttributes.contains(setAction.getFieldName())) {
+                            continue;
+                        }
+                        MatchResult match = setAction.match(identifier);
+                        if (match.isValid()) {
+                            String newFieldValue = match.getValue();
                             setAttribute(fdat.getIntermineObjectId(), setAction.getFieldName(),
-					 newFieldValue);
+                                         newFieldValue);
                             existingAttributes.add(setAction.getFieldName());
                             if ("primaryIdentifier".equals(setAction.getFieldName())) {
                                 fdat.setFlag(FeatureData.IDENTIFIER_SET, true);
                             }
                         }
                     }
-                }
 
-                for (ConfigAction action: actionList) {
-                    if (action instanceof CreateSynonymAction) {
-                        CreateSynonymAction createSynonymAction = (CreateSynonymAction) action;
-                        if (!createSynonymAction.isValidValue(identifier)) {
+                    for (CreateSynonymAction createSynonymAction: actions.createSynonymActions) {
+                        MatchResult match = createSynonymAction.match(identifier);
+                        if (!match.isValid()) {
                             continue;
                         }
-                        String newFieldValue = createSynonymAction.processValue(identifier);
-                        if (fdat.getExistingSynonyms().contains(newFieldValue)) {
+                        String newFieldValue = match.getValue();
+                        if (fdat.hasExistingSynonym(newFieldValue)) {
                             continue;
                         }
                         Item synonym =
@@ -1337,9 +1833,9 @@ public class SequenceProcessor extends ChadoProcessor {
             }
             currentFeatureId = featureId;
         }
+        countRows(rows);
 
         LOG.info("created " + count + " synonyms from the synonym table");
-        res.close();
     }
 
     /**
@@ -1368,13 +1864,28 @@ public class SequenceProcessor extends ChadoProcessor {
     private void processPubTable(Connection connection)
         throws SQLException, ObjectStoreException {
         ResultSet res = getPubResultSet(connection);
+        try {
+            processPubRows(res);
+        } finally {
+            res.close();
+        }
+    }
 
+    /**
+     * Create the publications and feature publications collections from the rows returned by getPubResultSet().
+     * @param res the result set
+     * @throws SQLException if there is a problem while reading
+     * @throws ObjectStoreException if there is a problem while storing
+     */
+    private void processPubRows(ResultSet res) throws SQLException, ObjectStoreException {
         List<String> currentPublicationIds = new ArrayList<String>();
         Integer lastPubFeatureId = null;
         int featureWarnings = 0;
         int count = 0;
 
+        int rows = 0;
         while (res.next()) {
+            rows++;
             Integer featureId = new Integer(res.getInt("feature_id"));
             if (!featureMap.containsKey(featureId)) {
                 if (featureWarnings <= 20) {
@@ -1398,12 +1909,12 @@ public class SequenceProcessor extends ChadoProcessor {
             lastPubFeatureId = featureId;
             count++;
         }
+        countRows(rows);
 
         if (lastPubFeatureId != null) {
             makeFeaturePublications(lastPubFeatureId, currentPublicationIds);
         }
         LOG.info("Created " + count + " publications");
-        res.close();
     }
 
     /**
@@ -1463,10 +1974,44 @@ public class SequenceProcessor extends ChadoProcessor {
      */
     protected ResultSet getFeatureTableResultSet(Connection connection)
         throws SQLException {
-        String query = "SELECT * FROM " + tempFeatureTableName;
+        return getFeatureTableResultSet(connection, null);
+    }
+
+    /**
+     * Return the rows of the temp feature table for one organism.
+     * @param connection the db connection
+     * @param organismId the chado organism_id, null for all organisms
+     * @return the SQL result set
+     * @throws SQLException if a database problem occurs
+     */
+    protected ResultSet getFeatureTableResultSet(Connection connection, Integer organismId)
+        throws SQLException {
+        String query = "SELECT * FROM " + tempFeatureTableName + " t WHERE true" + getOrganismJoinConstraint("t", organismId);
         LOG.info("executing getFeatureTableResultSet(): " + query);
-        Statement stmt = connection.createStatement();
-        ResultSet res = stmt.executeQuery(query);
+        ResultSet res = executeSnapshotQuery(connection, "feature", query, getOrganismParameters(organismId));
+        return res;
+    }
+
+    /**
+     * Return the residues of the features in the temp table whose types can have a sequence. The residues column is
+     * only filled for features no longer than SEQUENCE_CHUNK_SIZE, longer ones must be read with substr(), with or
+     * without a result set snapshot.
+     * Chado residues are ASCII so octet_length() gives the length without decompressing the whole value.
+     * This is a protected method so that it can be overridden for testing.
+     * @param connection the db connection
+     * @return the SQL result set
+     * @throws SQLException if a database problem occurs
+     */
+    protected ResultSet getSequenceResultSet(Connection connection) throws SQLException {
+        String query =
+            "SELECT t.feature_id, t.seqlen, octet_length(f.residues) AS residues_length,"
+            + " CASE WHEN octet_length(f.residues) <= " + SEQUENCE_CHUNK_SIZE + " THEN f.residues END AS residues"
+            + " FROM " + tempFeatureTableName + " t, feature f"
+            + " WHERE f.feature_id = t.feature_id"
+            + " AND t.type IN (" + getFeaturesString(new ArrayList<String>(sequenceFeatureTypes)) + ")"
+            + " AND f.residues IS NOT NULL";
+        LOG.info("executing getSequenceResultSet(): " + query);
+        ResultSet res = executeSnapshotQuery(connection, "sequence", query);
         return res;
     }
 
@@ -1499,6 +2044,9 @@ public class SequenceProcessor extends ChadoProcessor {
      * for the type and feature_id columns.
      * The table is used in later queries.  This is a protected method so that it can be overridden
      * for testing.
+     * When the phases or organisms run concurrently the other connections can't see a TEMPORARY table, so an
+     * UNLOGGED table is created and committed instead, indexed on organism_id if the organisms are partitioned.  It is dropped by
+     * finishedProcessing(), so a failed run leaves it behind.
      * @param connection the Connection
      * @throws SQLException if there is a problem
      */
@@ -1513,8 +2061,8 @@ public class SequenceProcessor extends ChadoProcessor {
 
 	// create temp table holding all desired features
         String query =
-	    "CREATE TEMPORARY TABLE " + tempFeatureTableName + " AS"
-	    + " SELECT feature_id, feature.name, uniquename, cvterm.name as type, seqlen, is_analysis, residues, md5checksum, organism_id"
+	    "CREATE " + (sharedTempTable ? "UNLOGGED" : "TEMPORARY") + " TABLE " + tempFeatureTableName + " AS"
+	    + " SELECT feature_id, feature.name, uniquename, cvterm.name as type, seqlen, is_analysis, md5checksum, organism_id"
 	    + " FROM feature, cvterm"
 	    + " WHERE cvterm.name IN (" + featureTypesString  + ")"
 	    + orgConstraintForQuery
@@ -1534,9 +2082,19 @@ public class SequenceProcessor extends ChadoProcessor {
         String typeIndexQuery = "CREATE INDEX "+tempFeatureTableName+"_type_index ON "+tempFeatureTableName+ " (type)";
         LOG.info("executing: " + typeIndexQuery);
         stmt.execute(typeIndexQuery);
+        if (partitioned) {
+            String organismIndexQuery = "CREATE INDEX "+tempFeatureTableName+"_organism_index ON "+tempFeatureTableName+" (organism_id)";
+            LOG.info("executing: " + organismIndexQuery);
+            stmt.execute(organismIndexQuery);
+        }
         String analyze = "ANALYZE " + tempFeatureTableName;
         LOG.info("executing: " + analyze);
         stmt.execute(analyze);
+        stmt.close();
+        if (sharedTempTable && !connection.getAutoCommit()) {
+            // the partition and phase connections only see the table once it's committed
+            connection.commit();
+        }
     }
 
     /**
@@ -1573,6 +2131,26 @@ public class SequenceProcessor extends ChadoProcessor {
         return "SELECT feature_id FROM " + tempFeatureTableName;
     }
 
+    /**
+     * Return the SQL constraint restricting a join with the feature temp table to one organism, with a ? for the
+     * organism_id; pass getOrganismParameters() with the query.
+     * @param alias the alias of the feature temp table in the query
+     * @param organismId the chado organism_id, null for all organisms
+     * @return the constraint starting with AND, or an empty string for all organisms
+     */
+    private static String getOrganismJoinConstraint(String alias, Integer organismId) {
+        return (organismId == null) ? "" : " AND " + alias + ".organism_id = ?";
+    }
+
+    /**
+     * Return the query parameters that go with getOrganismJoinConstraint().
+     * @param organismId the chado organism_id, null for all organisms
+     * @return the parameters
+     */
+    private static Object[] getOrganismParameters(Integer organismId) {
+        return (organismId == null) ? new Object[0] : new Object[] {organismId};
+    }
+
 
     private String getSrcFeatureIdQuery() {
         return
@@ -1585,6 +2163,32 @@ public class SequenceProcessor extends ChadoProcessor {
 	       : "");
     }
 
+    /**
+     * Return true if a subclass overrides one of the deprecated per-orientation getFeatureRelationshipResultSet()
+     * methods, so that processRelationTable() still reads the table through them.
+     */
+    private boolean overridesOrientedRelationshipResultSet() {
+        for (Class<?> c = getClass(); c != SequenceProcessor.class; c = c.getSuperclass()) {
+            for (Method method : c.getDeclaredMethods()) {
+                Class<?>[] parameterTypes = method.getParameterTypes();
+                if (method.getName().equals("getFeatureRelationshipResultSet") && parameterTypes.length >= 2
+                    && parameterTypes[1] == Boolean.TYPE) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // the rows of one orientation through the deprecated methods, the way processRelationTable() once called them
+    private ResultSet getOrientedRelationshipResultSet(Connection connection, boolean subjectFirst, Integer organismId)
+        throws SQLException {
+        if (organismId == null) {
+            return getFeatureRelationshipResultSet(connection, subjectFirst);
+        }
+        return getFeatureRelationshipResultSet(connection, subjectFirst, organismId);
+    }
+
     /**
      * Return the interesting rows from the feature_relationship table.  The feature pairs are
      * returned in both subject, object and object, subject orientations so that the relationship
@@ -1597,24 +2201,79 @@ public class SequenceProcessor extends ChadoProcessor {
      *   vs "feature_relationship_id, object_id as feature1_id, subject_id as feature2_id, ..."
      * @return the SQL result set
      * @throws SQLException if a database problem occurs
+     * @deprecated the table is read once for both orientations by getFeatureRelationshipResultSet(Connection);
+     * processRelationTable() only calls this method if a subclass overrides it
      */
+    @Deprecated
     protected ResultSet getFeatureRelationshipResultSet(Connection connection, boolean subjectFirst) throws SQLException {
+        return getFeatureRelationshipResultSet(connection, subjectFirst, null);
+    }
+
+    /**
+     * Return the interesting rows from the feature_relationship table whose feature1 belongs to one organism.
+     * The feature2 may belong to any organism.
+     * @param connection the db connection
+     * @param subjectFirst if true the subject_id will be feature1, otherwise the object_id will be
+     * @param organismId the chado organism_id of feature1, null for all organisms
+     * @return the SQL result set
+     * @throws SQLException if a database problem occurs
+     * @deprecated the table is read once for both orientations by getFeatureRelationshipResultSet(Connection,
+     * Integer); processRelationTable() only calls this method if a subclass overrides it
+     */
+    @Deprecated
+    protected ResultSet getFeatureRelationshipResultSet(Connection connection, boolean subjectFirst, Integer organismId) throws SQLException {
         String subObjString;
         if (subjectFirst) {
             subObjString = "subject_id as feature1_id, object_id as feature2_id";
         } else {
             subObjString = "object_id as feature1_id, subject_id as feature2_id";
         }
-        String query = "SELECT feature_relationship_id, "+subObjString
-	    + ", cvterm.name AS type_name"
-	    + "  FROM feature_relationship, cvterm"
+        String feature1Table = (subjectFirst ? "s" : "o");
+        String query = "SELECT feature_relationship_id, " + subObjString + ", cvterm.name AS type_name"
+	    + "  FROM feature_relationship, cvterm, " + tempFeatureTableName + " s, " + tempFeatureTableName + " o"
 	    + "  WHERE cvterm.cvterm_id = type_id"
-	    + "      AND subject_id IN (" + getFeatureIdQuery() + ")" // subject must be in feature temp table
-	    + "      AND object_id IN (" + getFeatureIdQuery() + ")"  // object must be in feature temp table
+	    + "      AND s.feature_id = subject_id" // subject must be in feature temp table
+	    + "      AND o.feature_id = object_id"  // object must be in feature temp table
+            + (organismId == null ? "" : "      AND " + feature1Table + ".organism_id = ?")
 	    + " ORDER BY feature1_id";
         LOG.info("getFeatureRelationshipResultSet() executing:\n" + query);
-        Statement stmt = connection.createStatement();
-        ResultSet res = stmt.executeQuery(query);
+        Object[] parameters = (organismId == null) ? new Object[0] : new Object[] {organismId};
+        return executeSnapshotQuery(connection, "feature_relationship_" + (subjectFirst ? "subject" : "object"), query,
+                                    parameters);
+    }
+
+    /**
+     * Return the interesting rows from the feature_relationship table, those between two features in the feature
+     * temp table, with the organism_id of each end.  Each row is read once and used in both the subject, object
+     * and object, subject orientations so that the relationship processing can be configured in a natural way.
+     * This is a protected method so that it can be overridden for testing
+     * @param connection the db connection
+     * @return the SQL result set
+     * @throws SQLException if a database problem occurs
+     */
+    protected ResultSet getFeatureRelationshipResultSet(Connection connection) throws SQLException {
+        return getFeatureRelationshipResultSet(connection, null);
+    }
+
+    /**
+     * Return the interesting rows from the feature_relationship table with a subject or object that belongs to
+     * one organism.  The other end may belong to any organism.
+     * @param connection the db connection
+     * @param organismId the chado organism_id of the subject or object, null for all organisms
+     * @return the SQL result set
+     * @throws SQLException if a database problem occurs
+     */
+    protected ResultSet getFeatureRelationshipResultSet(Connection connection, Integer organismId) throws SQLException {
+        String query = "SELECT feature_relationship_id, subject_id, object_id,"
+            + " s.organism_id AS subject_organism_id, o.organism_id AS object_organism_id, cvterm.name AS type_name"
+	    + "  FROM feature_relationship, cvterm, " + tempFeatureTableName + " s, " + tempFeatureTableName + " o"
+	    + "  WHERE cvterm.cvterm_id = type_id"
+	    + "      AND s.feature_id = subject_id" // subject must be in feature temp table
+	    + "      AND o.feature_id = object_id"  // object must be in feature temp table
+            + (organismId == null ? "" : "      AND (s.organism_id = ? OR o.organism_id = ?)");
+        LOG.info("getFeatureRelationshipResultSet() executing:\n" + query);
+        Object[] parameters = (organismId == null) ? new Object[0] : new Object[] {organismId, organismId};
+        ResultSet res = executeSnapshotQuery(connection, "feature_relationship", query, parameters);
         return res;
     }
 
@@ -1626,16 +2285,27 @@ public class SequenceProcessor extends ChadoProcessor {
      * @throws SQLException if a database problem occurs
      */
     protected ResultSet getFeatureLocResultSet(Connection connection) throws SQLException {
+        return getFeatureLocResultSet(connection, null);
+    }
+
+    /**
+     * Return the interesting rows from the featureloc table for the features of one organism.
+     * @param connection the db connection
+     * @param organismId the chado organism_id of the located features, null for all organisms
+     * @return the SQL result set
+     * @throws SQLException if a database problem occurs
+     */
+    protected ResultSet getFeatureLocResultSet(Connection connection, Integer organismId) throws SQLException {
         String query =
-	    "SELECT featureloc_id, feature_id, srcfeature_id, fmin, is_fmin_partial, fmax, is_fmax_partial, strand"
-	    + " FROM featureloc"
+	    "SELECT featureloc_id, l.feature_id, srcfeature_id, fmin, is_fmin_partial, fmax, is_fmax_partial, strand"
+	    + " FROM featureloc l, " + tempFeatureTableName + " t, " + tempFeatureTableName + " src"
 	    + " WHERE locgroup=0"
-	    + " AND feature_id IN ("+getFeatureIdQuery()+")"
-	    + " AND srcfeature_id IN ("+getFeatureIdQuery()+")"
+	    + " AND t.feature_id = l.feature_id"
+	    + " AND src.feature_id = l.srcfeature_id"
+	    + getOrganismJoinConstraint("t", organismId)
 	    + " ORDER BY featureloc_id";
 	LOG.info("getFeatureLocResultSet():query="+query);
-        Statement stmt = connection.createStatement();
-        ResultSet res = stmt.executeQuery(query);
+        ResultSet res = executeSnapshotQuery(connection, "featureloc", query, getOrganismParameters(organismId));
 	LOG.info("getFeatureLocResultSet():DONE.");
         return res;
     }
@@ -1690,17 +2360,26 @@ public class SequenceProcessor extends ChadoProcessor {
      * @throws SQLException if a database problem occurs
      */
     protected ResultSet getDbxrefResultSet(Connection connection) throws SQLException {
+        return getDbxrefResultSet(connection, null);
+    }
+
+    /**
+     * Return the interesting rows from the dbxref table for the features of one organism.
+     * @param connection the db connection
+     * @param organismId the chado organism_id, null for all organisms
+     * @return the SQL result set
+     * @throws SQLException if a database problem occurs
+     */
+    protected ResultSet getDbxrefResultSet(Connection connection, Integer organismId) throws SQLException {
         String query =
-	    "SELECT feature.feature_id, accession, db.name AS db_name, is_current"
-	    + "  FROM dbxref, feature_dbxref, feature, db"
+	    "SELECT t.feature_id, accession, db.name AS db_name, is_current"
+	    + "  FROM dbxref, feature_dbxref, " + tempFeatureTableName + " t, db"
 	    + "  WHERE feature_dbxref.dbxref_id = dbxref.dbxref_id "
-	    + "    AND feature_dbxref.feature_id = feature.feature_id "
-	    + "    AND feature.feature_id IN"
-	    + "        (" + getFeatureIdQuery() + ")"
+	    + "    AND feature_dbxref.feature_id = t.feature_id "
+	    + getOrganismJoinConstraint("t", organismId)
 	    + "    AND dbxref.db_id = db.db_id";
         LOG.info("executing getDbxrefResultSet(): " + query);
-        Statement stmt = connection.createStatement();
-        ResultSet res = stmt.executeQuery(query);
+        ResultSet res = executeSnapshotQuery(connection, "dbxref", query, getOrganismParameters(organismId));
         return res;
     }
 
@@ -1713,12 +2392,11 @@ public class SequenceProcessor extends ChadoProcessor {
      */
     protected ResultSet getFeaturePropResultSet(Connection connection) throws SQLException {
         String query =
-	    "select feature_id, value, cvterm.name AS type_name FROM featureprop, cvterm"
+	    "select t.feature_id, value, cvterm.name AS type_name FROM featureprop, cvterm, " + tempFeatureTableName + " t"
 	    + "   WHERE featureprop.type_id = cvterm.cvterm_id"
-	    + "       AND feature_id IN (" + getFeatureIdQuery() + ")";
+	    + "       AND featureprop.feature_id = t.feature_id";
         LOG.info("executing getFeaturePropResultSet(): " + query);
-        Statement stmt = connection.createStatement();
-        ResultSet res = stmt.executeQuery(query);
+        ResultSet res = executeSnapshotQuery(connection, "featureprop", query);
         return res;
     }
 
@@ -1737,16 +2415,14 @@ public class SequenceProcessor extends ChadoProcessor {
     protected ResultSet getLibraryFeatureResultSet(Connection connection) throws SQLException {
         String query =
 	    "select f.feature_id, lp.value, lp_type.name AS type_name "
-	    + "FROM feature f, library_feature lf, library l, libraryprop lp,"
+	    + "FROM " + tempFeatureTableName + " f, library_feature lf, library l, libraryprop lp,"
 	    + " cvterm lp_type "
 	    + " WHERE  f.feature_id=lf.feature_id "
 	    + " AND lf.library_id=l.library_id "
 	    + " AND l.library_id=lp.library_id "
-	    + " AND lp.type_id=lp_type.cvterm_id "
-	    + " AND f.feature_id IN (" + getFeatureIdQuery() + ")";
+	    + " AND lp.type_id=lp_type.cvterm_id ";
         LOG.info("executing getLibraryFeatureResultSet(): " + query);
-        Statement stmt = connection.createStatement();
-        ResultSet res = stmt.executeQuery(query);
+        ResultSet res = executeQuery(connection, query);
         return res;
     }
 
@@ -1760,16 +2436,15 @@ public class SequenceProcessor extends ChadoProcessor {
     protected ResultSet getLibraryCVTermResultSet(Connection connection) throws SQLException {
         String query =
 	    "select f.feature_id, d.accession AS term_identifier "
-	    + " FROM feature f, library_feature lf, library l, library_cvterm lcvt,"
+	    + " FROM " + tempFeatureTableName + " f, library_feature lf, library l, library_cvterm lcvt,"
 	    + " cvterm cvt, cv, dbxref d "
 	    + " WHERE cv.name IN ('FlyBase anatomy CV','cellular_component') "
+	    + " AND f.feature_id = lf.feature_id "
 	    + " AND lf.library_id=l.library_id AND l.library_id=lcvt.library_id "
 	    + " AND lcvt.cvterm_id=cvt.cvterm_id "
-	    + " AND cvt.dbxref_id = d.dbxref_id "
-	    + " AND f.feature_id IN (" + getFeatureIdQuery() + ")";
+	    + " AND cvt.dbxref_id = d.dbxref_id ";
         LOG.info("executing getLibraryFeatureResultSet(): " + query);
-        Statement stmt = connection.createStatement();
-        ResultSet res = stmt.executeQuery(query);
+        ResultSet res = executeQuery(connection, query);
         return res;
     }
 
@@ -1784,16 +2459,15 @@ public class SequenceProcessor extends ChadoProcessor {
      */
     protected ResultSet getFeatureCVTermResultSet(Connection connection) throws SQLException {
         String query =
-	    "SELECT DISTINCT feature_id, cvterm.cvterm_id, cvterm.name AS cvterm_name,"
+	    "SELECT DISTINCT t.feature_id, cvterm.cvterm_id, cvterm.name AS cvterm_name,"
 	    + " cv.name AS cv_name "
-	    + " FROM feature_cvterm, cvterm, cv "
-	    + " WHERE feature_id IN (" + getFeatureIdQuery() + ")"
+	    + " FROM feature_cvterm, " + tempFeatureTableName + " t, cvterm, cv "
+	    + " WHERE feature_cvterm.feature_id = t.feature_id"
 	    + " AND cvterm.cvterm_id = feature_cvterm.cvterm_id "
 	    + " AND cvterm.cv_id = cv.cv_id "
-	    + " ORDER BY feature_id";
+	    + " ORDER BY t.feature_id";
         LOG.info("executing getFeatureCVTermResultSet(): " + query);
-        Statement stmt = connection.createStatement();
-        ResultSet res = stmt.executeQuery(query);
+        ResultSet res = executeSnapshotQuery(connection, "feature_cvterm", query);
         return res;
     }
 
@@ -1805,17 +2479,28 @@ public class SequenceProcessor extends ChadoProcessor {
      * @throws SQLException if a database problem occurs
      */
     protected ResultSet getSynonymResultSet(Connection connection) throws SQLException {
+        return getSynonymResultSet(connection, null);
+    }
+
+    /**
+     * Return the interesting rows from the synonym table for the features of one organism.
+     * @param connection the db connection
+     * @param organismId the chado organism_id, null for all organisms
+     * @return the SQL result set
+     * @throws SQLException if a database problem occurs
+     */
+    protected ResultSet getSynonymResultSet(Connection connection, Integer organismId) throws SQLException {
         String query =
-	    "SELECT DISTINCT feature_id, synonym.name AS synonym_name,"
+	    "SELECT DISTINCT t.feature_id, synonym.name AS synonym_name,"
 	    + " cvterm.name AS type_name, is_current"
-	    + " FROM feature_synonym, synonym, cvterm"
+	    + " FROM feature_synonym, " + tempFeatureTableName + " t, synonym, cvterm"
 	    + " WHERE feature_synonym.synonym_id = synonym.synonym_id"
 	    + " AND synonym.type_id = cvterm.cvterm_id"
-	    + " AND feature_id IN (" + getFeatureIdQuery() + ")"
+	    + " AND feature_synonym.feature_id = t.feature_id"
+	    + getOrganismJoinConstraint("t", organismId)
 	    + " ORDER BY is_current DESC";
         LOG.info("executing getSynonymResultSet(): " + query);
-        Statement stmt = connection.createStatement();
-        ResultSet res = stmt.executeQuery(query);
+        ResultSet res = executeSnapshotQuery(connection, "synonym", query, getOrganismParameters(organismId));
         return res;
     }
 
@@ -1829,17 +2514,16 @@ public class SequenceProcessor extends ChadoProcessor {
     protected ResultSet getPubResultSet(Connection connection) throws SQLException {
         String query =
 	    "SELECT DISTINCT feature_pub.feature_id, dbxref.accession as pub_db_identifier"
-	    + " FROM feature_pub, dbxref, db, pub, pub_dbxref"
+	    + " FROM feature_pub, " + tempFeatureTableName + " t, dbxref, db, pub, pub_dbxref"
 	    + " WHERE feature_pub.pub_id = pub.pub_id"
 	    + " AND pub_dbxref.dbxref_id = dbxref.dbxref_id"
 	    + " AND dbxref.db_id = db.db_id"
 	    + " AND pub.pub_id = pub_dbxref.pub_id"
 	    + " AND db.name = 'pubmed'"
-	    + " AND feature_id IN (" + getFeatureIdQuery() + ")"
+	    + " AND feature_pub.feature_id = t.feature_id"
 	    + " ORDER BY feature_pub.feature_id";
         LOG.info("executing getPubResultSet(): " + query);
-        Statement stmt = connection.createStatement();
-        ResultSet res = stmt.executeQuery(query);
+        ResultSet res = executeSnapshotQuery(connection, "pub", query);
         return res;
     }
 
@@ -1853,7 +2537,7 @@ public class SequenceProcessor extends ChadoProcessor {
      */
     protected Item createSynonym(FeatureData fdat, String identifier)
         throws ObjectStoreException {
-        if (fdat.getExistingSynonyms().contains(identifier)) {
+        if (fdat.hasExistingSynonym(identifier)) {
             String msg = "feature identifier " + identifier + " is already a synonym for: "
 		+ fdat.getExistingSynonyms();
             LOG.info(msg);
@@ -1881,27 +2565,115 @@ public class SequenceProcessor extends ChadoProcessor {
     }
 
     /**
-     * Store and tally debug lines in debugLineMap.
+     * Save what the later processors use: the features, the source feature ids, the publications and the feature
+     * types that have sequences.
+     * {@inheritDoc}
+     */
+    @Override
+    protected void writeCheckpoint(DataOutputStream out) throws IOException {
+        out.writeInt(featureMap.size());
+        for (Map.Entry<Integer, FeatureData> entry : featureMap.entrySet()) {
+            out.writeInt(entry.getKey().intValue());
+            entry.getValue().writeCheckpoint(out);
+        }
+        synchronized (this) {
+            out.writeInt(sourceFeatureMaps.size());
+            for (Map.Entry<Integer, Map<String, Integer>> entry : sourceFeatureMaps.entrySet()) {
+                out.writeInt(entry.getKey().intValue());
+                out.writeInt(entry.getValue().size());
+                for (Map.Entry<String, Integer> sourceFeature : entry.getValue().entrySet()) {
+                    ConverterCheckpoint.writeString(out, sourceFeature.getKey());
+                    out.writeInt(sourceFeature.getValue().intValue());
+                }
+            }
+            out.writeInt(publications.size());
+            for (Map.Entry<Integer, String> entry : publications.entrySet()) {
+                out.writeInt(entry.getKey().intValue());
+                out.writeUTF(entry.getValue());
+            }
+        }
+        synchronized (sequenceFeatureTypes) {
+            out.writeInt(sequenceFeatureTypes.size());
+            for (String type : sequenceFeatureTypes) {
+                out.writeUTF(type);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void readCheckpoint(DataInputStream in) throws IOException {
+        Map<String, OrganismData> organisms = new HashMap<String, OrganismData>();
+        for (OrganismData od : getChadoDBConverter().getChadoIdToOrgDataMap().values()) {
+            organisms.put(od.getTaxonId(), od);
+        }
+        int featureCount = in.readInt();
+        synchronized (getChadoDBConverter()) {
+            for (int i = 0; i < featureCount; i++) {
+                int featureId = in.readInt();
+                featureMap.put(featureId, FeatureData.readCheckpoint(in, featureMap, organisms));
+            }
+        }
+        synchronized (this) {
+            int organismCount = in.readInt();
+            for (int i = 0; i < organismCount; i++) {
+                Integer organismId = Integer.valueOf(in.readInt());
+                int sourceFeatureCount = in.readInt();
+                for (int j = 0; j < sourceFeatureCount; j++) {
+                    String uniqueName = ConverterCheckpoint.readString(in);
+                    addToSourceFeatureMaps(organismId, uniqueName, Integer.valueOf(in.readInt()));
+                }
+            }
+            int publicationCount = in.readInt();
+            for (int i = 0; i < publicationCount; i++) {
+                int pubMedId = in.readInt();
+                publications.put(Integer.valueOf(pubMedId), in.readUTF());
+            }
+        }
+        int typeCount = in.readInt();
+        for (int i = 0; i < typeCount; i++) {
+            sequenceFeatureTypes.add(in.readUTF());
+        }
+        LOG.info("restored " + featureMap.size() + " features and " + publications.size()
+                 + " publications from the checkpoint");
+    }
+
+    /**
+     * Return true if the next debug line should be built and passed to debugToLog(): 1 in
+     * ChadoDBConverter.getDebugSampleRate() lines are, none if the rate is 0.  Guard the debug lines with this
+     * so their strings are only built when sampled.
+     * @return true to log the debug line
+     */
+    private boolean sampleDebug() {
+        int rate = getChadoDBConverter().getDebugSampleRate();
+        return rate > 0 && (rate == 1 || debugLineCount.incrementAndGet() % rate == 0);
+    }
+
+    /**
+     * Store and tally sampled debug lines in debugLineMap.
      * @param a string to be output
      */
     private void debugToLog(String output) {
-	if (debugLineMap.containsKey(output)) {
-	    int count = debugLineMap.get(output).intValue();
-	    count++;
-	    debugLineMap.put(output, new Integer(count));
-	} else {
-	    debugLineMap.put(output, new Integer(1));
-	}
+        synchronized (debugLineMap) {
+            Integer count = debugLineMap.get(output);
+            debugLineMap.put(output, new Integer(count == null ? 1 : count.intValue() + 1));
+        }
     }
 
     /**
-     * Dump the debugLineMap and clear it.
+     * Dump the debugLineMap and clear it.  The counts are scaled by the sampling rate.
      */
     private void logDebugLines() {
-	for (String debugLine : debugLineMap.keySet()) {
-	    LOG.info(debugLine+" {"+debugLineMap.get(debugLine).intValue()+"}");
-	}
-	debugLineMap.clear();
+        int rate = getChadoDBConverter().getDebugSampleRate();
+        synchronized (debugLineMap) {
+            for (String debugLine : debugLineMap.keySet()) {
+                // scale the sampled count up to an estimate of the real one
+                LOG.info(debugLine+" {"+(rate > 1 ? "~" : "")+(debugLineMap.get(debugLine).intValue() * rate)+"}");
+            }
+            debugLineMap.clear();
+        }
     }
 
 }
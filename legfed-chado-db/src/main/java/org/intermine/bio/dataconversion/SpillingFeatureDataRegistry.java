@@ -0,0 +1,464 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine, NCGR
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.intermine.bio.util.OrganismData;
+
+/**
+ * A FeatureDataRegistry that keeps at most a budgeted number of features on the heap and spills the others to
+ * disk, for builds with more features than fit in memory.  Features that haven't been read since the last sweep
+ * are chosen with the clock algorithm: get() marks a feature as referenced and each sweep of the hash table
+ * either clears the mark or spills the feature.  A spilled feature is paged back in the next time it is read, so
+ * the location, relation and synonym phases see every feature as before.
+ *
+ * Each spilled feature has a fixed-width record in a memory-mapped record file, numbered in the order the
+ * features were first spilled, holding its feature_id, organism, type, numeric fields and the position of its
+ * Strings in an arena file.  A feature spilled again reuses its record, and its arena entry if the Strings still
+ * fit.  The files are temporary and deleted when the JVM exits.
+ *
+ * A sweep makes at most one pass over the table, so a feature returned by get() or put() can only have its mark
+ * cleared by the sweep of the next call that misses, and is spilled no sooner than the sweep after that.  A
+ * caller may therefore change a FeatureData after one further get(), as SequenceProcessor's cvterm phase does
+ * with the current feature after getting the previous one, but must get it again before changing it after any
+ * more: once spilled it is paged in again as a new object, and changes made to the old one are lost.  Callers
+ * mustn't hold one across other threads' reads, so SequenceProcessor runs its phases serially when spilling.
+ * Iterating the entrySet pages in each feature.
+ *
+ * @author Sam Hokin
+ */
+class SpillingFeatureDataRegistry extends FeatureDataRegistry
+{
+    private static final Logger LOG = Logger.getLogger(SpillingFeatureDataRegistry.class);
+
+    /**
+     * The estimated heap used by a resident feature with its Strings, to turn a budget in bytes into a number of
+     * features.
+     */
+    static final int RESIDENT_FEATURE_BYTES = 256;
+
+    // feature_id, organism index, type index, arena entry length and offset, then the FeatureData's own fields
+    private static final int RECORD_BYTES = 24 + FeatureData.SPILL_RECORD_BYTES;
+    private static final int SEGMENT_BITS = 18;
+
+    private final File dir;
+    private final int maxResident;
+
+    // the record number of every feature that has been spilled, whether it has been paged in since or not
+    private IntIntHashMap recordNumbers = new IntIntHashMap(1024);
+    // the number of features that are spilled and not resident
+    private int spilledCount = 0;
+    private int recordCount = 0;
+    private int clockHand = 0;
+
+    private final List<OrganismData> organisms = new ArrayList<OrganismData>();
+    private final Map<OrganismData, Integer> organismIndexes = new IdentityHashMap<OrganismData, Integer>();
+    private final List<String> types = new ArrayList<String>();
+    private final Map<String, Integer> typeIndexes = new HashMap<String, Integer>();
+
+    private FileChannel recordChannel = null;
+    private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+    private FileChannel arenaChannel = null;
+    private long arenaEnd = 0;
+    private final ByteArrayOutputStream arenaBytes = new ByteArrayOutputStream();
+    private final DataOutputStream arenaOut = new DataOutputStream(arenaBytes);
+
+    private long hits = 0;
+    private long misses = 0;
+    private long spills = 0;
+
+    /**
+     * Create an empty registry.  The spill files are only created when the budget is first exceeded.
+     * @param dir the directory to create the spill files in
+     * @param budgetBytes the heap the resident features may use
+     */
+    SpillingFeatureDataRegistry(File dir, long budgetBytes) {
+        this.dir = dir;
+        this.maxResident = (int) Math.min(Integer.MAX_VALUE / 2, Math.max(1024, budgetBytes / RESIDENT_FEATURE_BYTES));
+        LOG.info("keeping at most " + maxResident + " features on the heap, spilling the rest to " + dir);
+    }
+
+    /**
+     * {@inheritDoc}
+     * A spilled feature is paged in.
+     */
+    @Override
+    public synchronized FeatureData get(int featureId) {
+        FeatureData fdat = super.get(featureId);
+        if (fdat != null) {
+            hits++;
+            fdat.referenced = true;
+            return fdat;
+        }
+        int record = (spilledCount == 0) ? -1 : recordNumbers.get(featureId);
+        if (record < 0) {
+            return null;
+        }
+        misses++;
+        fdat = readRecord(featureId, record);
+        fdat.referenced = true;
+        super.put(featureId, fdat);
+        spilledCount--;
+        evictIfFull(fdat);
+        return fdat;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized boolean containsKey(int featureId) {
+        return super.containsKey(featureId) || recordNumbers.get(featureId) >= 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized FeatureData put(int featureId, FeatureData fdat) {
+        FeatureData old = super.put(featureId, fdat);
+        if (old == null) {
+            int record = recordNumbers.get(featureId);
+            if (record >= 0) {
+                old = readRecord(featureId, record);
+                spilledCount--;
+            }
+        }
+        fdat.referenced = true;
+        evictIfFull(fdat);
+        return old;
+    }
+
+    /**
+     * {@inheritDoc}
+     * The record of a spilled feature isn't reused.
+     */
+    @Override
+    public synchronized FeatureData remove(int featureId) {
+        FeatureData old = super.remove(featureId);
+        int record = recordNumbers.remove(featureId);
+        if (old == null && record >= 0) {
+            old = readRecord(featureId, record);
+            spilledCount--;
+        }
+        return old;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized int size() {
+        return super.size() + spilledCount;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void clear() {
+        super.clear();
+        recordNumbers = new IntIntHashMap(1024);
+        spilledCount = 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     * The features are visited in feature_id order, and spilled features are paged in as they are reached.
+     */
+    @Override
+    public Set<Map.Entry<Integer, FeatureData>> entrySet() {
+        return new AbstractSet<Map.Entry<Integer, FeatureData>>() {
+            @Override
+            public Iterator<Map.Entry<Integer, FeatureData>> iterator() {
+                final int[] featureIds = getFeatureIds();
+                return new Iterator<Map.Entry<Integer, FeatureData>>() {
+                    private int next = 0;
+
+                    public boolean hasNext() {
+                        return next < featureIds.length;
+                    }
+
+                    public Map.Entry<Integer, FeatureData> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        final Integer featureId = Integer.valueOf(featureIds[next++]);
+                        FeatureData fdat = get(featureId.intValue());
+                        if (fdat == null) {
+                            throw new ConcurrentModificationException();
+                        }
+                        return new AbstractMap.SimpleEntry<Integer, FeatureData>(featureId, fdat) {
+                            private static final long serialVersionUID = 1L;
+
+                            @Override
+                            public FeatureData setValue(FeatureData value) {
+                                put(featureId.intValue(), value);
+                                return super.setValue(value);
+                            }
+                        };
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException("remove by key instead");
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return SpillingFeatureDataRegistry.this.size();
+            }
+
+            @Override
+            public void clear() {
+                SpillingFeatureDataRegistry.this.clear();
+            }
+        };
+    }
+
+    /**
+     * Return a report of the resident and spilled features and the paging counters.  Unlike the super class, it
+     * doesn't read every feature.
+     * @return the report
+     */
+    @Override
+    synchronized String getMemoryReport() {
+        return "feature registry: " + size() + " features, " + super.size() + " on the heap (at most "
+            + maxResident + "), " + spilledCount + " spilled; " + hits + " hits, " + misses + " misses, "
+            + spills + " spills; " + ((long) recordCount * RECORD_BYTES >> 20) + " MB of records, "
+            + (arenaEnd >> 20) + " MB of arena";
+    }
+
+    /**
+     * Return the number of reads of a resident feature.
+     * @return the hit count
+     */
+    synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Return the number of reads that paged in a spilled feature.
+     * @return the miss count
+     */
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Return the number of times a feature has been spilled.
+     * @return the spill count
+     */
+    synchronized long getSpills() {
+        return spills;
+    }
+
+    private synchronized int[] getFeatureIds() {
+        int[] featureIds = new int[size()];
+        int count = 0;
+        for (int slot = 0; slot < capacity(); slot++) {
+            if (slotValue(slot) != null) {
+                featureIds[count++] = slotKey(slot);
+            }
+        }
+        for (int featureId : recordNumbers.keys()) {
+            if (!super.containsKey(featureId)) {
+                featureIds[count++] = featureId;
+            }
+        }
+        Arrays.sort(featureIds);
+        return featureIds;
+    }
+
+    /**
+     * Spill features until an eighth of the budget is free, sweeping the table from where the last sweep
+     * stopped.  A feature is spilled if it hasn't been read since the last time the sweep passed it.  A sweep
+     * makes at most one pass and chooses its features before spilling any of them, since a removal shifts other
+     * features between slots, so no feature is passed twice by one sweep; if a pass doesn't free enough, the
+     * registry stays over budget until the next sweep.
+     * @param keep a feature that mustn't be spilled, the one being returned
+     */
+    private void evictIfFull(FeatureData keep) {
+        if (super.size() <= maxResident) {
+            return;
+        }
+        int[] victims = new int[super.size() - (maxResident - maxResident / 8)];
+        int victimCount = 0;
+        int mask = capacity() - 1;
+        for (int steps = capacity(); steps > 0 && victimCount < victims.length; steps--) {
+            clockHand &= mask;
+            FeatureData fdat = slotValue(clockHand);
+            if (fdat != null && fdat != keep) {
+                if (fdat.referenced) {
+                    fdat.referenced = false;
+                } else {
+                    victims[victimCount++] = slotKey(clockHand);
+                }
+            }
+            clockHand++;
+        }
+        for (int i = 0; i < victimCount; i++) {
+            int featureId = victims[i];
+            spill(featureId, super.get(featureId));
+            super.remove(featureId);
+        }
+    }
+
+    private void spill(int featureId, FeatureData fdat) {
+        try {
+            if (recordChannel == null) {
+                openFiles();
+            }
+            arenaBytes.reset();
+            fdat.writeSpillFields(arenaOut);
+            arenaOut.flush();
+            int length = arenaBytes.size();
+
+            int record = recordNumbers.get(featureId);
+            long offset;
+            if (record >= 0) {
+                ByteBuffer old = getRecord(record);
+                old.position(old.position() + 12);
+                int oldLength = old.getInt();
+                offset = (length <= oldLength) ? old.getLong() : arenaEnd;
+            } else {
+                record = recordCount++;
+                recordNumbers.put(featureId, record);
+                offset = arenaEnd;
+            }
+            if (offset == arenaEnd) {
+                arenaEnd += length;
+            }
+            ByteBuffer arenaBuffer = ByteBuffer.wrap(arenaBytes.toByteArray());
+            long position = offset;
+            while (arenaBuffer.hasRemaining()) {
+                position += arenaChannel.write(arenaBuffer, position);
+            }
+
+            ByteBuffer buffer = getRecord(record);
+            buffer.putInt(featureId);
+            buffer.putInt(getOrganismIndex(fdat.getOrganismData()));
+            buffer.putInt(getTypeIndex(fdat.getInterMineType()));
+            buffer.putInt(length);
+            buffer.putLong(offset);
+            fdat.writeSpillRecord(buffer);
+            spilledCount++;
+            spills++;
+        } catch (IOException e) {
+            throw new RuntimeException("failed to spill feature " + featureId + " to " + dir, e);
+        }
+    }
+
+    private FeatureData readRecord(int featureId, int record) {
+        try {
+            ByteBuffer buffer = getRecord(record);
+            int recordFeatureId = buffer.getInt();
+            if (recordFeatureId != featureId) {
+                throw new IllegalStateException("spill record " + record + " is of feature " + recordFeatureId
+                                                + " not " + featureId);
+            }
+            int organismIndex = buffer.getInt();
+            int typeIndex = buffer.getInt();
+            int length = buffer.getInt();
+            long offset = buffer.getLong();
+            ByteBuffer arenaBuffer = ByteBuffer.allocate(length);
+            while (arenaBuffer.hasRemaining()) {
+                if (arenaChannel.read(arenaBuffer, offset + arenaBuffer.position()) < 0) {
+                    throw new IOException("spill arena ends before feature " + featureId);
+                }
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(arenaBuffer.array()));
+            return FeatureData.readSpill(buffer, in, (organismIndex < 0) ? null : organisms.get(organismIndex),
+                                         (typeIndex < 0) ? null : types.get(typeIndex));
+        } catch (IOException e) {
+            throw new RuntimeException("failed to read spilled feature " + featureId + " from " + dir, e);
+        }
+    }
+
+    /**
+     * Return the mapped buffer holding a record, positioned at the record, mapping a new segment of the record
+     * file if needed.
+     */
+    private ByteBuffer getRecord(int record) throws IOException {
+        int segment = record >>> SEGMENT_BITS;
+        long segmentBytes = (long) RECORD_BYTES << SEGMENT_BITS;
+        while (segments.size() <= segment) {
+            segments.add(recordChannel.map(FileChannel.MapMode.READ_WRITE, segments.size() * segmentBytes,
+                                           segmentBytes));
+        }
+        ByteBuffer buffer = segments.get(segment);
+        buffer.position((record & ((1 << SEGMENT_BITS) - 1)) * RECORD_BYTES);
+        return buffer;
+    }
+
+    private void openFiles() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can't create spill directory " + dir);
+        }
+        File recordFile = File.createTempFile("features", ".records", dir);
+        recordFile.deleteOnExit();
+        File arenaFile = File.createTempFile("features", ".arena", dir);
+        arenaFile.deleteOnExit();
+        recordChannel = new RandomAccessFile(recordFile, "rw").getChannel();
+        arenaChannel = new RandomAccessFile(arenaFile, "rw").getChannel();
+        LOG.info("spilling features to " + recordFile + " and " + arenaFile);
+    }
+
+    private int getOrganismIndex(OrganismData organismData) {
+        if (organismData == null) {
+            return -1;
+        }
+        Integer index = organismIndexes.get(organismData);
+        if (index == null) {
+            index = Integer.valueOf(organisms.size());
+            organisms.add(organismData);
+            organismIndexes.put(organismData, index);
+        }
+        return index.intValue();
+    }
+
+    private int getTypeIndex(String type) {
+        if (type == null) {
+            return -1;
+        }
+        Integer index = typeIndexes.get(type);
+        if (index == null) {
+            index = Integer.valueOf(types.size());
+            types.add(intern(type));
+            typeIndexes.put(type, index);
+        }
+        return index.intValue();
+    }
+}
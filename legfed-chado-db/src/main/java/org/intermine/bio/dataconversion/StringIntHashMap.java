@@ -0,0 +1,115 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine, NCGR
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+/**
+ * An open-addressing hash map from Strings to non-negative ints, for indexes of names to chado ids.  Keys live in a
+ * String[] and values in a parallel int[] with linear probing, so there is no boxed value or entry object per
+ * mapping, and the Strings' cached hash codes are used.  Mappings can't be removed.
+ *
+ * @author Sam Hokin
+ */
+class StringIntHashMap
+{
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private String[] keys;
+    private int[] values;
+    private int mask;
+    private int size = 0;
+    private int resizeAt;
+
+    /**
+     * Create a new map sized to hold the given number of entries without rehashing.
+     * @param expectedSize the expected number of entries
+     */
+    StringIntHashMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity * LOAD_FACTOR < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new String[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private int slot(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        int i = (h ^ (h >>> 16)) & mask;
+        while (keys[i] != null) {
+            if (keys[i].equals(key)) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1 - i;
+    }
+
+    /**
+     * Return the value for the given key.
+     * @param key the key
+     * @return the value or -1 if there is no mapping
+     */
+    int get(String key) {
+        int i = slot(key);
+        return i < 0 ? -1 : values[i];
+    }
+
+    /**
+     * Add a mapping unless the key already has one.
+     * @param key the non-null key
+     * @param value the non-negative value
+     * @return true if the mapping was added, false if the key was present and its value kept
+     */
+    boolean putIfAbsent(String key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("negative values are not allowed, key: " + key);
+        }
+        int i = slot(key);
+        if (i >= 0) {
+            return false;
+        }
+        if (size >= resizeAt) {
+            rehash(keys.length << 1);
+            i = slot(key);
+        }
+        keys[-1 - i] = key;
+        values[-1 - i] = value;
+        size++;
+        return true;
+    }
+
+    /**
+     * Return the number of mappings.
+     * @return the size
+     */
+    int size() {
+        return size;
+    }
+
+    private void rehash(int capacity) {
+        String[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != null) {
+                int i = -1 - slot(oldKeys[j]);
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+}
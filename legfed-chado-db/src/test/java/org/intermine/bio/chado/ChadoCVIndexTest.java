@@ -0,0 +1,143 @@
+package org.intermine.bio.chado;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests for ChadoCVIndex, through ChadoCV and ChadoCVTerm.
+ *
+ * @author Sam Hokin
+ */
+public class ChadoCVIndexTest
+{
+    private final ChadoCV cv = new ChadoCV("sequence");
+    private final Map<String, ChadoCVTerm> terms = new HashMap<String, ChadoCVTerm>();
+
+    private ChadoCVTerm term(String name) {
+        ChadoCVTerm term = terms.get(name);
+        if (term == null) {
+            term = new ChadoCVTerm(name);
+            terms.put(name, term);
+            cv.addByChadoId(Integer.valueOf(terms.size()), term);
+        }
+        return term;
+    }
+
+    private void isA(String child, String parent) {
+        term(child).getDirectParents().add(term(parent));
+        term(parent).getDirectChildren().add(term(child));
+    }
+
+    private static Set<String> names(Set<ChadoCVTerm> terms) {
+        Set<String> names = new HashSet<String>();
+        for (ChadoCVTerm term : terms) {
+            names.add(term.getName());
+        }
+        return names;
+    }
+
+    private static Set<String> names(String... names) {
+        return new HashSet<String>(Arrays.asList(names));
+    }
+
+    @Test
+    public void testClosureMatchesUnindexedTerms() {
+        // a diamond below the root, and a chain off one side of it
+        isA("gene", "region");
+        isA("transcript", "region");
+        isA("mRNA", "gene");
+        isA("mRNA", "transcript");
+        isA("transcript", "RNA_region");
+        isA("exon", "region");
+        isA("CDS_exon", "exon");
+        isA("CDS_exon", "mRNA");
+        Map<String, Set<String>> parents = new HashMap<String, Set<String>>();
+        Map<String, Set<String>> children = new HashMap<String, Set<String>>();
+        for (ChadoCVTerm term : terms.values()) {
+            parents.put(term.getName(), names(term.getAllParents()));
+            children.put(term.getName(), names(term.getAllChildren()));
+        }
+
+        cv.buildIndex();
+        for (ChadoCVTerm term : terms.values()) {
+            assertEquals(term.getName(), parents.get(term.getName()), names(term.getAllParents()));
+            assertEquals(term.getName(), children.get(term.getName()), names(term.getAllChildren()));
+        }
+        assertEquals(names("gene", "transcript", "region", "RNA_region", "exon", "mRNA"),
+                     names(term("CDS_exon").getAllParents()));
+        assertEquals(names("region", "RNA_region"), names(cv.getRootCVTerms()));
+        assertTrue(cv.isA(term("CDS_exon"), term("transcript")));
+        assertTrue(cv.isA(term("gene"), term("gene")));
+        assertFalse(cv.isA(term("gene"), term("transcript")));
+        assertFalse(cv.isA(term("region"), term("gene")));
+    }
+
+    @Test
+    public void testCycle() {
+        // a cycle with a root above it and a term below it
+        isA("a", "root");
+        isA("a", "b");
+        isA("b", "c");
+        isA("c", "a");
+        isA("leaf", "c");
+        cv.buildIndex();
+
+        assertEquals(names("root", "a", "b", "c"), names(term("a").getAllParents()));
+        assertEquals(names("root", "a", "b", "c"), names(term("b").getAllParents()));
+        assertEquals(names("root", "a", "b", "c"), names(term("leaf").getAllParents()));
+        assertEquals(names("a", "b", "c", "leaf"), names(term("root").getAllChildren()));
+        assertEquals(names("a", "b", "c", "leaf"), names(term("c").getAllChildren()));
+        assertTrue(cv.isA(term("a"), term("c")));
+        assertTrue(cv.isA(term("c"), term("a")));
+        assertTrue(cv.isA(term("leaf"), term("b")));
+        assertFalse(cv.isA(term("b"), term("leaf")));
+        assertFalse(cv.isA(term("root"), term("a")));
+    }
+
+    @Test
+    public void testSelfLoop() {
+        isA("loop", "loop");
+        isA("child", "loop");
+        cv.buildIndex();
+        assertEquals(names("loop"), names(term("loop").getAllParents()));
+        assertEquals(names("loop"), names(term("child").getAllParents()));
+        assertEquals(names("loop", "child"), names(term("loop").getAllChildren()));
+    }
+
+    @Test
+    public void testContainsTermFromOutsideTheIndex() {
+        isA("gene", "region");
+        cv.buildIndex();
+        Set<ChadoCVTerm> parents = term("gene").getAllParents();
+        assertTrue(parents.contains(term("region")));
+        assertTrue(parents.contains(new ChadoCVTerm("region")));
+        assertFalse(parents.contains(new ChadoCVTerm("gene")));
+        assertFalse(parents.contains("region"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNoTermsAfterIndexing() {
+        term("gene");
+        cv.buildIndex();
+        term("region");
+    }
+}
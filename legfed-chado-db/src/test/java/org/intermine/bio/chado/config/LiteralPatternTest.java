@@ -0,0 +1,113 @@
+package org.intermine.bio.chado.config;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Tests that LiteralPattern matches values as java.util.regex.Pattern does.
+ *
+ * @author Sam Hokin
+ */
+public class LiteralPatternTest
+{
+    private static final String[] LITERAL_PATTERNS = {
+        "Glyma", "^Glyma$", "Glyma\\.(.*)", "Glyma\\.(.+)", "(.*)\\.1", "(.+)\\.1", "Glyma\\..*", ".*\\.1",
+        "Glyma\\.(.*)\\.1", "^phavu\\.(.+)$", "cost\\$", "a\\-b(.*)", "", ".*", "(.*)",
+    };
+
+    private static final String[] OTHER_PATTERNS = {
+        "Glyma\\.\\d+", "a|b", "(.*)\\.(.*)", "[A-Z].*", "Glyma\\.(.*)?", "a.b", ".", "(Glyma)", "\\QGlyma\\E",
+        "(?:.*)", "Glyma.*$$",
+    };
+
+    private static final String[] VALUES = {
+        "", "Glyma", "Glyma.", "Glyma.01G000100", "Glyma.01G000100.1", "Glyma.1", "glyma.1", ".1", "1",
+        "phavu.", "phavu.Phvul.001G000100", "cost$", "cost", "a-b", "a-bcd", "Glyma.a\nb.1", "\n", "a\u2028.1",
+    };
+
+    /**
+     * Match a value the way MatchingFieldConfigAction does without the fast path.
+     */
+    private static MatchResult matchPattern(Pattern pattern, String value) {
+        Matcher matcher = pattern.matcher(value);
+        if (!matcher.matches()) {
+            return MatchResult.NO_MATCH;
+        }
+        if (matcher.groupCount() == 1 && matcher.group(1) != null) {
+            return MatchResult.valid(matcher.group(1));
+        }
+        return MatchResult.valid(value);
+    }
+
+    private static void assertSameResult(String message, MatchResult expected, MatchResult actual) {
+        assertEquals(message, Boolean.valueOf(expected.isValid()), Boolean.valueOf(actual.isValid()));
+        assertEquals(message, expected.getValue(), actual.getValue());
+    }
+
+    @Test
+    public void testLiteralPatternsMatchAsPatternDoes() {
+        for (String regex : LITERAL_PATTERNS) {
+            Pattern pattern = Pattern.compile(regex);
+            LiteralPattern literal = LiteralPattern.compile(pattern);
+            assertNotNull(regex, literal);
+            for (String value : VALUES) {
+                MatchResult result = literal.match(value);
+                if (result != null) {
+                    assertSameResult(regex + " on " + value, matchPattern(pattern, value), result);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testLineTerminatorsAreLeftToThePattern() {
+        LiteralPattern literal = LiteralPattern.compile(Pattern.compile("Glyma\\.(.*)\\.1"));
+        assertNull(literal.match("Glyma.a\nb.1"));
+        assertNull(literal.match("Glyma.a\u2028b.1"));
+        assertNotNull(literal.match("Glyma.a b.1"));
+    }
+
+    @Test
+    public void testOtherPatternsAreNotCompiled() {
+        for (String regex : OTHER_PATTERNS) {
+            assertNull(regex, LiteralPattern.compile(Pattern.compile(regex)));
+        }
+        assertNull(LiteralPattern.compile(Pattern.compile("Glyma.*", Pattern.CASE_INSENSITIVE)));
+    }
+
+    @Test
+    public void testMatchingFieldConfigActionMatchesAsPatternDoes() {
+        String[][] patterns = {LITERAL_PATTERNS, OTHER_PATTERNS};
+        for (String[] regexes : patterns) {
+            for (String regex : regexes) {
+                Pattern pattern = Pattern.compile(regex);
+                if (pattern.matcher("").groupCount() > 1) {
+                    // rejected by MatchingFieldConfigAction
+                    continue;
+                }
+                MatchingFieldConfigAction action = new MatchingFieldConfigAction(pattern);
+                for (String value : VALUES) {
+                    // twice, the second time from the cache if the pattern isn't a literal one
+                    assertSameResult(regex + " on " + value, matchPattern(pattern, value), action.match(value));
+                    assertSameResult(regex + " on " + value, matchPattern(pattern, value), action.match(value));
+                }
+            }
+        }
+    }
+}
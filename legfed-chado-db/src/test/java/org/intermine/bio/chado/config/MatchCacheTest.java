@@ -0,0 +1,66 @@
+package org.intermine.bio.chado.config;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for MatchCache.
+ *
+ * @author Sam Hokin
+ */
+public class MatchCacheTest
+{
+    @Test
+    public void testGetAndPut() {
+        MatchCache cache = new MatchCache(100, 1L << 20);
+        MatchResult result = MatchResult.valid("01G000100");
+        assertNull(cache.get("Glyma.01G000100"));
+        cache.put("Glyma.01G000100", result);
+        assertSame(result, cache.get("Glyma.01G000100"));
+        // the first result for a value is kept
+        cache.put("Glyma.01G000100", MatchResult.NO_MATCH);
+        assertSame(result, cache.get("Glyma.01G000100"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testEntryBound() {
+        MatchCache cache = new MatchCache(100, 1L << 30);
+        for (int i = 0; i < 1000; i++) {
+            cache.put("value" + i, MatchResult.NO_MATCH);
+            assertTrue(cache.size() <= 100);
+        }
+        // evicted down to three quarters once full, so some of the last values are still there
+        assertTrue(cache.size() >= 75);
+        assertSame(MatchResult.NO_MATCH, cache.get("value999"));
+    }
+
+    @Test
+    public void testWeightBound() {
+        // room for about ten entries of 1000 characters, whatever the entry bound
+        MatchCache cache = new MatchCache(1000000, 10 * (112 + 2000));
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 996; i++) {
+            padding.append('x');
+        }
+        for (int i = 0; i < 1000; i++) {
+            cache.put(padding.toString() + (1000 + i), MatchResult.NO_MATCH);
+            assertTrue(cache.size() <= 10);
+        }
+        assertTrue(cache.size() >= 7);
+    }
+}
@@ -0,0 +1,86 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine, NCGR
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+/**
+ * Tests for ConcurrentItemRegistry.
+ *
+ * @author Sam Hokin
+ */
+public class ConcurrentItemRegistryTest
+{
+    @Test
+    public void testPutIfAbsent() {
+        ConcurrentItemRegistry<String> registry = new ConcurrentItemRegistry<String>();
+        assertNull(registry.get(12));
+        assertEquals("first", registry.putIfAbsent(12, "first"));
+        assertEquals("first", registry.putIfAbsent(12, "second"));
+        assertEquals("first", registry.get(12));
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void testValuesInChadoIdOrder() {
+        ConcurrentItemRegistry<Integer> registry = new ConcurrentItemRegistry<Integer>();
+        int[] ids = {5000, 3, Integer.MAX_VALUE, 0, 77, 1 << 20, 4};
+        for (int id : ids) {
+            registry.putIfAbsent(id, Integer.valueOf(id));
+        }
+        List<Integer> values = registry.values();
+        assertEquals("[0, 3, 4, 77, 5000, 1048576, 2147483647]", values.toString());
+    }
+
+    @Test
+    public void testConcurrentRegistration() throws Exception {
+        final ConcurrentItemRegistry<Object> registry = new ConcurrentItemRegistry<Object>();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Object[]>> results = new ArrayList<Future<Object[]>>();
+            for (int t = 0; t < 4; t++) {
+                results.add(executor.submit(new Callable<Object[]>() {
+                    public Object[] call() {
+                        // every thread registers the same ids and keeps what it was given back
+                        Object[] registered = new Object[10000];
+                        for (int id = 0; id < registered.length; id++) {
+                            registered[id] = registry.putIfAbsent(id, new Object());
+                        }
+                        return registered;
+                    }
+                }));
+            }
+            Object[] first = results.get(0).get();
+            for (Future<Object[]> result : results) {
+                Object[] registered = result.get();
+                for (int id = 0; id < registered.length; id++) {
+                    assertSame(first[id], registered[id]);
+                    assertSame(first[id], registry.get(id));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(10000, registry.size());
+        assertEquals(10000, registry.values().size());
+    }
+}
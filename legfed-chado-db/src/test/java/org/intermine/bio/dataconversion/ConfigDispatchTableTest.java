@@ -0,0 +1,119 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine, NCGR
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.collections.keyvalue.MultiKey;
+import org.intermine.bio.chado.config.ConfigAction;
+import org.intermine.bio.chado.config.CreateSynonymAction;
+import org.intermine.bio.chado.config.DoNothingAction;
+import org.intermine.bio.chado.config.SetFieldConfigAction;
+import org.junit.Test;
+
+/**
+ * Tests for ConfigDispatchTable.
+ *
+ * @author Sam Hokin
+ */
+public class ConfigDispatchTableTest
+{
+    private final Map<MultiKey, List<ConfigAction>> config = new HashMap<MultiKey, List<ConfigAction>>();
+
+    private static List<ConfigAction> actions(ConfigAction... actions) {
+        return new ArrayList<ConfigAction>(Arrays.asList(actions));
+    }
+
+    @Test
+    public void testSplitsActionsByClass() {
+        SetFieldConfigAction setField = new SetFieldConfigAction("description");
+        CreateSynonymAction createSynonym = new CreateSynonymAction();
+        config.put(new MultiKey("prop", "Gene", "note"), actions(setField, new DoNothingAction(), createSynonym));
+        ConfigDispatchTable table = new ConfigDispatchTable(config, "LIS");
+
+        ConfigDispatchTable.Actions found = table.get(ConfigDispatchTable.PROP, "Gene", "note");
+        assertEquals(1, found.setFieldActions.length);
+        assertSame(setField, found.setFieldActions[0]);
+        assertEquals(1, found.createSynonymActions.length);
+        assertSame(createSynonym, found.createSynonymActions[0]);
+        assertFalse(found.isEmpty());
+    }
+
+    @Test
+    public void testEmptyActionList() {
+        config.put(new MultiKey("cvterm", "Gene", "GO"), actions());
+        ConfigDispatchTable table = new ConfigDispatchTable(config, "LIS");
+        assertTrue(table.get(ConfigDispatchTable.CVTERM, "Gene", "GO").isEmpty());
+    }
+
+    @Test
+    public void testMissingKeys() {
+        config.put(new MultiKey("prop", "Gene", "note"), actions(new SetFieldConfigAction("description")));
+        config.put(new MultiKey("prop", "MRNA", "symbol"), actions(new SetFieldConfigAction("symbol")));
+        ConfigDispatchTable table = new ConfigDispatchTable(config, "LIS");
+        // known type and field, but not configured together
+        assertNull(table.get(ConfigDispatchTable.PROP, "Gene", "symbol"));
+        // configured in another table
+        assertNull(table.get(ConfigDispatchTable.CVTERM, "Gene", "note"));
+        assertNull(table.get(ConfigDispatchTable.PROP, "Protein", "note"));
+        assertNull(table.get(ConfigDispatchTable.PROP, "Gene", "comment"));
+        assertNull(table.get(ConfigDispatchTable.PROP, null, "note"));
+        assertNull(table.get(ConfigDispatchTable.PROP, "Gene", null));
+    }
+
+    @Test
+    public void testFeatureKeysOfOtherDataSourcesAreSkipped() {
+        config.put(new MultiKey("feature", "Gene", "LIS", "name"), actions(new SetFieldConfigAction("symbol")));
+        config.put(new MultiKey("feature", "Gene", "SoyBase", "uniquename"),
+                   actions(new SetFieldConfigAction("primaryIdentifier")));
+        ConfigDispatchTable table = new ConfigDispatchTable(config, "LIS");
+        assertEquals("symbol", table.get(ConfigDispatchTable.FEATURE, "Gene", "name")
+                     .setFieldActions[0].getFieldName());
+        assertNull(table.get(ConfigDispatchTable.FEATURE, "Gene", "uniquename"));
+    }
+
+    @Test
+    public void testIsCurrentFallsBackToKeyWithout() {
+        SetFieldConfigAction any = new SetFieldConfigAction("secondaryIdentifier");
+        SetFieldConfigAction current = new SetFieldConfigAction("primaryIdentifier");
+        config.put(new MultiKey("dbxref", "Gene", "FlyBase"), actions(any));
+        config.put(new MultiKey("dbxref", "Gene", "FlyBase", Boolean.TRUE), actions(current));
+        config.put(new MultiKey("synonym", "Gene", "symbol", Boolean.FALSE), actions(new CreateSynonymAction()));
+        ConfigDispatchTable table = new ConfigDispatchTable(config, "LIS");
+
+        assertSame(current, table.get(ConfigDispatchTable.DBXREF, "Gene", "FlyBase", true).setFieldActions[0]);
+        assertSame(any, table.get(ConfigDispatchTable.DBXREF, "Gene", "FlyBase", false).setFieldActions[0]);
+        assertSame(any, table.get(ConfigDispatchTable.DBXREF, "Gene", "FlyBase").setFieldActions[0]);
+
+        // no key without an is_current to fall back to
+        assertEquals(1, table.get(ConfigDispatchTable.SYNONYM, "Gene", "symbol", false).createSynonymActions.length);
+        assertNull(table.get(ConfigDispatchTable.SYNONYM, "Gene", "symbol", true));
+        assertNull(table.get(ConfigDispatchTable.SYNONYM, "Gene", "symbol"));
+    }
+
+    @Test
+    public void testOtherKeysAreIgnored() {
+        config.put(new MultiKey("relationship", "Gene", "part_of", "MRNA"), actions(new DoNothingAction()));
+        config.put(new MultiKey("prop", "Gene"), actions(new DoNothingAction()));
+        ConfigDispatchTable table = new ConfigDispatchTable(config, "LIS");
+        assertNull(table.get(ConfigDispatchTable.PROP, "Gene", "part_of"));
+    }
+}
@@ -0,0 +1,95 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine, NCGR
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for IntIntHashMap.
+ *
+ * @author Sam Hokin
+ */
+public class IntIntHashMapTest
+{
+    @Test
+    public void testPutAndGet() {
+        IntIntHashMap map = new IntIntHashMap(0);
+        map.put(-5, 0);
+        map.put(7, 3);
+        map.put(7, 4);
+        assertEquals(0, map.get(-5));
+        assertEquals(4, map.get(7));
+        assertEquals(-1, map.get(8));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    public void testResize() {
+        IntIntHashMap map = new IntIntHashMap(1);
+        for (int i = 0; i < 10000; i++) {
+            map.put(i * 104729, i);
+        }
+        assertEquals(10000, map.size());
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i, map.get(i * 104729));
+        }
+        int[] keys = map.keys();
+        Arrays.sort(keys);
+        assertEquals(10000, keys.length);
+        assertEquals(0, keys[0]);
+        assertEquals(9999 * 104729, keys[9999]);
+    }
+
+    @Test
+    public void testRemove() {
+        IntIntHashMap map = new IntIntHashMap(1);
+        Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+        Random random = new Random(23);
+        // a small key range so that puts and removes keep hitting the same probe chains
+        for (int i = 0; i < 100000; i++) {
+            int key = random.nextInt(2000);
+            if (random.nextInt(3) == 0) {
+                Integer old = expected.remove(Integer.valueOf(key));
+                assertEquals((old == null) ? -1 : old.intValue(), map.remove(key));
+            } else {
+                expected.put(Integer.valueOf(key), Integer.valueOf(i));
+                map.put(key, i);
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (int key = 0; key < 2000; key++) {
+            Integer value = expected.get(Integer.valueOf(key));
+            assertEquals((value == null) ? -1 : value.intValue(), map.get(key));
+        }
+        int[] keys = map.keys();
+        Arrays.sort(keys);
+        int[] expectedKeys = new int[expected.size()];
+        int n = 0;
+        for (Integer key : expected.keySet()) {
+            expectedKeys[n++] = key.intValue();
+        }
+        Arrays.sort(expectedKeys);
+        assertArrayEquals(expectedKeys, keys);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeValue() {
+        new IntIntHashMap(0).put(1, -1);
+    }
+}
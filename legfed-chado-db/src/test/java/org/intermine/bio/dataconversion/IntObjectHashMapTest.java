@@ -0,0 +1,122 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine, NCGR
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for IntObjectHashMap.
+ *
+ * @author Sam Hokin
+ */
+public class IntObjectHashMapTest
+{
+    @Test
+    public void testPutAndGet() {
+        IntObjectHashMap<String> map = new IntObjectHashMap<String>();
+        assertNull(map.put(42, "a"));
+        assertEquals("a", map.put(42, "b"));
+        assertEquals("b", map.get(42));
+        assertNull(map.get(43));
+        assertTrue(map.containsKey(42));
+        assertFalse(map.containsKey(43));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void testResize() {
+        IntObjectHashMap<Integer> map = new IntObjectHashMap<Integer>(1);
+        int initialCapacity = map.capacity();
+        for (int i = 0; i < 10000; i++) {
+            map.put(i * 7919, Integer.valueOf(i));
+        }
+        assertTrue(map.capacity() > initialCapacity);
+        assertTrue(map.size() <= map.capacity() * 0.6f);
+        assertEquals(10000, map.size());
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(Integer.valueOf(i), map.get(i * 7919));
+        }
+    }
+
+    @Test
+    public void testRemove() {
+        IntObjectHashMap<Integer> map = new IntObjectHashMap<Integer>(1);
+        Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+        for (int i = 0; i < 5000; i++) {
+            map.put(i, Integer.valueOf(i));
+            expected.put(Integer.valueOf(i), Integer.valueOf(i));
+        }
+        // removing every third key shifts the probe chains of their neighbours back
+        for (int i = 0; i < 5000; i += 3) {
+            assertEquals(Integer.valueOf(i), map.remove(i));
+            expected.remove(Integer.valueOf(i));
+        }
+        assertNull(map.remove(0));
+        assertNull(map.remove(-1));
+        assertEquals(expected.size(), map.size());
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(expected.get(Integer.valueOf(i)), map.get(i));
+        }
+        assertEquals(expected, map);
+    }
+
+    @Test
+    public void testRandomPutsAndRemoves() {
+        IntObjectHashMap<Integer> map = new IntObjectHashMap<Integer>(1);
+        Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+        Random random = new Random(17);
+        // a small key range so that puts and removes keep hitting the same probe chains
+        for (int i = 0; i < 100000; i++) {
+            int key = random.nextInt(2000) - 1000;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(Integer.valueOf(key)), map.remove(key));
+            } else {
+                assertEquals(expected.put(Integer.valueOf(key), Integer.valueOf(i)), map.put(key, Integer.valueOf(i)));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        assertEquals(expected, map);
+    }
+
+    @Test
+    public void testMapAdapter() {
+        IntObjectHashMap<String> map = new IntObjectHashMap<String>();
+        map.put(Integer.valueOf(1), "one");
+        map.put(2, "two");
+        assertEquals("one", map.get(Integer.valueOf(1)));
+        assertNull(map.get("1"));
+        int sum = 0;
+        for (Map.Entry<Integer, String> entry : map.entrySet()) {
+            sum += entry.getKey().intValue();
+            entry.setValue(entry.getValue().toUpperCase());
+        }
+        assertEquals(3, sum);
+        assertEquals("ONE", map.get(1));
+        assertEquals("TWO", map.remove(Integer.valueOf(2)));
+        map.clear();
+        assertEquals(0, map.size());
+        assertNull(map.get(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNullValue() {
+        new IntObjectHashMap<String>().put(1, null);
+    }
+}
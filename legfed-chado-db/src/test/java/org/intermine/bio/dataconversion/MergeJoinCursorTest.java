@@ -0,0 +1,144 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine, NCGR
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for MergeJoinCursor.
+ *
+ * @author Sam Hokin
+ */
+public class MergeJoinCursorTest
+{
+    /**
+     * A ResultSet over rows of (feature_id, value), implementing only what MergeJoinCursor and the tests use.
+     */
+    private static class Rows implements InvocationHandler
+    {
+        private final int[][] rows;
+        private int row = -1;
+        private boolean closed = false;
+
+        Rows(int[]... rows) {
+            this.rows = rows;
+        }
+
+        ResultSet resultSet() {
+            return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+                                                      new Class<?>[] {ResultSet.class}, this);
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if ("next".equals(name)) {
+                row++;
+                return Boolean.valueOf(row < rows.length);
+            } else if ("getInt".equals(name)) {
+                return Integer.valueOf(rows[row]["feature_id".equals(args[0]) ? 0 : 1]);
+            } else if ("close".equals(name)) {
+                closed = true;
+                return null;
+            }
+            throw new UnsupportedOperationException(name);
+        }
+    }
+
+    /**
+     * Join the cursor to the driving keys, returning "key:value" for each joined row.
+     */
+    private static List<String> join(MergeJoinCursor cursor, int... keys) throws Exception {
+        List<String> joined = new ArrayList<String>();
+        for (int key : keys) {
+            while (cursor.next(key)) {
+                joined.add(key + ":" + cursor.getResultSet().getInt("value"));
+            }
+        }
+        return joined;
+    }
+
+    @Test
+    public void testJoin() throws Exception {
+        Rows rows = new Rows(new int[] {1, 10}, new int[] {3, 30}, new int[] {3, 31}, new int[] {4, 40},
+                             new int[] {7, 70}, new int[] {9, 90});
+        MergeJoinCursor cursor = new MergeJoinCursor(rows.resultSet(), "feature_id");
+        // 1 and 4 have no driving row and are skipped, 5 has no rows, 9 is never asked for
+        assertEquals("[3:30, 3:31, 7:70]", join(cursor, 2, 3, 5, 7).toString());
+        assertFalse(cursor.next(8));
+        assertTrue(cursor.next(9));
+        assertEquals(90, cursor.getResultSet().getInt("value"));
+        assertFalse(cursor.next(9));
+        assertFalse(cursor.next(10));
+        assertEquals(6, cursor.getRowCount());
+        cursor.close();
+        assertTrue(rows.closed);
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        MergeJoinCursor cursor = new MergeJoinCursor(new Rows().resultSet(), "feature_id");
+        assertFalse(cursor.next(1));
+        assertEquals(0, cursor.getRowCount());
+    }
+
+    @Test
+    public void testRepeatedKeyIsNotReturnedTwice() throws Exception {
+        MergeJoinCursor cursor = new MergeJoinCursor(new Rows(new int[] {2, 20}, new int[] {2, 21}).resultSet(),
+                                                     "feature_id");
+        assertEquals("[2:20, 2:21]", join(cursor, 2).toString());
+        // asking for the same key again finds nothing more
+        assertFalse(cursor.next(2));
+    }
+
+    @Test
+    public void testUnsortedRows() throws Exception {
+        MergeJoinCursor cursor = new MergeJoinCursor(new Rows(new int[] {5, 50}, new int[] {2, 20}).resultSet(),
+                                                     "feature_id");
+        assertTrue(cursor.next(5));
+        try {
+            cursor.next(6);
+            fail("expected the unsorted rows to be reported");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testClosedIfFirstRowFails() throws Exception {
+        Rows rows = new Rows(new int[] {1, 10}) {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("getInt".equals(method.getName())) {
+                    throw new IllegalStateException("broken row");
+                }
+                return super.invoke(proxy, method, args);
+            }
+        };
+        try {
+            new MergeJoinCursor(rows.resultSet(), "feature_id");
+            fail("expected the first row to fail");
+        } catch (IllegalStateException e) {
+            assertTrue(rows.closed);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine, NCGR
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that features spilled by a SpillingFeatureDataRegistry are paged back in as they were.
+ *
+ * @author Sam Hokin
+ */
+public class SpillingFeatureDataRegistryTest
+{
+    // more than the 1024 features the smallest budget keeps on the heap
+    private static final int FEATURE_COUNT = 5000;
+    private static final String[] TYPES = {"Gene", "MRNA", "Exon"};
+
+    private File dir;
+    private SpillingFeatureDataRegistry registry;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("spill", "");
+        dir.delete();
+        registry = new SpillingFeatureDataRegistry(dir, 0);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static FeatureData makeFeature(int i) {
+        FeatureData fdat = new FeatureData();
+        fdat.setUniqueName("Glyma.01G" + i);
+        // the name is shared with the unique name for some features and not others
+        fdat.setChadoFeatureName((i % 2 == 0) ? "Glyma.01G" + i : "name" + i);
+        // generated identifiers are held as ints, others as a String
+        fdat.setItemIdentifier((i % 5 == 0) ? "feature:" + i : "12_" + i);
+        fdat.setInterMineType(TYPES[i % TYPES.length]);
+        fdat.setIntermineObjectId(Integer.valueOf(1000000 + i));
+        fdat.setMd5checksum((i % 3 == 0) ? null : "md5-" + i);
+        fdat.setFlag(FeatureData.IDENTIFIER_SET, i % 2 == 0);
+        fdat.setFlag(FeatureData.CAN_HAVE_SEQUENCE, i % 3 == 0);
+        for (int s = 0; s < i % 4; s++) {
+            fdat.addExistingSynonym("synonym" + s + "." + i);
+        }
+        return fdat;
+    }
+
+    private static void assertFeature(int i, FeatureData fdat) {
+        FeatureData expected = makeFeature(i);
+        String message = "feature " + i;
+        assertEquals(message, expected.getUniqueName(), fdat.getUniqueName());
+        assertEquals(message, expected.getChadoFeatureName(), fdat.getChadoFeatureName());
+        assertEquals(message, expected.getItemIdentifier(), fdat.getItemIdentifier());
+        assertEquals(message, Boolean.valueOf(expected.hasStringItemIdentifier()),
+                     Boolean.valueOf(fdat.hasStringItemIdentifier()));
+        assertEquals(message, expected.getInterMineType(), fdat.getInterMineType());
+        assertEquals(message, expected.getIntermineObjectId(), fdat.getIntermineObjectId());
+        assertEquals(message, expected.getChecksum(), fdat.getChecksum());
+        assertEquals(message, Boolean.valueOf(expected.getFlag(FeatureData.IDENTIFIER_SET)),
+                     Boolean.valueOf(fdat.getFlag(FeatureData.IDENTIFIER_SET)));
+        assertEquals(message, Boolean.valueOf(expected.getFlag(FeatureData.CAN_HAVE_SEQUENCE)),
+                     Boolean.valueOf(fdat.getFlag(FeatureData.CAN_HAVE_SEQUENCE)));
+        assertEquals(message, expected.getExistingSynonyms(), fdat.getExistingSynonyms());
+        assertNull(message, fdat.getOrganismData());
+    }
+
+    private void putAll() {
+        for (int i = 0; i < FEATURE_COUNT; i++) {
+            assertNull(registry.put(i, makeFeature(i)));
+        }
+    }
+
+    @Test
+    public void testSpillRoundTrip() {
+        putAll();
+        assertEquals(FEATURE_COUNT, registry.size());
+        assertTrue(registry.getSpills() > 0);
+        // read them all twice, paging each spilled feature back in and spilling others again
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < FEATURE_COUNT; i++) {
+                assertTrue(registry.containsKey(i));
+                assertFeature(i, registry.get(i));
+            }
+        }
+        assertTrue(registry.getMisses() > 0);
+        assertEquals(FEATURE_COUNT, registry.size());
+        assertNull(registry.get(FEATURE_COUNT));
+        assertFalse(registry.containsKey(FEATURE_COUNT));
+    }
+
+    @Test
+    public void testChangesAreKeptWhenSpilledAgain() {
+        putAll();
+        // change a spilled feature once it's paged in, then have it spilled again
+        FeatureData fdat = registry.get(0);
+        fdat.addExistingSynonym("changed");
+        fdat.setFlag(FeatureData.SEQUENCE_SET, true);
+        long spills = registry.getSpills();
+        for (int i = FEATURE_COUNT - 1; i > 0; i--) {
+            registry.get(i);
+        }
+        assertTrue(registry.getSpills() > spills);
+        long misses = registry.getMisses();
+        FeatureData read = registry.get(0);
+        // it was paged in from disk, not still on the heap
+        assertEquals(misses + 1, registry.getMisses());
+        assertTrue(read.hasExistingSynonym("CHANGED"));
+        assertTrue(read.getFlag(FeatureData.SEQUENCE_SET));
+    }
+
+    @Test
+    public void testResidentFeatureIsTheSameObject() {
+        FeatureData fdat = makeFeature(1);
+        registry.put(1, fdat);
+        assertSame(fdat, registry.get(1));
+        assertEquals(0, registry.getSpills());
+        // no spill files until the budget is exceeded
+        assertFalse(dir.exists());
+    }
+
+    @Test
+    public void testRemoveAndReplaceSpilledFeatures() {
+        putAll();
+        int removed = 0;
+        for (int i = 0; i < FEATURE_COUNT; i += 7) {
+            assertFeature(i, registry.remove(i));
+            removed++;
+        }
+        assertEquals(FEATURE_COUNT - removed, registry.size());
+        for (int i = 0; i < FEATURE_COUNT; i += 7) {
+            assertFalse(registry.containsKey(i));
+            assertNull(registry.get(i));
+            assertNull(registry.remove(i));
+        }
+        // replacing a feature returns the old one, wherever it was
+        for (int i = 1; i < FEATURE_COUNT; i += 7) {
+            FeatureData replacement = makeFeature(i + 1);
+            assertFeature(i, registry.put(i, replacement));
+        }
+        assertEquals(FEATURE_COUNT - removed, registry.size());
+        assertFeature(2, registry.get(1));
+    }
+
+    @Test
+    public void testEntrySetInFeatureIdOrder() {
+        putAll();
+        int expected = 0;
+        for (Map.Entry<Integer, FeatureData> entry : registry.entrySet()) {
+            assertEquals(expected, entry.getKey().intValue());
+            assertFeature(expected, entry.getValue());
+            expected++;
+        }
+        assertEquals(FEATURE_COUNT, expected);
+        registry.clear();
+        assertEquals(0, registry.size());
+        assertNull(registry.get(10));
+    }
+}
@@ -0,0 +1,64 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2016 FlyMine, NCGR
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for StringIntHashMap.
+ *
+ * @author Sam Hokin
+ */
+public class StringIntHashMapTest
+{
+    @Test
+    public void testPutIfAbsent() {
+        StringIntHashMap map = new StringIntHashMap(0);
+        assertTrue(map.putIfAbsent("Glyma.01G000100", 7));
+        assertFalse(map.putIfAbsent("Glyma.01G000100", 8));
+        assertEquals(7, map.get("Glyma.01G000100"));
+        assertEquals(-1, map.get("Glyma.01G000200"));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void testEqualHashCodes() {
+        StringIntHashMap map = new StringIntHashMap(0);
+        // "Aa" and "BB" have the same String hash code
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        map.putIfAbsent("Aa", 1);
+        map.putIfAbsent("BB", 2);
+        assertEquals(1, map.get("Aa"));
+        assertEquals(2, map.get("BB"));
+    }
+
+    @Test
+    public void testResize() {
+        StringIntHashMap map = new StringIntHashMap(1);
+        for (int i = 0; i < 20000; i++) {
+            assertTrue(map.putIfAbsent("gene" + i, i));
+        }
+        assertEquals(20000, map.size());
+        for (int i = 0; i < 20000; i++) {
+            assertEquals(i, map.get("gene" + i));
+        }
+        assertEquals(-1, map.get("gene20000"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeValue() {
+        new StringIntHashMap(0).putIfAbsent("gene", -1);
+    }
+}
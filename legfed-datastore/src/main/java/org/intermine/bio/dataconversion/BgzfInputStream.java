@@ -0,0 +1,300 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2019 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a BGZF file, the blocked gzip written by bgzip and samtools, decompressing its blocks on a pool of threads
+ * and returning their bytes in file order.  Every BGZF block is a gzip member of at most 64KB that records its own
+ * compressed size, so the blocks can be read off the file without inflating them and inflated independently.
+ * A few blocks per thread are read ahead.  The pool can be shared by several streams, see CompressedFiles, so the
+ * number of inflating threads doesn't grow with the number of files open at once.
+ *
+ * @author Sam Hokin
+ */
+public class BgzfInputStream extends InputStream
+{
+    // the fixed part of a BGZF block header, up to and including XLEN
+    private static final int HEADER_SIZE = 12;
+    // the number of blocks read ahead per thread
+    private static final int BLOCKS_PER_THREAD = 4;
+
+    private final InputStream in;
+    private final ExecutorService inflaters;
+    // true if the pool was created for this stream and is shut down by close()
+    private final boolean ownInflaters;
+    private final int maxPending;
+    private final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+    private boolean endOfBlocks = false;
+    private byte[] block = new byte[0];
+    private int blockPos = 0;
+    private long blockCount = 0;
+
+    /**
+     * Read a BGZF stream.
+     * @param in the compressed stream, which is closed with this one
+     * @param threads the number of threads inflating blocks
+     */
+    public BgzfInputStream(InputStream in, int threads) {
+        this(in, newInflaterPool(threads), threads, true);
+    }
+
+    /**
+     * Read a BGZF stream, inflating its blocks on a pool shared with other streams.
+     * @param in the compressed stream, which is closed with this one
+     * @param inflaters the pool, which is left running when this stream is closed
+     * @param threads the number of the pool's threads this stream reads ahead for
+     */
+    public BgzfInputStream(InputStream in, ExecutorService inflaters, int threads) {
+        this(in, inflaters, threads, false);
+    }
+
+    private BgzfInputStream(InputStream in, ExecutorService inflaters, int threads, boolean ownInflaters) {
+        this.in = in;
+        this.inflaters = inflaters;
+        this.ownInflaters = ownInflaters;
+        this.maxPending = Math.max(1, threads) * BLOCKS_PER_THREAD;
+    }
+
+    /**
+     * Create a pool of daemon threads for inflating BGZF blocks.
+     * @param threads the number of threads
+     * @return the pool
+     */
+    public static ExecutorService newInflaterPool(int threads) {
+        return Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "bgzf-inflater");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Return true if a stream starts with a BGZF block header, leaving the stream where it was.
+     * @param in the stream, which must support mark()
+     * @return true if the stream is BGZF
+     * @throws IOException if the stream can't be read
+     */
+    public static boolean isBgzf(InputStream in) throws IOException {
+        byte[] header = new byte[HEADER_SIZE + 4];
+        in.mark(header.length);
+        try {
+            int n = 0;
+            while (n < header.length) {
+                int count = in.read(header, n, header.length - n);
+                if (count < 0) {
+                    return false;
+                }
+                n += count;
+            }
+        } finally {
+            in.reset();
+        }
+        return isBlockHeader(header);
+    }
+
+    // gzip magic, deflate, FEXTRA set, and a first extra subfield 'BC' of length 2
+    private static boolean isBlockHeader(byte[] header) {
+        return (header[0] & 0xff) == 31 && (header[1] & 0xff) == 139 && header[2] == 8 && (header[3] & 4) != 0
+            && header[12] == 'B' && header[13] == 'C' && header[14] == 2 && header[15] == 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return block[blockPos++] & 0xff;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, block.length - blockPos);
+        System.arraycopy(block, blockPos, b, off, n);
+        blockPos += n;
+        return n;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int available() {
+        return block.length - blockPos;
+    }
+
+    /**
+     * Make the current block hold unread bytes, waiting for the next non-empty one if need be.
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException {
+        while (blockPos >= block.length) {
+            while (!endOfBlocks && pending.size() < maxPending) {
+                submitNextBlock();
+            }
+            if (pending.isEmpty()) {
+                return false;
+            }
+            try {
+                block = pending.removeFirst().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while inflating a BGZF block");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException("failed to inflate BGZF block", cause);
+            }
+            blockPos = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Read the next block off the stream and queue its inflation.
+     */
+    private void submitNextBlock() throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        int first = readFully(header, 0, header.length, true);
+        if (first < 0) {
+            endOfBlocks = true;
+            return;
+        }
+        if ((header[0] & 0xff) != 31 || (header[1] & 0xff) != 139 || header[2] != 8 || (header[3] & 4) == 0) {
+            throw new IOException("BGZF block " + blockCount + " doesn't have a gzip header with extra fields");
+        }
+        int xlen = (header[10] & 0xff) | ((header[11] & 0xff) << 8);
+        byte[] extra = new byte[xlen];
+        readFully(extra, 0, xlen, false);
+        int blockSize = -1;
+        for (int i = 0; i + 4 <= xlen; ) {
+            int slen = (extra[i + 2] & 0xff) | ((extra[i + 3] & 0xff) << 8);
+            if (extra[i] == 'B' && extra[i + 1] == 'C' && slen == 2) {
+                blockSize = ((extra[i + 4] & 0xff) | ((extra[i + 5] & 0xff) << 8)) + 1;
+            }
+            i += 4 + slen;
+        }
+        if (blockSize < 0) {
+            throw new IOException("gzip member " + blockCount + " isn't a BGZF block");
+        }
+        // the deflated data followed by CRC32 and ISIZE
+        final byte[] rest = new byte[blockSize - HEADER_SIZE - xlen];
+        readFully(rest, 0, rest.length, false);
+        final long index = blockCount++;
+        pending.addLast(inflaters.submit(new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+                return inflate(rest, index);
+            }
+        }));
+    }
+
+    private static byte[] inflate(byte[] rest, long index) throws IOException {
+        int cdataLength = rest.length - 8;
+        long crc = readUInt32(rest, cdataLength);
+        int isize = (int) readUInt32(rest, cdataLength + 4);
+        byte[] data = new byte[isize];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(rest, 0, cdataLength);
+            int n = 0;
+            while (n < isize) {
+                int count = inflater.inflate(data, n, isize - n);
+                if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                n += count;
+            }
+            if (n != isize) {
+                throw new IOException("BGZF block " + index + " inflated to " + n + " bytes, not " + isize);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("BGZF block " + index + " is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+        CRC32 check = new CRC32();
+        check.update(data, 0, data.length);
+        if (check.getValue() != crc) {
+            throw new IOException("BGZF block " + index + " fails its CRC check");
+        }
+        return data;
+    }
+
+    private static long readUInt32(byte[] b, int off) {
+        return (b[off] & 0xffL) | ((b[off + 1] & 0xffL) << 8) | ((b[off + 2] & 0xffL) << 16)
+            | ((b[off + 3] & 0xffL) << 24);
+    }
+
+    /**
+     * Read len bytes, or none at the end of the stream if allowed.
+     * @return -1 if the stream ended before the first byte and that is allowed, len otherwise
+     */
+    private int readFully(byte[] b, int off, int len, boolean endAllowed) throws IOException {
+        int n = 0;
+        while (n < len) {
+            int count = in.read(b, off + n, len - n);
+            if (count < 0) {
+                if (n == 0 && endAllowed) {
+                    return -1;
+                }
+                throw new EOFException("BGZF file is truncated in block " + blockCount);
+            }
+            n += count;
+        }
+        return len;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException {
+        if (ownInflaters) {
+            inflaters.shutdownNow();
+        } else {
+            for (Future<byte[]> future : pending) {
+                future.cancel(false);
+            }
+        }
+        pending.clear();
+        in.close();
+    }
+}
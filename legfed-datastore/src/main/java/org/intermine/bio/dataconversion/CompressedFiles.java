@@ -0,0 +1,117 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2019 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Open datastore files that may be gzipped.  A file ending in .gz or .bgz is decompressed as it is read: with a
+ * BgzfInputStream if it is BGZF and more than one thread is allowed, with a GZIPInputStream otherwise.  Every
+ * BgzfInputStream opened here inflates its blocks on one pool of DEFAULT_THREADS threads, so converting many files
+ * at once doesn't start a pool per file.
+ *
+ * The file converters are handed a FileReader on the file by InterMine, so they swap it for getReader().
+ *
+ * @author Sam Hokin
+ */
+public class CompressedFiles
+{
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** The number of threads decompressing a BGZF file opened by getReader(), and the size of the shared pool. */
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
+    // the pool shared by the BGZF files, created when the first one is opened
+    private static ExecutorService inflaters = null;
+
+    private CompressedFiles() {
+        // static methods only
+    }
+
+    /**
+     * Return true if a file is compressed, going by its name.
+     * @param file the file
+     * @return true if the file name ends in .gz or .bgz
+     */
+    public static boolean isCompressed(File file) {
+        String name = file.getName();
+        return name.endsWith(".gz") || name.endsWith(".bgz");
+    }
+
+    /**
+     * Return the name of a file without its .gz or .bgz suffix, for parsing.
+     * @param file the file
+     * @return the name of the uncompressed file
+     */
+    public static String getUncompressedName(File file) {
+        String name = file.getName();
+        if (name.endsWith(".gz")) {
+            return name.substring(0, name.length() - 3);
+        } else if (name.endsWith(".bgz")) {
+            return name.substring(0, name.length() - 4);
+        }
+        return name;
+    }
+
+    /**
+     * Open a file for reading, decompressing it if it is compressed.
+     * @param file the file
+     * @param threads the number of threads decompressing a BGZF file, up to DEFAULT_THREADS since they come from
+     * the shared pool
+     * @return the uncompressed bytes of the file
+     * @throws IOException if the file can't be opened
+     */
+    public static InputStream open(File file, int threads) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        if (!isCompressed(file)) {
+            return in;
+        }
+        try {
+            if (threads > 1 && BgzfInputStream.isBgzf(in)) {
+                return new BgzfInputStream(in, getInflaters(), Math.min(threads, DEFAULT_THREADS));
+            }
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    private static synchronized ExecutorService getInflaters() {
+        if (inflaters == null) {
+            inflaters = BgzfInputStream.newInflaterPool(DEFAULT_THREADS);
+        }
+        return inflaters;
+    }
+
+    /**
+     * Return a Reader of the text of a file converter's current file, in place of the Reader that InterMine opened
+     * on the raw file.
+     * @param file the current file
+     * @param reader the Reader opened on the file
+     * @return the given Reader if the file isn't compressed, otherwise a new Reader which the caller must close
+     * @throws IOException if the file can't be opened
+     */
+    public static Reader getReader(File file, Reader reader) throws IOException {
+        if (!isCompressed(file)) {
+            return reader;
+        }
+        return new InputStreamReader(open(file, DEFAULT_THREADS));
+    }
+}
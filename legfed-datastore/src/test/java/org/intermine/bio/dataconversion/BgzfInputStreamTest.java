@@ -0,0 +1,238 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2019 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+/**
+ * Tests for BgzfInputStream, on BGZF data written as bgzip writes it.
+ *
+ * @author Sam Hokin
+ */
+public class BgzfInputStreamTest
+{
+    // bgzip's largest uncompressed block
+    private static final int BLOCK_DATA_SIZE = 0xff00;
+
+    /**
+     * Return a BGZF block holding some data.
+     */
+    private static byte[] block(byte[] data, int off, int len) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(data, off, len);
+        deflater.finish();
+        byte[] cdata = new byte[len + 1024];
+        int clen = 0;
+        while (!deflater.finished()) {
+            clen += deflater.deflate(cdata, clen, cdata.length - clen);
+        }
+        deflater.end();
+        CRC32 crc = new CRC32();
+        crc.update(data, off, len);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // gzip magic, deflate, FEXTRA, no mtime, no extra flags, unknown OS
+        out.write(new byte[] {31, (byte) 139, 8, 4, 0, 0, 0, 0, 0, (byte) 255}, 0, 10);
+        writeShort(out, 6);
+        out.write('B');
+        out.write('C');
+        writeShort(out, 2);
+        writeShort(out, 18 + clen + 8 - 1);
+        out.write(cdata, 0, clen);
+        writeInt(out, crc.getValue());
+        writeInt(out, len);
+        return out.toByteArray();
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value & 0xff);
+        out.write((value >>> 8) & 0xff);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, long value) {
+        writeShort(out, (int) (value & 0xffff));
+        writeShort(out, (int) ((value >>> 16) & 0xffff));
+    }
+
+    /**
+     * Return data compressed in BGZF blocks, ending with the empty block bgzip writes.
+     */
+    private static byte[] bgzf(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int off = 0; off < data.length; off += BLOCK_DATA_SIZE) {
+            byte[] block = block(data, off, Math.min(BLOCK_DATA_SIZE, data.length - off));
+            out.write(block, 0, block.length);
+        }
+        byte[] end = block(new byte[0], 0, 0);
+        out.write(end, 0, end.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Return some GFF-like lines.
+     */
+    private static byte[] lines(int count) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            text.append("Gm01\tphytozome\tgene\t").append(i * 100).append('\t').append(i * 100 + 99)
+                .append("\t.\t+\t.\tID=glyma.Wm82.gnm2.ann1.Glyma.01G").append(i).append('\n');
+        }
+        return text.toString().getBytes();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int n;
+        while ((n = in.read(buffer, 0, buffer.length)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testMultipleBlocks() throws IOException {
+        // about 40 blocks, more than one thread reads ahead
+        byte[] data = lines(40000);
+        assertTrue(data.length > 30 * BLOCK_DATA_SIZE);
+        InputStream in = new BgzfInputStream(new ByteArrayInputStream(bgzf(data)), 1);
+        try {
+            assertArrayEquals(data, readAll(in));
+            assertEquals(-1, in.read());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testSingleByteReads() throws IOException {
+        byte[] data = lines(3000);
+        InputStream in = new BgzfInputStream(new ByteArrayInputStream(bgzf(data)), 4);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) >= 0) {
+                out.write(b);
+            }
+            assertArrayEquals(data, out.toByteArray());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testEmptyBlocksAreSkipped() throws IOException {
+        byte[] data = lines(10);
+        byte[] empty = block(new byte[0], 0, 0);
+        byte[] first = block(data, 0, 100);
+        byte[] second = block(data, 100, data.length - 100);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] block : new byte[][] {empty, first, empty, empty, second, empty}) {
+            out.write(block, 0, block.length);
+        }
+        InputStream in = new BgzfInputStream(new ByteArrayInputStream(out.toByteArray()), 2);
+        assertArrayEquals(data, readAll(in));
+        in.close();
+    }
+
+    @Test
+    public void testSharedPool() throws IOException {
+        ExecutorService pool = BgzfInputStream.newInflaterPool(2);
+        try {
+            byte[] one = lines(5000);
+            byte[] two = lines(7000);
+            InputStream first = new BgzfInputStream(new ByteArrayInputStream(bgzf(one)), pool, 2);
+            InputStream second = new BgzfInputStream(new ByteArrayInputStream(bgzf(two)), pool, 2);
+            // interleave the reads, so both streams have blocks in the pool at once
+            assertEquals(one[0], (byte) first.read());
+            assertEquals(two[0], (byte) second.read());
+            byte[] rest = readAll(first);
+            first.close();
+            assertArrayEquals(Arrays.copyOfRange(one, 1, one.length), rest);
+            // the pool outlives the streams that share it
+            assertFalse(pool.isShutdown());
+            rest = readAll(second);
+            second.close();
+            assertArrayEquals(Arrays.copyOfRange(two, 1, two.length), rest);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testIsBgzf() throws IOException {
+        byte[] data = lines(100);
+        InputStream bgzf = new BufferedInputStream(new ByteArrayInputStream(bgzf(data)));
+        assertTrue(BgzfInputStream.isBgzf(bgzf));
+        // the stream is left at the start
+        assertArrayEquals(data, readAll(new BgzfInputStream(bgzf, 1)));
+
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(gzipped);
+        gzip.write(data);
+        gzip.close();
+        assertFalse(BgzfInputStream.isBgzf(new BufferedInputStream(new ByteArrayInputStream(gzipped.toByteArray()))));
+        assertFalse(BgzfInputStream.isBgzf(new BufferedInputStream(new ByteArrayInputStream(data))));
+        assertFalse(BgzfInputStream.isBgzf(new BufferedInputStream(new ByteArrayInputStream(new byte[3]))));
+    }
+
+    @Test
+    public void testTruncatedBlock() throws IOException {
+        byte[] compressed = bgzf(lines(5000));
+        // cut into the last block with data, before the empty block at the end
+        int end = compressed.length - block(new byte[0], 0, 0).length - 10;
+        InputStream in = new BgzfInputStream(new ByteArrayInputStream(Arrays.copyOf(compressed, end)), 1);
+        try {
+            readAll(in);
+            fail("expected the truncated block to be reported");
+        } catch (EOFException e) {
+            // expected
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testCorruptBlock() throws IOException {
+        byte[] data = lines(100);
+        byte[] compressed = bgzf(data);
+        // flip a bit of the first block's CRC
+        int crcPos = block(data, 0, data.length).length - 8;
+        compressed[crcPos] ^= 1;
+        InputStream in = new BgzfInputStream(new ByteArrayInputStream(compressed), 1);
+        try {
+            readAll(in);
+            fail("expected the CRC check to fail");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("CRC"));
+        } finally {
+            in.close();
+        }
+    }
+}
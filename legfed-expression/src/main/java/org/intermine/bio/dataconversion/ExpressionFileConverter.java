@@ -144,20 +144,27 @@ public class ExpressionFileConverter extends BioFileConverter {
             if (dataSourceUrl!=null) dataSource.setAttribute("url", dataSourceUrl);
             if (dataSourceDescription!=null) dataSource.setAttribute("description", dataSourceDescription);
         }
-        if (getCurrentFile().getName().contains("README")) {
+        String fileName = CompressedFiles.getUncompressedName(getCurrentFile());
+        if (fileName.contains("README")) {
             return;
-        } else if (getCurrentFile().getName().endsWith("exprSource.tsv")) {
-            // cajca.ICPL87119.gnm1.ann1.KEY4.exprSource.tsv
-            if (organism==null) createOrganismAndStrain();
-            processSource(reader);
-        } else if (getCurrentFile().getName().endsWith("exprSamples.tsv")) {
-            // cajca.ICPL87119.gnm1.ann1.KEY4.exprSamples.tsv
-            if (organism==null) createOrganismAndStrain();
-            processSamples(reader);
-        } else if (getCurrentFile().getName().endsWith("genesSamplesTpm.tsv")) {
-            // cajca.ICPL87119.gnm1.ann1.KEY4.genesSamplesTpm.tsv
-            if (organism==null) createOrganismAndStrain();
-            processExpression(reader);
+        }
+        Reader fileReader = CompressedFiles.getReader(getCurrentFile(), reader);
+        try {
+            if (fileName.endsWith("exprSource.tsv")) {
+                // cajca.ICPL87119.gnm1.ann1.KEY4.exprSource.tsv
+                if (organism==null) createOrganismAndStrain();
+                processSource(fileReader);
+            } else if (fileName.endsWith("exprSamples.tsv")) {
+                // cajca.ICPL87119.gnm1.ann1.KEY4.exprSamples.tsv
+                if (organism==null) createOrganismAndStrain();
+                processSamples(fileReader);
+            } else if (fileName.endsWith("genesSamplesTpm.tsv")) {
+                // cajca.ICPL87119.gnm1.ann1.KEY4.genesSamplesTpm.tsv
+                if (organism==null) createOrganismAndStrain();
+                processExpression(fileReader);
+            }
+        } finally {
+            if (fileReader!=reader) fileReader.close();
         }
     }
 
@@ -166,7 +173,7 @@ public class ExpressionFileConverter extends BioFileConverter {
      */
     void createOrganismAndStrain() {
         // get the organism and strain from this filename
-        String[] pieces = getCurrentFile().getName().split("\\.");
+        String[] pieces = CompressedFiles.getUncompressedName(getCurrentFile()).split("\\.");
         String gensp = pieces[0];
         String strainId = pieces[1];
         String genomeVersion = pieces[2];
@@ -13,6 +13,7 @@ package org.intermine.bio.dataconversion;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -77,6 +78,7 @@ public class LegfedFastaLoaderTask extends FileDirectDataLoaderTask {
     private String fastaTaxonId = null;
     private String fastaGensp = null;
     private boolean primaryTranscript = false;
+    private int decompressThreads = CompressedFiles.DEFAULT_THREADS;
 
     private Map<String, DataSet> dataSets = new HashMap<String, DataSet>();
 
@@ -185,6 +187,15 @@ public class LegfedFastaLoaderTask extends FileDirectDataLoaderTask {
         this.dataSetDescription = dataSetDescription;
     }
 
+    /**
+     * Set the number of threads decompressing each BGZF (.gz or .bgz) file.  The default is the number of
+     * processors; with 1, compressed files are read with a GZIPInputStream.
+     * @param decompressThreads the number of threads decompressing each file
+     */
+    public void setDecompressThreads(int decompressThreads) {
+        this.decompressThreads = decompressThreads;
+    }
+
     /**
      * Directly set the array of files to read from.  Use this for testing with junit.
      * @param files the File objects
@@ -257,6 +268,7 @@ public class LegfedFastaLoaderTask extends FileDirectDataLoaderTask {
      */
     @Override
     public void processFile(File file) {
+        InputStream fastaStream = null;
         try {
             System.out.println("##############################################################################################################################");
             System.out.println("Reading "+sequenceType+" sequences from: "+file);
@@ -267,8 +279,10 @@ public class LegfedFastaLoaderTask extends FileDirectDataLoaderTask {
             // glyma.Wm82.gnm2.ann1.RVB6.protein_primaryTranscript.faa
             // 0     1      2    3    4           5
             // phavu.G19833.gnm2.fC0g.genome_main.fna
-            String[] parts = file.getName().split("\\.");
-            primaryTranscript = file.getName().contains("primaryTranscript");
+            // a .gz or .bgz suffix is dropped first
+            String fileName = CompressedFiles.getUncompressedName(file);
+            String[] parts = fileName.split("\\.");
+            primaryTranscript = fileName.contains("primaryTranscript");
             fastaGensp = parts[0];
             fastaTaxonId = dsu.getTaxonId(fastaGensp);
             strainIdentifier = parts[1];
@@ -278,9 +292,10 @@ public class LegfedFastaLoaderTask extends FileDirectDataLoaderTask {
                 annotationVersion = parts[3];
                 dataSetVersion += "."+annotationVersion;
             }
+            fastaStream = CompressedFiles.open(file, decompressThreads);
             if (sequenceType.equalsIgnoreCase("dna")) {
                 FastaReader<DNASequence, NucleotideCompound> aFastaReader
-                    = new FastaReader<DNASequence, NucleotideCompound>(file,
+                    = new FastaReader<DNASequence, NucleotideCompound>(fastaStream,
                                                                        new PlainFastaHeaderParser<DNASequence, NucleotideCompound>(),
                                                                        new DNASequenceCreator(AmbiguityDNACompoundSet.getDNACompoundSet()));
                 LinkedHashMap<String, DNASequence> b = aFastaReader.process();
@@ -290,7 +305,7 @@ public class LegfedFastaLoaderTask extends FileDirectDataLoaderTask {
                 }
             } else {
                 LinkedHashMap<String, ProteinSequence> b =
-                    FastaReaderHelper.readFastaProteinSequence(file);
+                    FastaReaderHelper.readFastaProteinSequence(fastaStream);
                 for (Entry<String, ProteinSequence> entry : b.entrySet()) {
                     Sequence bioJavaSequence = entry.getValue();
                     processSequence(getOrganism((ProteinSequence) bioJavaSequence), getStrain(bioJavaSequence), bioJavaSequence);
@@ -306,6 +321,14 @@ public class LegfedFastaLoaderTask extends FileDirectDataLoaderTask {
             throw new BuildException("ObjectStore problem while processing: "+file, e);
         } catch (IOException e) {
             throw new BuildException("Error while closing FileReader for: "+file, e);
+        } finally {
+            if (fastaStream!=null) {
+                try {
+                    fastaStream.close();
+                } catch (IOException e) {
+                    LOG.error("Error closing "+file, e);
+                }
+            }
         }
     }
 
@@ -69,6 +69,18 @@ public class GermplasmFileConverter extends BioFileConverter {
      */
     @Override
     public void process(Reader reader) throws Exception {
+        Reader fileReader = CompressedFiles.getReader(getCurrentFile(), reader);
+        try {
+            processFile(fileReader);
+        } finally {
+            if (fileReader!=reader) fileReader.close();
+        }
+    }
+
+    /**
+     * Process the file once CompressedFiles has decompressed it, if need be.
+     */
+    private void processFile(Reader reader) throws Exception {
 
         // don't process README files
         if (getCurrentFile().getName().contains("README")) return;
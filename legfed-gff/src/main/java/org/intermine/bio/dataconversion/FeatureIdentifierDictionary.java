@@ -0,0 +1,187 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2019 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A map from feature identifiers to Item identifiers that keeps its Strings off the heap, for the features that
+ * stay referable after LegfedGFF3Converter evicts their feature group.  Each mapping is written as UTF-8 bytes to
+ * direct ByteBuffer chunks, and the heap only holds an open-addressing table of their positions and hashes.  A
+ * slot is 12 bytes and the table is at most 0.6 full, so a mapping costs about 20 bytes of heap, up to 40 just
+ * after the table doubles, instead of two Strings and a HashMap entry.  Mappings can't be removed.
+ *
+ * @author Sam Hokin
+ */
+class FeatureIdentifierDictionary
+{
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+    private ByteBuffer chunk = null;
+    // the chunk index in the high int and the offset in the low int, plus one so that 0 is an empty slot
+    private long[] positions;
+    private int[] hashes;
+    private int mask;
+    private int size = 0;
+    private int resizeAt;
+
+    /**
+     * Create a new dictionary sized to hold the given number of mappings without rehashing.
+     * @param expectedSize the expected number of mappings
+     */
+    FeatureIdentifierDictionary(int expectedSize) {
+        int capacity = 16;
+        while (capacity * LOAD_FACTOR < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        positions = new long[capacity];
+        hashes = new int[capacity];
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int slot(byte[] keyBytes, int h) {
+        int i = h & mask;
+        while (positions[i] != 0) {
+            if (hashes[i] == h && keyEquals(positions[i] - 1, keyBytes)) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1 - i;
+    }
+
+    private boolean keyEquals(long position, byte[] keyBytes) {
+        ByteBuffer buffer = chunks.get((int) (position >>> 32));
+        int offset = (int) position;
+        if (buffer.getInt(offset) != keyBytes.length) {
+            return false;
+        }
+        offset += 4;
+        for (int j = 0; j < keyBytes.length; j++) {
+            if (buffer.get(offset + j) != keyBytes[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the value for the given key.
+     * @param key the key
+     * @return the value, or null if there is no mapping
+     */
+    String get(String key) {
+        if (size == 0) {
+            return null;
+        }
+        int i = slot(key.getBytes(UTF8), hash(key));
+        if (i < 0) {
+            return null;
+        }
+        long position = positions[i] - 1;
+        ByteBuffer buffer = chunks.get((int) (position >>> 32));
+        int offset = (int) position;
+        offset += 4 + buffer.getInt(offset);
+        byte[] valueBytes = new byte[buffer.getInt(offset)];
+        for (int j = 0; j < valueBytes.length; j++) {
+            valueBytes[j] = buffer.get(offset + 4 + j);
+        }
+        return new String(valueBytes, UTF8);
+    }
+
+    /**
+     * Map a key to a value, replacing any previous value.
+     * @param key the non-null key
+     * @param value the non-null value
+     */
+    void put(String key, String value) {
+        byte[] keyBytes = key.getBytes(UTF8);
+        int h = hash(key);
+        int i = slot(keyBytes, h);
+        if (i < 0) {
+            if (size >= resizeAt) {
+                rehash(positions.length << 1);
+                i = slot(keyBytes, h);
+            }
+            i = -1 - i;
+            size++;
+        }
+        // a replaced mapping's bytes are left behind in its chunk
+        positions[i] = write(keyBytes, value.getBytes(UTF8)) + 1;
+        hashes[i] = h;
+    }
+
+    private long write(byte[] keyBytes, byte[] valueBytes) {
+        int length = 8 + keyBytes.length + valueBytes.length;
+        if (chunk == null || chunk.remaining() < length) {
+            chunk = ByteBuffer.allocateDirect(Math.max(CHUNK_SIZE, length));
+            chunks.add(chunk);
+        }
+        long position = ((long) (chunks.size() - 1) << 32) | chunk.position();
+        chunk.putInt(keyBytes.length);
+        chunk.put(keyBytes);
+        chunk.putInt(valueBytes.length);
+        chunk.put(valueBytes);
+        return position;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldPositions = positions;
+        int[] oldHashes = hashes;
+        allocate(capacity);
+        for (int j = 0; j < oldPositions.length; j++) {
+            if (oldPositions[j] != 0) {
+                int i = oldHashes[j] & mask;
+                while (positions[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                positions[i] = oldPositions[j];
+                hashes[i] = oldHashes[j];
+            }
+        }
+    }
+
+    /**
+     * Return the number of mappings.
+     * @return the size
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Return the number of bytes held off the heap.
+     * @return the total capacity of the chunks
+     */
+    long offHeapBytes() {
+        long bytes = 0;
+        for (ByteBuffer buffer : chunks) {
+            bytes += buffer.capacity();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,69 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2019 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+
+/**
+ * Read the record lines of a GFF3 file the way GFF3Parser does, skipping comments and blank lines and stopping at
+ * the FASTA section, but optionally returning the ### directives that mark the end of a group of features.
+ *
+ * @author Sam Hokin
+ */
+class GFF3LineReader
+{
+    /** The directive saying that every feature before it has been seen in full. */
+    static final String GROUP_END = "###";
+
+    private final BufferedReader reader;
+    private final boolean keepGroupEnds;
+    private boolean done = false;
+
+    /**
+     * Create a reader.
+     * @param reader the GFF3 file
+     * @param keepGroupEnds if true, return the ### directives as well as the record lines
+     */
+    GFF3LineReader(BufferedReader reader, boolean keepGroupEnds) {
+        this.reader = reader;
+        this.keepGroupEnds = keepGroupEnds;
+    }
+
+    /**
+     * Return the next record line, or the next ### directive if they are kept.
+     * @return the line, or null at the end of the records
+     * @throws IOException if the file can't be read
+     */
+    String readLine() throws IOException {
+        if (done) {
+            return null;
+        }
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith("##FASTA") || line.startsWith(">")) {
+                break;
+            }
+            if (line.startsWith("#")) {
+                if (keepGroupEnds && line.trim().equals(GROUP_END)) {
+                    return GROUP_END;
+                }
+                continue;
+            }
+            if (line.trim().length() == 0) {
+                continue;
+            }
+            return line;
+        }
+        done = true;
+        return null;
+    }
+}
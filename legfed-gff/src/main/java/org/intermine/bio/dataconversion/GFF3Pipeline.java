@@ -0,0 +1,280 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2019 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.intermine.bio.io.gff3.GFF3Record;
+import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.xml.full.Item;
+
+/**
+ * The stages of LegfedGFF3Converter.parse() when it runs on several threads.  A reader thread reads the GFF3
+ * lines in batches, a pool of workers parses each batch into GFF3Records and prepares them with
+ * LegfedGFF3Converter.prepare(), and the calling thread takes the prepared batches in file order with nextBatch()
+ * and converts them, along with the ### directives if the line reader keeps them.  The Items it stores are handed
+ * back with store() and stored in the same order by a single writer thread; the Items the converter's store hook
+ * makes as each one is stored, eg. its SOTerms, are stored right then on the writer thread, as in a serial parse.
+ * The queues between the stages are bounded, so a slow stage holds up the ones before it instead of the batches
+ * piling up on the heap.
+ *
+ * Only the parsing and preparing run concurrently: the conversion uses the identifierMap and the record handler,
+ * so it stays on one thread and parents and discontinuous features are resolved exactly as in a serial parse.
+ *
+ * @author Sam Hokin
+ */
+class GFF3Pipeline
+{
+    private static final Logger LOG = Logger.getLogger(GFF3Pipeline.class);
+
+    // the number of record lines in a batch
+    private static final int BATCH_SIZE = 1000;
+    // the number of batches of Items waiting for the writer
+    private static final int QUEUED_STORES = 4;
+
+    // marks the end of the stores
+    private static final List<Item> END_OF_STORES = new ArrayList<Item>();
+
+    private final LegfedGFF3Converter converter;
+    private final ExecutorService workers;
+    private final BlockingQueue<Future<List<PreparedGFF3Record>>> batches;
+    private final BlockingQueue<List<Item>> stores = new ArrayBlockingQueue<List<Item>>(QUEUED_STORES);
+    private final Thread readerThread;
+    private final Thread writerThread;
+    private volatile Throwable writerFailure = null;
+    private boolean finished = false;
+    private int storedCount = 0;
+
+    /**
+     * Start reading, parsing and writing.
+     * @param converter the converter preparing the records and storing the Items
+     * @param reader the GFF3 record lines
+     * @param threads the number of workers parsing and preparing records
+     */
+    GFF3Pipeline(final LegfedGFF3Converter converter, final GFF3LineReader reader, int threads) {
+        this.converter = converter;
+        final AtomicInteger workerCount = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "gff3-worker-" + workerCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        batches = new ArrayBlockingQueue<Future<List<PreparedGFF3Record>>>(threads * 2);
+        readerThread = new Thread(new Runnable() {
+            public void run() {
+                read(reader);
+            }
+        }, "gff3-reader");
+        readerThread.setDaemon(true);
+        writerThread = new Thread(new Runnable() {
+            public void run() {
+                write();
+            }
+        }, "gff3-writer");
+        writerThread.setDaemon(true);
+        readerThread.start();
+        writerThread.start();
+        LOG.info("parsing GFF3 with " + threads + " workers");
+    }
+
+    /**
+     * Read the record lines in batches and queue their parsing.
+     */
+    private void read(GFF3LineReader reader) {
+        try {
+            try {
+                List<String> lines = new ArrayList<String>(BATCH_SIZE);
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines.add(line);
+                    if (lines.size() == BATCH_SIZE) {
+                        submit(lines);
+                        lines = new ArrayList<String>(BATCH_SIZE);
+                    }
+                }
+                if (!lines.isEmpty()) {
+                    submit(lines);
+                }
+                // a null batch marks the end
+                batches.put(completed(null, null));
+            } catch (IOException e) {
+                batches.put(completed(null, e));
+            }
+        } catch (InterruptedException e) {
+            // the pipeline was closed
+        }
+    }
+
+    private void submit(final List<String> lines) throws InterruptedException {
+        batches.put(workers.submit(new Callable<List<PreparedGFF3Record>>() {
+            public List<PreparedGFF3Record> call() throws IOException {
+                List<PreparedGFF3Record> prepared = new ArrayList<PreparedGFF3Record>(lines.size());
+                for (String line : lines) {
+                    if (line == GFF3LineReader.GROUP_END) {
+                        prepared.add(PreparedGFF3Record.GROUP_END);
+                    } else {
+                        prepared.add(converter.prepare(new GFF3Record(line)));
+                    }
+                }
+                return prepared;
+            }
+        }));
+    }
+
+    private static Future<List<PreparedGFF3Record>> completed(final List<PreparedGFF3Record> batch,
+                                                               final Exception failure) {
+        FutureTask<List<PreparedGFF3Record>> future = new FutureTask<List<PreparedGFF3Record>>(
+            new Callable<List<PreparedGFF3Record>>() {
+                public List<PreparedGFF3Record> call() throws Exception {
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    return batch;
+                }
+            });
+        future.run();
+        return future;
+    }
+
+    /**
+     * Return the next batch of prepared records, in file order, waiting for it to be parsed.
+     * @return the batch, or null at the end of the file
+     * @throws IOException if the file can't be read or parsed
+     * @throws ObjectStoreException if the writer failed
+     */
+    List<PreparedGFF3Record> nextBatch() throws IOException, ObjectStoreException {
+        checkWriter();
+        try {
+            return batches.take().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a GFF3 batch");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("failed to parse GFF3", cause);
+        }
+    }
+
+    /**
+     * Queue Items to be stored by the writer thread, after those queued before.  The Items must not be changed
+     * once queued.
+     * @param items the Items
+     * @throws IOException if interrupted while waiting for the writer
+     * @throws ObjectStoreException if the writer failed
+     */
+    void store(List<Item> items) throws IOException, ObjectStoreException {
+        checkWriter();
+        if (items.isEmpty()) {
+            return;
+        }
+        try {
+            stores.put(items);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the GFF3 writer");
+        }
+    }
+
+    private void write() {
+        try {
+            while (true) {
+                List<Item> items = stores.take();
+                if (items == END_OF_STORES) {
+                    return;
+                }
+                if (writerFailure != null) {
+                    // drain the queue so the converting thread isn't blocked before it sees the failure
+                    continue;
+                }
+                try {
+                    for (Item item : items) {
+                        converter.storeNow(item);
+                        storedCount++;
+                    }
+                } catch (Throwable t) {
+                    writerFailure = t;
+                }
+            }
+        } catch (InterruptedException e) {
+            // the pipeline was closed
+        }
+    }
+
+    private void checkWriter() throws ObjectStoreException {
+        Throwable failure = writerFailure;
+        if (failure == null) {
+            return;
+        }
+        if (failure instanceof ObjectStoreException) {
+            throw (ObjectStoreException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        throw new ObjectStoreException("GFF3 writer failed", failure);
+    }
+
+    /**
+     * Wait for the writer to store every queued Item.
+     * @throws IOException if interrupted while waiting
+     * @throws ObjectStoreException if the writer failed
+     */
+    void finish() throws IOException, ObjectStoreException {
+        try {
+            stores.put(END_OF_STORES);
+            writerThread.join();
+            readerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the GFF3 writer");
+        }
+        finished = true;
+        workers.shutdown();
+        checkWriter();
+        LOG.info("GFF3 writer stored " + storedCount + " items");
+    }
+
+    /**
+     * Stop the threads if finish() wasn't reached, after a failure.
+     */
+    void close() {
+        if (finished) {
+            return;
+        }
+        readerThread.interrupt();
+        writerThread.interrupt();
+        workers.shutdownNow();
+    }
+}
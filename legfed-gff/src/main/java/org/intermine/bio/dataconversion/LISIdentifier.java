@@ -0,0 +1,135 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2019 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+/**
+ * Parse LIS data store identifiers, which are dot-separated with the gensp, strain, assembly and annotation first:
+ * <pre>
+ * 0     1      2    3    4     5          6 7   8
+ * phavu.G19833.gnm2.ann1.Phvul.003G111100.1.CDS.1
+ * </pre>
+ * A parser is reused from one identifier to the next: it only records the positions of the dots, and the first four
+ * parts are returned as interned Strings that are kept while the next identifier has the same parts, as the
+ * identifiers of a file almost always do.  The parts are split as String.split("\\.") splits them.  Not thread-safe.
+ *
+ * @author Sam Hokin
+ */
+class LISIdentifier
+{
+    // the parts that make up the name: 4 up to 8
+    private static final int NAME_END_PART = 9;
+
+    private CharSequence id;
+    private int end;
+    private int partCount;
+    // the positions of the first dots
+    private final int[] dots = new int[NAME_END_PART];
+
+    private String gensp;
+    private String strain;
+    private String assemblyVersion;
+    private String annotationVersion;
+
+    /**
+     * Parse an identifier.
+     * @param id the identifier
+     * @throws RuntimeException if it has fewer than five parts
+     */
+    void parse(CharSequence id) {
+        this.id = id;
+        // split drops trailing empty parts
+        end = id.length();
+        while (end > 0 && id.charAt(end - 1) == '.') {
+            end--;
+        }
+        partCount = 1;
+        for (int i = 0; i < end; i++) {
+            if (id.charAt(i) == '.') {
+                if (partCount <= NAME_END_PART) {
+                    dots[partCount - 1] = i;
+                }
+                partCount++;
+            }
+        }
+        if (partCount < 5) {
+            throw new RuntimeException("ID has too few dot-separated parts:" + id);
+        }
+        gensp = part(gensp, 0, dots[0]);
+        strain = part(strain, dots[0] + 1, dots[1]);
+        assemblyVersion = part(assemblyVersion, dots[1] + 1, dots[2]);
+        annotationVersion = part(annotationVersion, dots[2] + 1, dots[3]);
+    }
+
+    /**
+     * Return the previous value of a part if the identifier has the same characters there, else the new value.
+     */
+    private String part(String previous, int start, int stop) {
+        if (previous != null && previous.length() == stop - start) {
+            boolean same = true;
+            for (int i = 0; i < previous.length(); i++) {
+                if (previous.charAt(i) != id.charAt(start + i)) {
+                    same = false;
+                    break;
+                }
+            }
+            if (same) {
+                return previous;
+            }
+        }
+        return id.subSequence(start, stop).toString().intern();
+    }
+
+    /**
+     * @return the number of dot-separated parts
+     */
+    int getPartCount() {
+        return partCount;
+    }
+
+    /**
+     * @return part 0, e.g. phavu
+     */
+    String getGensp() {
+        return gensp;
+    }
+
+    /**
+     * @return part 1, e.g. G19833
+     */
+    String getStrain() {
+        return strain;
+    }
+
+    /**
+     * @return part 2, e.g. gnm2
+     */
+    String getAssemblyVersion() {
+        return assemblyVersion;
+    }
+
+    /**
+     * @return part 3, e.g. ann1
+     */
+    String getAnnotationVersion() {
+        return annotationVersion;
+    }
+
+    /**
+     * Return the name of the feature: the gensp followed by parts 4 up to 8, e.g. phavu.Phvul.003G111100.1.CDS.1
+     * @return the name
+     */
+    String getName() {
+        int stop = (partCount > NAME_END_PART) ? dots[NAME_END_PART - 1] : end;
+        StringBuilder name = new StringBuilder(gensp.length() + stop - dots[3]);
+        name.append(gensp).append(id, dots[3], stop);
+        return name.toString();
+    }
+}
@@ -14,6 +14,8 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -66,6 +68,19 @@ public class LegfedGFF3Converter extends GFF3Converter
     private GFF3RecordHandler handler;
     private GFF3SeqHandler sequenceHandler;
     private boolean dontCreateLocations;
+    private int converterThreads = 1;
+    // if true, forget the identifiers of each feature group once it has been converted
+    private boolean streamFeatureGroups = false;
+    // the top-level features of the current feature group, by primaryIdentifier
+    private Set<String> groupRoots = new HashSet<String>();
+    // the Item identifiers of the top-level features of evicted feature groups
+    private FeatureIdentifierDictionary retainedRefIds = null;
+    private long evictedIdentifiers = 0;
+    // the thread converting the batches in parse() with several threads, whose stores are held in pendingStores;
+    // the store hook also stores on the pipeline's writer thread, and those stores go straight through
+    private volatile Thread convertingThread = null;
+    // the Items stored by the converting thread while converting a batch, only used on that thread
+    private List<Item> pendingStores = null;
     private final Map<String, Item> dataSets = new HashMap<String, Item>();
     private final Map<String, Item> dataSources = new HashMap<String, Item>();
 
@@ -147,6 +162,29 @@ public class LegfedGFF3Converter extends GFF3Converter
         return StringUtil.getFlattenedSourceName(shortenedName) + "_config.properties";
     }
 
+    /**
+     * Set the number of threads parsing each GFF3 file.  With more than one, parse() reads, parses and stores on
+     * separate threads while the records are converted in file order on the calling thread.
+     * @param converterThreads the number of parsing threads, 1 or less to parse serially
+     */
+    public void setConverterThreads(int converterThreads) {
+        this.converterThreads = converterThreads;
+    }
+
+    /**
+     * Set whether to forget the identifiers of each group of features once it has been converted, so that the
+     * memory held doesn't grow with the size of the files.  A group ends at a ### directive or, in a file without
+     * them, at the next top-level feature, as in a file sorted into gene blocks.  Top-level features stay referable
+     * as parents in later groups; any other parent must be in the same group as its children.
+     * @param streamFeatureGroups true to evict the identifiers of converted feature groups
+     */
+    public void setStreamFeatureGroups(boolean streamFeatureGroups) {
+        this.streamFeatureGroups = streamFeatureGroups;
+        if (streamFeatureGroups && retainedRefIds == null) {
+            retainedRefIds = new FeatureIdentifierDictionary(1 << 16);
+        }
+    }
+
     /**
      * Parse a bufferedReader and process GFF3 record
      * @param bReader the Reader
@@ -154,7 +192,6 @@ public class LegfedGFF3Converter extends GFF3Converter
      * @throws ObjectStoreException if an error occurs storing items
      */
     public void parse(BufferedReader bReader)  throws IOException, ObjectStoreException {
-        GFF3Record record;
         long start, now, opCount;
 
         opCount = 0;
@@ -162,27 +199,94 @@ public class LegfedGFF3Converter extends GFF3Converter
         boolean duplicates = false;
         Set<String> processedIds = new HashSet<String>();
         Set<String> duplicatedIds = new HashSet<String>();
-        for (Iterator<?> i = GFF3Parser.parse(bReader); i.hasNext();) {
-            record = (GFF3Record) i.next();
-
-            // we only care about dupes if we are NOT creating locations
-            if (processedIds.contains(record.getId()) && dontCreateLocations) {
-                duplicates = true;
-                duplicatedIds.add(record.getId());
-            } else {
-                if (record.getId() != null) {
-                    processedIds.add(record.getId());
+        // in a file with ### directives the groups only end at the directives
+        boolean groupDirectives = false;
+        GFF3Pipeline pipeline = null;
+        GFF3LineReader lines = null;
+        Iterator<?> records = null;
+        if (converterThreads > 1) {
+            convertingThread = Thread.currentThread();
+            pipeline = new GFF3Pipeline(this, new GFF3LineReader(bReader, streamFeatureGroups), converterThreads);
+        } else if (streamFeatureGroups) {
+            lines = new GFF3LineReader(bReader, true);
+        } else {
+            records = GFF3Parser.parse(bReader);
+        }
+        try {
+            while (true) {
+                List<PreparedGFF3Record> batch;
+                if (pipeline != null) {
+                    batch = pipeline.nextBatch();
+                    if (batch == null) {
+                        break;
+                    }
+                    // collect this batch's stores for the pipeline's writer
+                    pendingStores = new ArrayList<Item>();
+                } else if (lines != null) {
+                    String line = lines.readLine();
+                    if (line == null) {
+                        break;
+                    } else if (line == GFF3LineReader.GROUP_END) {
+                        batch = Collections.singletonList(PreparedGFF3Record.GROUP_END);
+                    } else {
+                        batch = Collections.singletonList(prepare(new GFF3Record(line)));
+                    }
+                } else {
+                    if (!records.hasNext()) {
+                        break;
+                    }
+                    batch = Collections.singletonList(prepare((GFF3Record) records.next()));
+                }
+                for (PreparedGFF3Record prepared : batch) {
+                    if (prepared == PreparedGFF3Record.GROUP_END) {
+                        groupDirectives = true;
+                        endFeatureGroup();
+                        continue;
+                    }
+                    GFF3Record record = prepared.record;
+                    // we only care about dupes if we are NOT creating locations
+                    if (processedIds.contains(record.getId()) && dontCreateLocations) {
+                        duplicates = true;
+                        duplicatedIds.add(record.getId());
+                    } else {
+                        if (record.getId() != null && dontCreateLocations) {
+                            processedIds.add(record.getId());
+                        }
+                    }
+                    if (streamFeatureGroups && !groupDirectives && isNewRoot(prepared)) {
+                        // a sorted file without directives: a new top-level feature ends the group
+                        endFeatureGroup();
+                    }
+                    if (!duplicates) {
+                        process(prepared);
+                    }
+                    opCount++;
+                    if (opCount % 1000 == 0) {
+                        now = System.currentTimeMillis();
+                        LOG.info("processed " + opCount + " lines --took " + (now - start) + " ms");
+                        start = System.currentTimeMillis();
+                    }
                 }
+                if (pipeline != null) {
+                    List<Item> items = pendingStores;
+                    pendingStores = null;
+                    pipeline.store(items);
+                }
+            }
+            if (pipeline != null) {
+                pipeline.finish();
             }
-            if (!duplicates) {
-                process(record);
+            if (streamFeatureGroups) {
+                endFeatureGroup();
+                LOG.info("evicted " + evictedIdentifiers + " identifiers, retained " + retainedRefIds.size()
+                         + " top-level identifiers in " + retainedRefIds.offHeapBytes() + " off-heap bytes");
             }
-            opCount++;
-            if (opCount % 1000 == 0) {
-                now = System.currentTimeMillis();
-                LOG.info("processed " + opCount + " lines --took " + (now - start) + " ms");
-                start = System.currentTimeMillis();
+        } finally {
+            pendingStores = null;
+            if (pipeline != null) {
+                pipeline.close();
             }
+            convertingThread = null;
         }
         if (duplicates) {
             LOG.error("Duplicated IDs in GFF file: " + duplicatedIds);
@@ -190,6 +294,94 @@ public class LegfedGFF3Converter extends GFF3Converter
         }
     }
 
+    /**
+     * Return true if a prepared record is a top-level feature that isn't part of the current feature group.
+     */
+    private boolean isNewRoot(PreparedGFF3Record prepared) {
+        List<String> parents = prepared.record.getParents();
+        return prepared.included && (parents == null || parents.isEmpty())
+            && !groupRoots.contains(prepared.primaryIdentifier);
+    }
+
+    /**
+     * Forget the identifiers of the current feature group, keeping those of its top-level features in
+     * retainedRefIds so that they can still be parents.
+     */
+    private void endFeatureGroup() {
+        for (String root : groupRoots) {
+            String refId = identifierMap.get(root);
+            if (refId != null) {
+                retainedRefIds.put(root, refId);
+            }
+        }
+        for (Entry<String, String> e : identifiersToIds.entrySet()) {
+            if (groupRoots.contains(e.getValue())) {
+                String refId = identifierMap.get(e.getValue());
+                if (refId != null) {
+                    retainedRefIds.put(e.getKey(), refId);
+                }
+            }
+        }
+        evictedIdentifiers += identifierMap.size() - groupRoots.size();
+        // cleared rather than replaced as the handler holds the identifierMap
+        identifierMap.clear();
+        identifiersToIds.clear();
+        groupRoots.clear();
+    }
+
+    /**
+     * Store an Item, or hold it for the pipeline's writer while parse() is converting a batch on several threads,
+     * in which case null is returned as the database id isn't known yet.  The Items the store hook stores from
+     * the writer thread are stored straight away, in the order they would be by a serial parse.
+     * {@inheritDoc}
+     */
+    @Override
+    public Integer store(Item item) throws ObjectStoreException {
+        if (isConverting()) {
+            pendingStores.add(item);
+            return null;
+        }
+        return super.store(item);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void store(Collection<Item> items) throws ObjectStoreException {
+        if (isConverting()) {
+            pendingStores.addAll(items);
+            return;
+        }
+        super.store(items);
+    }
+
+    /**
+     * Return true if this is the thread converting a batch for the pipeline, whose stores are held back.
+     */
+    private boolean isConverting() {
+        return Thread.currentThread() == convertingThread && pendingStores != null;
+    }
+
+    /**
+     * Store an Item straight away, for the pipeline's writer thread.
+     * @param item the Item
+     * @return the database id of the Item
+     * @throws ObjectStoreException if the Item can't be stored
+     */
+    Integer storeNow(Item item) throws ObjectStoreException {
+        return super.store(item);
+    }
+
+    /**
+     * Synchronized since the store hook may create items on the pipeline's writer thread.
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized Item createItem(String className) {
+        return super.createItem(className);
+    }
+
     /**
      * store all the items
      * @throws ObjectStoreException if an error occurs storing items
@@ -207,15 +399,24 @@ public class LegfedGFF3Converter extends GFF3Converter
      * process GFF3 record and give a xml presentation
      * @param record GFF3Record
      * @throws ObjectStoreException if an error occurs storing items
-     * @throws IOException
      */
     public void process(GFF3Record record) throws ObjectStoreException {
+        process(prepare(record));
+    }
+
+    /**
+     * Work out the parts of the conversion of a record that only depend on the record and the config, so that they
+     * can be done on any thread ahead of process().
+     * @param record GFF3Record
+     * @return the prepared record
+     */
+    PreparedGFF3Record prepare(GFF3Record record) {
         String term = record.getType();
         // don't process terms in the exclude list
         if (configExclude != null && !configExclude.isEmpty()) {
             if (configExclude.containsKey(this.orgTaxonId)) {
                 if (configExclude.get(this.orgTaxonId).contains(term)) {
-                    return;
+                    return new PreparedGFF3Record(record);
                 }
             }
         }
@@ -223,22 +424,64 @@ public class LegfedGFF3Converter extends GFF3Converter
         if (configTerm != null && !configTerm.isEmpty()) {
             if (configTerm.containsKey(this.orgTaxonId)) {
                 if (!configTerm.get(this.orgTaxonId).contains(term)) {
-                    return;
+                    return new PreparedGFF3Record(record);
                 }
             }
         }
 
         // By default, use ID field in attributes
         String primaryIdentifier = record.getId();
+        boolean identifierReplaced = false;
         // If pid set in gff_config.propeties, look for the attribute field, e.g. locus_tag
         if (configAttr.containsKey(this.orgTaxonId)) {
             if (configAttr.get(this.orgTaxonId).containsKey("primaryIdentifier")) {
                 // TODO we need to check if this is class-specific config
                 // could be unrelated to the type we are looking at
                 primaryIdentifier = getPrimaryIdentifier(record, term);
+                // only store if the identifier has been reset
+                identifierReplaced = !primaryIdentifier.equals(record.getId());
             }
         }
+        String className = TypeUtil.javaiseClassName(term);
+        String fullClassName = tgtModel.getPackageName() + "." + className;
+        ClassDescriptor cd = tgtModel.getClassDescriptorByName(fullClassName);
+
+        String symbol = null;
+        List<String> synonyms = new ArrayList<String>();
+        // get the attribute set for symbol
+        if (configAttr.containsKey(this.orgTaxonId)) {
+            if (configAttr.get(this.orgTaxonId).containsKey("symbol")) {
+                symbol = getSymbol(record, term);
+            }
+        }
+        // get the attribute set for synonym
+        if (configAttr.containsKey(this.orgTaxonId)) {
+            synonyms = createSynonyms(record, term);
+        }
+        return new PreparedGFF3Record(record, true, primaryIdentifier, identifierReplaced,
+                                      className, cd, symbol, synonyms);
+    }
+
+    /**
+     * Convert a prepared record, in record order.
+     * @param prepared the record from prepare()
+     * @throws ObjectStoreException if an error occurs storing items
+     */
+    void process(PreparedGFF3Record prepared) throws ObjectStoreException {
+        if (!prepared.included) {
+            return;
+        }
+        GFF3Record record = prepared.record;
+        String term = record.getType();
+        String primaryIdentifier = prepared.primaryIdentifier;
+        if (prepared.identifierReplaced) {
+            identifiersToIds.put(record.getId(), primaryIdentifier);
+        }
         String refId = identifierMap.get(primaryIdentifier);
+        if (refId == null && retainedRefIds != null && primaryIdentifier != null) {
+            // a top-level feature with a discontinuous location spanning feature groups
+            refId = retainedRefIds.get(primaryIdentifier);
+        }
 	// DEBUG
 	if (this.handler==null) {
 	    throw new RuntimeException("handler has not been created.");
@@ -246,9 +489,8 @@ public class LegfedGFF3Converter extends GFF3Converter
 	//
         this.handler.clear(); // get rid of previous record Items from handler
         Item seq = getSeq(record);
-        String className = TypeUtil.javaiseClassName(term);
-        String fullClassName = tgtModel.getPackageName() + "." + className;
-        ClassDescriptor cd = tgtModel.getClassDescriptorByName(fullClassName);
+        String className = prepared.className;
+        ClassDescriptor cd = prepared.cd;
         if (cd == null) {
             throw new IllegalArgumentException("no class found in model for: " + className
                                                + " (original GFF record type: " + term + ") for "
@@ -277,20 +519,14 @@ public class LegfedGFF3Converter extends GFF3Converter
         }
         handler.setFeature(feature);
         identifierMap.put(primaryIdentifier, feature.getIdentifier());
+        List<String> parents = record.getParents();
+        if (streamFeatureGroups && primaryIdentifier != null && (parents == null || parents.isEmpty())) {
+            groupRoots.add(primaryIdentifier);
+        }
 
         List<?> names = record.getNames();
-        String symbol = null;
-        List<String> synonyms = new ArrayList<String>();
-        // get the attribute set for symbol
-        if (configAttr.containsKey(this.orgTaxonId)) {
-            if (configAttr.get(this.orgTaxonId).containsKey("symbol")) {
-                symbol = getSymbol(record, term);
-            }
-        }
-        // get the attribute set for synonym
-        if (configAttr.containsKey(this.orgTaxonId)) {
-            synonyms = createSynonyms(record, term);
-        }
+        String symbol = prepared.symbol;
+        List<String> synonyms = prepared.synonyms;
         if (names != null) {
             setNames(names, symbol, synonyms, synonymsToAdd, primaryIdentifier, feature, cd);
         }
@@ -299,7 +535,6 @@ public class LegfedGFF3Converter extends GFF3Converter
         if (configAttr.containsKey(this.orgTaxonId)) {
             addOtherAttributes(record, term, feature, primeAttrList);
         }
-        List<String> parents = record.getParents();
         if (parents != null && !parents.isEmpty()) {
             setRefsAndCollections(parents, feature);
         }
@@ -389,10 +624,6 @@ public class LegfedGFF3Converter extends GFF3Converter
                 }
             }
         }
-        // only store if the identifier has been reset
-        if (!primaryIdentifier.equals(record.getId())) {
-            identifiersToIds.put(record.getId(), primaryIdentifier);
-        }
         return primaryIdentifier;
     }
 
@@ -811,11 +1042,20 @@ public class LegfedGFF3Converter extends GFF3Converter
             String id = identifiersToIds.get(identifier);
             refId = identifierMap.get(id);
 
+            if (refId == null && retainedRefIds != null) {
+                // a top-level feature from an evicted feature group
+                refId = retainedRefIds.get(identifier);
+            }
             if (refId == null) {
                 // parents are usually first in the GFF file but that's not in the specification
                 // parents will not be present if they are ignored in the config file. See #1267
-                throw new RuntimeException("Failed setting setRefsAndCollections() "
-                                           + "in LegfedGFF3Converter - processing child before parent - " + identifier);
+                String message = "Failed setting setRefsAndCollections() "
+                    + "in LegfedGFF3Converter - processing child before parent - " + identifier;
+                if (streamFeatureGroups) {
+                    message += " - or the parent isn't top-level and is in an earlier feature group,"
+                        + " set streamFeatureGroups=false for files that aren't grouped";
+                }
+                throw new RuntimeException(message);
             }
         }
         return refId;
@@ -10,12 +10,15 @@ package org.intermine.bio.dataconversion;
  *
  */
 
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Set;
 
 import org.intermine.bio.io.gff3.GFF3Record;
 import org.intermine.metadata.Model;
+import org.intermine.objectstore.ObjectStoreException;
 import org.intermine.objectstore.ObjectStoreWriter;
 import org.intermine.objectstore.ObjectStoreWriterFactory;
 import org.intermine.xml.full.Item;
@@ -41,6 +44,20 @@ public class LegfedGFF3RecordHandler extends GFF3RecordHandler {
     Map<String, Integer> ids = new HashMap<String, Integer>();
     int nextClsId = 0;
 
+    // the Dbxref and Ontology_term databases that are loaded; an InterPro entry integrates the Gene3D, PANTHER,
+    // Pfam and Superfamily signatures listed beside it, so only InterPro terms become ProteinDomains
+    static final String[] DOMAIN_PREFIXES = new String[] {"InterPro"};
+    static final String[] ONTOLOGY_PREFIXES = new String[] {"GO"};
+
+    // reused for every record
+    LISIdentifier lisId = new LISIdentifier();
+    Set<String> annotatedTerms = new HashSet<String>();
+
+    // the ProteinDomain and GOTerm Items stored so far, keyed by the whole Dbxref or Ontology_term term
+    Map<String, Item> proteinDomains = new HashMap<String, Item>();
+    Map<String, Item> ontologyTerms = new HashMap<String, Item>();
+    Item goOntology = null;
+
     /**
      * Create a new LegfedGFF3RecordHandler object.
      * @param tgtModel the target Model
@@ -81,28 +98,16 @@ public class LegfedGFF3RecordHandler extends GFF3RecordHandler {
             // medtr.jemalong_A17.gnm5.ann1_6.exon:MtrunA17Chr1g0187771.1
             // 0     1            2    3      4
             // medtr.jemalong_A17.gnm5.ann1_6.gene:MtrunA17CPg0492171
-            String[] parts = id.split("\\.");
-            if (parts.length<5) {
-                throw new RuntimeException("ID has too few dot-separated parts:"+id);
-            }
-            String gensp = parts[0];
-            String strainId = parts[1];
-            String assemblyVersion = parts[2];
-            String annotationVersion = parts[3];
+            lisId.parse(id);
 
             // set attributes
-            feature.setAttribute("assemblyVersion", assemblyVersion);
-            feature.setAttribute("annotationVersion", annotationVersion);
+            feature.setAttribute("assemblyVersion", lisId.getAssemblyVersion());
+            feature.setAttribute("annotationVersion", lisId.getAnnotationVersion());
             if (attributesMap.containsKey("Name")) {
                 String name = attributesMap.get("Name").get(0);
                 feature.setAttribute("secondaryIdentifier", name);
             } else {
-                String nameFromId = gensp+"."+parts[4];
-                if (parts.length>5) nameFromId += "."+parts[5];
-                if (parts.length>6) nameFromId += "."+parts[6];
-                if (parts.length>7) nameFromId += "."+parts[7];
-                if (parts.length>8) nameFromId += "."+parts[8];
-                feature.setAttribute("secondaryIdentifier", nameFromId);
+                feature.setAttribute("secondaryIdentifier", lisId.getName());
             }
 
             // add marker type = SNP if it is a marker with length 1
@@ -118,28 +123,21 @@ public class LegfedGFF3RecordHandler extends GFF3RecordHandler {
                     feature.setAttribute("description", attributes.get(0));
                 } else if (type.equals("gene") && key.equals("Dbxref")) {
                     // [Gene3D:G3DSA:3.30.420.100, InterPro:IPR005484, PANTHER:PTHR12899, Pfam:PF00861, Superfamily:SSF53137]
+                    // only the InterPro term is loaded
                     for (String term : attributes) {
-                        String[] pieces = term.split(":");
-                        if (pieces[0].equals("Gene3D")) {
-                            // need ProteinDomain Item
-                        } else if (pieces[0].equals("InterPro")) {
-                            String identifier = pieces[1];
-			    // need ProteinDomain Item
-                        } else if (pieces[0].equals("PANTHER")) {
-                            String identifier = pieces[1];
-                            // need ProteinDomain Item
-                        } else if (pieces[0].equals("Pfam")) {
-                            String identifier = pieces[1];
-                            // need ProteinDomain Item
-                        } else if (pieces[0].equals("Superfamily")) {
-                            // need ProteinDomain Item
+                        if (hasPrefix(term, DOMAIN_PREFIXES)) {
+                            feature.addToCollection("proteinDomains", getProteinDomain(term));
                         }
                     }
                 } else if (type.equals("gene") && key.equals("Ontology_term")) {
                     // [GO:0003735, GO:0005622, GO:0005840, GO:0006412]
+                    annotatedTerms.clear();
                     for (String term : attributes) {
-                        if (term.startsWith("GO:")) {
-                            // need OntologyTerm
+                        if (hasPrefix(term, ONTOLOGY_PREFIXES) && annotatedTerms.add(term)) {
+                            Item annotation = getConverter().createItem("OntologyAnnotation");
+                            annotation.setReference("ontologyTerm", getOntologyTerm(term));
+                            annotation.setReference("subject", feature);
+                            addItem(annotation);
                         }
                     }
                 } else if (key.equals("evid_id")) {
@@ -149,4 +147,64 @@ public class LegfedGFF3RecordHandler extends GFF3RecordHandler {
             }
         }
     }
+
+    /**
+     * Return true if a term starts with one of the given prefixes followed by a colon.
+     */
+    static boolean hasPrefix(String term, String[] prefixes) {
+        int colon = term.indexOf(':');
+        if (colon <= 0 || colon == term.length() - 1) {
+            return false;
+        }
+        for (String prefix : prefixes) {
+            if (prefix.length() == colon && term.regionMatches(0, prefix, 0, colon)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return the ProteinDomain for a Dbxref term, creating and storing it the first time it's seen.
+     * It's stored right away so that it's stored before the genes that refer to it.
+     */
+    Item getProteinDomain(String term) {
+        Item proteinDomain = proteinDomains.get(term);
+        if (proteinDomain == null) {
+            proteinDomain = getConverter().createItem("ProteinDomain");
+            proteinDomain.setAttribute("primaryIdentifier", term.substring(term.indexOf(':') + 1));
+            storeNow(proteinDomain);
+            proteinDomains.put(term, proteinDomain);
+        }
+        return proteinDomain;
+    }
+
+    /**
+     * Return the GOTerm for an Ontology_term term, creating and storing it the first time it's seen, along with
+     * the GO Ontology that it belongs to.
+     */
+    Item getOntologyTerm(String term) {
+        Item ontologyTerm = ontologyTerms.get(term);
+        if (ontologyTerm == null) {
+            if (goOntology == null) {
+                goOntology = getConverter().createItem("Ontology");
+                goOntology.setAttribute("name", "GO");
+                storeNow(goOntology);
+            }
+            ontologyTerm = getConverter().createItem("GOTerm");
+            ontologyTerm.setAttribute("identifier", term);
+            ontologyTerm.setReference("ontology", goOntology);
+            storeNow(ontologyTerm);
+            ontologyTerms.put(term, ontologyTerm);
+        }
+        return ontologyTerm;
+    }
+
+    private void storeNow(Item item) {
+        try {
+            getConverter().store(item);
+        } catch (ObjectStoreException e) {
+            throw new RuntimeException("Problem storing " + item.getClassName() + " " + item.getIdentifier(), e);
+        }
+    }
 }
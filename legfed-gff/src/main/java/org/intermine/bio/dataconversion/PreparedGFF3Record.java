@@ -0,0 +1,71 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2019 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.List;
+
+import org.intermine.bio.io.gff3.GFF3Record;
+import org.intermine.metadata.ClassDescriptor;
+
+/**
+ * The part of the conversion of a GFF3 record that only depends on the record and the converter's config, worked
+ * out by LegfedGFF3Converter.prepare().  It can be made on any thread; the rest of the conversion, which uses the
+ * identifierMap and the record handler, is done in record order by LegfedGFF3Converter.process().
+ *
+ * @author Sam Hokin
+ */
+class PreparedGFF3Record
+{
+    /** Stands for a ### directive among the prepared records. */
+    static final PreparedGFF3Record GROUP_END = new PreparedGFF3Record(null);
+
+    final GFF3Record record;
+    // false if the record's type is excluded by the config, in which case the other fields aren't set
+    final boolean included;
+    final String primaryIdentifier;
+    // true if the config replaced the record's ID as the primaryIdentifier
+    final boolean identifierReplaced;
+    final String className;
+    final ClassDescriptor cd;
+    final String symbol;
+    final List<String> synonyms;
+
+    /**
+     * Create an excluded record.
+     * @param record the GFF3 record
+     */
+    PreparedGFF3Record(GFF3Record record) {
+        this(record, false, null, false, null, null, null, null);
+    }
+
+    /**
+     * Create an included record.
+     * @param record the GFF3 record
+     * @param included true if the record is converted
+     * @param primaryIdentifier the primaryIdentifier of the feature
+     * @param identifierReplaced true if the primaryIdentifier isn't the record's ID
+     * @param className the unqualified class of the feature
+     * @param cd the ClassDescriptor of the class, null if the class isn't in the model
+     * @param symbol the symbol from the config, null if none
+     * @param synonyms the synonyms from the config
+     */
+    PreparedGFF3Record(GFF3Record record, boolean included, String primaryIdentifier, boolean identifierReplaced,
+                       String className, ClassDescriptor cd, String symbol, List<String> synonyms) {
+        this.record = record;
+        this.included = included;
+        this.primaryIdentifier = primaryIdentifier;
+        this.identifierReplaced = identifierReplaced;
+        this.className = className;
+        this.cd = cd;
+        this.symbol = symbol;
+        this.synonyms = synonyms;
+    }
+}
@@ -0,0 +1,309 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2019 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang.StringUtils;
+import org.intermine.dataconversion.ItemWriter;
+import org.intermine.objectstore.ObjectStoreException;
+import org.intermine.xml.full.Attribute;
+import org.intermine.xml.full.Item;
+import org.intermine.xml.full.Reference;
+import org.intermine.xml.full.ReferenceList;
+
+/**
+ * Lets several LegfedGFF3Converters, one per file, store through one ItemWriter at the same time.  Each converter
+ * gets its own ItemWriter from getFileWriter(), which
+ * <ul>
+ * <li>moves the item numbers of its identifiers and references into a range of ITEMS_PER_FILE numbers of its own,
+ * since every converter numbers its Items from the start, keeping the numeric &lt;classNo&gt;_&lt;n&gt; form that
+ * the items database parses identifiers in;</li>
+ * <li>stores only the first of the Organism, Strain, DataSource, DataSet, ontology, protein domain and sequence Items
+ * that every converter creates for itself, telling them apart by their key fields, and points the references to the
+ * others at the identifier of the first - so a converter must store these Items before the Items that refer to them,
+ * as it does;</li>
+ * <li>stores the Items of a store(Collection) call while holding the shared writer once, and returns the object id
+ * of each Item it stores, or of the shared Item in place of one it drops.</li>
+ * </ul>
+ * The identifiers don't depend on the order the files are converted in, so neither does the stored data.
+ *
+ * @author Sam Hokin
+ */
+public class SharedGFF3ItemWriter
+{
+    // the key fields of the Items that all the converters share
+    private static final Map<String, String[]> SHARED_KEYS = new HashMap<String, String[]>();
+    static {
+        SHARED_KEYS.put("Organism", new String[] {"taxonId"});
+        SHARED_KEYS.put("Strain", new String[] {"identifier"});
+        SHARED_KEYS.put("DataSource", new String[] {"name"});
+        SHARED_KEYS.put("DataSet", new String[] {"name"});
+        SHARED_KEYS.put("Ontology", new String[] {"name"});
+        SHARED_KEYS.put("SOTerm", new String[] {"name"});
+        SHARED_KEYS.put("GOTerm", new String[] {"identifier"});
+        SHARED_KEYS.put("ProteinDomain", new String[] {"primaryIdentifier"});
+        SHARED_KEYS.put("Chromosome", new String[] {"primaryIdentifier"});
+        SHARED_KEYS.put("Supercontig", new String[] {"primaryIdentifier"});
+    }
+    // the references that are part of a shared Item's key
+    private static final String[] SHARED_KEY_REFERENCES = new String[] {"organism", "strain", "ontology"};
+    // the size of each file's range of item numbers, which leaves room for 214 files below Integer.MAX_VALUE
+    static final int ITEMS_PER_FILE = 10000000;
+    // the object id held for a shared Item whose writer returned none
+    private static final Integer NO_OBJECT_ID = Integer.valueOf(-1);
+
+    private final ItemWriter writer;
+    // the identifiers and object ids of the shared Items that have been stored, by shared key, guarded by this
+    private final Map<String, String> sharedIdentifiers = new HashMap<String, String>();
+    private final Map<String, Integer> sharedObjectIds = new HashMap<String, Integer>();
+    // from the identifier of a dropped shared Item to that of the shared Item stored in its place
+    private final Map<String, String> aliases = new ConcurrentHashMap<String, String>();
+    private int itemCount = 0;
+    private int droppedCount = 0;
+
+    /**
+     * Share an ItemWriter.
+     * @param writer the writer, which only this object may use while the converters run
+     */
+    public SharedGFF3ItemWriter(ItemWriter writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Return a writer for the converter of one file.
+     * @param fileIndex the number of the file, unique among the converters and the same from one run to the next
+     * @return the writer, which must be closed once the converter is done
+     */
+    public ItemWriter getFileWriter(int fileIndex) {
+        if (fileIndex < 0 || fileIndex >= Integer.MAX_VALUE / ITEMS_PER_FILE) {
+            throw new IllegalArgumentException("no item number range for file " + fileIndex);
+        }
+        return new FileItemWriter(fileIndex);
+    }
+
+    /**
+     * Return the number of Items stored.
+     * @return the count
+     */
+    public synchronized int getItemCount() {
+        return itemCount;
+    }
+
+    /**
+     * Return the number of shared Items that weren't stored again.
+     * @return the count
+     */
+    public synchronized int getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Store a translated Item, unless it's a shared Item that has already been stored.  Must be called holding
+     * this object's lock.
+     * @return the object id of the Item, or of the shared Item stored in its place
+     */
+    private Integer storeItem(Item copy) throws ObjectStoreException {
+        String key = getSharedKey(copy);
+        if (key != null) {
+            String first = sharedIdentifiers.get(key);
+            if (first != null) {
+                aliases.put(copy.getIdentifier(), first);
+                droppedCount++;
+                Integer objectId = sharedObjectIds.get(key);
+                return (objectId == NO_OBJECT_ID) ? null : objectId;
+            }
+        }
+        Integer objectId = writer.store(copy);
+        itemCount++;
+        if (key != null) {
+            sharedIdentifiers.put(key, copy.getIdentifier());
+            sharedObjectIds.put(key, (objectId == null) ? NO_OBJECT_ID : objectId);
+        }
+        return objectId;
+    }
+
+    /**
+     * Return the key that tells a shared Item apart from the others of its class, or null if it isn't one that the
+     * converters share.
+     */
+    private static String getSharedKey(Item item) {
+        String[] keys = SHARED_KEYS.get(item.getClassName());
+        if (keys == null) {
+            return null;
+        }
+        StringBuilder sharedKey = new StringBuilder(item.getClassName());
+        for (String key : keys) {
+            Attribute attribute = item.getAttribute(key);
+            if (attribute == null) {
+                // not enough to tell it apart from the others
+                return null;
+            }
+            sharedKey.append('|').append(attribute.getValue());
+        }
+        for (String key : SHARED_KEY_REFERENCES) {
+            Reference reference = item.getReference(key);
+            if (reference != null) {
+                sharedKey.append('|').append(key).append('=').append(reference.getRefId());
+            }
+        }
+        return sharedKey.toString();
+    }
+
+    /**
+     * The writer of one converter.
+     */
+    private class FileItemWriter implements ItemWriter
+    {
+        private final int fileIndex;
+        private final int offset;
+
+        FileItemWriter(int fileIndex) {
+            this.fileIndex = fileIndex;
+            this.offset = fileIndex * ITEMS_PER_FILE;
+        }
+
+        /**
+         * Move the item number of an identifier into the file's range.
+         */
+        private String renumber(String identifier) throws ObjectStoreException {
+            int split = identifier.lastIndexOf('_');
+            int number;
+            try {
+                number = Integer.parseInt(identifier.substring(split + 1));
+            } catch (NumberFormatException e) {
+                throw new ObjectStoreException("Item identifier " + identifier + " doesn't end in an item number", e);
+            }
+            if (number < 0 || number >= ITEMS_PER_FILE) {
+                throw new ObjectStoreException("Item identifier " + identifier + " of file " + fileIndex
+                                               + " is outside the " + ITEMS_PER_FILE + " item numbers of a file");
+            }
+            return identifier.substring(0, split + 1) + (offset + number);
+        }
+
+        private String translate(String identifier) throws ObjectStoreException {
+            if (identifier == null) {
+                return null;
+            }
+            String renumbered = renumber(identifier);
+            String shared = aliases.get(renumbered);
+            return (shared == null) ? renumbered : shared;
+        }
+
+        private List<String> translate(List<String> identifiers) throws ObjectStoreException {
+            List<String> translated = new ArrayList<String>(identifiers.size());
+            for (String identifier : identifiers) {
+                translated.add(translate(identifier));
+            }
+            return translated;
+        }
+
+        /**
+         * Copy an Item with its identifier and references translated, leaving the converter's Item as it was.
+         */
+        private Item translate(Item item) throws ObjectStoreException {
+            Item copy = new Item(renumber(item.getIdentifier()), item.getClassName(), item.getImplementations());
+            for (Attribute attribute : item.getAttributes()) {
+                copy.addAttribute(new Attribute(attribute.getName(), attribute.getValue()));
+            }
+            for (Reference reference : item.getReferences()) {
+                copy.addReference(new Reference(reference.getName(), translate(reference.getRefId())));
+            }
+            for (ReferenceList collection : item.getCollections()) {
+                copy.addCollection(new ReferenceList(collection.getName(), translate(collection.getRefIds())));
+            }
+            return copy;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public Integer store(Item item) throws ObjectStoreException {
+            Item copy = translate(item);
+            synchronized (SharedGFF3ItemWriter.this) {
+                return storeItem(copy);
+            }
+        }
+
+        /**
+         * Store the Items holding the shared writer once.
+         * {@inheritDoc}
+         */
+        public void store(Collection<Item> items) throws ObjectStoreException {
+            List<Item> copies = new ArrayList<Item>(items.size());
+            for (Item item : items) {
+                copies.add(translate(item));
+            }
+            synchronized (SharedGFF3ItemWriter.this) {
+                for (Item copy : copies) {
+                    storeItem(copy);
+                }
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void store(ReferenceList referenceList, Integer objectId) throws ObjectStoreException {
+            ReferenceList translated = new ReferenceList(referenceList.getName(),
+                                                         translate(referenceList.getRefIds()));
+            synchronized (SharedGFF3ItemWriter.this) {
+                writer.store(translated, objectId);
+            }
+        }
+
+        /**
+         * Translate the space-separated identifiers of the ReferenceList as the other overloads do, storing it as
+         * an org.intermine.xml.full.ReferenceList, which the writer stores the same way.
+         * {@inheritDoc}
+         */
+        public void store(org.intermine.model.fulldata.ReferenceList referenceList, Integer objectId)
+            throws ObjectStoreException {
+            String refIds = referenceList.getRefIds();
+            List<String> identifiers = (refIds == null) ? new ArrayList<String>()
+                : Arrays.asList(StringUtils.split(refIds, ' '));
+            store(new ReferenceList(referenceList.getName(), identifiers), objectId);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void store(Reference reference, Integer objectId) throws ObjectStoreException {
+            Reference translated = new Reference(reference.getName(), translate(reference.getRefId()));
+            synchronized (SharedGFF3ItemWriter.this) {
+                writer.store(translated, objectId);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void store(Attribute attribute, Integer objectId) throws ObjectStoreException {
+            synchronized (SharedGFF3ItemWriter.this) {
+                writer.store(attribute, objectId);
+            }
+        }
+
+        /**
+         * The Items are stored as they come, so there is nothing to do; the shared writer is left open.
+         * {@inheritDoc}
+         */
+        public void close() throws ObjectStoreException {
+            // nothing held
+        }
+    }
+}
@@ -11,14 +11,25 @@ package org.intermine.bio.task;
  */
 
 import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.intermine.objectstore.ObjectStoreWriterFactory;
 import org.intermine.objectstore.ObjectStoreWriter;
+import org.intermine.bio.dataconversion.CompressedFiles;
 import org.intermine.bio.dataconversion.LegfedGFF3Converter;
 import org.intermine.bio.dataconversion.GFF3RecordHandler;
 import org.intermine.bio.dataconversion.GFF3SeqHandler;
+import org.intermine.bio.dataconversion.SharedGFF3ItemWriter;
 import org.intermine.bio.io.gff3.GFF3Parser;
 import org.intermine.dataconversion.ItemWriter;
 import org.intermine.dataconversion.ObjectStoreItemWriter;
@@ -57,6 +68,14 @@ public class LegfedGFF3ConverterTask extends GFF3ConverterTask
 
     private boolean dontCreateLocations = false;
 
+    private int converterThreads = 1;
+
+    private boolean streamFeatureGroups = false;
+
+    private int fileThreads = 1;
+
+    private int decompressThreads = Runtime.getRuntime().availableProcessors();
+
     /**
      * Set the data fileset
      * @param fs the fileset
@@ -229,6 +248,39 @@ public class LegfedGFF3ConverterTask extends GFF3ConverterTask
         this.dontCreateLocations = dontCreateLocations;
     }
 
+    /**
+     * Set the number of threads parsing each GFF3 file, the default is 1 - parse serially.
+     * @param converterThreads the number of parsing threads
+     */
+    public void setConverterThreads(int converterThreads) {
+        this.converterThreads = converterThreads;
+    }
+
+    /**
+     * Set the streamFeatureGroups flag, the default is false - keep every identifier until the task ends.
+     * @param streamFeatureGroups if true, forget the identifiers of each feature group once it is converted
+     */
+    public void setStreamFeatureGroups(boolean streamFeatureGroups) {
+        this.streamFeatureGroups = streamFeatureGroups;
+    }
+
+    /**
+     * Set the number of files converted at the same time, the default is 1 - convert the files one by one.
+     * @param fileThreads the number of files converted at the same time
+     */
+    public void setFileThreads(int fileThreads) {
+        this.fileThreads = fileThreads;
+    }
+
+    /**
+     * Set the number of threads decompressing each BGZF (.gz or .bgz) file, the default is the number of
+     * processors.  With 1 or less, compressed files are read with a GZIPInputStream.
+     * @param decompressThreads the number of threads decompressing each file
+     */
+    public void setDecompressThreads(int decompressThreads) {
+        this.decompressThreads = decompressThreads;
+    }
+
     /**
      * @see Task#execute()
      */
@@ -268,52 +320,25 @@ public class LegfedGFF3ConverterTask extends GFF3ConverterTask
             osw = ObjectStoreWriterFactory.getObjectStoreWriter(targetAlias);
             writer = new ObjectStoreItemWriter(osw);
             Model tgtModel = Model.getInstanceByName(model);
-            GFF3RecordHandler recordHandler;
-            if (handlerClassName == null) {
-                recordHandler = new GFF3RecordHandler(tgtModel);
-            } else {
-                Class<?> handlerClass;
-                try {
-                    handlerClass = Class.forName(handlerClassName);
-                } catch (ClassNotFoundException e) {
-                    throw new BuildException("Class not found for " + handlerClassName, e);
-                }
-                Class<?> [] types = new Class[] {Model.class};
-                Object [] args = new Object[] {tgtModel};
-                recordHandler = (GFF3RecordHandler) handlerClass.getConstructor(types).newInstance(args);
-            }
-            GFF3SeqHandler sequenceHandler;
-            if (StringUtils.isEmpty(seqHandlerClassName)) {
-                sequenceHandler = new GFF3SeqHandler();
-            } else {
-                Class<?> handlerClass;
-                try {
-                    handlerClass = Class.forName(seqHandlerClassName);
-                } catch (ClassNotFoundException e) {
-                    throw new BuildException("Class not found for " + seqHandlerClassName, e);
-                }
-                Class<?> [] types = new Class[] {};
-                Object [] args = new Object[] {};
-                sequenceHandler = (GFF3SeqHandler) handlerClass.getConstructor(types).newInstance(args);
-            }
-
-            LegfedGFF3Converter gff3converter = new LegfedGFF3Converter(writer, seqClsName,
-									orgTaxonId, strainIdentifier, assemblyVersion, annotationVersion,
-									dataSourceName, dataSourceUrl,
-									dataSetTitle, dataSetUrl, dataSetVersion, dataSetDescription,
-									tgtModel, recordHandler, sequenceHandler, licence);
-            if (dontCreateLocations) {
-                gff3converter.setDontCreateLocations(dontCreateLocations);
-            }
             DirectoryScanner ds = fileSet.getDirectoryScanner(getProject());
             String[] files = ds.getIncludedFiles();
             if (files.length == 0) {
                 throw new BuildException("No GFF files found in: " + fileSet.getDir(getProject()));
             }
+            if (fileThreads > 1 && files.length > 1) {
+                convertConcurrently(writer, tgtModel, ds.getBasedir(), files);
+                return;
+            }
+            LegfedGFF3Converter gff3converter = createConverter(writer, tgtModel);
             for (int i = 0; i < files.length; i++) {
                 File f = new File(ds.getBasedir(), files[i]);
                 System.err .println("Processing file: " + f.getName());
-                gff3converter.parse(new BufferedReader(new FileReader(f)));
+                BufferedReader reader = openReader(f);
+                try {
+                    gff3converter.parse(reader);
+                } finally {
+                    reader.close();
+                }
             }
             gff3converter.storeAll();
             gff3converter.close();
@@ -335,4 +360,105 @@ public class LegfedGFF3ConverterTask extends GFF3ConverterTask
 
     }
 
+    /**
+     * Convert the files with a converter each, fileThreads at a time.  The converters store through one
+     * SharedGFF3ItemWriter, which stores the Organism, DataSet and other Items they all create only once and
+     * numbers each file's Items by its place in the sorted list of files, so the result is the same whatever
+     * order the files finish in.
+     */
+    private void convertConcurrently(ItemWriter writer, final Model tgtModel, final File basedir, String[] files)
+        throws Exception {
+        Arrays.sort(files);
+        final SharedGFF3ItemWriter sharedWriter = new SharedGFF3ItemWriter(writer);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(fileThreads, files.length));
+        try {
+            List<Future<Object>> results = new ArrayList<Future<Object>>();
+            for (int i = 0; i < files.length; i++) {
+                final int fileIndex = i;
+                final File f = new File(basedir, files[i]);
+                results.add(executor.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        LOG.info("Processing file: " + f.getName());
+                        ItemWriter fileWriter = sharedWriter.getFileWriter(fileIndex);
+                        LegfedGFF3Converter gff3converter = createConverter(fileWriter, tgtModel);
+                        BufferedReader reader = openReader(f);
+                        try {
+                            gff3converter.parse(reader);
+                        } finally {
+                            reader.close();
+                        }
+                        gff3converter.storeAll();
+                        gff3converter.close();
+                        fileWriter.close();
+                        return null;
+                    }
+                }));
+            }
+            for (int i = 0; i < files.length; i++) {
+                try {
+                    results.get(i).get();
+                } catch (ExecutionException e) {
+                    throw new BuildException("Failed to convert " + files[i], e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        LOG.info("stored " + sharedWriter.getItemCount() + " items from " + files.length + " files, "
+                 + sharedWriter.getDroppedCount() + " shared items stored once");
+    }
+
+    /**
+     * Open a GFF3 file, decompressing it if it ends in .gz or .bgz.
+     */
+    private BufferedReader openReader(File f) throws IOException {
+        return new BufferedReader(new InputStreamReader(CompressedFiles.open(f, decompressThreads)));
+    }
+
+    /**
+     * Create a converter with new record and sequence handlers.
+     */
+    private LegfedGFF3Converter createConverter(ItemWriter writer, Model tgtModel) throws Exception {
+        GFF3RecordHandler recordHandler;
+        if (handlerClassName == null) {
+            recordHandler = new GFF3RecordHandler(tgtModel);
+        } else {
+            Class<?> handlerClass;
+            try {
+                handlerClass = Class.forName(handlerClassName);
+            } catch (ClassNotFoundException e) {
+                throw new BuildException("Class not found for " + handlerClassName, e);
+            }
+            Class<?> [] types = new Class[] {Model.class};
+            Object [] args = new Object[] {tgtModel};
+            recordHandler = (GFF3RecordHandler) handlerClass.getConstructor(types).newInstance(args);
+        }
+        GFF3SeqHandler sequenceHandler;
+        if (StringUtils.isEmpty(seqHandlerClassName)) {
+            sequenceHandler = new GFF3SeqHandler();
+        } else {
+            Class<?> handlerClass;
+            try {
+                handlerClass = Class.forName(seqHandlerClassName);
+            } catch (ClassNotFoundException e) {
+                throw new BuildException("Class not found for " + seqHandlerClassName, e);
+            }
+            Class<?> [] types = new Class[] {};
+            Object [] args = new Object[] {};
+            sequenceHandler = (GFF3SeqHandler) handlerClass.getConstructor(types).newInstance(args);
+        }
+
+        LegfedGFF3Converter gff3converter = new LegfedGFF3Converter(writer, seqClsName,
+                                                                    orgTaxonId, strainIdentifier, assemblyVersion, annotationVersion,
+                                                                    dataSourceName, dataSourceUrl,
+                                                                    dataSetTitle, dataSetUrl, dataSetVersion, dataSetDescription,
+                                                                    tgtModel, recordHandler, sequenceHandler, licence);
+        if (dontCreateLocations) {
+            gff3converter.setDontCreateLocations(dontCreateLocations);
+        }
+        gff3converter.setConverterThreads(converterThreads);
+        gff3converter.setStreamFeatureGroups(streamFeatureGroups);
+        return gff3converter;
+    }
+
 }
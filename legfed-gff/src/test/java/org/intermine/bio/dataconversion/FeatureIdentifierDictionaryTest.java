@@ -0,0 +1,89 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2019 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for FeatureIdentifierDictionary.
+ *
+ * @author Sam Hokin
+ */
+public class FeatureIdentifierDictionaryTest
+{
+    @Test
+    public void testPutAndGet() {
+        FeatureIdentifierDictionary dictionary = new FeatureIdentifierDictionary(0);
+        assertNull(dictionary.get("glyma.Wm82.gnm2.ann1.Glyma.01G000100"));
+        dictionary.put("glyma.Wm82.gnm2.ann1.Glyma.01G000100", "1_1");
+        dictionary.put("glyma.Wm82.gnm2.ann1.Glyma.01G000200", "1_2");
+        assertEquals("1_1", dictionary.get("glyma.Wm82.gnm2.ann1.Glyma.01G000100"));
+        assertEquals("1_2", dictionary.get("glyma.Wm82.gnm2.ann1.Glyma.01G000200"));
+        assertNull(dictionary.get("glyma.Wm82.gnm2.ann1.Glyma.01G000300"));
+        // a prefix of a key isn't the key
+        assertNull(dictionary.get("glyma.Wm82.gnm2.ann1.Glyma.01G00010"));
+        assertEquals(2, dictionary.size());
+    }
+
+    @Test
+    public void testReplace() {
+        FeatureIdentifierDictionary dictionary = new FeatureIdentifierDictionary(0);
+        dictionary.put("gene1", "1_1");
+        dictionary.put("gene1", "1_10000");
+        assertEquals("1_10000", dictionary.get("gene1"));
+        assertEquals(1, dictionary.size());
+    }
+
+    @Test
+    public void testEqualHashCodesAndNonAscii() {
+        FeatureIdentifierDictionary dictionary = new FeatureIdentifierDictionary(0);
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        dictionary.put("Aa", "1_1");
+        dictionary.put("BB", "1_2");
+        dictionary.put("g\u00e8ne-\u03b1", "1_\u00e9");
+        assertEquals("1_1", dictionary.get("Aa"));
+        assertEquals("1_2", dictionary.get("BB"));
+        assertEquals("1_\u00e9", dictionary.get("g\u00e8ne-\u03b1"));
+    }
+
+    @Test
+    public void testResizeAcrossChunks() {
+        FeatureIdentifierDictionary dictionary = new FeatureIdentifierDictionary(1);
+        // about 6 MB of mappings, so several chunks
+        for (int i = 0; i < 100000; i++) {
+            dictionary.put("glyma.Wm82.gnm2.ann1.Glyma." + i, "1_" + i);
+        }
+        assertEquals(100000, dictionary.size());
+        assertTrue(dictionary.offHeapBytes() >= 2 << 20);
+        for (int i = 0; i < 100000; i++) {
+            assertEquals("1_" + i, dictionary.get("glyma.Wm82.gnm2.ann1.Glyma." + i));
+        }
+    }
+
+    @Test
+    public void testMappingLargerThanAChunk() {
+        FeatureIdentifierDictionary dictionary = new FeatureIdentifierDictionary(0);
+        StringBuilder key = new StringBuilder();
+        while (key.length() < (1 << 20) + 10) {
+            key.append("Glyma.01G000100;");
+        }
+        dictionary.put("before", "1_1");
+        dictionary.put(key.toString(), "1_2");
+        dictionary.put("after", "1_3");
+        assertEquals("1_1", dictionary.get("before"));
+        assertEquals("1_2", dictionary.get(key.toString()));
+        assertEquals("1_3", dictionary.get("after"));
+    }
+}
@@ -0,0 +1,92 @@
+package org.intermine.bio.dataconversion;
+
+/*
+ * Copyright (C) 2002-2019 FlyMine
+ *
+ * This code may be freely distributed and modified under the
+ * terms of the GNU Lesser General Public Licence.  This should
+ * be distributed with the code.  See the LICENSE file for more
+ * information or http://www.gnu.org/copyleft/lesser.html.
+ *
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Tests that LISIdentifier parses identifiers as String.split() did.
+ *
+ * @author Sam Hokin
+ */
+public class LISIdentifierTest
+{
+    private static final String[] IDS = {
+        "phavu.G19833.gnm2.ann1.Phvul.003G111100",
+        "phavu.G19833.gnm2.ann1.Phvul.003G111100.1",
+        "phavu.G19833.gnm2.ann1.Phvul.003G111100.1.CDS.1",
+        "phavu.G19833.gnm2.ann1.Phvul.003G111100.1.CDS.1.extra.parts",
+        "glyma.Wm82.gnm2.ann1.Glyma.01G000100.",
+        "glyma.Wm82.gnm2.ann1.Glyma..01G000100",
+        "glyma.Wm82.gnm2.ann1.G",
+        "a.b.c.d.e...",
+    };
+
+    /**
+     * Return the name the converter built from String.split() before LISIdentifier.
+     */
+    private static String splitName(String[] parts) {
+        String name = parts[0] + "." + parts[4];
+        for (int i = 5; i < parts.length && i <= 8; i++) {
+            name += "." + parts[i];
+        }
+        return name;
+    }
+
+    @Test
+    public void testPartsMatchSplit() {
+        LISIdentifier identifier = new LISIdentifier();
+        for (String id : IDS) {
+            String[] parts = id.split("\\.");
+            identifier.parse(id);
+            assertEquals(id, parts.length, identifier.getPartCount());
+            assertEquals(id, parts[0], identifier.getGensp());
+            assertEquals(id, parts[1], identifier.getStrain());
+            assertEquals(id, parts[2], identifier.getAssemblyVersion());
+            assertEquals(id, parts[3], identifier.getAnnotationVersion());
+            assertEquals(id, splitName(parts), identifier.getName());
+        }
+    }
+
+    @Test
+    public void testPartsAreReused() {
+        LISIdentifier identifier = new LISIdentifier();
+        identifier.parse(new StringBuilder("phavu.G19833.gnm2.ann1.Phvul.003G111100"));
+        String gensp = identifier.getGensp();
+        String strain = identifier.getStrain();
+        identifier.parse(new StringBuilder("phavu.G19833.gnm2.ann1.Phvul.003G111200"));
+        assertSame(gensp, identifier.getGensp());
+        assertSame(strain, identifier.getStrain());
+        assertEquals("phavu.Phvul.003G111200", identifier.getName());
+        identifier.parse("phavu.UI111.gnm1.ann1.Phvul.003G111200");
+        assertSame(gensp, identifier.getGensp());
+        assertEquals("UI111", identifier.getStrain());
+        assertEquals("gnm1", identifier.getAssemblyVersion());
+    }
+
+    @Test
+    public void testTooFewParts() {
+        LISIdentifier identifier = new LISIdentifier();
+        String[] ids = {"phavu.G19833.gnm2.ann1", "phavu.G19833.gnm2.ann1.", "Phvul"};
+        for (String id : ids) {
+            try {
+                identifier.parse(id);
+                fail("expected " + id + " to be rejected");
+            } catch (RuntimeException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -73,7 +73,19 @@ public class SyntenyGFFConverter extends BioFileConverter {
      */
     @Override
     public void process(Reader reader) throws Exception {
-        String[] fileNameParts = getCurrentFile().getName().split("\\.");
+        Reader fileReader = CompressedFiles.getReader(getCurrentFile(), reader);
+        try {
+            processFile(fileReader);
+        } finally {
+            if (fileReader!=reader) fileReader.close();
+        }
+    }
+
+    /**
+     * Process the file once CompressedFiles has decompressed it, if need be.
+     */
+    private void processFile(Reader reader) throws Exception {
+        String[] fileNameParts = CompressedFiles.getUncompressedName(getCurrentFile()).split("\\.");
         if (fileNameParts.length!=10) return;
         LOG.info("Processing Synteny file "+getCurrentFile().getName()+"...");
         // get the organisms and strains from the file name